@@ -0,0 +1,427 @@
+package com.hierarchy;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The Class BinaryProtocol.
+ * <p>
+ * Compact length-prefixed binary protocol of HierarchyServer. Every request and
+ * response is a frame: int length of the rest of frame, followed by the body.
+ * Numbers are big-endian, names are a short byte count followed by UTF-8 bytes.
+ * </p>
+ * <p>
+ * Request body is the query type byte followed by the attributes of the query
+ * format of DriverClass, with the same query types; 7 and 8 have no query in
+ * the input file:
+ * </p>
+ * <ul>
+ * <li>0 add node info: int nodeId, float price (-1 for category), name</li>
+ * <li>1 % discount, 2 flat discount: int nodeId, float discount</li>
+ * <li>3 get maximum discounted product: int nodeId</li>
+ * <li>4 add category / product: int parentCategoryId, int nodeId, float price,
+ * name</li>
+ * <li>5 delete: int nodeId</li>
+ * <li>6 move: int nodeId, int newParentCategoryId</li>
+ * <li>7 get maximum discounted product once applied: int nodeId, long
+ * minSequence. A replica answers once it applied the operation log up to
+ * minSequence, or REPLICA_STALE if it does not within the wait bound</li>
+ * <li>8 get sequence: sequence number of last applied operation, see
+ * OperationLog</li>
+ * <li>9 get subtree aggregates: int nodeId</li>
+ * <li>10 get maximum percent discounted product: int nodeId</li>
+ * </ul>
+ * <p>
+ * Response body is the ordinal of the ResultCode as a byte. A PRODUCT_FOUND
+ * response is followed by int productId, float originalPrice, float
+ * sellingPrice and name. A SEQUENCE_FOUND response is followed by long
+ * sequence. An AGGREGATES_FOUND response is followed by int productCount,
+ * double originalPriceSum and double sellingPriceSum. Responses of a
+ * connection are sent in the order of its requests, so a client can pipeline
+ * requests without waiting.
+ * </p>
+ */
+public class BinaryProtocol {
+
+    /** The add node info query type. */
+    public static final byte ADD_NODE_INFO = 0;
+
+    /** The % discount query type. */
+    public static final byte PERCENT_DISCOUNT = 1;
+
+    /** The flat discount query type. */
+    public static final byte FLAT_DISCOUNT = 2;
+
+    /** The get maximum discounted product query type. */
+    public static final byte GET_MAXIMUM_DISCOUNTED_PRODUCT = 3;
+
+    /** The add new node query type. */
+    public static final byte ADD_NEW_NODE = 4;
+
+    /** The remove node query type. */
+    public static final byte REMOVE_NODE = 5;
+
+    /** The move node query type. */
+    public static final byte MOVE_NODE = 6;
+
+    /** The get maximum discounted product with minimum sequence query type. */
+    public static final byte GET_MAXIMUM_DISCOUNTED_PRODUCT_AT = 7;
+
+    /** The get sequence query type. */
+    public static final byte GET_SEQUENCE = 8;
+
+    /** The get subtree aggregates query type. */
+    public static final byte GET_SUBTREE_AGGREGATES = 9;
+
+    /** The get maximum percent discounted product query type. */
+    public static final byte GET_MAXIMUM_PERCENT_DISCOUNTED_PRODUCT = 10;
+
+    /** The max length of a frame, length prefix excluded. */
+    public static final int MAX_FRAME_LENGTH = 1024;
+
+    /** The max length of a response frame, length prefix included. */
+    public static final int MAX_RESPONSE_LENGTH = 4 + 1 + 4 + 4 + 4 + 2 + MAX_FRAME_LENGTH;
+
+    /** The result codes by ordinal. */
+    private static final ResultCode[] RESULT_CODES = ResultCode.values();
+
+    /**
+     * Put an add node info request.
+     *
+     * @param buffer    the buffer
+     * @param nodeId    the node id
+     * @param price     the price, -1 for category
+     * @param nameBytes the UTF-8 name bytes
+     */
+    public static void putAddNodeInfo(ByteBuffer buffer, int nodeId, float price, byte[] nameBytes) {
+	buffer.putInt(1 + 4 + 4 + 2 + nameBytes.length).put(ADD_NODE_INFO).putInt(nodeId).putFloat(price);
+	buffer.putShort((short) nameBytes.length).put(nameBytes);
+    }
+
+    /**
+     * Put a % or flat discount request.
+     *
+     * @param buffer       the buffer
+     * @param discountType the discount type 1: % discount, 2: flat discount
+     * @param nodeId       the node id
+     * @param discount     the discount
+     */
+    public static void putDiscount(ByteBuffer buffer, byte discountType, int nodeId, float discount) {
+	buffer.putInt(1 + 4 + 4).put(discountType).putInt(nodeId).putFloat(discount);
+    }
+
+    /**
+     * Put a get maximum discounted product request.
+     *
+     * @param buffer the buffer
+     * @param nodeId the node id
+     */
+    public static void putGetMaximumDiscountedProduct(ByteBuffer buffer, int nodeId) {
+	buffer.putInt(1 + 4).put(GET_MAXIMUM_DISCOUNTED_PRODUCT).putInt(nodeId);
+    }
+
+    /**
+     * Put an add new node request.
+     *
+     * @param buffer           the buffer
+     * @param parentCategoryId the parent category id
+     * @param nodeId           the node id
+     * @param price            the price, -1 for category
+     * @param nameBytes        the UTF-8 name bytes
+     */
+    public static void putAddNewNode(ByteBuffer buffer, int parentCategoryId, int nodeId, float price,
+	    byte[] nameBytes) {
+	buffer.putInt(1 + 4 + 4 + 4 + 2 + nameBytes.length).put(ADD_NEW_NODE).putInt(parentCategoryId)
+		.putInt(nodeId).putFloat(price);
+	buffer.putShort((short) nameBytes.length).put(nameBytes);
+    }
+
+    /**
+     * Put a remove node request.
+     *
+     * @param buffer the buffer
+     * @param nodeId the node id
+     */
+    public static void putRemoveNode(ByteBuffer buffer, int nodeId) {
+	buffer.putInt(1 + 4).put(REMOVE_NODE).putInt(nodeId);
+    }
+
+    /**
+     * Put a move node request.
+     *
+     * @param buffer              the buffer
+     * @param nodeId              the node id
+     * @param newParentCategoryId the new parent category id
+     */
+    public static void putMoveNode(ByteBuffer buffer, int nodeId, int newParentCategoryId) {
+	buffer.putInt(1 + 4 + 4).put(MOVE_NODE).putInt(nodeId).putInt(newParentCategoryId);
+    }
+
+    /**
+     * Put a get maximum discounted product request answered once given sequence
+     * is applied.
+     *
+     * @param buffer      the buffer
+     * @param nodeId      the node id
+     * @param minSequence the min sequence
+     */
+    public static void putGetMaximumDiscountedProductAt(ByteBuffer buffer, int nodeId, long minSequence) {
+	buffer.putInt(1 + 4 + 8).put(GET_MAXIMUM_DISCOUNTED_PRODUCT_AT).putInt(nodeId).putLong(minSequence);
+    }
+
+    /**
+     * Put a get sequence request.
+     *
+     * @param buffer the buffer
+     */
+    public static void putGetSequence(ByteBuffer buffer) {
+	buffer.putInt(1).put(GET_SEQUENCE);
+    }
+
+    /**
+     * Put a get maximum percent discounted product request.
+     *
+     * @param buffer the buffer
+     * @param nodeId the node id
+     */
+    public static void putGetMaximumPercentDiscountedProduct(ByteBuffer buffer, int nodeId) {
+	buffer.putInt(1 + 4).put(GET_MAXIMUM_PERCENT_DISCOUNTED_PRODUCT).putInt(nodeId);
+    }
+
+    /**
+     * Put a get subtree aggregates request.
+     *
+     * @param buffer the buffer
+     * @param nodeId the node id
+     */
+    public static void putGetSubtreeAggregates(ByteBuffer buffer, int nodeId) {
+	buffer.putInt(1 + 4).put(GET_SUBTREE_AGGREGATES).putInt(nodeId);
+    }
+
+    /**
+     * Checks if query type changes the hierarchy.
+     *
+     * @param queryType the query type
+     * @return true, if write
+     */
+    public static boolean isWrite(byte queryType) {
+	return queryType != GET_MAXIMUM_DISCOUNTED_PRODUCT && queryType != GET_MAXIMUM_DISCOUNTED_PRODUCT_AT
+		&& queryType != GET_SEQUENCE && queryType != GET_SUBTREE_AGGREGATES
+		&& queryType != GET_MAXIMUM_PERCENT_DISCOUNTED_PRODUCT;
+    }
+
+    /**
+     * Gets the query type of the complete frame at position of buffer.
+     *
+     * @param buffer the buffer
+     * @return the query type
+     */
+    static byte getQueryType(ByteBuffer buffer) {
+	return buffer.get(buffer.position() + 4);
+    }
+
+    /**
+     * Gets the min sequence of the complete GET_MAXIMUM_DISCOUNTED_PRODUCT_AT
+     * frame at position of buffer.
+     *
+     * @param buffer the buffer
+     * @return the min sequence, 0 if frame is too short
+     */
+    static long getMinSequence(ByteBuffer buffer) {
+	int position = buffer.position();
+	return buffer.getInt(position) < 1 + 4 + 8 ? 0 : buffer.getLong(position + 4 + 1 + 4);
+    }
+
+    /**
+     * Checks if buffer holds a complete frame at its position.
+     *
+     * @param buffer the buffer in read mode
+     * @return the frame length without prefix, -1 if frame is not complete
+     * @throws IllegalArgumentException if frame length is not valid
+     */
+    public static int completeFrameLength(ByteBuffer buffer) {
+	if (buffer.remaining() < 4) {
+	    return -1;
+	}
+	int length = buffer.getInt(buffer.position());
+	if (length < 1 || length > MAX_FRAME_LENGTH) {
+	    throw new IllegalArgumentException("Invalid frame length " + length);
+	}
+	return buffer.remaining() - 4 >= length ? length : -1;
+    }
+
+    /**
+     * Execute the request frame at position of request buffer on hierarchy and
+     * put the response frame in response buffer. Request buffer is positioned
+     * after the frame. Response buffer must have MAX_RESPONSE_LENGTH bytes
+     * remaining.
+     *
+     * @param hierarchy       the hierarchy
+     * @param request         the request buffer holding a complete frame
+     * @param response        the response buffer
+     * @param productResult   the reusable product result
+     * @param aggregates      the reusable subtree aggregates
+     * @param appliedSequence the sequence number of last operation applied on
+     *                        hierarchy
+     * @param readOnly        reject write operations, for a replica
+     * @return the result code
+     */
+    static ResultCode execute(HierarchyUsingChildCategoryAndProduct hierarchy, ByteBuffer request,
+	    ByteBuffer response, ProductResult productResult, SubtreeAggregates aggregates, long appliedSequence,
+	    boolean readOnly) {
+	int length = request.getInt();
+	int frameEnd = request.position() + length;
+	int limit = request.limit();
+	request.limit(frameEnd);
+	ResultCode resultCode;
+	try {
+	    if (readOnly && isWrite(request.get(request.position()))) {
+		resultCode = ResultCode.READ_ONLY_REPLICA;
+	    } else {
+		resultCode = executeQuery(hierarchy, request, productResult, aggregates, appliedSequence);
+	    }
+	} catch (BufferUnderflowException e) {
+	    resultCode = ResultCode.INVALID_QUERY_TYPE;
+	}
+	request.limit(limit).position(frameEnd);
+
+	if (resultCode == ResultCode.PRODUCT_FOUND) {
+	    byte[] nameBytes = productResult.getName().getBytes(StandardCharsets.UTF_8);
+	    int nameLength = Math.min(nameBytes.length, MAX_FRAME_LENGTH);
+	    response.putInt(1 + 4 + 4 + 4 + 2 + nameLength).put((byte) resultCode.ordinal());
+	    response.putInt(productResult.getProductId()).putFloat(productResult.getOriginalPrice())
+		    .putFloat(productResult.getSellingPrice());
+	    response.putShort((short) nameLength).put(nameBytes, 0, nameLength);
+	} else if (resultCode == ResultCode.SEQUENCE_FOUND) {
+	    response.putInt(1 + 8).put((byte) resultCode.ordinal()).putLong(appliedSequence);
+	} else if (resultCode == ResultCode.AGGREGATES_FOUND) {
+	    response.putInt(1 + 4 + 8 + 8).put((byte) resultCode.ordinal()).putInt(aggregates.productCount)
+		    .putDouble(aggregates.originalPriceSum).putDouble(aggregates.sellingPriceSum);
+	} else {
+	    response.putInt(1).put((byte) resultCode.ordinal());
+	}
+	return resultCode;
+    }
+
+    /**
+     * Decode the query and execute it.
+     *
+     * @param hierarchy       the hierarchy
+     * @param request         the request limited to frame
+     * @param productResult   the product result
+     * @param aggregates      the subtree aggregates
+     * @param appliedSequence the applied sequence
+     * @return the result code
+     */
+    private static ResultCode executeQuery(HierarchyUsingChildCategoryAndProduct hierarchy, ByteBuffer request,
+	    ProductResult productResult, SubtreeAggregates aggregates, long appliedSequence) {
+	byte queryType = request.get();
+	switch (queryType) {
+	case ADD_NODE_INFO: {
+	    int nodeId = request.getInt();
+	    float price = request.getFloat();
+	    return hierarchy.addNodeInfoResult(nodeId, getName(request), price);
+	}
+	case PERCENT_DISCOUNT:
+	case FLAT_DISCOUNT:
+	    return hierarchy.applyDiscountOnNodeResult(request.getInt(), queryType, request.getFloat());
+	case GET_MAXIMUM_DISCOUNTED_PRODUCT:
+	    return hierarchy.getMaximumDiscountedProduct(request.getInt(), productResult);
+	case ADD_NEW_NODE: {
+	    int parentCategoryId = request.getInt();
+	    int nodeId = request.getInt();
+	    float price = request.getFloat();
+	    return hierarchy.addNewNodeResult(parentCategoryId, nodeId, price, getName(request));
+	}
+	case REMOVE_NODE:
+	    return hierarchy.removeNodeResult(request.getInt());
+	case MOVE_NODE:
+	    return hierarchy.moveNodeResult(request.getInt(), request.getInt());
+	case GET_MAXIMUM_DISCOUNTED_PRODUCT_AT: {
+	    int nodeId = request.getInt();
+	    if (request.getLong() > appliedSequence) {
+		return ResultCode.REPLICA_STALE;
+	    }
+	    return hierarchy.getMaximumDiscountedProduct(nodeId, productResult);
+	}
+	case GET_SEQUENCE:
+	    return ResultCode.SEQUENCE_FOUND;
+	case GET_SUBTREE_AGGREGATES:
+	    return hierarchy.getSubtreeAggregates(request.getInt(), aggregates);
+	case GET_MAXIMUM_PERCENT_DISCOUNTED_PRODUCT:
+	    return hierarchy.getMaximumPercentDiscountedProduct(request.getInt(), productResult);
+	default:
+	    return ResultCode.INVALID_QUERY_TYPE;
+	}
+    }
+
+    /**
+     * Gets the name at position of buffer.
+     *
+     * @param buffer the buffer
+     * @return the name
+     */
+    static String getName(ByteBuffer buffer) {
+	int nameLength = buffer.getShort() & 0xFFFF;
+	if (nameLength > buffer.remaining()) {
+	    throw new BufferUnderflowException();
+	}
+	String name = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), nameLength,
+		StandardCharsets.UTF_8);
+	buffer.position(buffer.position() + nameLength);
+	return name;
+    }
+
+    /**
+     * Read the response frame at position of buffer. A found product is copied
+     * into product result.
+     *
+     * @param buffer        the buffer holding a complete frame
+     * @param productResult the product result
+     * @return the result code
+     */
+    public static ResultCode getResponse(ByteBuffer buffer, ProductResult productResult) {
+	int frameEnd = buffer.position() + 4 + buffer.getInt();
+	ResultCode resultCode = RESULT_CODES[buffer.get()];
+	if (resultCode == ResultCode.PRODUCT_FOUND) {
+	    productResult.productId = buffer.getInt();
+	    productResult.originalPrice = buffer.getFloat();
+	    productResult.sellingPrice = buffer.getFloat();
+	    productResult.name = getName(buffer);
+	}
+	buffer.position(frameEnd);
+	return resultCode;
+    }
+
+    /**
+     * Read the response frame of a get sequence request at position of buffer.
+     *
+     * @param buffer the buffer holding a complete frame
+     * @return the sequence, -1 if response is not SEQUENCE_FOUND
+     */
+    public static long getSequenceResponse(ByteBuffer buffer) {
+	int frameEnd = buffer.position() + 4 + buffer.getInt();
+	long sequence = RESULT_CODES[buffer.get()] == ResultCode.SEQUENCE_FOUND ? buffer.getLong() : -1;
+	buffer.position(frameEnd);
+	return sequence;
+    }
+
+    /**
+     * Read the response frame of a get subtree aggregates request at position of
+     * buffer.
+     *
+     * @param buffer     the buffer holding a complete frame
+     * @param aggregates the aggregates to populate when AGGREGATES_FOUND
+     * @return the result code
+     */
+    public static ResultCode getAggregatesResponse(ByteBuffer buffer, SubtreeAggregates aggregates) {
+	int frameEnd = buffer.position() + 4 + buffer.getInt();
+	ResultCode resultCode = RESULT_CODES[buffer.get()];
+	if (resultCode == ResultCode.AGGREGATES_FOUND) {
+	    aggregates.set(buffer.getInt(), buffer.getDouble(), buffer.getDouble());
+	}
+	buffer.position(frameEnd);
+	return resultCode;
+    }
+}
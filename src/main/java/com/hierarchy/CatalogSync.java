@@ -0,0 +1,353 @@
+package com.hierarchy;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The Class CatalogSync.
+ * <p>
+ * Brings a live hierarchy in line with a full catalog snapshot in the node and
+ * relationship format of the DriverClass input file, without rebuilding it.
+ * The snapshot is read line by line into compact arrays (read), then diffed
+ * against the hierarchy and only the difference is applied (apply): nodes
+ * missing from the hierarchy are added, nodes missing from the snapshot are
+ * removed, nodes under another parent are moved and products with another
+ * original price are repriced. Discounts applied on unchanged products are
+ * kept, and a repriced product keeps its discount ratio.
+ * </p>
+ * <p>
+ * The difference is applied as one MutationBatch, so every category touched by
+ * it is recomputed once, and the cost of a sync grows with the number of
+ * changes instead of the size of the catalog. Only the diff itself, a hash
+ * lookup per node, is proportional to the catalog. Nodes are placed top down
+ * in the snapshot tree, a parent before its children, so that a new node is
+ * added under an existing parent and no category is moved into its own
+ * subtree. Removals come last, after the nodes which survive have been moved
+ * out of removed categories; only the top most removed node of a subtree is
+ * removed.
+ * </p>
+ * <p>
+ * A product which becomes a category is removed before the batch and added back
+ * as a category in it. A category which becomes a product is removed with the
+ * other missing nodes, once its surviving children have been moved out, and
+ * added back as a product at the end of the batch. Nodes without parent in the
+ * snapshot are added as top level nodes before the batch. The hierarchy can not
+ * detach a node to top level, nor attach a top level node, so such a change of
+ * parent is skipped and counted. Names are not synced. Like the hierarchy, this
+ * class is not thread safe; with ConcurrentHierarchy the snapshot is read
+ * without lock and applied under the write lock.
+ * </p>
+ */
+public class CatalogSync {
+
+    /** The LOGGER. */
+    private static final Logger LOGGER = LoggerFactory.getLogger(CatalogSync.class);
+
+    /** The parent id of a node without parent. */
+    private static final int NO_PARENT = 0;
+
+    /** The initial capacity. */
+    private static final int INITIAL_CAPACITY = 16;
+
+    /** The node ids of snapshot. */
+    private int[] ids = new int[INITIAL_CAPACITY];
+
+    /** The prices of snapshot nodes, -1 for a category. */
+    private float[] prices = new float[INITIAL_CAPACITY];
+
+    /** The names of snapshot nodes. */
+    private String[] names = new String[INITIAL_CAPACITY];
+
+    /** The parent ids of snapshot nodes. */
+    private int[] parentIds = new int[INITIAL_CAPACITY];
+
+    /** The number of snapshot nodes. */
+    private int size;
+
+    /** The index of every snapshot node by id. */
+    private final Map<Integer, Integer> indexById = new HashMap<>();
+
+    /** The categories of hierarchy which are products in snapshot. */
+    private final Set<Integer> retypedCategoryIds = new LinkedHashSet<>();
+
+    /** The batch of last apply, reused. */
+    private final MutationBatch batch = new MutationBatch();
+
+    /** The added node count of last apply. */
+    private int addedCount;
+
+    /** The removed node count of last apply. */
+    private int removedCount;
+
+    /** The moved node count of last apply. */
+    private int movedCount;
+
+    /** The repriced product count of last apply. */
+    private int repricedCount;
+
+    /** The skipped change count of last apply. */
+    private int skippedCount;
+
+    /**
+     * Read a snapshot: the node count N, N lines "id price name" and N-1 lines
+     * "id1 id2" of relationship. Lines after relationships, like queries, are
+     * not read. Replaces the snapshot read before.
+     *
+     * @param reader the reader
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    public void read(BufferedReader reader) throws IOException {
+	int nodeCount = Integer.parseInt(reader.readLine().trim());
+	size = 0;
+	indexById.clear();
+	if (ids.length < nodeCount) {
+	    ids = new int[nodeCount];
+	    prices = new float[nodeCount];
+	    names = new String[nodeCount];
+	    parentIds = new int[nodeCount];
+	} else {
+	    Arrays.fill(names, null);
+	}
+
+	for (int i = 0; i < nodeCount; i++) {
+	    String[] nodeAttributes = reader.readLine().split(" ");
+	    int nodeId = Integer.parseInt(nodeAttributes[0].trim());
+	    if (indexById.containsKey(nodeId)) {
+		LOGGER.warn("Node [{}] is repeated in snapshot, first one is kept", nodeId);
+		continue;
+	    }
+	    ids[size] = nodeId;
+	    prices[size] = Float.parseFloat(nodeAttributes[1].trim());
+	    names[size] = nodeAttributes[2].trim();
+	    parentIds[size] = NO_PARENT;
+	    indexById.put(nodeId, size);
+	    size++;
+	}
+
+	for (int i = 0; i < nodeCount - 1; i++) {
+	    String[] relationAttributes = reader.readLine().split(" ");
+	    Integer node1Index = indexById.get(Integer.parseInt(relationAttributes[0].trim()));
+	    Integer node2Index = indexById.get(Integer.parseInt(relationAttributes[1].trim()));
+	    if (node1Index == null || node2Index == null) {
+		continue;
+	    }
+	    // Same rule as addNodeResult: a category is the parent of a product,
+	    // else node 1 is the parent of node 2
+	    if (prices[node1Index] == -1) {
+		parentIds[node2Index] = ids[node1Index];
+	    } else if (prices[node2Index] == -1) {
+		parentIds[node1Index] = ids[node2Index];
+	    }
+	}
+    }
+
+    /**
+     * Apply the difference between the hierarchy and the snapshot read last.
+     *
+     * @param hierarchy the hierarchy
+     * @return the result code BATCH_APPLIED
+     */
+    public ResultCode apply(HierarchyUsingChildCategoryAndProduct hierarchy) {
+	batch.clear();
+	addedCount = 0;
+	removedCount = 0;
+	movedCount = 0;
+	repricedCount = 0;
+	skippedCount = 0;
+
+	retypedCategoryIds.clear();
+
+	// The diff goes through every node, so tombstoned subtrees are reclaimed
+	// first
+	hierarchy.reclaimTombstones(Long.MAX_VALUE);
+
+	// Products becoming categories go first, so that the category and its
+	// snapshot children can be added in the batch
+	for (int i = 0; i < size; i++) {
+	    if (prices[i] == -1 && hierarchy.products.containsKey(ids[i])) {
+		hierarchy.removeNodeResult(ids[i]);
+		removedCount++;
+	    }
+	}
+
+	// Place every node after its parent in snapshot tree. A node is marked
+	// placed once pushed, which also stops a cycle of the snapshot
+	boolean[] placed = new boolean[size];
+	int[] path = new int[INITIAL_CAPACITY];
+	for (int i = 0; i < size; i++) {
+	    int pathSize = 0;
+	    Integer index = i;
+	    while (index != null && !placed[index]) {
+		placed[index] = true;
+		if (pathSize == path.length) {
+		    path = Arrays.copyOf(path, pathSize * 2);
+		}
+		path[pathSize++] = index;
+		index = indexById.get(parentIds[index]);
+	    }
+	    while (pathSize > 0) {
+		placeNode(hierarchy, path[--pathSize]);
+	    }
+	}
+
+	// Nodes missing from snapshot, except those removed with an ancestor.
+	// Categories becoming products are removed first and added back last
+	List<Integer> removedIds = new ArrayList<>(retypedCategoryIds);
+	for (Category category : hierarchy.categories.values()) {
+	    if (!indexById.containsKey(category.getId()) && isRemovalRoot(category.getParentCategoryId())) {
+		removedIds.add(category.getId());
+	    }
+	}
+	for (Product product : hierarchy.products.values()) {
+	    if (!indexById.containsKey(product.getId()) && isRemovalRoot(product.getCategoryId())) {
+		if (product.getCategoryId() == NO_PARENT) {
+		    LOGGER.warn("Product [{}] without category is not removed", product.getId());
+		    skippedCount++;
+		} else {
+		    removedIds.add(product.getId());
+		}
+	    }
+	}
+	for (int removedId : removedIds) {
+	    batch.removeNode(removedId);
+	}
+	removedCount += removedIds.size();
+	for (int retypedCategoryId : retypedCategoryIds) {
+	    int index = indexById.get(retypedCategoryId);
+	    batch.addNewNode(parentIds[index], retypedCategoryId, prices[index], names[index]);
+	    addedCount++;
+	}
+
+	ResultCode resultCode = hierarchy.applyBatch(batch);
+	LOGGER.debug("Catalog synced: [{}] added, [{}] removed, [{}] moved, [{}] repriced, [{}] skipped", addedCount,
+		removedCount, movedCount, repricedCount, skippedCount);
+	return resultCode;
+    }
+
+    /**
+     * Add the batch mutations placing a snapshot node. Its parent is placed
+     * already.
+     *
+     * @param hierarchy the hierarchy
+     * @param index     the index of snapshot node
+     */
+    private void placeNode(HierarchyUsingChildCategoryAndProduct hierarchy, int index) {
+	int nodeId = ids[index];
+	int parentId = parentIds[index];
+	Category category = hierarchy.categories.get(nodeId);
+	Product product = category == null ? hierarchy.products.get(nodeId) : null;
+	if (category != null && prices[index] != -1) {
+	    // Added back once the category is removed, its children are moved
+	    // out of it first. It has no children in snapshot as a product
+	    if (parentId == NO_PARENT) {
+		LOGGER.warn("Category [{}] can not become a product without category", nodeId);
+		skippedCount++;
+	    } else {
+		retypedCategoryIds.add(nodeId);
+	    }
+	    return;
+	}
+	if (category == null && product == null) {
+	    if (parentId == NO_PARENT) {
+		hierarchy.addNodeInfoResult(nodeId, names[index], prices[index]);
+	    } else {
+		batch.addNewNode(parentId, nodeId, prices[index], names[index]);
+	    }
+	    addedCount++;
+	    return;
+	}
+
+	int currentParentId = category != null ? category.getParentCategoryId() : product.getCategoryId();
+	if (currentParentId != parentId) {
+	    if (currentParentId == NO_PARENT || parentId == NO_PARENT) {
+		LOGGER.warn("Node [{}] can not be moved from [{}] to [{}], top level nodes are not relinked", nodeId,
+			currentParentId, parentId);
+		skippedCount++;
+	    } else {
+		batch.moveNode(nodeId, parentId);
+		movedCount++;
+	    }
+	}
+	if (product != null && product.getOriginalPrice() != prices[index]) {
+	    batch.changeOriginalPrice(nodeId, prices[index]);
+	    repricedCount++;
+	}
+    }
+
+    /**
+     * Checks if a node missing from snapshot is the top most missing node of its
+     * subtree, from its parent.
+     *
+     * @param parentId the parent id of node in hierarchy
+     * @return true, if parent is a category of snapshot or node has no parent
+     */
+    private boolean isRemovalRoot(int parentId) {
+	return parentId == NO_PARENT || (indexById.containsKey(parentId) && !retypedCategoryIds.contains(parentId));
+    }
+
+    /**
+     * Gets the batch of last apply. Result of each mutation is available
+     * through MutationBatch.getResult.
+     *
+     * @return the batch
+     */
+    public MutationBatch getBatch() {
+	return batch;
+    }
+
+    /**
+     * Gets the number of nodes added by last apply.
+     *
+     * @return the added count
+     */
+    public int getAddedCount() {
+	return addedCount;
+    }
+
+    /**
+     * Gets the number of nodes removed by last apply, the nodes removed with an
+     * ancestor are not counted.
+     *
+     * @return the removed count
+     */
+    public int getRemovedCount() {
+	return removedCount;
+    }
+
+    /**
+     * Gets the number of nodes moved by last apply.
+     *
+     * @return the moved count
+     */
+    public int getMovedCount() {
+	return movedCount;
+    }
+
+    /**
+     * Gets the number of products repriced by last apply.
+     *
+     * @return the repriced count
+     */
+    public int getRepricedCount() {
+	return repricedCount;
+    }
+
+    /**
+     * Gets the number of changes skipped by last apply, see class comment.
+     *
+     * @return the skipped count
+     */
+    public int getSkippedCount() {
+	return skippedCount;
+    }
+}
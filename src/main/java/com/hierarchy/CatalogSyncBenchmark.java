@@ -0,0 +1,140 @@
+package com.hierarchy;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.Random;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The Class CatalogSyncBenchmark.
+ * <p>
+ * Cost of CatalogSync against a full reload. A catalog snapshot, categories
+ * forming a complete tree, is loaded and discounted, then a second snapshot
+ * changing a given % of the products (repriced, moved to another category, or
+ * replaced by a new product) is either loaded into a new hierarchy or synced
+ * into the live one. Snapshots are kept in memory, so reading them costs the
+ * same in both cases; the time to apply them is logged apart.
+ * </p>
+ * <p>
+ * Usage: CatalogSyncBenchmark [categories] [productsPerCategory]
+ * [changePercent] [rounds]. Defaults are 2000 100 1 5.
+ * </p>
+ */
+public class CatalogSyncBenchmark {
+
+    /** The LOGGER. */
+    private static final Logger LOGGER = LoggerFactory.getLogger(CatalogSyncBenchmark.class);
+
+    /** The branching factor of category tree. */
+    private static final int BRANCHING = 8;
+
+    /** The warm up rounds, results of these are not reported. */
+    private static final int WARM_UP_ROUNDS = 2;
+
+    /**
+     * The main method.
+     *
+     * @param args the arguments
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    public static void main(String[] args) throws IOException {
+	int categoryCount = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+	int productsPerCategory = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+	float changePercent = args.length > 2 ? Float.parseFloat(args[2]) : 1;
+	int rounds = args.length > 3 ? Integer.parseInt(args[3]) : 5;
+
+	String snapshot = createSnapshot(categoryCount, productsPerCategory, 0, new Random(categoryCount));
+	String changedSnapshot = createSnapshot(categoryCount, productsPerCategory, changePercent,
+		new Random(categoryCount));
+	CatalogSync sync = new CatalogSync();
+
+	for (int round = 0; round < WARM_UP_ROUNDS + rounds; round++) {
+	    HierarchyUsingChildCategoryAndProduct hierarchy = new HierarchyUsingChildCategoryAndProduct();
+	    sync.read(new BufferedReader(new StringReader(snapshot)));
+	    sync.apply(hierarchy);
+	    hierarchy.applyDiscountOnNodeResult(1, 1, 10);
+
+	    long startNanos = System.nanoTime();
+	    HierarchyUsingChildCategoryAndProduct reloaded = new HierarchyUsingChildCategoryAndProduct();
+	    sync.read(new BufferedReader(new StringReader(changedSnapshot)));
+	    long reloadApplyStartNanos = System.nanoTime();
+	    sync.apply(reloaded);
+	    long reloadEndNanos = System.nanoTime();
+
+	    sync.read(new BufferedReader(new StringReader(changedSnapshot)));
+	    long syncApplyStartNanos = System.nanoTime();
+	    sync.apply(hierarchy);
+	    long syncEndNanos = System.nanoTime();
+
+	    if (round >= WARM_UP_ROUNDS) {
+		LOGGER.info("{} nodes: full reload {} ms (apply {} ms), sync {} ms (apply {} ms)", reloaded.categories.size()
+			+ reloaded.products.size(), (reloadEndNanos - startNanos) / 1000000,
+			(reloadEndNanos - reloadApplyStartNanos) / 1000000, (syncEndNanos - reloadEndNanos) / 1000000,
+			(syncEndNanos - syncApplyStartNanos) / 1000000);
+		LOGGER.info("sync: {} added, {} removed, {} moved, {} repriced", sync.getAddedCount(),
+			sync.getRemovedCount(), sync.getMovedCount(), sync.getRepricedCount());
+	    }
+	}
+    }
+
+    /**
+     * Creates a snapshot in the format of the input file. With the same seed,
+     * the snapshot differs from the one without change in given % of products.
+     *
+     * @param categoryCount       the category count
+     * @param productsPerCategory the products per category
+     * @param changePercent       the % of products changed
+     * @param random              the random
+     * @return the snapshot
+     */
+    private static String createSnapshot(int categoryCount, int productsPerCategory, float changePercent,
+	    Random random) {
+	int productCount = categoryCount * productsPerCategory;
+	int[] productIds = new int[productCount];
+	int[] categoryIds = new int[productCount];
+	float[] prices = new float[productCount];
+	for (int i = 0; i < productCount; i++) {
+	    productIds[i] = categoryCount + 1 + i;
+	    categoryIds[i] = 1 + i / productsPerCategory;
+	    prices[i] = 100 + random.nextInt(100000) / 100f;
+	}
+	Random changeRandom = new Random(random.nextLong());
+	for (int i = 0; i < productCount; i++) {
+	    if (changeRandom.nextFloat() * 100 >= changePercent) {
+		continue;
+	    }
+	    switch (changeRandom.nextInt(3)) {
+	    case 0:
+		prices[i] = 100 + changeRandom.nextInt(100000) / 100f;
+		break;
+	    case 1:
+		categoryIds[i] = 1 + changeRandom.nextInt(categoryCount);
+		break;
+	    default:
+		productIds[i] += productCount;
+		break;
+	    }
+	}
+
+	StringBuilder snapshot = new StringBuilder();
+	snapshot.append(categoryCount + productCount).append('\n');
+	for (int categoryId = 1; categoryId <= categoryCount; categoryId++) {
+	    snapshot.append(categoryId).append(" -1 c").append(categoryId).append('\n');
+	}
+	for (int i = 0; i < productCount; i++) {
+	    snapshot.append(productIds[i]).append(' ').append(prices[i]).append(" p").append(productIds[i])
+		    .append('\n');
+	}
+	for (int categoryId = 2; categoryId <= categoryCount; categoryId++) {
+	    // Parent of category i in a complete tree of given branching
+	    snapshot.append((categoryId - 2) / BRANCHING + 1).append(' ').append(categoryId).append('\n');
+	}
+	for (int i = 0; i < productCount; i++) {
+	    snapshot.append(categoryIds[i]).append(' ').append(productIds[i]).append('\n');
+	}
+	return snapshot.toString();
+    }
+}
@@ -1,8 +1,9 @@
 package com.hierarchy;
 
-import java.util.HashSet;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Set;
-import java.util.TreeSet;
+import java.util.SortedSet;
 
 /**
  * The class representing Category.
@@ -16,11 +17,21 @@ import java.util.TreeSet;
  * category id will be 0.
  * <p>
  * A category also holds reference of maximum discounted product under its
- * hierarchy
+ * hierarchy, by absolute discount and by discount ratio
+ * </p>
+ * <p>
+ * Child collections are allocated on first child only, so a leaf category
+ * holds none, and they are small inline arrays (CompactIdSet and
+ * CompactSortedSet) until the fanout grows beyond a few children. The getters
+ * return read only empty sets while there is no child; children are added and
+ * removed through the methods of this class.
  * </p>
  */
 public class Category {
 
+    /** The number of buckets of discount histogram, each 10% of price wide. */
+    public static final int DISCOUNT_HISTOGRAM_BUCKETS = 10;
+
     /** The id. */
     private int id;
 
@@ -30,17 +41,17 @@ public class Category {
     /** The parent category id. */
     private int parentCategoryId;
 
-    /** The direct child product ids. */
-    private Set<Integer> directChildProductIds;
+    /** The direct child product ids, null if none. */
+    private CompactIdSet directChildProductIds;
 
-    /** The direct child category ids. */
-    private Set<Integer> directChildCategoryIds;
+    /** The direct child category ids, null if none. */
+    private CompactIdSet directChildCategoryIds;
 
-    /** The direct child products. */
-    private TreeSet<ChildProduct> directChildProducts;
+    /** The direct child products, null if none. */
+    private CompactSortedSet<ChildProduct> directChildProducts;
 
-    /** The direct child categories. */
-    private TreeSet<ChildCategory> directChildCategories;
+    /** The direct child categories, null if none. */
+    private CompactSortedSet<ChildCategory> directChildCategories;
 
     /** The max discounted product id. */
     private int maxDiscountedProductId;
@@ -48,6 +59,70 @@ public class Category {
     /** The max discounted product discount. */
     private float maxDiscountedProductDiscount;
 
+    /**
+     * The max percent discounted product id. Product having maximum ratio of
+     * discount to original price under hierarchy of this category.
+     */
+    private int maxPercentDiscountedProductId;
+
+    /** The max percent discounted product discount ratio. */
+    private float maxPercentDiscountedProductRatio;
+
+    /** The max percent discounted product id among direct child products. */
+    private int maxPercentDiscountedChildProductId;
+
+    /** The max percent discounted direct child product discount ratio. */
+    private float maxPercentDiscountedChildProductRatio;
+
+    /**
+     * The dirty flag. Max discounted product of a dirty category is stale and
+     * has to be recomputed from its children. Ancestors of a dirty category are
+     * always dirty.
+     */
+    private boolean dirty;
+
+    /** The products dirty flag. Direct child products have to be rebuilt. */
+    private boolean productsDirty;
+
+    /**
+     * The tombstoned flag. A tombstoned category is detached from the tree and
+     * waits, with its subtree, to be reclaimed.
+     */
+    private boolean tombstoned;
+
+    /** The depth. A category without parent is at depth 0. */
+    private int depth;
+
+    /**
+     * The ancestors jump pointers. ancestors[k] is the 2^k-th ancestor of this
+     * category, ancestors[0] is the parent category. Length is the number of
+     * powers of two not greater than depth.
+     */
+    private Category[] ancestors;
+
+    /**
+     * The ancestor index epoch. Depth and ancestors are valid only while this
+     * matches the structure epoch of the hierarchy.
+     */
+    private int ancestorIndexEpoch = -1;
+
+    /**
+     * The discount histogram. Number of products in the subtree of this category
+     * per bucket of % discount, bucket i holding discounts from 10 * i % to
+     * 10 * (i + 1) %, 100% included in last bucket. Allocated when the first
+     * product is added to the subtree; null means every bucket is 0.
+     */
+    private int[] discountHistogram;
+
+    /** The number of products in the subtree of this category. */
+    private int subtreeProductCount;
+
+    /** The sum of original prices of products in the subtree. */
+    private double subtreeOriginalPriceSum;
+
+    /** The sum of selling prices of products in the subtree. */
+    private double subtreeSellingPriceSum;
+
     /**
      * Instantiates a new category.
      *
@@ -57,10 +132,6 @@ public class Category {
     public Category(int id, String name) {
 	this.id = id;
 	this.name = name;
-	this.directChildProducts = new TreeSet<ChildProduct>(new MaxDiscountChildProductComparator());
-	this.directChildCategories = new TreeSet<ChildCategory>(new MaxDiscountChildCategoryComparator());
-	this.directChildProductIds = new HashSet<Integer>();
-	this.directChildCategoryIds = new HashSet<Integer>();
     }
 
     /**
@@ -102,73 +173,168 @@ public class Category {
     /**
      * Gets the direct child product ids.
      *
-     * @return the direct child product ids
+     * @return the direct child product ids, read only if empty
      */
     public Set<Integer> getDirectChildProductIds() {
-	return directChildProductIds;
+	return directChildProductIds != null ? directChildProductIds : Collections.<Integer>emptySet();
     }
 
     /**
-     * Sets the direct child product ids.
+     * Adds a direct child product id.
      *
-     * @param directChildProductIds the new direct child product ids
+     * @param productId the product id
+     * @return true, if it was not a child
      */
-    public void setDirectChildProductIds(Set<Integer> directChildProductIds) {
-	this.directChildProductIds = directChildProductIds;
+    public boolean addDirectChildProductId(int productId) {
+	if (directChildProductIds == null) {
+	    directChildProductIds = new CompactIdSet();
+	}
+	return directChildProductIds.add(productId);
+    }
+
+    /**
+     * Removes a direct child product id.
+     *
+     * @param productId the product id
+     * @return true, if it was a child
+     */
+    public boolean removeDirectChildProductId(int productId) {
+	if (directChildProductIds == null || !directChildProductIds.remove(productId)) {
+	    return false;
+	}
+	if (directChildProductIds.isEmpty()) {
+	    directChildProductIds = null;
+	}
+	return true;
     }
 
     /**
      * Gets the direct child category ids.
      *
-     * @return the direct child category ids
+     * @return the direct child category ids, read only if empty
      */
     public Set<Integer> getDirectChildCategoryIds() {
-	return directChildCategoryIds;
+	return directChildCategoryIds != null ? directChildCategoryIds : Collections.<Integer>emptySet();
+    }
+
+    /**
+     * Adds a direct child category id.
+     *
+     * @param categoryId the category id
+     * @return true, if it was not a child
+     */
+    public boolean addDirectChildCategoryId(int categoryId) {
+	if (directChildCategoryIds == null) {
+	    directChildCategoryIds = new CompactIdSet();
+	}
+	return directChildCategoryIds.add(categoryId);
+    }
+
+    /**
+     * Removes a direct child category id.
+     *
+     * @param categoryId the category id
+     * @return true, if it was a child
+     */
+    public boolean removeDirectChildCategoryId(int categoryId) {
+	if (directChildCategoryIds == null || !directChildCategoryIds.remove(categoryId)) {
+	    return false;
+	}
+	if (directChildCategoryIds.isEmpty()) {
+	    directChildCategoryIds = null;
+	}
+	return true;
     }
 
     /**
-     * Sets the direct child category ids.
+     * Gets the direct child products, maximum discounted last.
      *
-     * @param directChildCategoryIds the new direct child category ids
+     * @return the direct child products, read only if empty
      */
-    public void setDirectChildCategoryIds(Set<Integer> directChildCategoryIds) {
-	this.directChildCategoryIds = directChildCategoryIds;
+    public SortedSet<ChildProduct> getDirectChildProducts() {
+	return directChildProducts != null ? directChildProducts : Collections.<ChildProduct>emptySortedSet();
     }
 
     /**
-     * Gets the direct child products.
+     * Adds a direct child product.
      *
-     * @return the direct child products
+     * @param childProduct the child product
+     * @return true, if it was not in the direct child products
      */
-    public TreeSet<ChildProduct> getDirectChildProducts() {
-	return directChildProducts;
+    public boolean addDirectChildProduct(ChildProduct childProduct) {
+	if (directChildProducts == null) {
+	    directChildProducts = new CompactSortedSet<>(MaxDiscountChildProductComparator.INSTANCE);
+	}
+	return directChildProducts.add(childProduct);
     }
 
     /**
-     * Sets the direct child products.
+     * Removes a direct child product, found by its product id and discount.
      *
-     * @param directChildProducts the new direct child products
+     * @param childProduct the child product
+     * @return true, if it was in the direct child products
+     */
+    public boolean removeDirectChildProduct(ChildProduct childProduct) {
+	if (directChildProducts == null || !directChildProducts.remove(childProduct)) {
+	    return false;
+	}
+	if (directChildProducts.isEmpty()) {
+	    directChildProducts = null;
+	}
+	return true;
+    }
+
+    /**
+     * Clear the direct child products, before they are rebuilt.
      */
-    public void setDirectChildProducts(TreeSet<ChildProduct> directChildProducts) {
-	this.directChildProducts = directChildProducts;
+    public void clearDirectChildProducts() {
+	directChildProducts = null;
     }
 
     /**
-     * Gets the direct child categories.
+     * Gets the direct child categories, having maximum discounted product last.
      *
-     * @return the direct child categories
+     * @return the direct child categories, read only if empty
      */
-    public TreeSet<ChildCategory> getDirectChildCategories() {
-	return directChildCategories;
+    public SortedSet<ChildCategory> getDirectChildCategories() {
+	return directChildCategories != null ? directChildCategories : Collections.<ChildCategory>emptySortedSet();
     }
 
     /**
-     * Sets the direct child categories.
+     * Adds a direct child category.
      *
-     * @param directChildCategories the new direct child categories
+     * @param childCategory the child category
+     * @return true, if it was not in the direct child categories
      */
-    public void setDirectChildCategories(TreeSet<ChildCategory> directChildCategories) {
-	this.directChildCategories = directChildCategories;
+    public boolean addDirectChildCategory(ChildCategory childCategory) {
+	if (directChildCategories == null) {
+	    directChildCategories = new CompactSortedSet<>(MaxDiscountChildCategoryComparator.INSTANCE);
+	}
+	return directChildCategories.add(childCategory);
+    }
+
+    /**
+     * Removes a direct child category, found by its category id and maximum
+     * discounted product.
+     *
+     * @param childCategory the child category
+     * @return true, if it was in the direct child categories
+     */
+    public boolean removeDirectChildCategory(ChildCategory childCategory) {
+	if (directChildCategories == null || !directChildCategories.remove(childCategory)) {
+	    return false;
+	}
+	if (directChildCategories.isEmpty()) {
+	    directChildCategories = null;
+	}
+	return true;
+    }
+
+    /**
+     * Clear the direct child categories, before they are rebuilt.
+     */
+    public void clearDirectChildCategories() {
+	directChildCategories = null;
     }
 
     /**
@@ -208,6 +374,251 @@ public class Category {
 	this.maxDiscountedProductDiscount = maxDiscountedProductDiscount;
     }
 
+    /**
+     * Gets the max percent discounted product id.
+     *
+     * @return the max percent discounted product id
+     */
+    public int getMaxPercentDiscountedProductId() {
+	return maxPercentDiscountedProductId;
+    }
+
+    /**
+     * Gets the max percent discounted product discount ratio.
+     *
+     * @return the max percent discounted product discount ratio
+     */
+    public float getMaxPercentDiscountedProductRatio() {
+	return maxPercentDiscountedProductRatio;
+    }
+
+    /**
+     * Sets the max percent discounted product.
+     *
+     * @param productId the product id, 0 if there is no product
+     * @param ratio     the discount ratio
+     */
+    public void setMaxPercentDiscountedProduct(int productId, float ratio) {
+	this.maxPercentDiscountedProductId = productId;
+	this.maxPercentDiscountedProductRatio = ratio;
+    }
+
+    /**
+     * Gets the max percent discounted direct child product id.
+     *
+     * @return the max percent discounted direct child product id
+     */
+    public int getMaxPercentDiscountedChildProductId() {
+	return maxPercentDiscountedChildProductId;
+    }
+
+    /**
+     * Gets the max percent discounted direct child product discount ratio.
+     *
+     * @return the max percent discounted direct child product discount ratio
+     */
+    public float getMaxPercentDiscountedChildProductRatio() {
+	return maxPercentDiscountedChildProductRatio;
+    }
+
+    /**
+     * Sets the max percent discounted direct child product.
+     *
+     * @param productId the product id, 0 if there is no direct child product
+     * @param ratio     the discount ratio
+     */
+    public void setMaxPercentDiscountedChildProduct(int productId, float ratio) {
+	this.maxPercentDiscountedChildProductId = productId;
+	this.maxPercentDiscountedChildProductRatio = ratio;
+    }
+
+    /**
+     * Checks if is dirty.
+     *
+     * @return true, if is dirty
+     */
+    public boolean isDirty() {
+	return dirty;
+    }
+
+    /**
+     * Sets the dirty.
+     *
+     * @param dirty the new dirty
+     */
+    public void setDirty(boolean dirty) {
+	this.dirty = dirty;
+    }
+
+    /**
+     * Checks if is products dirty.
+     *
+     * @return true, if is products dirty
+     */
+    public boolean isProductsDirty() {
+	return productsDirty;
+    }
+
+    /**
+     * Sets the products dirty.
+     *
+     * @param productsDirty the new products dirty
+     */
+    public void setProductsDirty(boolean productsDirty) {
+	this.productsDirty = productsDirty;
+    }
+
+    /**
+     * Checks if is tombstoned.
+     *
+     * @return true, if is tombstoned
+     */
+    public boolean isTombstoned() {
+	return tombstoned;
+    }
+
+    /**
+     * Sets the tombstoned.
+     *
+     * @param tombstoned the new tombstoned
+     */
+    public void setTombstoned(boolean tombstoned) {
+	this.tombstoned = tombstoned;
+    }
+
+    /**
+     * Gets the depth.
+     *
+     * @return the depth
+     */
+    public int getDepth() {
+	return depth;
+    }
+
+    /**
+     * Gets the ancestors jump pointers.
+     *
+     * @return the ancestors
+     */
+    Category[] getAncestors() {
+	return ancestors;
+    }
+
+    /**
+     * Gets the ancestor index epoch.
+     *
+     * @return the ancestor index epoch
+     */
+    int getAncestorIndexEpoch() {
+	return ancestorIndexEpoch;
+    }
+
+    /**
+     * Sets the ancestor index. Depth and ancestors are computed by the hierarchy
+     * from the already indexed parent category.
+     *
+     * @param depth              the depth
+     * @param ancestors          the ancestors
+     * @param ancestorIndexEpoch the ancestor index epoch
+     */
+    void setAncestorIndex(int depth, Category[] ancestors, int ancestorIndexEpoch) {
+	this.depth = depth;
+	this.ancestors = ancestors;
+	this.ancestorIndexEpoch = ancestorIndexEpoch;
+    }
+
+    /**
+     * Gets the discount histogram, maintained by the hierarchy.
+     *
+     * @return the discount histogram, null if every bucket is 0
+     */
+    int[] getDiscountHistogram() {
+	return discountHistogram;
+    }
+
+    /**
+     * Add count to a bucket of the discount histogram, allocating it if needed.
+     *
+     * @param bucket the bucket
+     * @param count  the count
+     */
+    void addToDiscountHistogram(int bucket, int count) {
+	if (discountHistogram == null) {
+	    discountHistogram = new int[DISCOUNT_HISTOGRAM_BUCKETS];
+	}
+	discountHistogram[bucket] += count;
+    }
+
+    /**
+     * Add a histogram multiplied by sign to the discount histogram.
+     *
+     * @param histogram the histogram, null if every bucket is 0
+     * @param sign      the sign
+     */
+    void addToDiscountHistogram(int[] histogram, int sign) {
+	if (histogram == null) {
+	    return;
+	}
+	for (int i = 0; i < histogram.length; i++) {
+	    if (histogram[i] != 0) {
+		addToDiscountHistogram(i, sign * histogram[i]);
+	    }
+	}
+    }
+
+    /**
+     * Gets the number of products in the subtree.
+     *
+     * @return the subtree product count
+     */
+    public int getSubtreeProductCount() {
+	return subtreeProductCount;
+    }
+
+    /**
+     * Gets the sum of original prices of products in the subtree.
+     *
+     * @return the subtree original price sum
+     */
+    public double getSubtreeOriginalPriceSum() {
+	return subtreeOriginalPriceSum;
+    }
+
+    /**
+     * Gets the sum of selling prices of products in the subtree.
+     *
+     * @return the subtree selling price sum
+     */
+    public double getSubtreeSellingPriceSum() {
+	return subtreeSellingPriceSum;
+    }
+
+    /**
+     * Add deltas to the subtree aggregates, maintained by the hierarchy.
+     *
+     * @param productCount     the product count delta
+     * @param originalPriceSum the original price sum delta
+     * @param sellingPriceSum  the selling price sum delta
+     */
+    void addSubtreeAggregates(int productCount, double originalPriceSum, double sellingPriceSum) {
+	this.subtreeProductCount += productCount;
+	this.subtreeOriginalPriceSum += originalPriceSum;
+	this.subtreeSellingPriceSum += sellingPriceSum;
+    }
+
+    /**
+     * Clear the subtree aggregates and discount histogram, before the hierarchy
+     * recomputes them.
+     */
+    void clearSubtreeAggregates() {
+	this.subtreeProductCount = 0;
+	this.subtreeOriginalPriceSum = 0;
+	this.subtreeSellingPriceSum = 0;
+	if (this.discountHistogram != null) {
+	    Arrays.fill(this.discountHistogram, 0);
+	}
+    }
+
     /*
      * (non-Javadoc)
      * @see java.lang.Object#hashCode()
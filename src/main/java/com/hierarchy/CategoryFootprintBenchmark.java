@@ -0,0 +1,119 @@
+package com.hierarchy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The Class CategoryFootprintBenchmark.
+ * <p>
+ * Heap footprint of a category by fanout. For every fanout, categories are
+ * created with that many child products, ids and ChildProduct entries as a
+ * hierarchy adds them, and as many child categories, and the heap used before
+ * and after is compared once garbage is collected. Products themselves are not
+ * created, so only the category layout is measured. Fanout 0 is a leaf
+ * category.
+ * </p>
+ * <p>
+ * Usage: CategoryFootprintBenchmark [categories] [fanout...]. Defaults are
+ * 20000 0 1 4 8 16 64.
+ * </p>
+ */
+public class CategoryFootprintBenchmark {
+
+    /** The LOGGER. */
+    private static final Logger LOGGER = LoggerFactory.getLogger(CategoryFootprintBenchmark.class);
+
+    /** The default fanouts. */
+    private static final int[] DEFAULT_FANOUTS = { 0, 1, 4, 8, 16, 64 };
+
+    /** The garbage collections run before reading the used heap. */
+    private static final int GC_ROUNDS = 4;
+
+    /**
+     * The main method.
+     *
+     * @param args the arguments
+     */
+    public static void main(String[] args) {
+	int categoryCount = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+	int[] fanouts = DEFAULT_FANOUTS;
+	if (args.length > 1) {
+	    fanouts = new int[args.length - 1];
+	    for (int i = 1; i < args.length; i++) {
+		fanouts[i - 1] = Integer.parseInt(args[i]);
+	    }
+	}
+
+	for (int fanout : fanouts) {
+	    long bytes = measureCategories(categoryCount, fanout);
+	    LOGGER.info("fanout {}: {} bytes per category, {} bytes per child", fanout, bytes / categoryCount,
+		    fanout == 0 ? 0 : bytes / categoryCount / (2 * fanout));
+	}
+    }
+
+    /**
+     * Measure the heap taken by categories of given fanout. The categories are
+     * garbage once this returns, so they do not count in the next measure.
+     *
+     * @param categoryCount the category count
+     * @param fanout        the fanout
+     * @return the heap bytes
+     */
+    private static long measureCategories(int categoryCount, int fanout) {
+	long usedBefore = usedHeap();
+	Category[] categories = createCategories(categoryCount, fanout);
+	long usedAfter = usedHeap();
+	if (categories[categoryCount - 1].getDirectChildProductIds().size() != fanout) {
+	    throw new IllegalStateException("Categories not created");
+	}
+	return usedAfter - usedBefore;
+    }
+
+    /**
+     * Creates the categories, each with fanout child products and fanout child
+     * categories.
+     *
+     * @param categoryCount the category count
+     * @param fanout        the fanout
+     * @return the categories
+     */
+    private static Category[] createCategories(int categoryCount, int fanout) {
+	Category[] categories = new Category[categoryCount];
+	// Ids above Integer cache, so boxed ids are counted as in a big hierarchy
+	int childId = 1000;
+	for (int i = 0; i < categoryCount; i++) {
+	    Category category = new Category(i + 1, null);
+	    for (int j = 0; j < fanout; j++) {
+		ChildProduct childProduct = new ChildProduct();
+		childProduct.setProductId(childId);
+		childProduct.setAbsoluteDiscount(j);
+		category.addDirectChildProductId(childId);
+		category.addDirectChildProduct(childProduct);
+		childId++;
+
+		ChildCategory childCategory = new ChildCategory();
+		childCategory.setCategoryId(childId);
+		childCategory.setMaxDiscountedProductId(childId);
+		childCategory.setMaxDiscountedProductDiscount(j);
+		category.addDirectChildCategoryId(childId);
+		category.addDirectChildCategory(childCategory);
+		childId++;
+	    }
+	    categories[i] = category;
+	}
+	return categories;
+    }
+
+    /**
+     * Gets the used heap once garbage is collected.
+     *
+     * @return the used heap in bytes
+     */
+    private static long usedHeap() {
+	Runtime runtime = Runtime.getRuntime();
+	for (int i = 0; i < GC_ROUNDS; i++) {
+	    System.gc();
+	}
+	return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
@@ -0,0 +1,197 @@
+package com.hierarchy;
+
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * The Class CompactIdSet.
+ * <p>
+ * Set of child ids of a category. Most categories have a few children, so up to
+ * INLINE_CAPACITY ids are kept in a small int array, in insertion order, and
+ * searched linearly. Once the set grows beyond that it switches to a HashSet
+ * for good, even if it shrinks again, so a category whose fanout hovers around
+ * the threshold does not switch back and forth.
+ * </p>
+ */
+public class CompactIdSet extends AbstractSet<Integer> {
+
+    /** The max number of ids kept in the inline array. */
+    public static final int INLINE_CAPACITY = 8;
+
+    /** The initial length of the inline array. */
+    private static final int INITIAL_CAPACITY = 2;
+
+    /** The inline ids, null once switched to the hash set. */
+    private int[] inlineIds = new int[INITIAL_CAPACITY];
+
+    /** The number of inline ids. */
+    private int inlineSize;
+
+    /** The ids, null while they are inline. */
+    private Set<Integer> ids;
+
+    /**
+     * Adds an id.
+     *
+     * @param id the id
+     * @return true, if id was not in this set
+     */
+    public boolean add(int id) {
+	if (ids != null) {
+	    return ids.add(id);
+	}
+	if (indexOf(id) >= 0) {
+	    return false;
+	}
+	if (inlineSize == INLINE_CAPACITY) {
+	    ids = new HashSet<>(INLINE_CAPACITY * 4);
+	    for (int i = 0; i < inlineSize; i++) {
+		ids.add(inlineIds[i]);
+	    }
+	    inlineIds = null;
+	    inlineSize = 0;
+	    return ids.add(id);
+	}
+	if (inlineSize == inlineIds.length) {
+	    inlineIds = Arrays.copyOf(inlineIds, Math.min(inlineSize * 2, INLINE_CAPACITY));
+	}
+	inlineIds[inlineSize++] = id;
+	return true;
+    }
+
+    /**
+     * Removes an id.
+     *
+     * @param id the id
+     * @return true, if id was in this set
+     */
+    public boolean remove(int id) {
+	if (ids != null) {
+	    return ids.remove(id);
+	}
+	int index = indexOf(id);
+	if (index < 0) {
+	    return false;
+	}
+	removeInline(index);
+	return true;
+    }
+
+    /**
+     * Checks if id is in this set.
+     *
+     * @param id the id
+     * @return true, if id is in this set
+     */
+    public boolean contains(int id) {
+	return ids != null ? ids.contains(id) : indexOf(id) >= 0;
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see java.util.AbstractCollection#add(java.lang.Object)
+     */
+    @Override
+    public boolean add(Integer id) {
+	return add(id.intValue());
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see java.util.AbstractCollection#remove(java.lang.Object)
+     */
+    @Override
+    public boolean remove(Object id) {
+	return id instanceof Integer && remove(((Integer) id).intValue());
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see java.util.AbstractCollection#contains(java.lang.Object)
+     */
+    @Override
+    public boolean contains(Object id) {
+	return id instanceof Integer && contains(((Integer) id).intValue());
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see java.util.AbstractCollection#size()
+     */
+    @Override
+    public int size() {
+	return ids != null ? ids.size() : inlineSize;
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see java.util.AbstractCollection#iterator()
+     */
+    @Override
+    public Iterator<Integer> iterator() {
+	if (ids != null) {
+	    return ids.iterator();
+	}
+	return new Iterator<Integer>() {
+
+	    /** The index of next id. */
+	    private int index;
+
+	    /** The index of last returned id, -1 if none or removed. */
+	    private int lastIndex = -1;
+
+	    @Override
+	    public boolean hasNext() {
+		return index < inlineSize;
+	    }
+
+	    @Override
+	    public Integer next() {
+		if (index >= inlineSize) {
+		    throw new NoSuchElementException();
+		}
+		lastIndex = index;
+		return inlineIds[index++];
+	    }
+
+	    @Override
+	    public void remove() {
+		if (lastIndex < 0) {
+		    throw new IllegalStateException();
+		}
+		removeInline(lastIndex);
+		index = lastIndex;
+		lastIndex = -1;
+	    }
+	};
+    }
+
+    /**
+     * Index of id in inline ids.
+     *
+     * @param id the id
+     * @return the index, -1 if not found
+     */
+    private int indexOf(int id) {
+	for (int i = 0; i < inlineSize; i++) {
+	    if (inlineIds[i] == id) {
+		return i;
+	    }
+	}
+	return -1;
+    }
+
+    /**
+     * Removes the inline id at index, keeping the order of the others.
+     *
+     * @param index the index
+     */
+    private void removeInline(int index) {
+	System.arraycopy(inlineIds, index + 1, inlineIds, index, inlineSize - index - 1);
+	inlineSize--;
+    }
+}
@@ -0,0 +1,292 @@
+package com.hierarchy;
+
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+/**
+ * The Class CompactSortedSet.
+ * <p>
+ * Sorted set of the child products or child categories of a category, ordered
+ * by a comparator like a TreeSet. Up to INLINE_CAPACITY elements are kept in a
+ * small sorted array and found by binary search, which takes a fraction of the
+ * memory of tree nodes. Once the set grows beyond that it switches to a TreeSet
+ * for good, even if it shrinks again. Elements equal by comparator are one
+ * element, as in a TreeSet; the comparator must be able to find an element
+ * again, so the fields it compares must not change while the element is in
+ * the set.
+ * </p>
+ * <p>
+ * Views subSet, headSet and tailSet switch the set to a TreeSet and are views
+ * of it, backed by the set as TreeSet views are.
+ * </p>
+ *
+ * @param <E> the element type
+ */
+public class CompactSortedSet<E> extends AbstractSet<E> implements SortedSet<E> {
+
+    /** The max number of elements kept in the inline array. */
+    public static final int INLINE_CAPACITY = 8;
+
+    /** The initial length of the inline array. */
+    private static final int INITIAL_CAPACITY = 2;
+
+    /** The comparator. */
+    private final Comparator<? super E> comparator;
+
+    /** The inline elements in comparator order, null once switched to tree. */
+    private Object[] inlineElements = new Object[INITIAL_CAPACITY];
+
+    /** The number of inline elements. */
+    private int inlineSize;
+
+    /** The elements, null while they are inline. */
+    private TreeSet<E> elements;
+
+    /**
+     * Instantiates a new compact sorted set.
+     *
+     * @param comparator the comparator
+     */
+    public CompactSortedSet(Comparator<? super E> comparator) {
+	this.comparator = comparator;
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see java.util.AbstractCollection#add(java.lang.Object)
+     */
+    @Override
+    public boolean add(E element) {
+	if (elements != null) {
+	    return elements.add(element);
+	}
+	int index = indexOf(element);
+	if (index >= 0) {
+	    return false;
+	}
+	if (inlineSize == INLINE_CAPACITY) {
+	    return toTree().add(element);
+	}
+	if (inlineSize == inlineElements.length) {
+	    inlineElements = Arrays.copyOf(inlineElements, Math.min(inlineSize * 2, INLINE_CAPACITY));
+	}
+	int insertionIndex = -index - 1;
+	System.arraycopy(inlineElements, insertionIndex, inlineElements, insertionIndex + 1,
+		inlineSize - insertionIndex);
+	inlineElements[insertionIndex] = element;
+	inlineSize++;
+	return true;
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see java.util.AbstractCollection#remove(java.lang.Object)
+     */
+    @SuppressWarnings("unchecked")
+    @Override
+    public boolean remove(Object element) {
+	if (elements != null) {
+	    return elements.remove(element);
+	}
+	int index = indexOf((E) element);
+	if (index < 0) {
+	    return false;
+	}
+	removeInline(index);
+	return true;
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see java.util.AbstractCollection#contains(java.lang.Object)
+     */
+    @SuppressWarnings("unchecked")
+    @Override
+    public boolean contains(Object element) {
+	return elements != null ? elements.contains(element) : indexOf((E) element) >= 0;
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see java.util.AbstractCollection#size()
+     */
+    @Override
+    public int size() {
+	return elements != null ? elements.size() : inlineSize;
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see java.util.SortedSet#first()
+     */
+    @Override
+    public E first() {
+	if (elements != null) {
+	    return elements.first();
+	}
+	if (inlineSize == 0) {
+	    throw new NoSuchElementException();
+	}
+	return inlineElement(0);
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see java.util.SortedSet#last()
+     */
+    @Override
+    public E last() {
+	if (elements != null) {
+	    return elements.last();
+	}
+	if (inlineSize == 0) {
+	    throw new NoSuchElementException();
+	}
+	return inlineElement(inlineSize - 1);
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see java.util.SortedSet#comparator()
+     */
+    @Override
+    public Comparator<? super E> comparator() {
+	return comparator;
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see java.util.SortedSet#subSet(java.lang.Object, java.lang.Object)
+     */
+    @Override
+    public SortedSet<E> subSet(E fromElement, E toElement) {
+	return toTree().subSet(fromElement, toElement);
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see java.util.SortedSet#headSet(java.lang.Object)
+     */
+    @Override
+    public SortedSet<E> headSet(E toElement) {
+	return toTree().headSet(toElement);
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see java.util.SortedSet#tailSet(java.lang.Object)
+     */
+    @Override
+    public SortedSet<E> tailSet(E fromElement) {
+	return toTree().tailSet(fromElement);
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see java.util.AbstractCollection#iterator()
+     */
+    @Override
+    public Iterator<E> iterator() {
+	if (elements != null) {
+	    return elements.iterator();
+	}
+	return new Iterator<E>() {
+
+	    /** The index of next element. */
+	    private int index;
+
+	    /** The index of last returned element, -1 if none or removed. */
+	    private int lastIndex = -1;
+
+	    @Override
+	    public boolean hasNext() {
+		return index < inlineSize;
+	    }
+
+	    @Override
+	    public E next() {
+		if (index >= inlineSize) {
+		    throw new NoSuchElementException();
+		}
+		lastIndex = index;
+		return inlineElement(index++);
+	    }
+
+	    @Override
+	    public void remove() {
+		if (lastIndex < 0) {
+		    throw new IllegalStateException();
+		}
+		removeInline(lastIndex);
+		index = lastIndex;
+		lastIndex = -1;
+	    }
+	};
+    }
+
+    /**
+     * Switch to the TreeSet, if not done already.
+     *
+     * @return the tree set of elements
+     */
+    private TreeSet<E> toTree() {
+	if (elements == null) {
+	    elements = new TreeSet<>(comparator);
+	    for (int i = 0; i < inlineSize; i++) {
+		elements.add(inlineElement(i));
+	    }
+	    inlineElements = null;
+	    inlineSize = 0;
+	}
+	return elements;
+    }
+
+    /**
+     * Binary search of element in inline elements.
+     *
+     * @param element the element
+     * @return the index if found, else -(insertion index) - 1
+     */
+    private int indexOf(E element) {
+	int low = 0;
+	int high = inlineSize - 1;
+	while (low <= high) {
+	    int middle = (low + high) >>> 1;
+	    int comparison = comparator.compare(inlineElement(middle), element);
+	    if (comparison < 0) {
+		low = middle + 1;
+	    } else if (comparison > 0) {
+		high = middle - 1;
+	    } else {
+		return middle;
+	    }
+	}
+	return -(low + 1);
+    }
+
+    /**
+     * Gets the inline element at index.
+     *
+     * @param index the index
+     * @return the element
+     */
+    @SuppressWarnings("unchecked")
+    private E inlineElement(int index) {
+	return (E) inlineElements[index];
+    }
+
+    /**
+     * Removes the inline element at index.
+     *
+     * @param index the index
+     */
+    private void removeInline(int index) {
+	System.arraycopy(inlineElements, index + 1, inlineElements, index, inlineSize - index - 1);
+	inlineElements[--inlineSize] = null;
+    }
+}
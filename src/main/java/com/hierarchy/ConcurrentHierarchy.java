@@ -0,0 +1,249 @@
+package com.hierarchy;
+
+import java.io.IOException;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * The Class ConcurrentHierarchy.
+ * <p>
+ * Thread-safe front-end of a HierarchyUsingChildCategoryAndProduct. The
+ * hierarchy itself is single threaded; here every change takes the write lock
+ * of a read write lock and the max discounted product reads share the read
+ * lock, so reads of many callers proceed in parallel between writes.
+ * </p>
+ * <p>
+ * A read only shares the lock while it does not change the hierarchy: in lazy
+ * aggregates mode a read recomputes dirty categories and with cost accounting
+ * every operation records its cost, so in these modes reads take the write
+ * lock as well. The hierarchy must not be used directly while wrapped.
+ * </p>
+ */
+public class ConcurrentHierarchy {
+
+    /** The hierarchy. */
+    private final HierarchyUsingChildCategoryAndProduct hierarchy;
+
+    /** The read lock. */
+    private final Lock readLock;
+
+    /** The write lock. */
+    private final Lock writeLock;
+
+    /**
+     * Instantiates a new concurrent hierarchy.
+     *
+     * @param hierarchy the hierarchy
+     * @param fair      the fairness of lock, true to serve waiting writers in
+     *                  arrival order instead of letting new readers barge
+     */
+    public ConcurrentHierarchy(HierarchyUsingChildCategoryAndProduct hierarchy, boolean fair) {
+	this.hierarchy = hierarchy;
+	ReentrantReadWriteLock lock = new ReentrantReadWriteLock(fair);
+	this.readLock = lock.readLock();
+	this.writeLock = lock.writeLock();
+    }
+
+    /**
+     * Gets the lock of a read. Reads are exclusive while they change the
+     * hierarchy.
+     *
+     * @return the lock
+     */
+    private Lock getReadLock() {
+	if (this.hierarchy.isLazyAggregates() || this.hierarchy.getCostAccounting() != null) {
+	    return this.writeLock;
+	}
+	return this.readLock;
+    }
+
+    /**
+     * Adds the node info.
+     *
+     * @param id    the id
+     * @param name  the name
+     * @param price the price
+     * @return the result code
+     */
+    public ResultCode addNodeInfoResult(int id, String name, float price) {
+	this.writeLock.lock();
+	try {
+	    return this.hierarchy.addNodeInfoResult(id, name, price);
+	} finally {
+	    this.writeLock.unlock();
+	}
+    }
+
+    /**
+     * Adds a new node under parent category.
+     *
+     * @param parentCategoryId the parent category id
+     * @param nodeId           the node id
+     * @param price            the price, -1 for a category
+     * @param nodeName         the node name
+     * @return the result code
+     */
+    public ResultCode addNewNodeResult(int parentCategoryId, int nodeId, float price, String nodeName) {
+	this.writeLock.lock();
+	try {
+	    return this.hierarchy.addNewNodeResult(parentCategoryId, nodeId, price, nodeName);
+	} finally {
+	    this.writeLock.unlock();
+	}
+    }
+
+    /**
+     * Removes the node.
+     *
+     * @param nodeId the node id
+     * @return the result code
+     */
+    public ResultCode removeNodeResult(int nodeId) {
+	this.writeLock.lock();
+	try {
+	    return this.hierarchy.removeNodeResult(nodeId);
+	} finally {
+	    this.writeLock.unlock();
+	}
+    }
+
+    /**
+     * Move the node under new parent category.
+     *
+     * @param nodeId              the node id
+     * @param newParentCategoryId the new parent category id
+     * @return the result code
+     */
+    public ResultCode moveNodeResult(int nodeId, int newParentCategoryId) {
+	this.writeLock.lock();
+	try {
+	    return this.hierarchy.moveNodeResult(nodeId, newParentCategoryId);
+	} finally {
+	    this.writeLock.unlock();
+	}
+    }
+
+    /**
+     * Apply discount on node.
+     *
+     * @param nodeId       the node id
+     * @param discountType the discount type 1: % discount, 2: flat discount
+     * @param discount     the discount
+     * @return the result code
+     */
+    public ResultCode applyDiscountOnNodeResult(int nodeId, int discountType, float discount) {
+	this.writeLock.lock();
+	try {
+	    return this.hierarchy.applyDiscountOnNodeResult(nodeId, discountType, discount);
+	} finally {
+	    this.writeLock.unlock();
+	}
+    }
+
+    /**
+     * Apply a batch of mutations.
+     *
+     * @param batch the batch
+     * @return the result code
+     */
+    public ResultCode applyBatch(MutationBatch batch) {
+	this.writeLock.lock();
+	try {
+	    return this.hierarchy.applyBatch(batch);
+	} finally {
+	    this.writeLock.unlock();
+	}
+    }
+
+    /**
+     * Apply the difference with the snapshot read by sync. The snapshot is read
+     * without lock beforehand, only the diff and the batch hold the write lock.
+     *
+     * @param sync the sync, with its snapshot read
+     * @return the result code
+     */
+    public ResultCode applyCatalogSync(CatalogSync sync) {
+	this.writeLock.lock();
+	try {
+	    return sync.apply(this.hierarchy);
+	} finally {
+	    this.writeLock.unlock();
+	}
+    }
+
+    /**
+     * Reclaim tombstoned subtrees for at most maxNanos under the write lock. The
+     * lock is released between two calls, so callers wait at most a slice for a
+     * large removed subtree. See TombstoneReclaimer.
+     *
+     * @param maxNanos the max nanos to spend
+     * @return true, if tombstones are still pending
+     */
+    public boolean reclaimTombstones(long maxNanos) {
+	this.writeLock.lock();
+	try {
+	    this.hierarchy.reclaimTombstones(maxNanos);
+	    return this.hierarchy.hasTombstones();
+	} finally {
+	    this.writeLock.unlock();
+	}
+    }
+
+    /**
+     * Gets the maximum discounted product into given holder, which must not be
+     * shared between threads.
+     *
+     * @param nodeId the node id
+     * @param result the holder to populate
+     * @return the result code PRODUCT_FOUND or INVALID_ID
+     */
+    public ResultCode getMaximumDiscountedProduct(int nodeId, ProductResult result) {
+	Lock lock = getReadLock();
+	lock.lock();
+	try {
+	    return this.hierarchy.getMaximumDiscountedProduct(nodeId, result);
+	} finally {
+	    lock.unlock();
+	}
+    }
+
+    /**
+     * Export the products of subtree of category while holding the read lock, so
+     * writes wait till the export ends.
+     *
+     * @param exporter   the exporter, which must not be shared between threads
+     * @param categoryId the category id
+     * @param format     the format
+     * @param channel    the channel
+     * @return the number of exported products, -1 if category is not known
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    public long exportSubtree(SubtreeExporter exporter, int categoryId, SubtreeExporter.Format format,
+	    WritableByteChannel channel) throws IOException {
+	this.readLock.lock();
+	try {
+	    return exporter.export(this.hierarchy, categoryId, format, channel);
+	} finally {
+	    this.readLock.unlock();
+	}
+    }
+
+    /**
+     * Gets the maximum percent discounted product into given holder, which must
+     * not be shared between threads.
+     *
+     * @param nodeId the node id
+     * @param result the holder to populate
+     * @return the result code PRODUCT_FOUND or INVALID_ID
+     */
+    public ResultCode getMaximumPercentDiscountedProduct(int nodeId, ProductResult result) {
+	Lock lock = getReadLock();
+	lock.lock();
+	try {
+	    return this.hierarchy.getMaximumPercentDiscountedProduct(nodeId, result);
+	} finally {
+	    lock.unlock();
+	}
+    }
+}
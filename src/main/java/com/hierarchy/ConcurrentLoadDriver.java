@@ -0,0 +1,339 @@
+package com.hierarchy;
+
+import java.lang.reflect.Method;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The Class ConcurrentLoadDriver.
+ * <p>
+ * Concurrency benchmark of ConcurrentHierarchy. An operation stream is
+ * generated once per read ratio: reads of the max discounted product of random
+ * categories, and writes which are discounts on random products (90%) or moves
+ * of random products to random categories (10%). For every number of clients
+ * the stream is split in contiguous slices, one per client, and all clients
+ * replay their slice at once on a fresh catalog. Throughput and the latency
+ * percentiles of single operations, lock wait included, are logged for every
+ * combination.
+ * </p>
+ * <p>
+ * Every client runs in a virtual thread when the JVM has them (Java 21), else
+ * in a platform thread. Virtual threads are created through reflection as the
+ * project is built for Java 8.
+ * </p>
+ * <p>
+ * Usage: ConcurrentLoadDriver [clients] [readPercents] [operations]
+ * [categories] [productsPerCategory] [fair]. Lists are comma separated.
+ * Defaults are 1,16,256,4096 50,90,99 400000 50 100 false.
+ * </p>
+ */
+public class ConcurrentLoadDriver {
+
+    /** The LOGGER. */
+    private static final Logger LOGGER = LoggerFactory.getLogger(ConcurrentLoadDriver.class);
+
+    /** The root category id. */
+    private static final int ROOT_CATEGORY_ID = 1;
+
+    /** The read operation. */
+    private static final byte READ = 0;
+
+    /** The discount operation. */
+    private static final byte DISCOUNT = 1;
+
+    /** The move operation. */
+    private static final byte MOVE = 2;
+
+    /** The highest trackable operation latency, 10 seconds in nanos. */
+    private static final long HIGHEST_TRACKABLE_LATENCY = TimeUnit.SECONDS.toNanos(10);
+
+    /** The virtual thread builder start method, null if not available. */
+    private static final Method VIRTUAL_THREAD_START = findVirtualThreadStart();
+
+    /** The virtual thread builder, null if not available. */
+    private static final Object VIRTUAL_THREAD_BUILDER = newVirtualThreadBuilder();
+
+    /**
+     * The Class OperationStream.
+     * <p>
+     * Generated operations, one entry per operation in each array.
+     * </p>
+     */
+    private static class OperationStream {
+
+	/** The operation types. */
+	final byte[] types;
+
+	/** The node ids. */
+	final int[] nodeIds;
+
+	/** The discount, or new parent category id of a move. */
+	final float[] arguments;
+
+	/**
+	 * Instantiates a new operation stream.
+	 *
+	 * @param operations the operations
+	 */
+	OperationStream(int operations) {
+	    this.types = new byte[operations];
+	    this.nodeIds = new int[operations];
+	    this.arguments = new float[operations];
+	}
+    }
+
+    /**
+     * The main method.
+     *
+     * @param args the arguments
+     * @throws InterruptedException the interrupted exception
+     */
+    public static void main(String[] args) throws InterruptedException {
+	int[] clientCounts = parseList(args.length > 0 ? args[0] : "1,16,256,4096");
+	int[] readPercents = parseList(args.length > 1 ? args[1] : "50,90,99");
+	int operations = args.length > 2 ? Integer.parseInt(args[2]) : 400000;
+	int categories = args.length > 3 ? Integer.parseInt(args[3]) : 50;
+	int productsPerCategory = args.length > 4 ? Integer.parseInt(args[4]) : 100;
+	boolean fair = args.length > 5 && Boolean.parseBoolean(args[5]);
+	LOGGER.info("clients run in {} threads", VIRTUAL_THREAD_BUILDER != null ? "virtual" : "platform");
+
+	// Warm up, not reported
+	run(generate(operations, readPercents[0], categories, productsPerCategory), clientCounts[0], categories,
+		productsPerCategory, fair);
+	for (int readPercent : readPercents) {
+	    OperationStream stream = generate(operations, readPercent, categories, productsPerCategory);
+	    for (int clients : clientCounts) {
+		LatencyHistogram latency = new LatencyHistogram(HIGHEST_TRACKABLE_LATENCY);
+		long elapsedNanos = run(stream, clients, categories, productsPerCategory, fair, latency);
+		LOGGER.info(
+			"{} clients, {}% reads: {} ops/s, latency p50 {} us, p99 {} us, p99.9 {} us, max {} us",
+			clients, readPercent, operations * TimeUnit.SECONDS.toNanos(1) / elapsedNanos,
+			toMicros(latency.getValueAtPercentile(50)), toMicros(latency.getValueAtPercentile(99)),
+			toMicros(latency.getValueAtPercentile(99.9)), toMicros(latency.getMaxValue()));
+	    }
+	}
+    }
+
+    /**
+     * Run the stream without recording latency.
+     *
+     * @param stream              the stream
+     * @param clients             the clients
+     * @param categories          the categories
+     * @param productsPerCategory the products per category
+     * @param fair                the fairness of lock
+     * @throws InterruptedException the interrupted exception
+     */
+    private static void run(OperationStream stream, int clients, int categories, int productsPerCategory,
+	    boolean fair) throws InterruptedException {
+	run(stream, clients, categories, productsPerCategory, fair,
+		new LatencyHistogram(HIGHEST_TRACKABLE_LATENCY));
+    }
+
+    /**
+     * Build a fresh catalog and replay the stream on it with given number of
+     * concurrent clients.
+     *
+     * @param stream              the stream
+     * @param clients             the clients
+     * @param categories          the categories
+     * @param productsPerCategory the products per category
+     * @param fair                the fairness of lock
+     * @param latency             the latency histogram to record operations
+     * @return the elapsed nanos from start of first client to end of last one
+     * @throws InterruptedException the interrupted exception
+     */
+    private static long run(OperationStream stream, int clients, int categories, int productsPerCategory,
+	    boolean fair, LatencyHistogram latency) throws InterruptedException {
+	ConcurrentHierarchy hierarchy = new ConcurrentHierarchy(new HierarchyUsingChildCategoryAndProduct(), fair);
+	buildCatalog(hierarchy, categories, productsPerCategory);
+	int operations = stream.types.length;
+	CountDownLatch start = new CountDownLatch(1);
+	CountDownLatch done = new CountDownLatch(clients);
+	AtomicLong failures = new AtomicLong();
+	for (int i = 0; i < clients; i++) {
+	    int from = (int) ((long) operations * i / clients);
+	    int to = (int) ((long) operations * (i + 1) / clients);
+	    startClient(() -> {
+		try {
+		    start.await();
+		    replay(hierarchy, stream, from, to, latency);
+		} catch (InterruptedException e) {
+		    Thread.currentThread().interrupt();
+		} catch (RuntimeException e) {
+		    failures.incrementAndGet();
+		    LOGGER.error("client failed", e);
+		} finally {
+		    done.countDown();
+		}
+	    });
+	}
+	long startNanos = System.nanoTime();
+	start.countDown();
+	done.await();
+	long elapsedNanos = System.nanoTime() - startNanos;
+	if (failures.get() > 0) {
+	    LOGGER.error("{} clients failed", failures.get());
+	}
+	return elapsedNanos;
+    }
+
+    /**
+     * Replay a slice of stream, recording the latency of every operation.
+     *
+     * @param hierarchy the hierarchy
+     * @param stream    the stream
+     * @param from      the first operation, inclusive
+     * @param to        the last operation, exclusive
+     * @param latency   the latency
+     */
+    private static void replay(ConcurrentHierarchy hierarchy, OperationStream stream, int from, int to,
+	    LatencyHistogram latency) {
+	ProductResult productResult = new ProductResult();
+	for (int i = from; i < to; i++) {
+	    long startNanos = System.nanoTime();
+	    switch (stream.types[i]) {
+	    case READ:
+		hierarchy.getMaximumDiscountedProduct(stream.nodeIds[i], productResult);
+		break;
+	    case DISCOUNT:
+		hierarchy.applyDiscountOnNodeResult(stream.nodeIds[i], 2, stream.arguments[i]);
+		break;
+	    default:
+		hierarchy.moveNodeResult(stream.nodeIds[i], (int) stream.arguments[i]);
+		break;
+	    }
+	    latency.record(System.nanoTime() - startNanos);
+	}
+    }
+
+    /**
+     * Generate an operation stream on the catalog built by buildCatalog.
+     *
+     * @param operations          the operations
+     * @param readPercent         the read percent
+     * @param categories          the categories
+     * @param productsPerCategory the products per category
+     * @return the operation stream
+     */
+    private static OperationStream generate(int operations, int readPercent, int categories,
+	    int productsPerCategory) {
+	OperationStream stream = new OperationStream(operations);
+	Random random = new Random(readPercent);
+	int firstProductId = ROOT_CATEGORY_ID + categories + 1;
+	int products = categories * productsPerCategory;
+	for (int i = 0; i < operations; i++) {
+	    if (random.nextInt(100) < readPercent) {
+		stream.types[i] = READ;
+		stream.nodeIds[i] = ROOT_CATEGORY_ID + random.nextInt(categories + 1);
+	    } else if (random.nextInt(10) > 0) {
+		stream.types[i] = DISCOUNT;
+		stream.nodeIds[i] = firstProductId + random.nextInt(products);
+		stream.arguments[i] = random.nextInt(5);
+	    } else {
+		stream.types[i] = MOVE;
+		stream.nodeIds[i] = firstProductId + random.nextInt(products);
+		stream.arguments[i] = ROOT_CATEGORY_ID + 1 + random.nextInt(categories);
+	    }
+	}
+	return stream;
+    }
+
+    /**
+     * Build the catalog: root category 1, categories under root and products
+     * under every category.
+     *
+     * @param hierarchy           the hierarchy
+     * @param categories          the categories
+     * @param productsPerCategory the products per category
+     */
+    private static void buildCatalog(ConcurrentHierarchy hierarchy, int categories, int productsPerCategory) {
+	Random random = new Random(categories);
+	hierarchy.addNodeInfoResult(ROOT_CATEGORY_ID, "root", -1);
+	int productId = ROOT_CATEGORY_ID + categories + 1;
+	for (int categoryId = ROOT_CATEGORY_ID + 1; categoryId <= ROOT_CATEGORY_ID + categories; categoryId++) {
+	    hierarchy.addNewNodeResult(ROOT_CATEGORY_ID, categoryId, -1, "c" + categoryId);
+	    for (int i = 0; i < productsPerCategory; i++) {
+		hierarchy.addNewNodeResult(categoryId, productId, 1000 + random.nextInt(1000), "p" + productId);
+		productId++;
+	    }
+	}
+    }
+
+    /**
+     * Start a client in a virtual thread if available, else in a platform
+     * thread.
+     *
+     * @param client the client
+     */
+    private static void startClient(Runnable client) {
+	if (VIRTUAL_THREAD_BUILDER != null) {
+	    try {
+		VIRTUAL_THREAD_START.invoke(VIRTUAL_THREAD_BUILDER, client);
+		return;
+	    } catch (ReflectiveOperationException e) {
+		throw new IllegalStateException("Virtual thread start failed", e);
+	    }
+	}
+	new Thread(client).start();
+    }
+
+    /**
+     * Find the start method of Thread.Builder.
+     *
+     * @return the method, null before Java 21
+     */
+    private static Method findVirtualThreadStart() {
+	try {
+	    return Class.forName("java.lang.Thread$Builder").getMethod("start", Runnable.class);
+	} catch (ReflectiveOperationException e) {
+	    return null;
+	}
+    }
+
+    /**
+     * Create a virtual thread builder with Thread.ofVirtual.
+     *
+     * @return the builder, null before Java 21
+     */
+    private static Object newVirtualThreadBuilder() {
+	if (VIRTUAL_THREAD_START == null) {
+	    return null;
+	}
+	try {
+	    return Thread.class.getMethod("ofVirtual").invoke(null);
+	} catch (ReflectiveOperationException e) {
+	    return null;
+	}
+    }
+
+    /**
+     * Parse a comma separated list of ints.
+     *
+     * @param list the list
+     * @return the ints
+     */
+    private static int[] parseList(String list) {
+	String[] values = list.split(",");
+	int[] ints = new int[values.length];
+	for (int i = 0; i < values.length; i++) {
+	    ints[i] = Integer.parseInt(values[i].trim());
+	}
+	return ints;
+    }
+
+    /**
+     * Convert nanos to micros.
+     *
+     * @param nanos the nanos
+     * @return the micros
+     */
+    private static long toMicros(long nanos) {
+	return TimeUnit.NANOSECONDS.toMicros(nanos);
+    }
+}
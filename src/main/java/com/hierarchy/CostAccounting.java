@@ -0,0 +1,99 @@
+package com.hierarchy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The Class CostAccounting.
+ * <p>
+ * Opt-in accounting of the work done by each operation on hierarchy. Set it
+ * on hierarchy with HierarchyUsingChildCategoryAndProduct.setCostAccounting.
+ * The cost of last operation is available through getLastOperationCost. An
+ * operation taking longer than slow operation threshold is logged with its
+ * counters on logger 'com.hierarchy.SlowOperations' at warn level, so the
+ * categories which blow the latency budget can be found.
+ * </p>
+ */
+public class CostAccounting {
+
+    /** The slow operation LOGGER. */
+    private static final Logger SLOW_OPERATION_LOGGER = LoggerFactory.getLogger("com.hierarchy.SlowOperations");
+
+    /** The slow operation threshold in nanoseconds. */
+    private final long slowOperationThresholdNanos;
+
+    /** The cost of current operation, reused for every operation. */
+    private final OperationCost operationCost = new OperationCost();
+
+    /** The slow operation count. */
+    private long slowOperationCount;
+
+    /**
+     * Instantiates a new cost accounting.
+     *
+     * @param slowOperationThresholdNanos the slow operation threshold in
+     *            nanoseconds
+     */
+    public CostAccounting(long slowOperationThresholdNanos) {
+	this.slowOperationThresholdNanos = slowOperationThresholdNanos;
+    }
+
+    /**
+     * Begin an operation by resetting the counters.
+     *
+     * @return the operation cost to fill
+     */
+    OperationCost begin() {
+	operationCost.reset();
+	return operationCost;
+    }
+
+    /**
+     * End an operation. Logs the operation if it took longer than threshold.
+     *
+     * @param operationType the operation type
+     * @param nodeId the node id
+     * @param durationNanos the duration in nanoseconds
+     * @param resultCode the result code
+     */
+    void end(OperationType operationType, int nodeId, long durationNanos, ResultCode resultCode) {
+	if (durationNanos < slowOperationThresholdNanos) {
+	    return;
+	}
+	slowOperationCount++;
+	SLOW_OPERATION_LOGGER.warn(
+		"slow operation [{}] on node [{}] result [{}] took [{}] ns: nodes visited [{}], tree sets rebuilt [{}], ancestor updates [{}], max ancestor update depth [{}], allocations [{}]",
+		operationType.getOperationName(), nodeId, resultCode, durationNanos, operationCost.nodesVisited,
+		operationCost.treeSetsRebuilt, operationCost.ancestorUpdates, operationCost.maxAncestorUpdateDepth,
+		operationCost.allocations);
+    }
+
+    /**
+     * Gets the cost of last operation. The instance is reused and changes with
+     * next operation.
+     *
+     * @return the last operation cost
+     */
+    public OperationCost getLastOperationCost() {
+	return operationCost;
+    }
+
+    /**
+     * Gets the slow operation threshold in nanoseconds.
+     *
+     * @return the slow operation threshold
+     */
+    public long getSlowOperationThresholdNanos() {
+	return slowOperationThresholdNanos;
+    }
+
+    /**
+     * Gets the number of operations logged as slow.
+     *
+     * @return the slow operation count
+     */
+    public long getSlowOperationCount() {
+	return slowOperationCount;
+    }
+
+}
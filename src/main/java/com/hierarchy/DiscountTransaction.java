@@ -0,0 +1,82 @@
+package com.hierarchy;
+
+import java.util.Arrays;
+
+/**
+ * The Class DiscountTransaction.
+ * <p>
+ * A set of discounts which must all be applied or none, e.g. 10% on Mobiles
+ * and 200 flat on Laptops. Discounts are applied in the order they are added,
+ * so a later discount sees the prices produced by earlier ones. Pass the
+ * transaction to HierarchyUsingChildCategoryAndProduct.applyDiscountTransaction.
+ * </p>
+ */
+public class DiscountTransaction {
+
+    /** The initial capacity. */
+    private static final int INITIAL_CAPACITY = 4;
+
+    /** The node ids. */
+    int[] nodeIds = new int[INITIAL_CAPACITY];
+
+    /** The discount types. */
+    int[] discountTypes = new int[INITIAL_CAPACITY];
+
+    /** The discounts. */
+    float[] discounts = new float[INITIAL_CAPACITY];
+
+    /** The number of discounts. */
+    int size;
+
+    /** The index of discount which failed the transaction, -1 if none. */
+    int failedIndex = -1;
+
+    /**
+     * Adds a discount to this transaction.
+     *
+     * @param nodeId the node id
+     * @param discountType the discount type 1: % discount, 2: flat discount
+     * @param discount the discount
+     * @return this transaction
+     */
+    public DiscountTransaction addDiscount(int nodeId, int discountType, float discount) {
+	if (size == nodeIds.length) {
+	    nodeIds = Arrays.copyOf(nodeIds, size * 2);
+	    discountTypes = Arrays.copyOf(discountTypes, size * 2);
+	    discounts = Arrays.copyOf(discounts, size * 2);
+	}
+	nodeIds[size] = nodeId;
+	discountTypes[size] = discountType;
+	discounts[size] = discount;
+	size++;
+	return this;
+    }
+
+    /**
+     * Gets the number of discounts.
+     *
+     * @return the size
+     */
+    public int size() {
+	return size;
+    }
+
+    /**
+     * Gets the index of discount which failed the transaction.
+     *
+     * @return the failed index, -1 if transaction was applied or not yet
+     *         applied
+     */
+    public int getFailedIndex() {
+	return failedIndex;
+    }
+
+    /**
+     * Clear this transaction so that it can be reused.
+     */
+    public void clear() {
+	size = 0;
+	failedIndex = -1;
+    }
+
+}
@@ -26,6 +26,10 @@ import org.slf4j.LoggerFactory;
  * Change the root level of logger in ./src/main/resources/log4.properties to
  * see debug output.
  * </p>
+ * <p>
+ * Hierarchy is called through the ResultCode returning methods, response
+ * messages are only produced here while printing the output.
+ * </p>
  */
 public class DriverClass {
 
@@ -50,6 +54,12 @@ public class DriverClass {
 
 	    HierarchyUsingChildCategoryAndProduct hierarchy = new HierarchyUsingChildCategoryAndProduct();
 
+	    // Holder reused by every type 3 and type 10 query
+	    ProductResult productResult = new ProductResult();
+
+	    // Holder reused by every type 9 query
+	    SubtreeAggregates subtreeAggregates = new SubtreeAggregates();
+
 	    Integer noOfNodes = Integer.parseInt(br.readLine()); // Reading
 
 	    // Prepare list of input nodes by reading next N lines
@@ -63,7 +73,7 @@ public class DriverClass {
 
 		InputNode inputNode = new InputNode(nodeId, nodeName, nodePrice);
 		inputNodes.add(inputNode);
-		hierarchy.addNodeInfo(nodeId, nodeName, nodePrice);
+		hierarchy.addNodeInfoResult(nodeId, nodeName, nodePrice);
 	    }
 
 	    // Prepare list of relationship between nodes by reading next N-1
@@ -77,7 +87,7 @@ public class DriverClass {
 
 		InputRelationship inputRelationship = new InputRelationship(node1Id, node2Id);
 		inputRelationships.add(inputRelationship);
-		hierarchy.addNode(node1Id, node2Id);
+		hierarchy.addNodeResult(node1Id, node2Id);
 	    }
 
 	    // Reading the number of queries
@@ -102,7 +112,7 @@ public class DriverClass {
 		    inputQuery.setDiscount(discount);
 		    inputQueries.add(inputQuery);
 		    LOGGER.debug(">>>>>>> % discount query on node [{}] with value [{}]", nodeId, discount);
-		    LOGGER.info(hierarchy.applyDiscountOnNode(nodeId, 1, discount));
+		    LOGGER.info(hierarchy.applyDiscountOnNodeResult(nodeId, 1, discount).getMessage());
 
 		    break;
 		}
@@ -116,7 +126,7 @@ public class DriverClass {
 		    inputQuery.setNodeId(nodeId);
 		    inputQuery.setDiscount(discount);
 		    inputQueries.add(inputQuery);
-		    LOGGER.info(hierarchy.applyDiscountOnNode(nodeId, 2, discount));
+		    LOGGER.info(hierarchy.applyDiscountOnNodeResult(nodeId, 2, discount).getMessage());
 		    break;
 		}
 		// Read discount: <QueryType> <CategoryId/ProductId>
@@ -126,12 +136,12 @@ public class DriverClass {
 		    int nodeId = Integer.parseInt(queryAttributes[1].trim());
 		    inputQuery.setNodeId(nodeId);
 		    inputQueries.add(inputQuery);
-		    Product product = hierarchy.getMaximumDiscountedProduct(nodeId);
-		    if (product != null) {
-			LOGGER.info("{} {} {} {}", product.getId(), product.getName(), product.getOriginalPrice(),
-				product.getSellingPrice());
+		    ResultCode resultCode = hierarchy.getMaximumDiscountedProduct(nodeId, productResult);
+		    if (resultCode == ResultCode.PRODUCT_FOUND) {
+			LOGGER.info("{} {} {} {}", productResult.getProductId(), productResult.getName(),
+				productResult.getOriginalPrice(), productResult.getSellingPrice());
 		    } else {
-			LOGGER.info("Invalid ID.");
+			LOGGER.info(resultCode.getMessage());
 		    }
 		    break;
 		}
@@ -149,7 +159,7 @@ public class DriverClass {
 		    inputQuery.setPrice(price);
 		    inputQuery.setNodeName(nodeName);
 		    inputQueries.add(inputQuery);
-		    LOGGER.info(hierarchy.addNewNode(parentId, nodeId, price, nodeName));
+		    LOGGER.info(hierarchy.addNewNodeResult(parentId, nodeId, price, nodeName).getMessage());
 		    break;
 		}
 		// Delete Category / product: <QueryType> <CategoryId/ProductId>
@@ -159,7 +169,54 @@ public class DriverClass {
 		    int nodeId = Integer.parseInt(queryAttributes[1].trim());
 		    inputQuery.setNodeId(nodeId);
 		    inputQueries.add(inputQuery);
-		    LOGGER.info(hierarchy.removeNode(nodeId));
+		    LOGGER.info(hierarchy.removeNodeResult(nodeId).getMessage());
+		    break;
+		}
+		// Move Category / product: <QueryType> <CategoryId/ProductId>
+		// <NewParentCategoryId>
+		case 6: {
+		    InputQuery inputQuery = new InputQuery();
+		    inputQuery.setQueryType(queryType);
+		    int nodeId = Integer.parseInt(queryAttributes[1].trim());
+		    int parentId = Integer.parseInt(queryAttributes[2].trim());
+		    inputQuery.setNodeId(nodeId);
+		    inputQuery.setParentId(parentId);
+		    inputQueries.add(inputQuery);
+		    LOGGER.info(hierarchy.moveNodeResult(nodeId, parentId).getMessage());
+		    break;
+		}
+		// Subtree aggregates: <QueryType> <CategoryId/ProductId>
+		case 9: {
+		    InputQuery inputQuery = new InputQuery();
+		    inputQuery.setQueryType(queryType);
+		    int nodeId = Integer.parseInt(queryAttributes[1].trim());
+		    inputQuery.setNodeId(nodeId);
+		    inputQueries.add(inputQuery);
+		    ResultCode resultCode = hierarchy.getSubtreeAggregates(nodeId, subtreeAggregates);
+		    if (resultCode == ResultCode.AGGREGATES_FOUND) {
+			LOGGER.info("{} {} {} {}", subtreeAggregates.getProductCount(),
+				subtreeAggregates.getOriginalPriceSum(), subtreeAggregates.getSellingPriceSum(),
+				subtreeAggregates.getAverageSellingPrice());
+		    } else {
+			LOGGER.info(resultCode.getMessage());
+		    }
+		    break;
+		}
+		// Get maximum percent discounted product: <QueryType>
+		// <CategoryId/ProductId>
+		case 10: {
+		    InputQuery inputQuery = new InputQuery();
+		    inputQuery.setQueryType(queryType);
+		    int nodeId = Integer.parseInt(queryAttributes[1].trim());
+		    inputQuery.setNodeId(nodeId);
+		    inputQueries.add(inputQuery);
+		    ResultCode resultCode = hierarchy.getMaximumPercentDiscountedProduct(nodeId, productResult);
+		    if (resultCode == ResultCode.PRODUCT_FOUND) {
+			LOGGER.info("{} {} {} {}", productResult.getProductId(), productResult.getName(),
+				productResult.getOriginalPrice(), productResult.getSellingPrice());
+		    } else {
+			LOGGER.info(resultCode.getMessage());
+		    }
 		    break;
 		}
 		default: {
@@ -0,0 +1,120 @@
+package com.hierarchy;
+
+import java.util.Random;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The Class HeavyLightBenchmark.
+ * <p>
+ * Compares HeavyLightHierarchy against HierarchyUsingChildCategoryAndProduct
+ * (updateMaxDiscountedProduct on every product discount) on a chain-like tree,
+ * where every ancestor walk is as long as the number of categories, and on a
+ * bushy tree of small height. Both hierarchies receive the same product
+ * discounts, each followed by a max discounted product read on a random
+ * category.
+ * </p>
+ * <p>
+ * Usage: HeavyLightBenchmark [categories] [operations]. Defaults are 2000
+ * categories, 4 products per category and 100000 operations. The chain is kept
+ * moderate as updateMaxDiscountedProduct recurses once per ancestor.
+ * </p>
+ */
+public class HeavyLightBenchmark {
+
+    /** The LOGGER. */
+    private static final Logger LOGGER = LoggerFactory.getLogger(HeavyLightBenchmark.class);
+
+    /** The products per category. */
+    private static final int PRODUCTS_PER_CATEGORY = 4;
+
+    /** The branching factor of bushy tree. */
+    private static final int BUSHY_BRANCHING = 8;
+
+    /** The warm up rounds, results of these are not reported. */
+    private static final int WARM_UP_ROUNDS = 2;
+
+    /**
+     * The main method.
+     *
+     * @param args the arguments
+     */
+    public static void main(String[] args) {
+	int categoryCount = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+	int operationCount = args.length > 1 ? Integer.parseInt(args[1]) : 100000;
+	for (int round = 0; round <= WARM_UP_ROUNDS; round++) {
+	    boolean report = round == WARM_UP_ROUNDS;
+	    run("chain", categoryCount, 1, operationCount, report);
+	    run("bushy", categoryCount, BUSHY_BRANCHING, operationCount, report);
+	}
+    }
+
+    /**
+     * Build same tree in both hierarchies and time the operations on each.
+     *
+     * @param treeName       the tree name
+     * @param categoryCount  the category count
+     * @param branching      the branching factor, 1 for a chain
+     * @param operationCount the operation count
+     * @param report         log the result if true
+     */
+    private static void run(String treeName, int categoryCount, int branching, int operationCount,
+	    boolean report) {
+	HierarchyUsingChildCategoryAndProduct hierarchy = new HierarchyUsingChildCategoryAndProduct();
+	HeavyLightHierarchy heavyLightHierarchy = new HeavyLightHierarchy();
+	hierarchy.addNodeInfoResult(1, "c1", -1);
+	heavyLightHierarchy.addNewNodeResult(0, 1, -1, "c1");
+	Random random = new Random(categoryCount);
+	int productId = categoryCount + 1;
+	for (int categoryId = 1; categoryId <= categoryCount; categoryId++) {
+	    if (categoryId > 1) {
+		// Parent of category i in a complete tree of given branching
+		int parentId = (categoryId - 2) / branching + 1;
+		hierarchy.addNewNodeResult(parentId, categoryId, -1, "c" + categoryId);
+		heavyLightHierarchy.addNewNodeResult(parentId, categoryId, -1, "c" + categoryId);
+	    }
+	    for (int i = 0; i < PRODUCTS_PER_CATEGORY; i++) {
+		float price = 100 + random.nextInt(1000);
+		hierarchy.addNewNodeResult(categoryId, productId, price, "p" + productId);
+		heavyLightHierarchy.addNewNodeResult(categoryId, productId, price, "p" + productId);
+		productId++;
+	    }
+	}
+	int productCount = productId - categoryCount - 1;
+
+	int[] productIds = new int[operationCount];
+	int[] readCategoryIds = new int[operationCount];
+	float[] discounts = new float[operationCount];
+	for (int i = 0; i < operationCount; i++) {
+	    productIds[i] = categoryCount + 1 + random.nextInt(productCount);
+	    readCategoryIds[i] = 1 + random.nextInt(categoryCount);
+	    discounts[i] = random.nextInt(5);
+	}
+
+	long startNanos = System.nanoTime();
+	long checksum = 0;
+	for (int i = 0; i < operationCount; i++) {
+	    hierarchy.applyDiscountOnNodeResult(productIds[i], 1, discounts[i]);
+	    checksum += hierarchy.getMaximumDiscountedProduct(readCategoryIds[i]).getId();
+	}
+	long hierarchyNanos = System.nanoTime() - startNanos;
+
+	startNanos = System.nanoTime();
+	long heavyLightChecksum = 0;
+	for (int i = 0; i < operationCount; i++) {
+	    heavyLightHierarchy.applyDiscountOnNodeResult(productIds[i], 1, discounts[i]);
+	    heavyLightChecksum += heavyLightHierarchy.getMaximumDiscountedProduct(readCategoryIds[i]).getId();
+	}
+	long heavyLightNanos = System.nanoTime() - startNanos;
+
+	if (report) {
+	    LOGGER.info("{} tree, {} categories, {} products: updateMaxDiscountedProduct {} ns/op, heavy-light {} ns/op",
+		    treeName, categoryCount, productCount, hierarchyNanos / operationCount,
+		    heavyLightNanos / operationCount);
+	    if (checksum != heavyLightChecksum) {
+		LOGGER.error("{} tree: max discounted products differ between hierarchies", treeName);
+	    }
+	}
+    }
+}
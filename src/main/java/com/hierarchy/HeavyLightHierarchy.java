@@ -0,0 +1,639 @@
+package com.hierarchy;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The Class HeavyLightHierarchy.
+ * <p>
+ * Variant of HierarchyUsingChildCategoryAndProduct which does not keep max
+ * discounted product on every category. The category tree is laid out with a
+ * heavy-light decomposition: categories are numbered in DFS order visiting the
+ * heavy child (child with largest subtree) first, so every heavy path and every
+ * subtree is a contiguous range of positions.
+ * </p>
+ * <p>
+ * A segment tree over these positions holds the max discounted direct product
+ * of each category. A product discount is a point update on the position of its
+ * category, O(log k + log n), instead of the O(h) ancestor walk of
+ * updateMaxDiscountedProduct. Max discounted product of a category is a range
+ * query over its subtree positions in O(log n). Ancestor queries (lowest common
+ * ancestor, subtree check) climb heavy paths, O(log n) paths per query.
+ * </p>
+ * <p>
+ * Adding, removing or moving a category changes the layout. The decomposition is
+ * marked stale and rebuilt in O(n) on the next operation which needs it, so a
+ * sequence of structural changes costs a single rebuild. Adding or removing a
+ * product does not change the layout.
+ * </p>
+ * <p>
+ * Result codes and discount rules are the same as in
+ * HierarchyUsingChildCategoryAndProduct. In case two products have same
+ * discount, the product with smaller id is selected.
+ * </p>
+ */
+public class HeavyLightHierarchy {
+
+	/** The LOGGER. */
+	private static final Logger LOGGER = LoggerFactory.getLogger(HeavyLightHierarchy.class);
+
+	/** The categories. */
+	final Map<Integer, Category> categories = new HashMap<>();
+
+	/** The products. */
+	final Map<Integer, Product> products = new HashMap<>();
+
+	/** The stale flag. Decomposition has to be rebuilt before use. */
+	private boolean stale = true;
+
+	/** The position of every category in heavy-first DFS order. */
+	private final Map<Integer, Integer> categoryPositions = new HashMap<>();
+
+	/** The category id at position. */
+	private int[] positionCategoryIds = new int[0];
+
+	/** The position of parent category, -1 for a top level category. */
+	private int[] parentPositions = new int[0];
+
+	/** The position of head of heavy path holding the position. */
+	private int[] headPositions = new int[0];
+
+	/** The depth of category at position. */
+	private int[] depths = new int[0];
+
+	/** The number of categories in subtree of category at position. */
+	private int[] subtreeSizes = new int[0];
+
+	/** The number of leaves of segment tree, power of two. */
+	private int leafCount;
+
+	/** The segment tree max discounted product ids, 0 for no product. */
+	private int[] treeProductIds = new int[0];
+
+	/** The segment tree max discounts. */
+	private float[] treeDiscounts = new float[0];
+
+	/**
+	 * Adds the new node. Price -1 adds a category. Parent category id 0 adds a top
+	 * level category.
+	 *
+	 * @param parentCategoryId the parent category id
+	 * @param nodeId           the node id
+	 * @param price            the price
+	 * @param nodeName         the node name
+	 * @return the result code
+	 */
+	public ResultCode addNewNodeResult(final int parentCategoryId, final int nodeId, final float price,
+			final String nodeName) {
+		Category parentCategory = this.categories.get(parentCategoryId);
+		if (parentCategory == null && (parentCategoryId != 0 || price != -1)) {
+			return ResultCode.INVALID_PARENT_CATEGORY_ID;
+		}
+		if (price == -1) {
+			if (this.categories.containsKey(nodeId) || this.products.containsKey(nodeId)) {
+				return ResultCode.CATEGORY_NOT_ADDED;
+			}
+			Category category = new Category(nodeId, nodeName);
+			category.setParentCategoryId(parentCategoryId);
+			this.categories.put(nodeId, category);
+			if (parentCategory != null) {
+				parentCategory.addDirectChildCategoryId(nodeId);
+			}
+			this.stale = true;
+			return ResultCode.CATEGORY_ADDED;
+		}
+		if (this.products.containsKey(nodeId) || this.categories.containsKey(nodeId)) {
+			return ResultCode.PRODUCT_NOT_ADDED;
+		}
+		Product product = new Product(nodeId, nodeName, price);
+		product.setCategoryId(parentCategoryId);
+		this.products.put(nodeId, product);
+		parentCategory.addDirectChildProductId(nodeId);
+		parentCategory.addDirectChildProduct(newChildProduct(product));
+		updateCategory(parentCategory);
+		return ResultCode.PRODUCT_ADDED;
+	}
+
+	/**
+	 * Removes the node. Removing a category removes its whole subtree.
+	 *
+	 * @param nodeId the node id
+	 * @return the result code
+	 */
+	public ResultCode removeNodeResult(final int nodeId) {
+		Product product = this.products.get(nodeId);
+		if (product != null) {
+			Category category = this.categories.get(product.getCategoryId());
+			category.removeDirectChildProductId(nodeId);
+			category.removeDirectChildProduct(newChildProduct(product));
+			this.products.remove(nodeId);
+			updateCategory(category);
+			return ResultCode.PRODUCT_DELETED;
+		}
+		Category category = this.categories.get(nodeId);
+		if (category == null) {
+			return ResultCode.INVALID_ID;
+		}
+		Category parentCategory = this.categories.get(category.getParentCategoryId());
+		if (parentCategory != null) {
+			parentCategory.removeDirectChildCategoryId(nodeId);
+		}
+		Deque<Category> pendingCategories = new ArrayDeque<>();
+		pendingCategories.push(category);
+		while (!pendingCategories.isEmpty()) {
+			Category tempCategory = pendingCategories.pop();
+			this.categories.remove(tempCategory.getId());
+			for (int childProductId : tempCategory.getDirectChildProductIds()) {
+				this.products.remove(childProductId);
+			}
+			for (int childCategoryId : tempCategory.getDirectChildCategoryIds()) {
+				pendingCategories.push(this.categories.get(childCategoryId));
+			}
+		}
+		this.stale = true;
+		return ResultCode.CATEGORY_DELETED;
+	}
+
+	/**
+	 * Move the node under new parent category. A category can not be moved under
+	 * itself or its own subtree, and a top level category can not be moved.
+	 *
+	 * @param nodeId              the node id
+	 * @param newParentCategoryId the new parent category id
+	 * @return the result code
+	 */
+	public ResultCode moveNodeResult(final int nodeId, final int newParentCategoryId) {
+		Category newParentCategory = this.categories.get(newParentCategoryId);
+		if (newParentCategory == null) {
+			return ResultCode.INVALID_PARENT_CATEGORY_ID;
+		}
+		Product product = this.products.get(nodeId);
+		if (product != null) {
+			Category category = this.categories.get(product.getCategoryId());
+			if (category != newParentCategory) {
+				ChildProduct childProduct = newChildProduct(product);
+				category.removeDirectChildProductId(nodeId);
+				category.removeDirectChildProduct(childProduct);
+				updateCategory(category);
+				product.setCategoryId(newParentCategoryId);
+				newParentCategory.addDirectChildProductId(nodeId);
+				newParentCategory.addDirectChildProduct(childProduct);
+				updateCategory(newParentCategory);
+			}
+			return ResultCode.PRODUCT_MOVED;
+		}
+		Category category = this.categories.get(nodeId);
+		if (category == null) {
+			return ResultCode.INVALID_ID;
+		}
+		Category parentCategory = this.categories.get(category.getParentCategoryId());
+		if (parentCategory == null || isNodeInSubtree(newParentCategoryId, nodeId)) {
+			return ResultCode.INVALID_MOVE;
+		}
+		if (parentCategory != newParentCategory) {
+			parentCategory.removeDirectChildCategoryId(nodeId);
+			category.setParentCategoryId(newParentCategoryId);
+			newParentCategory.addDirectChildCategoryId(nodeId);
+			this.stale = true;
+		}
+		return ResultCode.CATEGORY_MOVED;
+	}
+
+	/**
+	 * Apply % or flat discount on a category or a product. Discount on a category
+	 * is applied on every product of its subtree, or on none if it can not be
+	 * applied on any of them.
+	 *
+	 * @param nodeId       the node id
+	 * @param discountType the discount type 1: % discount, 2: flat discount
+	 * @param discount     the discount
+	 * @return the result code
+	 */
+	public ResultCode applyDiscountOnNodeResult(final int nodeId, final int discountType, final float discount) {
+		Product product = this.products.get(nodeId);
+		if (product != null) {
+			if (!discountApplicableOnProduct(product, discountType, discount)) {
+				return ResultCode.DISCOUNT_CANNOT_BE_APPLIED;
+			}
+			Category category = this.categories.get(product.getCategoryId());
+			category.removeDirectChildProduct(newChildProduct(product));
+			applyDiscountOnlyOnProduct(product, discountType, discount);
+			category.addDirectChildProduct(newChildProduct(product));
+			updateCategory(category);
+			return ResultCode.DISCOUNT_APPLIED;
+		}
+		if (!this.categories.containsKey(nodeId)) {
+			return ResultCode.INVALID_ID;
+		}
+		if ((discountType == 1 || discountType == 2) && !discountInRange(discountType, discount)) {
+			return ResultCode.DISCOUNT_CANNOT_BE_APPLIED;
+		}
+		ensureDecomposition();
+		int position = this.categoryPositions.get(nodeId);
+		int endPosition = position + this.subtreeSizes[position];
+
+		// Subtree is a contiguous range of positions, check every product first
+		for (int i = position; i < endPosition; i++) {
+			for (int childProductId : this.categories.get(this.positionCategoryIds[i]).getDirectChildProductIds()) {
+				if (!discountApplicableOnProduct(this.products.get(childProductId), discountType, discount)) {
+					return ResultCode.DISCOUNT_CANNOT_BE_APPLIED;
+				}
+			}
+		}
+		for (int i = position; i < endPosition; i++) {
+			Category category = this.categories.get(this.positionCategoryIds[i]);
+			category.clearDirectChildProducts();
+			for (int childProductId : category.getDirectChildProductIds()) {
+				Product tempProduct = this.products.get(childProductId);
+				applyDiscountOnlyOnProduct(tempProduct, discountType, discount);
+				category.addDirectChildProduct(newChildProduct(tempProduct));
+			}
+			setLeaf(i, category);
+		}
+		updateRange(position, endPosition - 1);
+		LOGGER.debug("discount of type [{}] with value [{}] applied on [{}] categories under category [{}]",
+				discountType, discount, endPosition - position, nodeId);
+		return ResultCode.DISCOUNT_APPLIED;
+	}
+
+	/**
+	 * Gets the maximum discounted product. If a valid product is not found returns
+	 * null
+	 *
+	 * @param nodeId the node id
+	 * @return the maximum discounted product
+	 */
+	public Product getMaximumDiscountedProduct(final int nodeId) {
+		Product product = this.products.get(nodeId);
+		if (product != null) {
+			return product;
+		}
+		if (!this.categories.containsKey(nodeId)) {
+			return null;
+		}
+		ensureDecomposition();
+		int position = this.categoryPositions.get(nodeId);
+		return this.products.get(queryRange(position, position + this.subtreeSizes[position] - 1));
+	}
+
+	/**
+	 * Checks if node (category or product) is in subtree of category. A category
+	 * is in its own subtree.
+	 *
+	 * @param nodeId     the node id
+	 * @param categoryId the category id
+	 * @return true, if node is in subtree of category
+	 */
+	public boolean isNodeInSubtree(final int nodeId, final int categoryId) {
+		int nodeCategoryId = this.products.containsKey(nodeId) ? this.products.get(nodeId).getCategoryId() : nodeId;
+		if (!this.categories.containsKey(nodeCategoryId) || !this.categories.containsKey(categoryId)) {
+			return false;
+		}
+		ensureDecomposition();
+		int position = this.categoryPositions.get(nodeCategoryId);
+		int ancestorPosition = this.categoryPositions.get(categoryId);
+		return position >= ancestorPosition && position < ancestorPosition + this.subtreeSizes[ancestorPosition];
+	}
+
+	/**
+	 * Gets the lowest common ancestor category of two nodes, by climbing the heavy
+	 * paths. For a product, the search starts from the category holding it.
+	 *
+	 * @param node1Id the node 1 id
+	 * @param node2Id the node 2 id
+	 * @return the lowest common ancestor category id, 0 if a node is not known or
+	 *         nodes are not in same tree
+	 */
+	public int getLowestCommonAncestorId(final int node1Id, final int node2Id) {
+		int category1Id = this.products.containsKey(node1Id) ? this.products.get(node1Id).getCategoryId() : node1Id;
+		int category2Id = this.products.containsKey(node2Id) ? this.products.get(node2Id).getCategoryId() : node2Id;
+		if (!this.categories.containsKey(category1Id) || !this.categories.containsKey(category2Id)) {
+			return 0;
+		}
+		ensureDecomposition();
+		int position1 = this.categoryPositions.get(category1Id);
+		int position2 = this.categoryPositions.get(category2Id);
+		while (this.headPositions[position1] != this.headPositions[position2]) {
+			// Climb from the path whose head is deeper
+			if (this.depths[this.headPositions[position1]] > this.depths[this.headPositions[position2]]) {
+				position1 = this.parentPositions[this.headPositions[position1]];
+			} else {
+				position2 = this.parentPositions[this.headPositions[position2]];
+			}
+			if (position1 < 0 || position2 < 0) {
+				return 0;
+			}
+		}
+		return this.positionCategoryIds[Math.min(position1, position2)];
+	}
+
+	/**
+	 * Update the leaf of category and its segment tree path. Skipped while
+	 * decomposition is stale, as the rebuild reads every category.
+	 *
+	 * @param category the category
+	 */
+	private void updateCategory(final Category category) {
+		if (this.stale) {
+			return;
+		}
+		int position = this.categoryPositions.get(category.getId());
+		setLeaf(position, category);
+		updateRange(position, position);
+	}
+
+	/**
+	 * Sets the leaf of position to max discounted direct product of category.
+	 * Internal nodes are not updated.
+	 *
+	 * @param position the position
+	 * @param category the category
+	 */
+	private void setLeaf(final int position, final Category category) {
+		int leaf = this.leafCount + position;
+		if (category.getDirectChildProducts().isEmpty()) {
+			this.treeProductIds[leaf] = 0;
+			this.treeDiscounts[leaf] = 0;
+		} else {
+			ChildProduct childProduct = category.getDirectChildProducts().last();
+			this.treeProductIds[leaf] = childProduct.getProductId();
+			this.treeDiscounts[leaf] = childProduct.getAbsoluteDiscount();
+		}
+	}
+
+	/**
+	 * Recompute the internal segment tree nodes above the leaves of given
+	 * positions, level by level. Takes O(k + log n) for k positions.
+	 *
+	 * @param fromPosition the from position
+	 * @param toPosition   the to position, inclusive
+	 */
+	private void updateRange(final int fromPosition, final int toPosition) {
+		int from = (this.leafCount + fromPosition) >> 1;
+		int to = (this.leafCount + toPosition) >> 1;
+		while (from >= 1) {
+			for (int node = from; node <= to; node++) {
+				combine(node, 2 * node);
+				combineInto(node, 2 * node + 1);
+			}
+			from >>= 1;
+			to >>= 1;
+		}
+	}
+
+	/**
+	 * Copy the child node into node.
+	 *
+	 * @param node  the node
+	 * @param child the child
+	 */
+	private void combine(final int node, final int child) {
+		this.treeProductIds[node] = this.treeProductIds[child];
+		this.treeDiscounts[node] = this.treeDiscounts[child];
+	}
+
+	/**
+	 * Replace node with child node if child has larger discount, or same discount
+	 * with smaller product id.
+	 *
+	 * @param node  the node
+	 * @param child the child
+	 */
+	private void combineInto(final int node, final int child) {
+		int childProductId = this.treeProductIds[child];
+		if (childProductId != 0 && isBetter(childProductId, this.treeDiscounts[child], this.treeProductIds[node],
+				this.treeDiscounts[node])) {
+			this.treeProductIds[node] = childProductId;
+			this.treeDiscounts[node] = this.treeDiscounts[child];
+		}
+	}
+
+	/**
+	 * Checks if product is better than current product.
+	 *
+	 * @param productId        the product id
+	 * @param discount         the discount
+	 * @param currentProductId the current product id, 0 for none
+	 * @param currentDiscount  the current discount
+	 * @return true, if better
+	 */
+	private static boolean isBetter(final int productId, final float discount, final int currentProductId,
+			final float currentDiscount) {
+		if (currentProductId == 0 || discount > currentDiscount) {
+			return true;
+		}
+		return discount == currentDiscount && productId < currentProductId;
+	}
+
+	/**
+	 * Query max discounted product over range of positions.
+	 *
+	 * @param fromPosition the from position
+	 * @param toPosition   the to position, inclusive
+	 * @return the max discounted product id, 0 if range has no product
+	 */
+	private int queryRange(final int fromPosition, final int toPosition) {
+		int productId = 0;
+		float discount = 0;
+		int from = this.leafCount + fromPosition;
+		int to = this.leafCount + toPosition + 1;
+		while (from < to) {
+			if ((from & 1) == 1) {
+				if (this.treeProductIds[from] != 0
+						&& isBetter(this.treeProductIds[from], this.treeDiscounts[from], productId, discount)) {
+					productId = this.treeProductIds[from];
+					discount = this.treeDiscounts[from];
+				}
+				from++;
+			}
+			if ((to & 1) == 1) {
+				to--;
+				if (this.treeProductIds[to] != 0
+						&& isBetter(this.treeProductIds[to], this.treeDiscounts[to], productId, discount)) {
+					productId = this.treeProductIds[to];
+					discount = this.treeDiscounts[to];
+				}
+			}
+			from >>= 1;
+			to >>= 1;
+		}
+		return productId;
+	}
+
+	/**
+	 * Rebuild the decomposition and segment tree if stale.
+	 * <p>
+	 * Subtree sizes are computed bottom-up over a DFS order. Positions are then
+	 * assigned by a second DFS which visits the heavy child first, so it
+	 * continues the heavy path of its parent. Every other child starts a new
+	 * heavy path.
+	 * </p>
+	 */
+	private void ensureDecomposition() {
+		if (!this.stale) {
+			return;
+		}
+		int categoryCount = this.categories.size();
+		int[] categoryIds = new int[categoryCount];
+		int count = 0;
+		Deque<Integer> pendingCategoryIds = new ArrayDeque<>();
+		for (Category category : this.categories.values()) {
+			if (category.getParentCategoryId() == 0) {
+				pendingCategoryIds.push(category.getId());
+			}
+		}
+		while (!pendingCategoryIds.isEmpty()) {
+			int categoryId = pendingCategoryIds.pop();
+			categoryIds[count++] = categoryId;
+			for (int childCategoryId : this.categories.get(categoryId).getDirectChildCategoryIds()) {
+				pendingCategoryIds.push(childCategoryId);
+			}
+		}
+
+		// Children are after parent in DFS order, so sizes are complete in reverse
+		Map<Integer, Integer> sizes = new HashMap<>(categoryCount * 2);
+		for (int i = count - 1; i >= 0; i--) {
+			int size = 1;
+			for (int childCategoryId : this.categories.get(categoryIds[i]).getDirectChildCategoryIds()) {
+				size += sizes.get(childCategoryId);
+			}
+			sizes.put(categoryIds[i], size);
+		}
+
+		this.categoryPositions.clear();
+		this.positionCategoryIds = new int[count];
+		this.parentPositions = new int[count];
+		this.headPositions = new int[count];
+		this.depths = new int[count];
+		this.subtreeSizes = new int[count];
+		int position = 0;
+		for (int i = 0; i < count; i++) {
+			if (this.categories.get(categoryIds[i]).getParentCategoryId() == 0) {
+				pendingCategoryIds.push(categoryIds[i]);
+			}
+		}
+		while (!pendingCategoryIds.isEmpty()) {
+			int categoryId = pendingCategoryIds.pop();
+			Category category = this.categories.get(categoryId);
+			Integer parentPosition = this.categoryPositions.get(category.getParentCategoryId());
+			this.categoryPositions.put(categoryId, position);
+			this.positionCategoryIds[position] = categoryId;
+			this.subtreeSizes[position] = sizes.get(categoryId);
+			if (parentPosition == null) {
+				this.parentPositions[position] = -1;
+				this.headPositions[position] = position;
+				this.depths[position] = 0;
+			} else {
+				this.parentPositions[position] = parentPosition;
+				// Heavy child is placed right after its parent
+				this.headPositions[position] = parentPosition == position - 1 ? this.headPositions[parentPosition]
+						: position;
+				this.depths[position] = this.depths[parentPosition] + 1;
+			}
+			position++;
+
+			// Push light children first, heavy child last so it is visited next
+			int heavyCategoryId = 0;
+			int heavySize = 0;
+			for (int childCategoryId : category.getDirectChildCategoryIds()) {
+				int size = sizes.get(childCategoryId);
+				if (size > heavySize) {
+					heavySize = size;
+					heavyCategoryId = childCategoryId;
+				}
+			}
+			for (int childCategoryId : category.getDirectChildCategoryIds()) {
+				if (childCategoryId != heavyCategoryId) {
+					pendingCategoryIds.push(childCategoryId);
+				}
+			}
+			if (heavyCategoryId != 0) {
+				pendingCategoryIds.push(heavyCategoryId);
+			}
+		}
+
+		this.leafCount = 1;
+		while (this.leafCount < Math.max(count, 1)) {
+			this.leafCount <<= 1;
+		}
+		this.treeProductIds = new int[2 * this.leafCount];
+		this.treeDiscounts = new float[2 * this.leafCount];
+		for (int i = 0; i < count; i++) {
+			setLeaf(i, this.categories.get(this.positionCategoryIds[i]));
+		}
+		if (count > 0) {
+			updateRange(0, count - 1);
+		}
+		this.stale = false;
+		LOGGER.debug("heavy-light decomposition rebuilt for [{}] categories", count);
+	}
+
+	/**
+	 * Creates the child product entry of product with its current discount.
+	 *
+	 * @param product the product
+	 * @return the child product
+	 */
+	private static ChildProduct newChildProduct(final Product product) {
+		ChildProduct childProduct = new ChildProduct();
+		childProduct.setProductId(product.getId());
+		childProduct.setAbsoluteDiscount(product.getDiscount());
+		return childProduct;
+	}
+
+	/**
+	 * Discount applicable on product.
+	 *
+	 * @param product      the product
+	 * @param discountType the discount type 1: % discount, 2: flat discount
+	 * @param discount     the discount
+	 * @return true, if successful
+	 */
+	private static boolean discountApplicableOnProduct(final Product product, final int discountType,
+			final float discount) {
+		if (discountType == 2) {
+			return discountInRange(discountType, discount) && product.getSellingPrice() >= discount;
+		}
+		return discountType != 1 || discountInRange(discountType, discount);
+	}
+
+	/**
+	 * Checks if discount is in valid range. Negative discount and % discount
+	 * greater than 100 are not allowed.
+	 *
+	 * @param discountType the discount type 1: % discount, 2: flat discount
+	 * @param discount     the discount
+	 * @return true, if in range
+	 */
+	private static boolean discountInRange(final int discountType, final float discount) {
+		if (discount < 0) {
+			return false;
+		}
+		return discountType != 1 || discount <= 100;
+	}
+
+	/**
+	 * Apply discount only on this product, selling price and discount are
+	 * updated. Caller is responsible to update the tree set and segment tree.
+	 *
+	 * @param product      the product
+	 * @param discountType the discount type 1: % discount, 2: flat discount
+	 * @param discount     the discount
+	 */
+	private static void applyDiscountOnlyOnProduct(final Product product, final int discountType,
+			final float discount) {
+		if (discountType == 2) {
+			product.setSellingPrice(product.getSellingPrice() - discount);
+		} else if (discountType == 1) {
+			product.setSellingPrice(product.getSellingPrice() * ((100 - discount) / 100));
+		} else {
+			return;
+		}
+		product.setDiscount(product.getOriginalPrice() - product.getSellingPrice());
+	}
+}
@@ -0,0 +1,116 @@
+package com.hierarchy;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The Class HierarchyMetrics.
+ * <p>
+ * Holds OperationMetrics for each OperationType. Set it on hierarchy with
+ * HierarchyUsingChildCategoryAndProduct.setMetrics to start recording, and
+ * call registerMBeans to expose it through JMX as
+ * 'com.hierarchy:type=HierarchyMetrics,name=&lt;name&gt;,operation=&lt;operation&gt;'.
+ * </p>
+ */
+public class HierarchyMetrics {
+
+    /** The LOGGER. */
+    private static final Logger LOGGER = LoggerFactory.getLogger(HierarchyMetrics.class);
+
+    /** The operation metrics, indexed by operation type ordinal. */
+    private final OperationMetrics[] operationMetrics;
+
+    /**
+     * Instantiates a new hierarchy metrics.
+     */
+    public HierarchyMetrics() {
+	OperationType[] operationTypes = OperationType.values();
+	this.operationMetrics = new OperationMetrics[operationTypes.length];
+	for (OperationType operationType : operationTypes) {
+	    this.operationMetrics[operationType.ordinal()] = new OperationMetrics(operationType);
+	}
+    }
+
+    /**
+     * Record an operation.
+     *
+     * @param operationType the operation type
+     * @param latencyNanos the latency in nanoseconds
+     * @param resultCode the result code
+     */
+    public void record(OperationType operationType, long latencyNanos, ResultCode resultCode) {
+	operationMetrics[operationType.ordinal()].record(latencyNanos, resultCode);
+    }
+
+    /**
+     * Gets the metrics of given operation type.
+     *
+     * @param operationType the operation type
+     * @return the operation metrics
+     */
+    public OperationMetrics getOperationMetrics(OperationType operationType) {
+	return operationMetrics[operationType.ordinal()];
+    }
+
+    /**
+     * Register an MBean for each operation type with platform MBean server.
+     *
+     * @param name the name used to distinguish multiple hierarchies
+     * @throws JMException in case of failure in registration
+     */
+    public void registerMBeans(String name) throws JMException {
+	MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+	for (OperationMetrics metrics : operationMetrics) {
+	    ObjectName objectName = objectName(name, metrics.getOperationType());
+	    if (!mBeanServer.isRegistered(objectName)) {
+		mBeanServer.registerMBean(metrics, objectName);
+		LOGGER.debug("registered mbean [{}]", objectName);
+	    }
+	}
+    }
+
+    /**
+     * Unregister the MBeans registered with registerMBeans.
+     *
+     * @param name the name
+     * @throws JMException in case of failure in unregistration
+     */
+    public void unregisterMBeans(String name) throws JMException {
+	MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+	for (OperationMetrics metrics : operationMetrics) {
+	    ObjectName objectName = objectName(name, metrics.getOperationType());
+	    if (mBeanServer.isRegistered(objectName)) {
+		mBeanServer.unregisterMBean(objectName);
+	    }
+	}
+    }
+
+    /**
+     * Reset metrics of all operation types.
+     */
+    public void reset() {
+	for (OperationMetrics metrics : operationMetrics) {
+	    metrics.reset();
+	}
+    }
+
+    /**
+     * Object name of MBean for given operation type.
+     *
+     * @param name the name
+     * @param operationType the operation type
+     * @return the object name
+     * @throws JMException in case of malformed name
+     */
+    private static ObjectName objectName(String name, OperationType operationType) throws JMException {
+	return new ObjectName("com.hierarchy:type=HierarchyMetrics,name=" + ObjectName.quote(name) + ",operation="
+		+ operationType.getOperationName());
+    }
+
+}
@@ -0,0 +1,540 @@
+package com.hierarchy;
+
+import java.io.Closeable;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The Class HierarchyServer.
+ * <p>
+ * NIO server exposing a HierarchyUsingChildCategoryAndProduct over the
+ * BinaryProtocol. A single thread runs the selector and executes every request
+ * on the hierarchy, so the hierarchy needs no locking and responses of a
+ * connection are produced in the order of its requests.
+ * </p>
+ * <p>
+ * Clients may pipeline requests. Every complete frame received is executed and
+ * its response appended to the write buffer of connection, which is written
+ * once per read event. A connection whose pending responses exceed
+ * MAX_PENDING_RESPONSE_BYTES is not read until the client reads its responses.
+ * A connection sending an invalid frame length is closed.
+ * </p>
+ * <p>
+ * A primary server appends every successful write request to an OperationLog,
+ * shipped by a ReplicationPrimary. A replica server applies the shipped log on
+ * its own hierarchy and rejects write requests. Reads on a replica may lag the
+ * primary; a client needing its own writes reads with the sequence returned by
+ * GET_SEQUENCE on primary as min sequence. Such a read, and the following
+ * requests of its connection, waits till the replica applied that sequence or
+ * STALE_READ_WAIT_MILLIS elapsed.
+ * </p>
+ * <p>
+ * Subtrees of removed categories are reclaimed between requests, in slices of
+ * RECLAIM_SLICE_NANOS, while the selector is polled without waiting.
+ * </p>
+ * <p>
+ * With a TraceRecorder every executed request is recorded with its response
+ * and time, to be replayed by TraceReplayBenchmark.
+ * </p>
+ * <p>
+ * Usage: HierarchyServer [port] [primary=replicationPort |
+ * replica=host:replicationPort] [trace=file]. Default port is 9090. See
+ * LoadGeneratorClient.
+ * </p>
+ */
+public class HierarchyServer implements Runnable, Closeable {
+
+    /** The LOGGER. */
+    private static final Logger LOGGER = LoggerFactory.getLogger(HierarchyServer.class);
+
+    /** The default port. */
+    public static final int DEFAULT_PORT = 9090;
+
+    /** The read buffer size of a connection. */
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    /** The initial write buffer size of a connection. */
+    private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+
+    /** The pending response bytes above which a connection is not read. */
+    private static final int MAX_PENDING_RESPONSE_BYTES = 1024 * 1024;
+
+    /** The max wait of a read for replica to apply its min sequence. */
+    public static final long STALE_READ_WAIT_MILLIS = 1000;
+
+    /** The select timeout while some reads wait on a replica. */
+    private static final long WAITING_SELECT_MILLIS = 10;
+
+    /** The time spent reclaiming tombstoned subtrees between two selects. */
+    private static final long RECLAIM_SLICE_NANOS = TimeUnit.MICROSECONDS.toNanos(200);
+
+    /** The hierarchy. */
+    private final HierarchyUsingChildCategoryAndProduct hierarchy;
+
+    /** The selector. */
+    private final Selector selector;
+
+    /** The server channel. */
+    private final ServerSocketChannel serverChannel;
+
+    /** The product result reused by every get maximum discounted product. */
+    private final ProductResult productResult = new ProductResult();
+
+    /** The subtree aggregates reused by every get subtree aggregates request. */
+    private final SubtreeAggregates subtreeAggregates = new SubtreeAggregates();
+
+    /** The operation log of a primary, null otherwise. */
+    private final OperationLog operationLog;
+
+    /** The link to primary of a replica, null otherwise. */
+    private final ReplicaLink replicaLink;
+
+    /** The trace recorder, null if not recording. */
+    private TraceRecorder traceRecorder;
+
+    /** The keys of connections waiting on replica. */
+    private final List<SelectionKey> waitingKeys = new ArrayList<>();
+
+    /** The running flag. */
+    private volatile boolean running = true;
+
+    /**
+     * Instantiates a new hierarchy server bound to given address.
+     *
+     * @param hierarchy the hierarchy
+     * @param address   the address, port 0 for any free port
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    public HierarchyServer(HierarchyUsingChildCategoryAndProduct hierarchy, InetSocketAddress address)
+	    throws IOException {
+	this(hierarchy, address, null, null);
+    }
+
+    /**
+     * Instantiates a new primary hierarchy server appending its writes to
+     * operation log.
+     *
+     * @param hierarchy    the hierarchy
+     * @param address      the address, port 0 for any free port
+     * @param operationLog the operation log
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    public HierarchyServer(HierarchyUsingChildCategoryAndProduct hierarchy, InetSocketAddress address,
+	    OperationLog operationLog) throws IOException {
+	this(hierarchy, address, operationLog, null);
+    }
+
+    /**
+     * Instantiates a new replica hierarchy server applying the operation log
+     * shipped by primary on an empty hierarchy.
+     *
+     * @param hierarchy      the empty hierarchy
+     * @param address        the address, port 0 for any free port
+     * @param primaryAddress the address of ReplicationPrimary
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    public HierarchyServer(HierarchyUsingChildCategoryAndProduct hierarchy, InetSocketAddress address,
+	    InetSocketAddress primaryAddress) throws IOException {
+	this(hierarchy, address, null, new ReplicaLink(primaryAddress, 0));
+    }
+
+    /**
+     * Instantiates a new hierarchy server.
+     *
+     * @param hierarchy    the hierarchy
+     * @param address      the address
+     * @param operationLog the operation log, null if not primary
+     * @param replicaLink  the replica link, null if not replica
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    private HierarchyServer(HierarchyUsingChildCategoryAndProduct hierarchy, InetSocketAddress address,
+	    OperationLog operationLog, ReplicaLink replicaLink) throws IOException {
+	this.hierarchy = hierarchy;
+	this.operationLog = operationLog;
+	this.replicaLink = replicaLink;
+	this.selector = Selector.open();
+	this.serverChannel = ServerSocketChannel.open();
+	this.serverChannel.bind(address);
+	this.serverChannel.configureBlocking(false);
+	this.serverChannel.register(this.selector, SelectionKey.OP_ACCEPT);
+	if (replicaLink != null) {
+	    replicaLink.channel.register(this.selector, SelectionKey.OP_READ, replicaLink);
+	}
+    }
+
+    /**
+     * Sets the trace recorder, before the server runs. The recorder is closed
+     * when the server stops.
+     *
+     * @param traceRecorder the trace recorder, null to not record
+     */
+    public void setTraceRecorder(TraceRecorder traceRecorder) {
+	this.traceRecorder = traceRecorder;
+    }
+
+    /**
+     * Gets the port the server is bound to.
+     *
+     * @return the port
+     */
+    public int getPort() {
+	return this.serverChannel.socket().getLocalPort();
+    }
+
+    /**
+     * Gets the sequence number of last operation applied on hierarchy, 0 if
+     * server is neither primary nor replica.
+     *
+     * @return the applied sequence
+     */
+    private long getAppliedSequence() {
+	if (this.operationLog != null) {
+	    return this.operationLog.getLastSequence();
+	}
+	return this.replicaLink == null ? 0 : this.replicaLink.getAppliedSequence();
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see java.lang.Runnable#run()
+     */
+    @Override
+    public void run() {
+	try {
+	    while (this.running) {
+		if (this.hierarchy.hasTombstones()) {
+		    this.selector.selectNow();
+		} else {
+		    this.selector.select(this.waitingKeys.isEmpty() ? 0 : WAITING_SELECT_MILLIS);
+		}
+		Iterator<SelectionKey> selectedKeys = this.selector.selectedKeys().iterator();
+		while (selectedKeys.hasNext()) {
+		    SelectionKey key = selectedKeys.next();
+		    selectedKeys.remove();
+		    if (!key.isValid()) {
+			continue;
+		    }
+		    if (key.isAcceptable()) {
+			accept();
+			continue;
+		    }
+		    if (key.attachment() == this.replicaLink) {
+			readReplicaLink(key);
+			continue;
+		    }
+		    ServerConnection connection = (ServerConnection) key.attachment();
+		    if (key.isReadable() && read(key, connection)) {
+			serve(key, connection);
+		    } else if (key.isValid() && key.isWritable()) {
+			serve(key, connection);
+		    }
+		}
+		serveWaitingConnections();
+		if (this.hierarchy.hasTombstones()) {
+		    this.hierarchy.reclaimTombstones(RECLAIM_SLICE_NANOS);
+		}
+	    }
+	} catch (IOException e) {
+	    LOGGER.error("server stopped", e);
+	} finally {
+	    for (SelectionKey key : this.selector.keys()) {
+		closeConnection(key);
+	    }
+	    stopTrace();
+	    try {
+		this.selector.close();
+	    } catch (IOException e) {
+		LOGGER.debug("selector close failed", e);
+	    }
+	}
+    }
+
+    /**
+     * Stop the server. Connections are closed by the server thread.
+     */
+    @Override
+    public void close() {
+	this.running = false;
+	this.selector.wakeup();
+    }
+
+    /**
+     * Accept a new connection.
+     *
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    private void accept() throws IOException {
+	SocketChannel channel = this.serverChannel.accept();
+	if (channel == null) {
+	    return;
+	}
+	channel.configureBlocking(false);
+	channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+	channel.register(this.selector, SelectionKey.OP_READ,
+		new ServerConnection(channel, READ_BUFFER_SIZE, WRITE_BUFFER_SIZE));
+    }
+
+    /**
+     * Read the available bytes of connection.
+     *
+     * @param key        the key
+     * @param connection the connection
+     * @return false, if connection was closed
+     */
+    private boolean read(SelectionKey key, ServerConnection connection) {
+	try {
+	    if (connection.channel.read(connection.readBuffer) >= 0) {
+		return true;
+	    }
+	} catch (IOException e) {
+	    LOGGER.debug("closing connection [{}]: {}", connection.channel, e.getMessage());
+	}
+	closeConnection(key);
+	return false;
+    }
+
+    /**
+     * Execute the received requests of connection and write the responses.
+     * Connection is tracked while its next request waits on replica.
+     *
+     * @param key        the key
+     * @param connection the connection
+     */
+    private void serve(SelectionKey key, ServerConnection connection) {
+	try {
+	    process(connection);
+	    write(key, connection);
+	    if (connection.waiting && !this.waitingKeys.contains(key)) {
+		this.waitingKeys.add(key);
+	    }
+	} catch (IOException | IllegalArgumentException e) {
+	    LOGGER.debug("closing connection [{}]: {}", connection.channel, e.getMessage());
+	    closeConnection(key);
+	} catch (RuntimeException e) {
+	    // A failing request must not stop the server for every other client
+	    LOGGER.error("closing connection [{}] on failed request", connection.channel, e);
+	    closeConnection(key);
+	}
+    }
+
+    /**
+     * Serve again the connections waiting on replica, the replica may have
+     * applied their min sequence or their wait may have elapsed.
+     */
+    private void serveWaitingConnections() {
+	for (int i = this.waitingKeys.size() - 1; i >= 0; i--) {
+	    SelectionKey key = this.waitingKeys.get(i);
+	    if (key.isValid()) {
+		serve(key, (ServerConnection) key.attachment());
+	    }
+	    if (!key.isValid() || !((ServerConnection) key.attachment()).waiting) {
+		this.waitingKeys.remove(i);
+	    }
+	}
+    }
+
+    /**
+     * Apply the operation log entries received by replica. Replica keeps serving
+     * reads once primary closed the link.
+     *
+     * @param key the key of replica link
+     */
+    private void readReplicaLink(SelectionKey key) {
+	try {
+	    if (this.replicaLink.read(this.hierarchy)) {
+		return;
+	    }
+	    LOGGER.warn("primary closed replication at sequence [{}]", this.replicaLink.getAppliedSequence());
+	} catch (IOException e) {
+	    LOGGER.error("replication stopped at sequence [{}]", this.replicaLink.getAppliedSequence(), e);
+	}
+	closeConnection(key);
+    }
+
+    /**
+     * Execute every complete request frame received on connection, while pending
+     * responses are below the limit and next request does not wait on replica. A
+     * partial frame is kept for next read. Successful writes of a primary are
+     * appended to operation log.
+     *
+     * @param connection the connection
+     */
+    private void process(ServerConnection connection) {
+	connection.readBuffer.flip();
+	int frameLength;
+	while (connection.writeBuffer.position() < MAX_PENDING_RESPONSE_BYTES
+		&& (frameLength = BinaryProtocol.completeFrameLength(connection.readBuffer)) >= 0
+		&& !isWaiting(connection)) {
+	    connection.ensureWritable(BinaryProtocol.MAX_RESPONSE_LENGTH);
+	    int frameOffset = connection.readBuffer.position();
+	    int responseOffset = connection.writeBuffer.position();
+	    long nanos = this.traceRecorder != null ? System.nanoTime() : 0;
+	    byte queryType = BinaryProtocol.getQueryType(connection.readBuffer);
+	    ResultCode resultCode = BinaryProtocol.execute(this.hierarchy, connection.readBuffer,
+		    connection.writeBuffer, this.productResult, this.subtreeAggregates, getAppliedSequence(),
+		    this.replicaLink != null);
+	    if (this.operationLog != null && resultCode.isSuccess() && BinaryProtocol.isWrite(queryType)) {
+		this.operationLog.append(connection.readBuffer, frameOffset, 4 + frameLength);
+	    }
+	    if (this.traceRecorder != null) {
+		try {
+		    this.traceRecorder.record(nanos, connection.readBuffer, frameOffset, connection.writeBuffer,
+			    responseOffset);
+		} catch (IOException e) {
+		    LOGGER.error("trace recording stopped", e);
+		    stopTrace();
+		}
+	    }
+	    LOGGER.trace("executed request of [{}] bytes", frameLength);
+	}
+	connection.readBuffer.compact();
+    }
+
+    /**
+     * Close the trace recorder, if any, and stop recording.
+     */
+    private void stopTrace() {
+	if (this.traceRecorder == null) {
+	    return;
+	}
+	try {
+	    this.traceRecorder.close();
+	} catch (IOException e) {
+	    LOGGER.error("trace close failed", e);
+	}
+	this.traceRecorder = null;
+    }
+
+    /**
+     * Checks if the complete request frame at position of read buffer waits for
+     * replica to apply its min sequence. The wait starts on first check.
+     *
+     * @param connection the connection
+     * @return true, if waiting
+     */
+    private boolean isWaiting(ServerConnection connection) {
+	if (this.replicaLink == null
+		|| BinaryProtocol.getQueryType(connection.readBuffer) != BinaryProtocol.GET_MAXIMUM_DISCOUNTED_PRODUCT_AT
+		|| BinaryProtocol.getMinSequence(connection.readBuffer) <= this.replicaLink.getAppliedSequence()) {
+	    connection.waiting = false;
+	    return false;
+	}
+	long now = System.nanoTime();
+	if (!connection.waiting) {
+	    connection.waiting = true;
+	    connection.waitDeadline = now + TimeUnit.MILLISECONDS.toNanos(STALE_READ_WAIT_MILLIS);
+	    return true;
+	}
+	if (now - connection.waitDeadline >= 0) {
+	    connection.waiting = false;
+	    return false;
+	}
+	return true;
+    }
+
+    /**
+     * Write pending responses and select the next events of connection. Reading
+     * is suspended while too many responses are pending or a request waits on
+     * replica.
+     *
+     * @param key        the key
+     * @param connection the connection
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    private void write(SelectionKey key, ServerConnection connection) throws IOException {
+	connection.writeBuffer.flip();
+	connection.channel.write(connection.writeBuffer);
+	connection.writeBuffer.compact();
+	int pending = connection.writeBuffer.position();
+	int interestOps = pending < MAX_PENDING_RESPONSE_BYTES && !connection.waiting ? SelectionKey.OP_READ : 0;
+	if (pending > 0) {
+	    interestOps |= SelectionKey.OP_WRITE;
+	}
+	key.interestOps(interestOps);
+    }
+
+    /**
+     * Close the channel of key.
+     *
+     * @param key the key
+     */
+    private void closeConnection(SelectionKey key) {
+	key.cancel();
+	try {
+	    key.channel().close();
+	} catch (IOException e) {
+	    LOGGER.debug("channel close failed", e);
+	}
+    }
+
+    /**
+     * The main method.
+     *
+     * @param args the arguments
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    public static void main(String[] args) throws IOException {
+	int port = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_PORT;
+	String mode = "";
+	String traceFile = null;
+	for (int i = 1; i < args.length; i++) {
+	    if (args[i].startsWith("trace=")) {
+		traceFile = args[i].substring("trace=".length());
+	    } else {
+		mode = args[i];
+	    }
+	}
+	HierarchyUsingChildCategoryAndProduct hierarchy = new HierarchyUsingChildCategoryAndProduct();
+	HierarchyServer server;
+	if (mode.startsWith("primary=")) {
+	    OperationLog operationLog = new OperationLog();
+	    ReplicationPrimary replicationPrimary = new ReplicationPrimary(operationLog,
+		    new InetSocketAddress(Integer.parseInt(mode.substring("primary=".length()))));
+	    Thread replicationThread = new Thread(replicationPrimary, "replication-primary");
+	    replicationThread.setDaemon(true);
+	    replicationThread.start();
+	    server = new HierarchyServer(hierarchy, new InetSocketAddress(port), operationLog);
+	    LOGGER.info("shipping operation log on port {}", replicationPrimary.getPort());
+	} else if (mode.startsWith("replica=")) {
+	    String primary = mode.substring("replica=".length());
+	    int separator = primary.lastIndexOf(':');
+	    server = new HierarchyServer(hierarchy, new InetSocketAddress(port), new InetSocketAddress(
+		    primary.substring(0, separator), Integer.parseInt(primary.substring(separator + 1))));
+	    LOGGER.info("replicating primary {}", primary);
+	} else {
+	    server = new HierarchyServer(hierarchy, new InetSocketAddress(port));
+	}
+	if (traceFile != null && mode.startsWith("replica=")) {
+	    LOGGER.warn("trace not recorded on a replica, replicated writes would be missing");
+	} else if (traceFile != null) {
+	    server.setTraceRecorder(new TraceRecorder(new FileOutputStream(traceFile), mode.startsWith("primary=")));
+	    // Stop the server on shutdown, so the trace is complete
+	    HierarchyServer stoppedServer = server;
+	    Thread serverThread = Thread.currentThread();
+	    Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+		stoppedServer.close();
+		try {
+		    serverThread.join(TimeUnit.SECONDS.toMillis(5));
+		} catch (InterruptedException e) {
+		    Thread.currentThread().interrupt();
+		}
+	    }));
+	    LOGGER.info("recording trace to {}", traceFile);
+	}
+	LOGGER.info("hierarchy server listening on port {}", server.getPort());
+	server.run();
+    }
+}
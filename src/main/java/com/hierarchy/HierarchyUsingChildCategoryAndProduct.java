@@ -3,10 +3,17 @@
  */
 package com.hierarchy;
 
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.TreeSet;
+import java.util.function.IntConsumer;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -32,6 +39,11 @@ import org.slf4j.LoggerFactory;
  * can not be used due to recursive nature of operations.
  * </p>
  * <p>
+ * Category keeps these sorted children in a CompactSortedSet, a small sorted
+ * array which becomes a TreeSet only beyond a few children, with the same
+ * ordering and lookup behavior.
+ * </p>
+ * <p>
  * Any crud or update (valid discount) operation on hierarchy keeps the whole
  * tree consistent with the max discounted product. This also has performance
  * impact on most of the operations. With java.util.tree set it should run under
@@ -43,32 +55,124 @@ import org.slf4j.LoggerFactory;
  * have a single parent. The code is tested for the same. In case of violation
  * in this regard behavior is unexpected.
  * </p>
+ * <p>
+ * Removing a category detaches it from its parent and tombstones it in O(h),
+ * its subtree stays in categories and products until reclaimTombstones frees
+ * it in bounded slices. While tombstones are pending, a lookup of a node checks
+ * its ancestor path for a tombstoned category in O(h), and tombstoned nodes
+ * are treated as absent: a discount, move or remove of a tombstoned node gives
+ * INVALID_ID. An add reusing the id of a tombstoned node frees that node alone
+ * first, in O(h) plus its direct children.
+ * </p>
  */
 public class HierarchyUsingChildCategoryAndProduct {
 
-	private static final String DISCOUNT_CANNOT_BE_APPLIED = "Discount cannot be applied.";
+	/** The categories. Global reference to hold all categories in this tree. */
+	Map<Integer, Category> categories;
+
+	/** The products. Global reference to hold all products in this tree. */
+	Map<Integer, Product> products;
+
+	/**
+	 * The metrics. Optional, latency and result of public operations are recorded
+	 * only when set.
+	 */
+	HierarchyMetrics metrics;
+
+	/**
+	 * The cost accounting. Optional, work done by public operations is counted
+	 * only when set.
+	 */
+	CostAccounting costAccounting;
+
+	/** The cost of current operation. Null when cost accounting is disabled. */
+	OperationCost cost;
 
-	private static final String DISCOUNT_APPLIED = "Discount applied.";
+	/**
+	 * The price history. Optional, selling price changes are recorded only when
+	 * set.
+	 */
+	PriceHistory priceHistory;
 
-	private static final String PRODUCT_ADDED = "Product added.";
+	/**
+	 * The name index. Optional, names of nodes are indexed for prefix lookups
+	 * only when set.
+	 */
+	NameIndex nameIndex;
 
-	private static final String CATEGORY_ADDED = "Category added.";
+	/**
+	 * The change feed. Optional, changes of max discounted product of categories
+	 * are noted and published only when set.
+	 */
+	MaxDiscountChangeFeed changeFeed;
 
-	private static final String CATEGORY_DELETED = "Category deleted.";
+	/**
+	 * The reclaim listener. Optional, called with the id of every node of a
+	 * removed subtree once reclaimed.
+	 */
+	IntConsumer reclaimListener;
 
-	private static final String PRODUCT_DELETED = "Product deleted.";
+	/**
+	 * The undo journal of running discount transaction. Null when no transaction
+	 * is running.
+	 */
+	UndoJournal journal;
 
-	private static final String INVALID_ID = "Invalid ID.";
+	/** The undo journal reused by every discount transaction. */
+	private final UndoJournal transactionJournal = new UndoJournal();
 
-	/** The categories. Global reference to hold all categories in this tree. */
-	Map<Integer, Category> categories;
+	/**
+	 * The max discounted child selected by selectMaxDiscountedChild. Reused to
+	 * avoid allocation on every ancestor update.
+	 */
+	private final ChildProduct maxDiscountedChild = new ChildProduct();
 
-	/** The products. Global reference to hold all products in this tree. */
-	Map<Integer, Product> products;
+	/**
+	 * The ids of top level categories (parent id 0) marked dirty by deferred
+	 * mutations. Recomputation of dirty categories starts from these.
+	 */
+	private final Set<Integer> dirtyRootCategoryIds = new LinkedHashSet<>();
+
+	/**
+	 * The structure epoch. Incremented whenever a category which may be ancestor
+	 * of an indexed category changes parent, which invalidates depth and ancestor
+	 * jump pointers of every category. Categories are indexed again lazily on
+	 * next ancestor walk.
+	 */
+	private int structureEpoch;
+
+	/** The stale categories collected by indexAncestors, reused. */
+	private final List<Category> staleCategories = new ArrayList<>();
+
+	/**
+	 * The tombstoned categories waiting to be reclaimed with their subtree. The
+	 * category at head is being reclaimed; its children are queued tombstoned
+	 * before it is removed, so a node of a pending subtree always has a
+	 * tombstoned category on its ancestor path.
+	 */
+	private final Deque<Category> tombstonedCategories = new ArrayDeque<>();
+
+	/**
+	 * The lazy aggregates mode. When enabled writes only mark the ancestor path
+	 * dirty and max discounted product is recomputed on read.
+	 */
+	boolean lazyAggregates;
+
+	/**
+	 * The subtree aggregates deferred flag. Set while a category discount changes
+	 * the products of a subtree, whose aggregates are recomputed once at the end.
+	 */
+	private boolean subtreeAggregatesDeferred;
 
 	/** The LOGGER. */
 	private static final Logger LOGGER = LoggerFactory.getLogger(HierarchyUsingChildCategoryAndProduct.class);
 
+	/** The ancestors of a category without parent. */
+	private static final Category[] NO_ANCESTORS = new Category[0];
+
+	/** The number of nodes reclaimed between two reads of the clock. */
+	private static final int RECLAIM_CLOCK_INTERVAL = 64;
+
 	/**
 	 * Instantiates a new hierarchy using child category and product.
 	 */
@@ -78,7 +182,233 @@ public class HierarchyUsingChildCategoryAndProduct {
 	}
 
 	/**
-	 * Adds the node info. if price is negative then it is treated as category.
+	 * Gets the metrics.
+	 *
+	 * @return the metrics
+	 */
+	public HierarchyMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * Sets the metrics. Pass null to stop recording.
+	 *
+	 * @param metrics the new metrics
+	 */
+	public void setMetrics(final HierarchyMetrics metrics) {
+		this.metrics = metrics;
+	}
+
+	/**
+	 * Gets the cost accounting.
+	 *
+	 * @return the cost accounting
+	 */
+	public CostAccounting getCostAccounting() {
+		return costAccounting;
+	}
+
+	/**
+	 * Sets the cost accounting. Pass null to stop counting.
+	 *
+	 * @param costAccounting the new cost accounting
+	 */
+	public void setCostAccounting(final CostAccounting costAccounting) {
+		this.costAccounting = costAccounting;
+		this.cost = costAccounting != null ? costAccounting.getLastOperationCost() : null;
+	}
+
+	/**
+	 * Gets the price history.
+	 *
+	 * @return the price history
+	 */
+	public PriceHistory getPriceHistory() {
+		return priceHistory;
+	}
+
+	/**
+	 * Sets the price history. Pass null to stop recording. Products created
+	 * before have no entry till their price changes.
+	 *
+	 * @param priceHistory the new price history
+	 */
+	public void setPriceHistory(final PriceHistory priceHistory) {
+		if (this.priceHistory != null) {
+			this.priceHistory.setTombstoneLookup(null);
+		}
+		this.priceHistory = priceHistory;
+		if (priceHistory != null) {
+			// Products of a removed subtree are absent before they are reclaimed
+			priceHistory.setTombstoneLookup(productId -> {
+				Category category = getTombstonedAncestor(productId);
+				return category != null ? category.getId() : 0;
+			});
+		}
+	}
+
+	/**
+	 * Gets the change feed.
+	 *
+	 * @return the change feed
+	 */
+	public MaxDiscountChangeFeed getChangeFeed() {
+		return changeFeed;
+	}
+
+	/**
+	 * Sets the change feed. Pass null to stop publishing.
+	 *
+	 * @param changeFeed the new change feed
+	 */
+	public void setChangeFeed(final MaxDiscountChangeFeed changeFeed) {
+		this.changeFeed = changeFeed;
+	}
+
+	/**
+	 * Sets the reclaim listener, called with the id of every node of a removed
+	 * subtree once it is reclaimed, including a node freed because an add reuses
+	 * its id; such an id may thus be live again when reported. Pass null to stop.
+	 *
+	 * @param reclaimListener the new reclaim listener
+	 */
+	public void setReclaimListener(final IntConsumer reclaimListener) {
+		this.reclaimListener = reclaimListener;
+	}
+
+	/**
+	 * Gets the name index.
+	 *
+	 * @return the name index
+	 */
+	public NameIndex getNameIndex() {
+		return nameIndex;
+	}
+
+	/**
+	 * Sets the name index. The names of existing nodes are added to it, so it
+	 * can be set at any time. Pass null to stop indexing.
+	 *
+	 * @param nameIndex the new name index, empty
+	 */
+	public void setNameIndex(final NameIndex nameIndex) {
+		this.nameIndex = nameIndex;
+		if (nameIndex != null) {
+			for (Category category : this.categories.values()) {
+				nameIndex.add(category.getName(), category.getId());
+			}
+			for (Product product : this.products.values()) {
+				nameIndex.add(product.getName(), product.getId());
+			}
+		}
+	}
+
+	/**
+	 * Checks if lazy aggregates mode is enabled.
+	 *
+	 * @return true, if lazy aggregates mode is enabled
+	 */
+	public boolean isLazyAggregates() {
+		return lazyAggregates;
+	}
+
+	/**
+	 * Enable or disable the lazy aggregates mode.
+	 * <p>
+	 * In lazy mode discount, add, delete and move do not propagate the change of
+	 * max discounted product to root. They only mark the categories on ancestor
+	 * path dirty, stopping at the first ancestor which is already dirty.
+	 * getMaximumDiscountedProduct recomputes only the dirty part of the subtree of
+	 * the requested category. This trades read latency for much cheaper writes on
+	 * write heavy workload where reads hit a small set of categories.
+	 * </p>
+	 * <p>
+	 * Disabling the mode recomputes all the dirty categories.
+	 * </p>
+	 *
+	 * @param lazyAggregates true to enable lazy aggregates mode
+	 */
+	public void setLazyAggregates(final boolean lazyAggregates) {
+		this.lazyAggregates = lazyAggregates;
+		if (!lazyAggregates) {
+			recomputeDirtyCategories();
+			publishChanges(ResultCode.BATCH_APPLIED);
+		}
+	}
+
+	/**
+	 * Begin an operation. Reads the clock only if metrics or cost accounting are
+	 * enabled.
+	 *
+	 * @return the start time in nanoseconds
+	 */
+	private long beginOperation() {
+		if (this.priceHistory != null) {
+			this.priceHistory.beginOperation();
+		}
+		if (this.costAccounting != null) {
+			this.costAccounting.begin();
+			return System.nanoTime();
+		}
+		return this.metrics != null ? System.nanoTime() : 0;
+	}
+
+	/**
+	 * End an operation and record it in metrics and cost accounting if enabled.
+	 *
+	 * @param operationType the operation type
+	 * @param nodeId        the node id
+	 * @param startNanos    the start time returned by beginOperation
+	 * @param resultCode    the result code
+	 * @return the result code
+	 */
+	private ResultCode endOperation(final OperationType operationType, final int nodeId, final long startNanos,
+			final ResultCode resultCode) {
+		publishChanges(resultCode);
+		if (this.metrics == null && this.costAccounting == null) {
+			return resultCode;
+		}
+		long durationNanos = System.nanoTime() - startNanos;
+		if (this.metrics != null) {
+			this.metrics.record(operationType, durationNanos, resultCode);
+		}
+		if (this.costAccounting != null) {
+			this.costAccounting.end(operationType, nodeId, durationNanos, resultCode);
+		}
+		return resultCode;
+	}
+
+	/**
+	 * Publish the changes of max discounted product noted during the operation,
+	 * if change feed is set.
+	 *
+	 * @param resultCode the result code of operation
+	 * @return the result code
+	 */
+	private ResultCode publishChanges(final ResultCode resultCode) {
+		if (this.changeFeed != null) {
+			this.changeFeed.publish(this);
+		}
+		return resultCode;
+	}
+
+	/**
+	 * Sets the max discounted product id of category, noting the product it had
+	 * before in change feed.
+	 *
+	 * @param category  the category
+	 * @param productId the product id
+	 */
+	private void setMaxDiscountedProductId(final Category category, final int productId) {
+		if (this.changeFeed != null && category.getMaxDiscountedProductId() != productId) {
+			this.changeFeed.noteChange(category.getId(), category.getMaxDiscountedProductId());
+		}
+		category.setMaxDiscountedProductId(productId);
+	}
+
+	/**
+	 * Same as addNodeInfoResult, returns the message of result code. Kept for
+	 * callers which require the response string.
 	 *
 	 * @param id    the id
 	 * @param name  the name
@@ -86,12 +416,40 @@ public class HierarchyUsingChildCategoryAndProduct {
 	 * @return the string
 	 */
 	public String addNodeInfo(final int id, final String name, final float price) {
+		return addNodeInfoResult(id, name, price).getMessage();
+	}
+
+	/**
+	 * Adds the node info. if price is negative then it is treated as category.
+	 *
+	 * @param id    the id
+	 * @param name  the name
+	 * @param price the price
+	 * @return the result code
+	 */
+	public ResultCode addNodeInfoResult(final int id, final String name, final float price) {
+		reclaimTombstonedNode(id);
 		if (price == -1) {
 			return addCategoryInfo(id, name);
 		}
+		if (this.priceHistory != null) {
+			this.priceHistory.beginOperation();
+		}
 		return addProductInfo(id, name, price);
 	}
 
+	/**
+	 * Same as addNodeResult, returns the message of result code. Kept for
+	 * callers which require the response string.
+	 *
+	 * @param node1Id the node 1 id
+	 * @param node2Id the node 2 id
+	 * @return the string
+	 */
+	public String addNode(final int node1Id, final int node2Id) {
+		return addNodeResult(node1Id, node2Id).getMessage();
+	}
+
 	/**
 	 * Adds the node by searching in existing node information. In case both node1id
 	 * and node2id are category id, this assume that first is parent and second is
@@ -99,15 +457,21 @@ public class HierarchyUsingChildCategoryAndProduct {
 	 *
 	 * @param node1Id the node 1 id
 	 * @param node2Id the node 2 id
-	 * @return the string
+	 * @return the result code
 	 */
-	public String addNode(final int node1Id, final int node2Id) {
+	public ResultCode addNodeResult(final int node1Id, final int node2Id) {
+		reclaimTombstonedNode(node1Id);
+		reclaimTombstonedNode(node2Id);
+		if (this.lazyAggregates) {
+			// Existing nodes are attached eagerly, so the tree must be consistent
+			recomputeDirtyCategories();
+		}
 		if (this.products.containsKey(node1Id) && this.products.containsKey(node2Id)) {
-			return "Invalid nodes. Both are products";
+			return ResultCode.INVALID_NODES;
 		}
 		// If both are categories
 		if (this.categories.containsKey(node1Id) && this.categories.containsKey(node2Id)) {
-			return addExistingCategory(node1Id, node2Id);
+			return publishChanges(addExistingCategory(node1Id, node2Id));
 		}
 		int categoryId = 0;
 		int productId = 0;
@@ -119,7 +483,21 @@ public class HierarchyUsingChildCategoryAndProduct {
 			productId = node1Id;
 		}
 
-		return addExistingProduct(categoryId, productId);
+		return publishChanges(addExistingProduct(categoryId, productId));
+	}
+
+	/**
+	 * Same as addNewNodeResult, returns the message of result code. Kept for
+	 * callers which require the response string.
+	 *
+	 * @param parentCategoryId the parent category id
+	 * @param nodeId           the node id
+	 * @param price            the price
+	 * @param nodeName         the node name
+	 * @return the string
+	 */
+	public String addNewNode(final int parentCategoryId, final int nodeId, final float price, final String nodeName) {
+		return addNewNodeResult(parentCategoryId, nodeId, price, nodeName).getMessage();
 	}
 
 	/**
@@ -131,25 +509,50 @@ public class HierarchyUsingChildCategoryAndProduct {
 	 * @param nodeId           the node id
 	 * @param price            the price
 	 * @param nodeName         the node name
-	 * @return the string
+	 * @return the result code
 	 */
-	public String addNewNode(final int parentCategoryId, final int nodeId, final float price, final String nodeName) {
+	public ResultCode addNewNodeResult(final int parentCategoryId, final int nodeId, final float price,
+			final String nodeName) {
+		long startNanos = beginOperation();
+		return endOperation(OperationType.ADD_NODE, nodeId, startNanos,
+				addNewNodeInternal(parentCategoryId, nodeId, price, nodeName));
+	}
+
+	/**
+	 * Adds the new node. See addNewNodeResult.
+	 *
+	 * @param parentCategoryId the parent category id
+	 * @param nodeId           the node id
+	 * @param price            the price
+	 * @param nodeName         the node name
+	 * @return the result code
+	 */
+	private ResultCode addNewNodeInternal(final int parentCategoryId, final int nodeId, final float price,
+			final String nodeName) {
+		if (isTombstoned(parentCategoryId)) {
+			return ResultCode.INVALID_PARENT_CATEGORY_ID;
+		}
+		reclaimTombstonedNode(nodeId);
+		if (this.lazyAggregates) {
+			return addNewNodeDeferred(parentCategoryId, nodeId, price, nodeName);
+		}
 		if (!this.categories.containsKey(parentCategoryId)) {
-			return "Invalid parent category id.";
+			return ResultCode.INVALID_PARENT_CATEGORY_ID;
 		}
 		// This new node is category so create category info and then call add
 		// existing category
+		// An id names a single node, category or product
 		if (price == -1) {
-			if (this.categories.containsKey(nodeId)) {
-				return "Category not added.";
+			if (this.categories.containsKey(nodeId) || this.products.containsKey(nodeId)) {
+				return ResultCode.CATEGORY_NOT_ADDED;
 			}
 			addCategoryInfo(nodeId, nodeName);
 			return addExistingCategory(parentCategoryId, nodeId);
 		} else {
 			// This new node is product so create product info and then call add
 			// existing product
-			if (this.products.containsKey(nodeId)) {
-				return "Product not added.";
+			if (this.products.containsKey(nodeId) || this.categories.containsKey(nodeId)) {
+				return ResultCode.PRODUCT_NOT_ADDED;
 			}
 			addProductInfo(nodeId, nodeName, price);
 			return addExistingProduct(parentCategoryId, nodeId);
@@ -174,10 +577,20 @@ public class HierarchyUsingChildCategoryAndProduct {
 	 * product. If yes update the parent category max discounted product information
 	 * and trigger recursive update for parent hierarchy.
 	 * </p>
+	 * <p>
+	 * The max percent discounted product is selected from children in step 2 as
+	 * well, and a change of it also triggers the update of parent category.
+	 * </p>
 	 *
 	 * @param category the category
 	 */
 	private void updateMaxDiscountedProduct(final Category category) {
+		if (this.cost != null) {
+			this.cost.enterAncestorUpdate();
+		}
+		if (this.journal != null) {
+			this.journal.recordCategory(category);
+		}
 
 		// Step 1
 		// First update the value of discount of product with maximum discount
@@ -189,7 +602,7 @@ public class HierarchyUsingChildCategoryAndProduct {
 			// If the product has been deleted then set the discounted product
 			// id and discount to 0
 			if (this.products.get(category.getMaxDiscountedProductId()) == null) {
-				category.setMaxDiscountedProductId(0);
+				setMaxDiscountedProductId(category, 0);
 				category.setMaxDiscountedProductDiscount(0);
 			} else {
 				category.setMaxDiscountedProductDiscount(
@@ -198,6 +611,63 @@ public class HierarchyUsingChildCategoryAndProduct {
 		}
 
 		// Step 2
+		// Get the max discounted product among direct child products and child
+		// categories
+		selectMaxDiscountedChild(category);
+		int maxDiscountedProductId = this.maxDiscountedChild.getProductId();
+		float maxDiscountedProductDiscount = this.maxDiscountedChild.getAbsoluteDiscount();
+		boolean maxPercentDiscountedProductChanged = updateMaxPercentDiscountedProduct(category);
+
+		// Compare the above selected product with maximum discounted product at
+		// this category and update the category discounted product accordingly
+		if (category.getMaxDiscountedProductId() == 0) {
+			setMaxDiscountedProductId(category, maxDiscountedProductId);
+			category.setMaxDiscountedProductDiscount(maxDiscountedProductDiscount);
+		} else {
+			if (category.getMaxDiscountedProductDiscount() < maxDiscountedProductDiscount) {
+				setMaxDiscountedProductId(category, maxDiscountedProductId);
+				category.setMaxDiscountedProductDiscount(maxDiscountedProductDiscount);
+			} else if (category.getMaxDiscountedProductDiscount() == maxDiscountedProductDiscount) {
+				if (maxDiscountedProductId != 0 && category.getMaxDiscountedProductId() > maxDiscountedProductId) {
+					setMaxDiscountedProductId(category, maxDiscountedProductId);
+				}
+			}
+		}
+
+		// Step 3
+		// Now update the discount information in parent category tree
+		// Go to next immediate parent and update the discounted parent id
+		// in the parent category list
+		Category parentCategory = getParentCategory(category);
+		if (parentCategory != null) {
+			repopulateChildCategories(parentCategory);
+		}
+
+		// Step 4
+		// Check if the changes in current category maximum discounted product
+		// need to trigger update in parent category
+		if (parentCategory != null) {
+			if (parentCategory.getMaxDiscountedProductDiscount() <= category.getMaxDiscountedProductDiscount()
+					|| maxPercentDiscountedProductChanged) {
+				// Trigger update for maximum discounted product for parent
+				updateMaxDiscountedProduct(parentCategory);
+			}
+		}
+		if (this.cost != null) {
+			this.cost.exitAncestorUpdate();
+		}
+	}
+
+	/**
+	 * Select the max discounted product among the direct child products and the
+	 * child categories of category, using the ordered child tree sets. In case
+	 * there are two products with same discount, the product with minimum id is
+	 * selected. Result is written to maxDiscountedChild with product id 0 if
+	 * category has no product under it.
+	 *
+	 * @param category the category
+	 */
+	private void selectMaxDiscountedChild(final Category category) {
 		// Get the max discounted direct product of this category
 		ChildProduct tempChildProduct = null;
 		if (category.getDirectChildProducts().size() > 0) {
@@ -227,10 +697,11 @@ public class HierarchyUsingChildCategoryAndProduct {
 			} else {
 
 				// In case discount is same in both case, select the product
-				// having smaller id
-				maxDiscountedProductId = tempChildProduct.getProductId() < tempChildCategory.getMaxDiscountedProductId()
-						? tempChildProduct.getProductId()
-						: tempChildCategory.getMaxDiscountedProductId();
+				// having smaller id. A child category without product has id 0
+				maxDiscountedProductId = tempChildCategory.getMaxDiscountedProductId() == 0
+						|| tempChildProduct.getProductId() < tempChildCategory.getMaxDiscountedProductId()
+								? tempChildProduct.getProductId()
+								: tempChildCategory.getMaxDiscountedProductId();
 				maxDiscountedProductDiscount = tempChildProduct.getAbsoluteDiscount();
 			}
 		} else if (tempChildProduct != null) {
@@ -241,62 +712,178 @@ public class HierarchyUsingChildCategoryAndProduct {
 			maxDiscountedProductDiscount = tempChildCategory.getMaxDiscountedProductDiscount();
 		}
 
-		// Compare the above selected product with maximum discounted product at
-		// this category and update the category discounted product accordingly
-		if (category.getMaxDiscountedProductId() == 0) {
-			category.setMaxDiscountedProductId(maxDiscountedProductId);
-			category.setMaxDiscountedProductDiscount(maxDiscountedProductDiscount);
-		} else {
-			if (category.getMaxDiscountedProductDiscount() < maxDiscountedProductDiscount) {
-				category.setMaxDiscountedProductId(maxDiscountedProductId);
-				category.setMaxDiscountedProductDiscount(maxDiscountedProductDiscount);
-			} else if (category.getMaxDiscountedProductDiscount() == maxDiscountedProductDiscount) {
-				if (maxDiscountedProductId != 0 && category.getMaxDiscountedProductId() > maxDiscountedProductId) {
-					category.setMaxDiscountedProductId(maxDiscountedProductId);
-				}
+		this.maxDiscountedChild.setProductId(maxDiscountedProductId);
+		this.maxDiscountedChild.setAbsoluteDiscount(maxDiscountedProductDiscount);
+	}
+
+	/**
+	 * Update the max percent discounted product of category from the max percent
+	 * discounted direct child product and the max percent discounted products of
+	 * child categories. Takes O(child categories), the direct child products are
+	 * not visited.
+	 *
+	 * @param category the category
+	 * @return true, if max percent discounted product of category changed
+	 */
+	private boolean updateMaxPercentDiscountedProduct(final Category category) {
+		int productId = category.getMaxPercentDiscountedChildProductId();
+		float ratio = category.getMaxPercentDiscountedChildProductRatio();
+		for (Integer childCategoryId : category.getDirectChildCategoryIds()) {
+			Category childCategory = this.categories.get(childCategoryId);
+			if (isHigherDiscountRatio(childCategory.getMaxPercentDiscountedProductId(),
+					childCategory.getMaxPercentDiscountedProductRatio(), productId, ratio)) {
+				productId = childCategory.getMaxPercentDiscountedProductId();
+				ratio = childCategory.getMaxPercentDiscountedProductRatio();
 			}
 		}
+		if (productId == category.getMaxPercentDiscountedProductId()
+				&& ratio == category.getMaxPercentDiscountedProductRatio()) {
+			return false;
+		}
+		category.setMaxPercentDiscountedProduct(productId, ratio);
+		return true;
+	}
 
-		// Step 3
-		// Now update the discount information in parent category tree
-		// Go to next immediate parent and update the discounted parent id
-		// in the parent category list
-		int parentCategoryId = category.getParentCategoryId();
-		if (parentCategoryId != 0) {
-			Category parentCategory = this.categories.get(parentCategoryId);
-			repopulateChildCategories(parentCategory);
+	/**
+	 * Update the max percent discounted direct child product of category with a
+	 * direct child product whose discount ratio did not decrease.
+	 *
+	 * @param category the category
+	 * @param product  the product
+	 */
+	private static void updateMaxPercentDiscountedChildProduct(final Category category, final Product product) {
+		if (isHigherDiscountRatio(product.getId(), product.getDiscountRatio(),
+				category.getMaxPercentDiscountedChildProductId(), category.getMaxPercentDiscountedChildProductRatio())) {
+			category.setMaxPercentDiscountedChildProduct(product.getId(), product.getDiscountRatio());
 		}
+	}
 
-		// Step 4
-		// Check if the changes in current category maximum discounted product
-		// need to trigger update in parent category
-		Category parentCategory = this.categories.get(category.getParentCategoryId());
-		if (parentCategory != null) {
-			if (parentCategory.getMaxDiscountedProductDiscount() <= category.getMaxDiscountedProductDiscount()) {
-				// Trigger update for maximum discounted product for parent
-				updateMaxDiscountedProduct(parentCategory);
-			}
+	/**
+	 * Checks if a product ranks above other product by discount ratio. In case
+	 * ratios are same, the product with smaller id ranks above. Product id 0
+	 * stands for no product and ranks below any product.
+	 *
+	 * @param productId      the product id
+	 * @param ratio          the discount ratio
+	 * @param otherProductId the other product id
+	 * @param otherRatio     the other discount ratio
+	 * @return true, if product ranks above other product
+	 */
+	private static boolean isHigherDiscountRatio(final int productId, final float ratio, final int otherProductId,
+			final float otherRatio) {
+		if (productId == 0) {
+			return false;
 		}
+		if (otherProductId == 0) {
+			return true;
+		}
+		return ratio > otherRatio || (ratio == otherRatio && productId < otherProductId);
 	}
 
 	/**
-	 * Removes the node.
+	 * Same as removeNodeResult, returns the message of result code. Kept for
+	 * callers which require the response string.
 	 *
 	 * @param nodeId the node id
 	 * @return the string
 	 */
 	public String removeNode(final int nodeId) {
+		return removeNodeResult(nodeId).getMessage();
+	}
+
+	/**
+	 * Removes the node.
+	 *
+	 * @param nodeId the node id
+	 * @return the result code
+	 */
+	public ResultCode removeNodeResult(final int nodeId) {
+		long startNanos = beginOperation();
+		return endOperation(OperationType.REMOVE_NODE, nodeId, startNanos, removeNodeInternal(nodeId));
+	}
+
+	/**
+	 * Removes the node. See removeNodeResult.
+	 *
+	 * @param nodeId the node id
+	 * @return the result code
+	 */
+	private ResultCode removeNodeInternal(final int nodeId) {
+		if (isTombstoned(nodeId)) {
+			return ResultCode.INVALID_ID;
+		}
+		if (this.lazyAggregates) {
+			return removeNodeDeferred(nodeId);
+		}
 		if (this.products.containsKey(nodeId)) {
 			return removeProduct(nodeId);
 		} else if (this.categories.containsKey(nodeId)) {
 			return removeCategory(nodeId);
 		}
 
-		return INVALID_ID;
+		return ResultCode.INVALID_ID;
 	}
 
 	/**
-	 * Apply discount on node. Return Invalid ID. in case the node id is not valid.
+	 * Same as moveNodeResult, returns the message of result code. Kept for
+	 * callers which require the response string.
+	 *
+	 * @param nodeId              the node id
+	 * @param newParentCategoryId the new parent category id
+	 * @return the string
+	 */
+	public String moveNode(final int nodeId, final int newParentCategoryId) {
+		return moveNodeResult(nodeId, newParentCategoryId).getMessage();
+	}
+
+	/**
+	 * Move the node (category with its subtree or product) under new parent
+	 * category. Products and accumulated discounts in the subtree are retained.
+	 * Cost is proportional to height of tree as only the ancestor paths of old
+	 * and new parent are updated.
+	 *
+	 * @param nodeId              the node id
+	 * @param newParentCategoryId the new parent category id
+	 * @return the result code
+	 */
+	public ResultCode moveNodeResult(final int nodeId, final int newParentCategoryId) {
+		long startNanos = beginOperation();
+		return endOperation(OperationType.MOVE_NODE, nodeId, startNanos,
+				moveNodeInternal(nodeId, newParentCategoryId));
+	}
+
+	/**
+	 * Move the node. See moveNodeResult.
+	 *
+	 * @param nodeId              the node id
+	 * @param newParentCategoryId the new parent category id
+	 * @return the result code
+	 */
+	private ResultCode moveNodeInternal(final int nodeId, final int newParentCategoryId) {
+		if (!this.categories.containsKey(newParentCategoryId) || isTombstoned(newParentCategoryId)) {
+			return ResultCode.INVALID_PARENT_CATEGORY_ID;
+		}
+		if (isTombstoned(nodeId)) {
+			return ResultCode.INVALID_ID;
+		}
+		if (this.lazyAggregates) {
+			return moveNodeDeferred(nodeId, newParentCategoryId);
+		}
+		Product product = this.products.get(nodeId);
+		if (product != null) {
+			return moveProduct(product, newParentCategoryId);
+		}
+		Category category = this.categories.get(nodeId);
+		if (category != null) {
+			return moveCategory(category, newParentCategoryId);
+		}
+
+		return ResultCode.INVALID_ID;
+	}
+
+	/**
+	 * Same as applyDiscountOnNodeResult, returns the message of result code.
+	 * Kept for callers which require the response string.
 	 *
 	 * @param nodeId       the node id
 	 * @param discountType the discount type
@@ -304,18 +891,59 @@ public class HierarchyUsingChildCategoryAndProduct {
 	 * @return the string
 	 */
 	public String applyDiscountOnNode(final int nodeId, final int discountType, final float discount) {
+		return applyDiscountOnNodeResult(nodeId, discountType, discount).getMessage();
+	}
 
-		if (this.categories.containsKey(nodeId)) {
-			return applyDiscountOnCategory(nodeId, discountType, discount);
+	/**
+	 * Apply discount on node. Return Invalid ID. in case the node id is not valid.
+	 *
+	 * @param nodeId       the node id
+	 * @param discountType the discount type
+	 * @param discount     the discount
+	 * @return the result code
+	 */
+	public ResultCode applyDiscountOnNodeResult(final int nodeId, final int discountType, final float discount) {
+		long startNanos = beginOperation();
+		ResultCode resultCode = ResultCode.INVALID_ID;
+		if (isTombstoned(nodeId)) {
+			// Absent, left for reclamation
+		} else if (this.lazyAggregates) {
+			resultCode = applyDiscountDeferred(nodeId, discountType, discount);
+		} else if (this.categories.containsKey(nodeId)) {
+			resultCode = applyDiscountOnCategory(nodeId, discountType, discount, true);
 		} else if (this.products.containsKey(nodeId)) {
-			return applyDiscountOnProduct(nodeId, discountType, discount);
+			resultCode = applyDiscountOnProduct(nodeId, discountType, discount);
 		}
 
-		return INVALID_ID;
+		return endOperation(OperationType.APPLY_DISCOUNT, nodeId, startNanos, resultCode);
 	}
 
 	/**
-	 * Apply discount on category.
+	 * Apply discount on node, recording in changes the selling price and discount
+	 * every changed product had before. The amounts taken off can then be added
+	 * back with MutationBatch.revertDiscount, see PromotionScheduler.
+	 *
+	 * @param nodeId       the node id
+	 * @param discountType the discount type
+	 * @param discount     the discount
+	 * @param changes      the journal to record the changed products in,
+	 *                     cleared first
+	 * @return the result code
+	 */
+	public ResultCode applyDiscountOnNodeResult(final int nodeId, final int discountType, final float discount,
+			final UndoJournal changes) {
+		changes.clear();
+		this.journal = changes;
+		try {
+			return applyDiscountOnNodeResult(nodeId, discountType, discount);
+		} finally {
+			this.journal = null;
+		}
+	}
+
+	/**
+	 * Same as applyDiscountOnCategoryResult, returns the message of result
+	 * code. Kept for callers which require the response string.
 	 *
 	 * @param categoryId   the category id
 	 * @param discountType the discount type
@@ -323,383 +951,1730 @@ public class HierarchyUsingChildCategoryAndProduct {
 	 * @return the string
 	 */
 	public String applyDiscountOnCategory(final int categoryId, final int discountType, final float discount) {
-		return applyDiscountOnCategory(categoryId, discountType, discount, true);
+		return applyDiscountOnCategoryResult(categoryId, discountType, discount).getMessage();
 	}
 
 	/**
-	 * Discount applicable on category. This method recurse down the whole tree to
-	 * check every product under this category and subcategories if discount can be
-	 * applied or not.
-	 * <p>
-	 * Though category itself does not have any price information and applying any
-	 * discount on an empty category ideally should not have any affect, -ve flat or
-	 * % discount is not allowed, % discount greater than 100 is not allowed as to
-	 * be coherent with strategy for a product when applying discount on a
-	 * hierarchy.
-	 * </p>
-	 * 
+	 * Apply discount on category.
+	 *
 	 * @param categoryId   the category id
-	 * @param discountType the discount type 1: for % discount and 2: for flat
-	 *                     discount
+	 * @param discountType the discount type
 	 * @param discount     the discount
-	 * @return true, if successful
+	 * @return the result code
 	 */
-	private boolean discountApplicableOnCategory(final int categoryId, final int discountType, final float discount) {
-		Category category = this.categories.get(categoryId);
-		if (category == null) {
-			return false;
+	public ResultCode applyDiscountOnCategoryResult(final int categoryId, final int discountType,
+			final float discount) {
+		long startNanos = beginOperation();
+		if (isTombstoned(categoryId)) {
+			return endOperation(OperationType.APPLY_DISCOUNT, categoryId, startNanos, ResultCode.INVALID_ID);
 		}
+		if (this.lazyAggregates && this.categories.containsKey(categoryId)) {
+			return endOperation(OperationType.APPLY_DISCOUNT, categoryId, startNanos,
+					applyDiscountDeferred(categoryId, discountType, discount));
+		}
+		return endOperation(OperationType.APPLY_DISCOUNT, categoryId, startNanos,
+				applyDiscountOnCategory(categoryId, discountType, discount, true));
+	}
 
-		// Flat discount
-		if (discountType == 2) {
-			if (discount < 0) {
-				return false;
-			}
-		} else if (discountType == 1) {
-			// % discount
-			if (discount < 0) {
-				return false;
-			} else if (discount > 100) {
-				return false;
-			}
+	/**
+	 * Checks if discount can be applied on node, without applying it. Same checks
+	 * as applyDiscountOnNodeResult, so DISCOUNT_APPLIED is returned by it if no
+	 * other change happens in between. Used as prepare phase when one discount
+	 * is applied on several hierarchies.
+	 *
+	 * @param nodeId       the node id
+	 * @param discountType the discount type 1: % discount, 2: flat discount
+	 * @param discount     the discount
+	 * @return true, if discount can be applied
+	 */
+	public boolean isDiscountApplicable(final int nodeId, final int discountType, final float discount) {
+		if (isTombstoned(nodeId)) {
+			return false;
+		}
+		if (this.categories.containsKey(nodeId)) {
+			return discountApplicableOnCategory(nodeId, discountType, discount);
 		}
+		return discountApplicableOnProduct(nodeId, discountType, discount);
+	}
 
-		Set<Integer> childProductIds = category.getDirectChildProductIds();
+	/**
+	 * Apply all the discounts of transaction or none. Discounts are first
+	 * validated (node exists, discount is in valid range), then applied in order
+	 * while recording overwritten prices and aggregates in an undo journal. If
+	 * any discount can not be applied, the journal is rolled back so the
+	 * hierarchy is left as it was before the transaction. Index of the failing
+	 * discount is available through DiscountTransaction.getFailedIndex.
+	 *
+	 * @param transaction the transaction
+	 * @return the result code DISCOUNT_APPLIED, DISCOUNT_CANNOT_BE_APPLIED or
+	 *         INVALID_ID
+	 */
+	public ResultCode applyDiscountTransaction(final DiscountTransaction transaction) {
+		long startNanos = beginOperation();
+		int nodeId = transaction.size > 0 ? transaction.nodeIds[0] : 0;
+		return endOperation(OperationType.DISCOUNT_TRANSACTION, nodeId, startNanos,
+				applyDiscountTransactionInternal(transaction));
+	}
 
-		Set<Integer> childCategoryIds = category.getDirectChildCategoryIds();
-		// Check if the discount can be applied to immediate product children
-		for (Integer childProductId : childProductIds) {
-			boolean applicable = discountApplicableOnProduct(childProductId, discountType, discount);
-			if (!applicable) {
-				return false;
+	/**
+	 * Apply discount transaction. See applyDiscountTransaction.
+	 *
+	 * @param transaction the transaction
+	 * @return the result code
+	 */
+	private ResultCode applyDiscountTransactionInternal(final DiscountTransaction transaction) {
+		transaction.failedIndex = -1;
+
+		// Validate all the discounts before touching any price
+		for (int i = 0; i < transaction.size; i++) {
+			int nodeId = transaction.nodeIds[i];
+			if (isTombstoned(nodeId)
+					|| (!this.categories.containsKey(nodeId) && !this.products.containsKey(nodeId))) {
+				transaction.failedIndex = i;
+				return ResultCode.INVALID_ID;
+			}
+			if (!discountInRange(transaction.discountTypes[i], transaction.discounts[i])) {
+				transaction.failedIndex = i;
+				return ResultCode.DISCOUNT_CANNOT_BE_APPLIED;
 			}
 		}
 
-		// Check if the discount can be applied to sub categories
-		for (Integer childCategoryId : childCategoryIds) {
-			LOGGER.debug("checking applicability of discout of type [{}] with value [{}] on category [{}]",
-					discountType, discount, childCategoryId);
-			boolean applicable = discountApplicableOnCategory(childCategoryId, discountType, discount);
-			if (!applicable) {
-				return false;
+		// Apply the discounts in order, rollback on first failure
+		this.transactionJournal.clear();
+		this.journal = this.transactionJournal;
+		ResultCode resultCode = ResultCode.DISCOUNT_APPLIED;
+		try {
+			for (int i = 0; i < transaction.size; i++) {
+				int nodeId = transaction.nodeIds[i];
+				if (this.lazyAggregates) {
+					resultCode = applyDiscountDeferred(nodeId, transaction.discountTypes[i],
+							transaction.discounts[i]);
+				} else if (this.categories.containsKey(nodeId)) {
+					resultCode = applyDiscountOnCategory(nodeId, transaction.discountTypes[i],
+							transaction.discounts[i], true);
+				} else {
+					resultCode = applyDiscountOnProduct(nodeId, transaction.discountTypes[i],
+							transaction.discounts[i]);
+				}
+				if (resultCode != ResultCode.DISCOUNT_APPLIED) {
+					transaction.failedIndex = i;
+					break;
+				}
 			}
+		} finally {
+			this.journal = null;
 		}
 
-		LOGGER.debug("Discount of type [{}] with value [{}] is applicable on category [{}]", discountType, discount,
-				categoryId);
-		return true;
-
+		if (transaction.failedIndex != -1) {
+			LOGGER.debug("discount [{}] of transaction failed, rolling back [{}] products and [{}] categories",
+					transaction.failedIndex, this.transactionJournal.productCount,
+					this.transactionJournal.categoryCount);
+			rollback(this.transactionJournal);
+		}
+		return resultCode;
 	}
 
 	/**
-	 * Removes the product. Removing a product also triggers updation of max
-	 * discounted product for its parent category and category hierarchy till root.
+	 * Rollback the changes recorded in journal. Prices and max discounted products
+	 * are restored in reverse order of change, then the child tree sets of the
+	 * touched categories are rebuilt from restored values. Restored prices are
+	 * recorded in price history.
 	 *
-	 * @param productId the product id
-	 * @return the string 'Invalid ID.' or 'Product deleted.'
+	 * @param undoJournal the undo journal
 	 */
-	private String removeProduct(final int productId) {
-		Product product = this.products.get(productId);
-		if (product == null) {
-			return INVALID_ID;
+	private void rollback(final UndoJournal undoJournal) {
+		Set<Integer> productCategoryIds = new HashSet<>();
+		for (int i = undoJournal.productCount - 1; i >= 0; i--) {
+			Product product = this.products.get(undoJournal.productIds[i]);
+			int oldBucket = getDiscountBucket(product);
+			float oldSellingPrice = product.getSellingPrice();
+			product.setSellingPrice(undoJournal.sellingPrices[i]);
+			product.setDiscount(undoJournal.productDiscounts[i]);
+			updateProductInAggregates(product, oldBucket, oldSellingPrice);
+			productCategoryIds.add(product.getCategoryId());
+		}
+		if (this.priceHistory != null) {
+			Set<Integer> restoredProductIds = new HashSet<>();
+			for (int i = 0; i < undoJournal.productCount; i++) {
+				if (restoredProductIds.add(undoJournal.productIds[i])) {
+					this.priceHistory.record(undoJournal.productIds[i], undoJournal.sellingPrices[i]);
+				}
+			}
 		}
 
-		// Get the category containing this product
-		Category category = this.categories.get(product.getCategoryId());
-
-		// Remove this product from category children
-		ChildProduct childProduct = new ChildProduct();
-		childProduct.setProductId(productId);
-		childProduct.setAbsoluteDiscount(product.getDiscount());
-		LOGGER.debug("number of direct child products under category [{}] before product [{}] removal [{}]",
-				category.getId(), productId, category.getDirectChildProducts().size());
-		category.getDirectChildProductIds().remove(childProduct.getProductId());
-
-		repopulateChildProducts(category);
+		Set<Integer> parentCategoryIds = new HashSet<>();
+		for (int i = undoJournal.categoryCount - 1; i >= 0; i--) {
+			Category category = this.categories.get(undoJournal.categoryIds[i]);
+			setMaxDiscountedProductId(category, undoJournal.maxDiscountedProductIds[i]);
+			category.setMaxDiscountedProductDiscount(undoJournal.maxDiscountedProductDiscounts[i]);
+			category.setMaxPercentDiscountedProduct(undoJournal.maxPercentDiscountedProductIds[i],
+					undoJournal.maxPercentDiscountedProductRatios[i]);
+			if (category.getParentCategoryId() != 0) {
+				parentCategoryIds.add(category.getParentCategoryId());
+			}
+		}
 
-		LOGGER.debug("number of direct child products under category [{}] after product [{}] removal [{}]",
-				category.getId(), productId, category.getDirectChildProducts().size());
-		// Remove product from global products
-		this.products.remove(productId);
+		for (int categoryId : productCategoryIds) {
+			repopulateChildProducts(this.categories.get(categoryId));
+		}
+		for (int categoryId : parentCategoryIds) {
+			repopulateChildCategories(this.categories.get(categoryId));
+		}
+	}
 
-		// If this product is maximum discounted product under this category,
-		// clear it from category
-		if (category.getMaxDiscountedProductId() == productId) {
-			category.setMaxDiscountedProductId(0);
-			category.setMaxDiscountedProductDiscount(0);
+	/**
+	 * Apply a batch of mutations. Each mutation only updates the nodes it touches
+	 * and marks the affected categories dirty, stopping at the first ancestor
+	 * which is already dirty. Once all the mutations are applied, every dirty
+	 * category is recomputed exactly once in bottom-up order. Importing a price
+	 * file this way recomputes the categories near the root once per batch
+	 * instead of once per product.
+	 *
+	 * @param batch the batch
+	 * @return the result code BATCH_APPLIED. Result of each mutation is
+	 *         available through MutationBatch.getResult
+	 */
+	public ResultCode applyBatch(final MutationBatch batch) {
+		long startNanos = beginOperation();
+		int nodeId = batch.size > 0 ? batch.nodeIds[0] : 0;
+		for (int i = 0; i < batch.size; i++) {
+			batch.results[i] = applyMutationDeferred(batch.queryTypes[i], batch.nodeIds[i], batch.parentIds[i],
+					batch.values[i], batch.nodeNames[i]);
+		}
+		// In lazy aggregates mode dirty categories are recomputed on read
+		if (!this.lazyAggregates) {
+			recomputeDirtyCategories();
+		}
+		return endOperation(OperationType.BATCH, nodeId, startNanos, ResultCode.BATCH_APPLIED);
+	}
 
-			// Go to next immediate parent and update the discounted parent id
-			// in the parent category list
-			int parentCategoryId = category.getParentCategoryId();
-			if (parentCategoryId != 0) {
-				Category parentCategory = this.categories.get(parentCategoryId);
-				repopulateChildCategories(parentCategory);
+	/**
+	 * Apply a mutation without updating max discounted product of categories.
+	 * Affected categories are marked dirty instead.
+	 *
+	 * @param queryType the query type 1: % discount, 2: flat discount, 4: add, 5:
+	 *                  delete, 6: move, CHANGE_ORIGINAL_PRICE or REVERT_DISCOUNT
+	 *                  of MutationBatch
+	 * @param nodeId    the node id
+	 * @param parentId  the parent id for add and move
+	 * @param value     the discount, the price for add and price change, or the
+	 *                  amount for discount revert
+	 * @param nodeName  the node name for add
+	 * @return the result code
+	 */
+	private ResultCode applyMutationDeferred(final int queryType, final int nodeId, final int parentId,
+			final float value, final String nodeName) {
+		// A node of a removed subtree is absent; only an add reusing its id frees it
+		if (queryType == 4) {
+			if (isTombstoned(parentId)) {
+				return ResultCode.INVALID_PARENT_CATEGORY_ID;
 			}
+			reclaimTombstonedNode(nodeId);
+		} else if (queryType == 6 && (!this.categories.containsKey(parentId) || isTombstoned(parentId))) {
+			return ResultCode.INVALID_PARENT_CATEGORY_ID;
+		} else if (isTombstoned(nodeId)) {
+			return ResultCode.INVALID_ID;
 		}
+		switch (queryType) {
+		case 1:
+		case 2:
+			return applyDiscountDeferred(nodeId, queryType, value);
+		case 4:
+			return addNewNodeDeferred(parentId, nodeId, value, nodeName);
+		case 5:
+			return removeNodeDeferred(nodeId);
+		case 6:
+			return moveNodeDeferred(nodeId, parentId);
+		case MutationBatch.CHANGE_ORIGINAL_PRICE:
+			return changeOriginalPriceDeferred(nodeId, value);
+		case MutationBatch.REVERT_DISCOUNT:
+			return revertDiscountDeferred(nodeId, value);
+		default:
+			return ResultCode.INVALID_QUERY_TYPE;
+		}
+	}
 
-		// Traverse all the parent categories where this product featured as max
-		// discount product and remove it
-		int parentCategoryId = category.getParentCategoryId();
-		while (parentCategoryId != 0) {
-			Category parentCategory = this.categories.get(parentCategoryId);
-			if (parentCategory.getMaxDiscountedProductId() == productId) {
-				parentCategory.setMaxDiscountedProductId(0);
-				parentCategory.setMaxDiscountedProductDiscount(0);
+	/**
+	 * Apply discount on node, marking the affected categories dirty.
+	 *
+	 * @param nodeId       the node id
+	 * @param discountType the discount type 1: % discount, 2: flat discount
+	 * @param discount     the discount
+	 * @return the result code
+	 */
+	private ResultCode applyDiscountDeferred(final int nodeId, final int discountType, final float discount) {
+		Category category = this.categories.get(nodeId);
+		if (category != null) {
+			if (!discountApplicableOnCategory(nodeId, discountType, discount)) {
+				return ResultCode.DISCOUNT_CANNOT_BE_APPLIED;
 			}
-			parentCategoryId = parentCategory.getParentCategoryId();
+			// Mark the ancestor path first, marking stops at a dirty category
+			markDirty(category);
+			this.subtreeAggregatesDeferred = true;
+			applyDiscountOnSubtreeDeferred(category, discountType, discount);
+			this.subtreeAggregatesDeferred = false;
+			recomputeSubtreeAggregates(category);
+			return ResultCode.DISCOUNT_APPLIED;
 		}
-		// Update the max discounted product for that category
-		updateMaxDiscountedProduct(category);
-
-		return PRODUCT_DELETED;
+		Product product = this.products.get(nodeId);
+		if (product != null) {
+			ResultCode resultCode = applyDiscountOnlyOnProduct(nodeId, discountType, discount);
+			if (resultCode != ResultCode.PRODUCT_DISCOUNT_APPLIED) {
+				return resultCode;
+			}
+			markProductsDirty(this.categories.get(product.getCategoryId()));
+			return ResultCode.DISCOUNT_APPLIED;
+		}
+		return ResultCode.INVALID_ID;
 	}
 
 	/**
-	 * Removes the category. Removing a category also triggers updation of max
-	 * discounted product in category hierarchy till root.
-	 * 
-	 * @param categoryId the category id
-	 * @return the string 'Invalid ID.' or 'Category deleted.'
+	 * Apply discount on every product in subtree of category and mark every
+	 * category of subtree dirty. Applicability must be checked by caller.
+	 *
+	 * @param category     the category
+	 * @param discountType the discount type 1: % discount, 2: flat discount
+	 * @param discount     the discount
 	 */
-	private String removeCategory(final int categoryId) {
-		Category category = this.categories.get(categoryId);
-		if (category == null) {
-			return INVALID_ID;
+	private void applyDiscountOnSubtreeDeferred(final Category category, final int discountType,
+			final float discount) {
+		for (Integer childProductId : category.getDirectChildProductIds()) {
+			applyDiscountOnlyOnProduct(childProductId, discountType, discount);
 		}
+		category.setProductsDirty(true);
+		category.setDirty(true);
+		for (Integer childCategoryId : category.getDirectChildCategoryIds()) {
+			applyDiscountOnSubtreeDeferred(this.categories.get(childCategoryId), discountType, discount);
+		}
+	}
 
-		// Get the parent category of this category
-		Category parentCategory = this.categories.get(this.categories.get(categoryId).getParentCategoryId());
-
-		if (parentCategory != null) {
-			parentCategory.getDirectChildCategoryIds().remove(categoryId);
+	/**
+	 * Adds the new node, marking the parent category dirty.
+	 *
+	 * @param parentCategoryId the parent category id
+	 * @param nodeId           the node id
+	 * @param price            the price
+	 * @param nodeName         the node name
+	 * @return the result code
+	 */
+	private ResultCode addNewNodeDeferred(final int parentCategoryId, final int nodeId, final float price,
+			final String nodeName) {
+		Category parentCategory = this.categories.get(parentCategoryId);
+		if (parentCategory == null) {
+			return ResultCode.INVALID_PARENT_CATEGORY_ID;
+		}
+		if (price == -1) {
+			if (this.categories.containsKey(nodeId) || this.products.containsKey(nodeId)) {
+				return ResultCode.CATEGORY_NOT_ADDED;
+			}
+			ResultCode resultCode = addCategoryInfo(nodeId, nodeName);
+			if (!resultCode.isSuccess()) {
+				return resultCode;
+			}
+			setParentCategoryId(this.categories.get(nodeId), parentCategoryId);
+			parentCategory.addDirectChildCategoryId(nodeId);
+			markDirty(parentCategory);
+			return ResultCode.CATEGORY_ADDED;
+		}
+		if (this.products.containsKey(nodeId) || this.categories.containsKey(nodeId)) {
+			return ResultCode.PRODUCT_NOT_ADDED;
+		}
+		ResultCode resultCode = addProductInfo(nodeId, nodeName, price);
+		if (!resultCode.isSuccess()) {
+			return resultCode;
+		}
+		Product product = this.products.get(nodeId);
+		product.setCategoryId(parentCategoryId);
+		parentCategory.addDirectChildProductId(nodeId);
+		addProductToAggregates(parentCategory, product, 1);
+		addChildProductDeferred(parentCategory, product);
+		return ResultCode.PRODUCT_ADDED;
+	}
+
+	/**
+	 * Removes the node, marking the parent category dirty.
+	 *
+	 * @param nodeId the node id
+	 * @return the result code
+	 */
+	private ResultCode removeNodeDeferred(final int nodeId) {
+		Product product = this.products.get(nodeId);
+		if (product != null) {
+			Category category = this.categories.get(product.getCategoryId());
+			category.removeDirectChildProductId(nodeId);
+			addProductToAggregates(category, product, -1);
+			this.products.remove(nodeId);
+			if (this.nameIndex != null) {
+				this.nameIndex.remove(product.getName(), nodeId);
+			}
+			if (this.priceHistory != null) {
+				this.priceHistory.recordRemoval(nodeId);
+			}
+			removeChildProductDeferred(category, product);
+			return ResultCode.PRODUCT_DELETED;
+		}
+		Category category = this.categories.get(nodeId);
+		if (category != null) {
+			Category parentCategory = this.categories.get(category.getParentCategoryId());
+			if (parentCategory != null) {
+				parentCategory.removeDirectChildCategoryId(nodeId);
+				addSubtreeToAggregates(parentCategory, category, -1);
+				markDirty(parentCategory);
+			}
+			tombstoneCategory(category);
+			if (this.priceHistory != null) {
+				this.priceHistory.recordSubtreeRemoval(nodeId);
+			}
+			return ResultCode.CATEGORY_DELETED;
+		}
+		return ResultCode.INVALID_ID;
+	}
+
+	/**
+	 * Move the node under new parent category, marking old and new parent
+	 * categories dirty.
+	 *
+	 * @param nodeId              the node id
+	 * @param newParentCategoryId the new parent category id
+	 * @return the result code
+	 */
+	private ResultCode moveNodeDeferred(final int nodeId, final int newParentCategoryId) {
+		Category newParentCategory = this.categories.get(newParentCategoryId);
+		if (newParentCategory == null) {
+			return ResultCode.INVALID_PARENT_CATEGORY_ID;
+		}
+		Product product = this.products.get(nodeId);
+		if (product != null) {
+			Category category = this.categories.get(product.getCategoryId());
+			if (category != newParentCategory) {
+				category.removeDirectChildProductId(nodeId);
+				addProductToAggregates(category, product, -1);
+				removeChildProductDeferred(category, product);
+				product.setCategoryId(newParentCategoryId);
+				newParentCategory.addDirectChildProductId(nodeId);
+				addProductToAggregates(newParentCategory, product, 1);
+				addChildProductDeferred(newParentCategory, product);
+			}
+			return ResultCode.PRODUCT_MOVED;
+		}
+		Category category = this.categories.get(nodeId);
+		if (category == null) {
+			return ResultCode.INVALID_ID;
+		}
+		Category parentCategory = this.categories.get(category.getParentCategoryId());
+		if (parentCategory == null || isInSubtree(newParentCategoryId, nodeId)) {
+			return ResultCode.INVALID_MOVE;
+		}
+		if (parentCategory != newParentCategory) {
+			parentCategory.removeDirectChildCategoryId(nodeId);
+			addSubtreeToAggregates(parentCategory, category, -1);
+			markDirty(parentCategory);
+			setParentCategoryId(category, newParentCategoryId);
+			newParentCategory.addDirectChildCategoryId(nodeId);
+			addSubtreeToAggregates(newParentCategory, category, 1);
+			markDirty(newParentCategory);
+		}
+		return ResultCode.CATEGORY_MOVED;
+	}
+
+	/**
+	 * Change the original price of product, marking its category dirty. Selling
+	 * price is scaled by the same factor, so every discount applied so far is
+	 * kept as a ratio of the price. A product without price or without discount
+	 * gets the new price as selling price.
+	 *
+	 * @param productId     the product id
+	 * @param originalPrice the new original price
+	 * @return the result code
+	 */
+	private ResultCode changeOriginalPriceDeferred(final int productId, final float originalPrice) {
+		Product product = this.products.get(productId);
+		if (product == null) {
+			return ResultCode.INVALID_ID;
+		}
+		if (originalPrice < 0) {
+			return ResultCode.INVALID_PRICE;
+		}
+		Category category = this.categories.get(product.getCategoryId());
+		addProductToAggregates(category, product, -1);
+		if (category != null) {
+			removeChildProductDeferred(category, product);
+		}
+		float oldOriginalPrice = product.getOriginalPrice();
+		if (oldOriginalPrice > 0 && product.getSellingPrice() < oldOriginalPrice) {
+			// Clamped, float scaling may round above the new original price
+			product.setSellingPrice(
+					Math.min(originalPrice, product.getSellingPrice() * (originalPrice / oldOriginalPrice)));
+		} else {
+			product.setSellingPrice(originalPrice);
+		}
+		product.setOriginalPrice(originalPrice);
+		product.setDiscount(originalPrice - product.getSellingPrice());
+		addProductToAggregates(category, product, 1);
+		if (this.priceHistory != null) {
+			this.priceHistory.record(productId, product.getSellingPrice());
+		}
+		if (category != null) {
+			addChildProductDeferred(category, product);
+		}
+		return ResultCode.PRICE_CHANGED;
+	}
+
+	/**
+	 * Add amount back to selling price of product, up to its original price,
+	 * marking the affected categories dirty. The discount ratio of product drops,
+	 * so it is handled like a change of original price.
+	 *
+	 * @param productId the product id
+	 * @param amount    the amount taken off by a discount
+	 * @return the result code
+	 */
+	private ResultCode revertDiscountDeferred(final int productId, final float amount) {
+		Product product = this.products.get(productId);
+		if (product == null) {
+			return ResultCode.INVALID_ID;
+		}
+		if (amount < 0) {
+			return ResultCode.INVALID_PRICE;
+		}
+		Category category = this.categories.get(product.getCategoryId());
+		addProductToAggregates(category, product, -1);
+		if (category != null) {
+			removeChildProductDeferred(category, product);
+		}
+		product.setSellingPrice(Math.min(product.getOriginalPrice(), product.getSellingPrice() + amount));
+		product.setDiscount(product.getOriginalPrice() - product.getSellingPrice());
+		addProductToAggregates(category, product, 1);
+		if (this.priceHistory != null) {
+			this.priceHistory.record(productId, product.getSellingPrice());
+		}
+		if (category != null) {
+			addChildProductDeferred(category, product);
+		}
+		return ResultCode.DISCOUNT_REVERTED;
+	}
+
+	/**
+	 * Remove product from the direct child products of category, with its
+	 * current discount, and mark category dirty. The tree set is updated in
+	 * place, unless category is marked for rebuild already or product is its max
+	 * percent discounted child, which only a rebuild can replace. Call before
+	 * changing the discount of product.
+	 *
+	 * @param category the category
+	 * @param product  the product
+	 */
+	private void removeChildProductDeferred(final Category category, final Product product) {
+		if (category.getMaxPercentDiscountedChildProductId() == product.getId()) {
+			category.setProductsDirty(true);
+		}
+		if (!category.isProductsDirty()) {
+			ChildProduct childProduct = new ChildProduct();
+			childProduct.setProductId(product.getId());
+			childProduct.setAbsoluteDiscount(product.getDiscount());
+			category.removeDirectChildProduct(childProduct);
+		}
+		markDirty(category);
+	}
+
+	/**
+	 * Add product to the direct child products of category and mark category
+	 * dirty. The tree set is updated in place unless category is marked for
+	 * rebuild.
+	 *
+	 * @param category the category
+	 * @param product  the product
+	 */
+	private void addChildProductDeferred(final Category category, final Product product) {
+		if (!category.isProductsDirty()) {
+			ChildProduct childProduct = new ChildProduct();
+			if (this.cost != null) {
+				this.cost.allocations++;
+			}
+			childProduct.setProductId(product.getId());
+			childProduct.setAbsoluteDiscount(product.getDiscount());
+			category.addDirectChildProduct(childProduct);
+			updateMaxPercentDiscountedChildProduct(category, product);
+		}
+		markDirty(category);
+	}
+
+	/**
+	 * Checks if category is the ancestor category or in its subtree, by lifting
+	 * category to the depth of ancestor using the jump pointers.
+	 *
+	 * @param categoryId the category id
+	 * @param ancestorId the ancestor id
+	 * @return true, if category is in subtree of ancestor
+	 */
+	private boolean isInSubtree(final int categoryId, final int ancestorId) {
+		Category category = indexAncestors(this.categories.get(categoryId));
+		Category ancestor = indexAncestors(this.categories.get(ancestorId));
+		if (category.getDepth() < ancestor.getDepth()) {
+			return false;
+		}
+		return ancestorAtDepth(category, ancestor.getDepth()) == ancestor;
+	}
+
+	/**
+	 * Mark category and its ancestors dirty. Marking stops at first ancestor which
+	 * is already dirty, as its ancestors are dirty too.
+	 *
+	 * @param category the category
+	 */
+	private void markDirty(final Category category) {
+		Category tempCategory = category;
+		while (tempCategory != null && !tempCategory.isDirty()) {
+			if (this.cost != null) {
+				this.cost.nodesVisited++;
+			}
+			tempCategory.setDirty(true);
+			if (tempCategory.getParentCategoryId() == 0) {
+				this.dirtyRootCategoryIds.add(tempCategory.getId());
+				break;
+			}
+			tempCategory = getParentCategory(tempCategory);
+		}
+	}
+
+	/**
+	 * Mark direct child products of category for rebuild, and category with its
+	 * ancestors dirty.
+	 *
+	 * @param category the category
+	 */
+	private void markProductsDirty(final Category category) {
+		category.setProductsDirty(true);
+		markDirty(category);
+	}
+
+	/**
+	 * Recompute every dirty category, starting from the dirty top level
+	 * categories.
+	 */
+	private void recomputeDirtyCategories() {
+		for (int categoryId : this.dirtyRootCategoryIds) {
+			Category category = this.categories.get(categoryId);
+			// Skip categories removed or moved under another category since marked
+			if (category != null && !category.isTombstoned() && category.getParentCategoryId() == 0
+					&& category.isDirty()) {
+				recomputeDirtyCategories(category);
+			}
+		}
+		this.dirtyRootCategoryIds.clear();
+	}
+
+	/**
+	 * Recompute the dirty categories in subtree of category in bottom-up order, so
+	 * every dirty category is recomputed once after all of its dirty children.
+	 * Clean children are not visited as their subtree can not have a dirty
+	 * category.
+	 *
+	 * @param category the category
+	 */
+	private void recomputeDirtyCategories(final Category category) {
+		if (!category.isDirty()) {
+			return;
+		}
+		// Collect dirty categories in pre order, parent before children
+		List<Category> dirtyCategories = new ArrayList<>();
+		Deque<Category> stack = new ArrayDeque<>();
+		stack.push(category);
+		while (!stack.isEmpty()) {
+			Category tempCategory = stack.pop();
+			dirtyCategories.add(tempCategory);
+			for (Integer childCategoryId : tempCategory.getDirectChildCategoryIds()) {
+				Category childCategory = this.categories.get(childCategoryId);
+				if (childCategory.isDirty()) {
+					stack.push(childCategory);
+				}
+			}
+		}
+		// Recompute in reverse, children before parent
+		for (int i = dirtyCategories.size() - 1; i >= 0; i--) {
+			recomputeMaxDiscountedProduct(dirtyCategories.get(i));
+		}
+	}
+
+	/**
+	 * Recompute max discounted product of a dirty category from its children.
+	 * Unlike updateMaxDiscountedProduct this does not compare with the current
+	 * (stale) value and does not trigger update of parent.
+	 *
+	 * @param category the category
+	 */
+	private void recomputeMaxDiscountedProduct(final Category category) {
+		if (this.cost != null) {
+			this.cost.ancestorUpdates++;
+		}
+		if (category.isProductsDirty()) {
+			repopulateChildProducts(category);
+			category.setProductsDirty(false);
+		}
+		if (!category.getDirectChildCategoryIds().isEmpty() || !category.getDirectChildCategories().isEmpty()) {
+			repopulateChildCategories(category);
+		}
+		selectMaxDiscountedChild(category);
+		setMaxDiscountedProductId(category, this.maxDiscountedChild.getProductId());
+		category.setMaxDiscountedProductDiscount(this.maxDiscountedChild.getAbsoluteDiscount());
+		updateMaxPercentDiscountedProduct(category);
+		category.setDirty(false);
+	}
+
+	/**
+	 * Check if discount value is in valid range for discount type, independent of
+	 * any product price.
+	 *
+	 * @param discountType the discount type 1: % discount, 2: flat discount
+	 * @param discount     the discount
+	 * @return true, if in range
+	 */
+	private boolean discountInRange(final int discountType, final float discount) {
+		if (discount < 0) {
+			return false;
+		}
+		return discountType != 1 || discount <= 100;
+	}
+
+	/**
+	 * Discount applicable on category. This method recurse down the whole tree to
+	 * check every product under this category and subcategories if discount can be
+	 * applied or not.
+	 * <p>
+	 * Though category itself does not have any price information and applying any
+	 * discount on an empty category ideally should not have any affect, -ve flat or
+	 * % discount is not allowed, % discount greater than 100 is not allowed as to
+	 * be coherent with strategy for a product when applying discount on a
+	 * hierarchy.
+	 * </p>
+	 * 
+	 * @param categoryId   the category id
+	 * @param discountType the discount type 1: for % discount and 2: for flat
+	 *                     discount
+	 * @param discount     the discount
+	 * @return true, if successful
+	 */
+	private boolean discountApplicableOnCategory(final int categoryId, final int discountType, final float discount) {
+		if (this.cost != null) {
+			this.cost.nodesVisited++;
+		}
+		Category category = this.categories.get(categoryId);
+		if (category == null) {
+			return false;
+		}
+
+		// Flat discount
+		if (discountType == 2) {
+			if (discount < 0) {
+				return false;
+			}
+		} else if (discountType == 1) {
+			// % discount
+			if (discount < 0) {
+				return false;
+			} else if (discount > 100) {
+				return false;
+			}
+		}
+
+		Set<Integer> childProductIds = category.getDirectChildProductIds();
+
+		Set<Integer> childCategoryIds = category.getDirectChildCategoryIds();
+		// Check if the discount can be applied to immediate product children
+		for (Integer childProductId : childProductIds) {
+			boolean applicable = discountApplicableOnProduct(childProductId, discountType, discount);
+			if (!applicable) {
+				return false;
+			}
+		}
+
+		// Check if the discount can be applied to sub categories
+		for (Integer childCategoryId : childCategoryIds) {
+			LOGGER.debug("checking applicability of discout of type [{}] with value [{}] on category [{}]",
+					discountType, discount, childCategoryId);
+			boolean applicable = discountApplicableOnCategory(childCategoryId, discountType, discount);
+			if (!applicable) {
+				return false;
+			}
+		}
+
+		LOGGER.debug("Discount of type [{}] with value [{}] is applicable on category [{}]", discountType, discount,
+				categoryId);
+		return true;
+
+	}
+
+	/**
+	 * Removes the product. Removing a product also triggers updation of max
+	 * discounted product for its parent category and category hierarchy till root.
+	 *
+	 * @param productId the product id
+	 * @return the result code INVALID_ID or PRODUCT_DELETED
+	 */
+	private ResultCode removeProduct(final int productId) {
+		Product product = this.products.get(productId);
+		if (product == null) {
+			return ResultCode.INVALID_ID;
+		}
+
+		// Get the category containing this product
+		Category category = this.categories.get(product.getCategoryId());
+
+		detachProduct(product, category);
+
+		// Remove product from global products
+		this.products.remove(productId);
+		if (this.nameIndex != null) {
+			this.nameIndex.remove(product.getName(), productId);
+		}
+		if (this.priceHistory != null) {
+			this.priceHistory.recordRemoval(productId);
+		}
+
+		// Update the max discounted product for that category
+		updateMaxDiscountedProduct(category);
+
+		return ResultCode.PRODUCT_DELETED;
+	}
+
+	/**
+	 * Detach the product from its category. The product is removed from category
+	 * children and cleared from all the categories till root where it featured as
+	 * max discounted product. Caller is responsible to trigger
+	 * updateMaxDiscountedProduct on the category afterwards.
+	 *
+	 * @param product  the product
+	 * @param category the category containing the product
+	 */
+	private void detachProduct(final Product product, final Category category) {
+		int productId = product.getId();
+
+		// Remove this product from category children
+		ChildProduct childProduct = new ChildProduct();
+		if (this.cost != null) {
+			this.cost.allocations++;
+		}
+		childProduct.setProductId(productId);
+		childProduct.setAbsoluteDiscount(product.getDiscount());
+		LOGGER.debug("number of direct child products under category [{}] before product [{}] removal [{}]",
+				category.getId(), productId, category.getDirectChildProducts().size());
+		category.removeDirectChildProductId(childProduct.getProductId());
+		addProductToAggregates(category, product, -1);
+
+		repopulateChildProducts(category);
+
+		LOGGER.debug("number of direct child products under category [{}] after product [{}] removal [{}]",
+				category.getId(), productId, category.getDirectChildProducts().size());
+
+		// If this product is maximum discounted product under this category,
+		// clear it from category
+		if (category.getMaxDiscountedProductId() == productId) {
+			setMaxDiscountedProductId(category, 0);
+			category.setMaxDiscountedProductDiscount(0);
+
+			// Go to next immediate parent and update the discounted parent id
+			// in the parent category list
+			int parentCategoryId = category.getParentCategoryId();
+			if (parentCategoryId != 0) {
+				Category parentCategory = this.categories.get(parentCategoryId);
+				repopulateChildCategories(parentCategory);
+			}
+		}
+
+		// Traverse all the parent categories where this product featured as max
+		// discount product and remove it
+		Category parentCategory = getParentCategory(category);
+		while (parentCategory != null) {
+			if (this.cost != null) {
+				this.cost.nodesVisited++;
+			}
+			if (parentCategory.getMaxDiscountedProductId() == productId) {
+				setMaxDiscountedProductId(parentCategory, 0);
+				parentCategory.setMaxDiscountedProductDiscount(0);
+			}
+			parentCategory = getParentCategory(parentCategory);
+		}
+	}
+
+	/**
+	 * Removes the category. Removing a category also triggers updation of max
+	 * discounted product in category hierarchy till root.
+	 * 
+	 * @param categoryId the category id
+	 * @return the result code INVALID_ID or CATEGORY_DELETED
+	 */
+	private ResultCode removeCategory(final int categoryId) {
+		Category category = this.categories.get(categoryId);
+		if (category == null) {
+			return ResultCode.INVALID_ID;
+		}
+
+		// Get the parent category of this category
+		Category parentCategory = this.categories.get(category.getParentCategoryId());
+
+		detachCategory(category, parentCategory);
+
+		// Tombstone category. Its subcategories and sub products are removed
+		// later by reclaimTombstones.
+		tombstoneCategory(category);
+		if (this.priceHistory != null) {
+			this.priceHistory.recordSubtreeRemoval(category.getId());
+		}
+
+		// Update the max discounted product for that category
+		if (parentCategory != null) {
+			updateMaxDiscountedProduct(parentCategory);
+		}
+
+		return ResultCode.CATEGORY_DELETED;
+	}
+
+	/**
+	 * Detach the category from its parent category. The category is removed from
+	 * parent children and its max discounted product is cleared from all the
+	 * categories till root where it featured as max discounted product. The
+	 * subtree of category is not touched. Caller is responsible to trigger
+	 * updateMaxDiscountedProduct on the parent category afterwards.
+	 *
+	 * @param category       the category
+	 * @param parentCategory the parent category, null for root
+	 */
+	private void detachCategory(final Category category, final Category parentCategory) {
+		if (parentCategory != null) {
+			parentCategory.removeDirectChildCategoryId(category.getId());
+			addSubtreeToAggregates(parentCategory, category, -1);
 
 			// Recreate childCategory from list of categoryIds
 			// This is to prevent erratic behavior of java.util treeset
 			repopulateChildCategories(parentCategory);
 		}
-
-		// Get the maximum discounted product for this category
-		int maxDiscountedProductId = category.getMaxDiscountedProductId();
-		// Traverse all the parent categories where this product featured as max
-		// discount product and remove it
-		int parentCategoryId = category.getParentCategoryId();
-		while (parentCategoryId != 0) {
-			Category tempParent = this.categories.get(parentCategoryId);
-			if (maxDiscountedProductId != 0 && tempParent.getMaxDiscountedProductId() == maxDiscountedProductId) {
-				tempParent.setMaxDiscountedProductId(0);
-				tempParent.setMaxDiscountedProductDiscount(0);
+
+		// Get the maximum discounted product for this category
+		int maxDiscountedProductId = category.getMaxDiscountedProductId();
+		// Traverse all the parent categories where this product featured as max
+		// discount product and remove it
+		Category tempParent = getParentCategory(category);
+		while (tempParent != null) {
+			if (this.cost != null) {
+				this.cost.nodesVisited++;
+			}
+			if (maxDiscountedProductId != 0 && tempParent.getMaxDiscountedProductId() == maxDiscountedProductId) {
+				setMaxDiscountedProductId(tempParent, 0);
+				tempParent.setMaxDiscountedProductDiscount(0);
+			}
+			tempParent = getParentCategory(tempParent);
+		}
+	}
+
+	/**
+	 * Move the product under new category. Only the ancestor paths of old and new
+	 * category are updated.
+	 *
+	 * @param product       the product
+	 * @param newCategoryId the new category id
+	 * @return the result code PRODUCT_MOVED
+	 */
+	private ResultCode moveProduct(final Product product, final int newCategoryId) {
+		Category category = this.categories.get(product.getCategoryId());
+		if (category.getId() == newCategoryId) {
+			return ResultCode.PRODUCT_MOVED;
+		}
+
+		detachProduct(product, category);
+		updateMaxDiscountedProduct(category);
+
+		addExistingProduct(newCategoryId, product.getId());
+		LOGGER.debug("moved product [{}] from category [{}] to category [{}]", product.getId(), category.getId(),
+				newCategoryId);
+		return ResultCode.PRODUCT_MOVED;
+	}
+
+	/**
+	 * Move the category subtree under new parent category. The subtree itself is
+	 * not walked, only the ancestor paths of old and new parent are updated. A
+	 * category can not be moved under itself or its own subtree, and the root
+	 * category can not be moved.
+	 *
+	 * @param category            the category
+	 * @param newParentCategoryId the new parent category id
+	 * @return the result code CATEGORY_MOVED or INVALID_MOVE
+	 */
+	private ResultCode moveCategory(final Category category, final int newParentCategoryId) {
+		Category parentCategory = this.categories.get(category.getParentCategoryId());
+		if (parentCategory == null) {
+			return ResultCode.INVALID_MOVE;
+		}
+		if (parentCategory.getId() == newParentCategoryId) {
+			return ResultCode.CATEGORY_MOVED;
+		}
+
+		// New parent must not be in subtree of this category
+		if (isInSubtree(newParentCategoryId, category.getId())) {
+			return ResultCode.INVALID_MOVE;
+		}
+
+		detachCategory(category, parentCategory);
+		updateMaxDiscountedProduct(parentCategory);
+
+		addExistingCategory(newParentCategoryId, category.getId());
+		LOGGER.debug("moved category [{}] from category [{}] to category [{}]", category.getId(),
+				parentCategory.getId(), newParentCategoryId);
+		return ResultCode.CATEGORY_MOVED;
+	}
+
+	/**
+	 * Adds the category info.
+	 *
+	 * @param id   the id
+	 * @param name the name
+	 * @return the string
+	 */
+	private ResultCode addCategoryInfo(final int id, final String name) {
+		if (this.categories.containsKey(id)) {
+			return ResultCode.CATEGORY_ALREADY_EXIST;
+		}
+		if (this.products.containsKey(id)) {
+			return ResultCode.INVALID_CATEGORY_ID;
+		}
+		Category category = new Category(id, name);
+		this.categories.put(id, category);
+		if (this.nameIndex != null) {
+			this.nameIndex.add(name, id);
+		}
+		LOGGER.debug("category info added id [{}], name [{}]", id, name);
+		return ResultCode.CATEGORY_INFO_CREATED;
+	}
+
+	/**
+	 * Adds the product info.
+	 *
+	 * @param id    the id
+	 * @param name  the name
+	 * @param price the price
+	 * @return the string
+	 */
+	private ResultCode addProductInfo(final int id, final String name, final float price) {
+		if (this.products.containsKey(id)) {
+			return ResultCode.PRODUCT_ALREADY_EXIST;
+		}
+		if (this.categories.containsKey(id)) {
+			return ResultCode.INVALID_PRODUCT_ID;
+		}
+		Product product = new Product(id, name, price);
+		this.products.put(id, product);
+		if (this.nameIndex != null) {
+			this.nameIndex.add(name, id);
+		}
+		if (this.priceHistory != null) {
+			this.priceHistory.recordCreation(id, price);
+		}
+		LOGGER.debug("product info added id [{}], name [{}]", id, name);
+		return ResultCode.PRODUCT_INFO_CREATED;
+	}
+
+	/**
+	 * Adds the existing category. Adds category node represented by categoryId
+	 * under parent category represented by parentId.
+	 *
+	 * @param parentId   the parent id
+	 * @param categoryId the category id
+	 * @return the string
+	 */
+	private ResultCode addExistingCategory(final int parentId, final int categoryId) {
+
+		// Update the parent id for category
+		Category parentCategory = this.categories.get(parentId);
+		Category category = this.categories.get(categoryId);
+		setParentCategoryId(category, parentId);
+
+		// Add this category as child of parent category
+		ChildCategory childCategory = new ChildCategory();
+		if (this.cost != null) {
+			this.cost.allocations++;
+		}
+		childCategory.setCategoryId(category.getId());
+		childCategory.setMaxDiscountedProductId(category.getMaxDiscountedProductId());
+		childCategory.setMaxDiscountedProductDiscount(category.getMaxDiscountedProductDiscount());
+		parentCategory.addDirectChildCategory(childCategory);
+		parentCategory.addDirectChildCategoryId(categoryId);
+		addSubtreeToAggregates(parentCategory, category, 1);
+		LOGGER.debug("added category [{}] to parent category [{}]", categoryId, parentId);
+
+		// Update maximum discounted product in the hierarchy of parent
+		// categories of this category due to addition of this category
+		updateMaxDiscountedProduct(parentCategory);
+		return ResultCode.CATEGORY_ADDED;
+	}
+
+	/**
+	 * Adds the existing product.
+	 *
+	 * @param categoryId the category id
+	 * @param productId  the product id
+	 * @return the string
+	 */
+	private ResultCode addExistingProduct(final int categoryId, final int productId) {
+
+		// Update the parent id for product
+		Category category = this.categories.get(categoryId);
+		Product product = this.products.get(productId);
+		product.setCategoryId(categoryId);
+
+		// Add this product as child of parent category
+		ChildProduct childProduct = new ChildProduct();
+		if (this.cost != null) {
+			this.cost.allocations++;
+		}
+		childProduct.setProductId(product.getId());
+		childProduct.setAbsoluteDiscount(product.getOriginalPrice() - product.getSellingPrice());
+		category.addDirectChildProduct(childProduct);
+		category.addDirectChildProductId(productId);
+		updateMaxPercentDiscountedChildProduct(category, product);
+		addProductToAggregates(category, product, 1);
+
+		LOGGER.debug("added product [{}] to parent category [{}]", productId, categoryId);
+
+		// Update maximum discounted product in the hierarchy of parent
+		// categories of this product due to addition of this product
+		updateMaxDiscountedProduct(category);
+
+		return ResultCode.PRODUCT_ADDED;
+	}
+
+	/**
+	 * Repopulate child categories. Helper method to repopulate the child category
+	 * treeset which maintain order as defined by comparator
+	 * MaxDiscountChildCategoryComparator This method is only required as contains,
+	 * insertion and deletion for child treeset is not working properly. Adding
+	 * elements to new treeset works,however this increases the complexity to
+	 * nlog(n) instead of log(n)
+	 *
+	 * @param category the category
+	 */
+	private void repopulateChildCategories(final Category category) {
+		category.clearDirectChildCategories();
+		for (int directChildCategoryId : category.getDirectChildCategoryIds()) {
+			ChildCategory childCategory = new ChildCategory();
+			Category tempCategory = this.categories.get(directChildCategoryId);
+			childCategory.setCategoryId(tempCategory.getId());
+			childCategory.setMaxDiscountedProductId(tempCategory.getMaxDiscountedProductId());
+			childCategory.setMaxDiscountedProductDiscount(tempCategory.getMaxDiscountedProductDiscount());
+			category.addDirectChildCategory(childCategory);
+		}
+		if (this.cost != null) {
+			this.cost.treeSetsRebuilt++;
+			this.cost.allocations += 1 + category.getDirectChildCategories().size();
+		}
+	}
+
+	/**
+	 * Apply discount on category.
+	 *
+	 * @param categoryId                    the category id
+	 * @param discountType                  the discount type 1: % discount, 2: flat
+	 *                                      discount
+	 * @param discount                      the discount
+	 * @param checkForDiscountApplicability the check for discount applicability
+	 * @return the string
+	 */
+	private ResultCode applyDiscountOnCategory(final int categoryId, final int discountType, final float discount,
+			final boolean checkForDiscountApplicability) {
+		Category category = this.categories.get(categoryId);
+		if (category == null) {
+			return ResultCode.INVALID_ID;
+		}
+
+		// Check if discount can be applied or not on this category
+		if (checkForDiscountApplicability) {
+			if (!discountApplicableOnCategory(categoryId, discountType, discount)) {
+				return ResultCode.DISCOUNT_CANNOT_BE_APPLIED;
+			}
+		}
+
+		// Aggregates of subtree are recomputed once by the outermost call
+		boolean recomputeAggregates = !this.subtreeAggregatesDeferred;
+		this.subtreeAggregatesDeferred = true;
+
+		Set<Integer> childProductIds = category.getDirectChildProductIds();
+
+		Set<Integer> childCategoryIds = category.getDirectChildCategoryIds();
+
+		category.clearDirectChildProducts();
+		category.setMaxPercentDiscountedChildProduct(0, 0);
+		// Now discount, first on immediate child products
+		for (Integer childProductId : childProductIds) {
+			// applyDiscountOnProduct(childProduct.getProductId(), discountType,
+			// discount);
+			Product product = this.products.get(childProductId);
+			applyDiscountOnlyOnProduct(product.getId(), discountType, discount);
+
+			ChildProduct newChildProduct = new ChildProduct();
+			newChildProduct.setProductId(product.getId());
+			newChildProduct.setAbsoluteDiscount(product.getDiscount());
+			category.addDirectChildProduct(newChildProduct);
+			updateMaxPercentDiscountedChildProduct(category, product);
+		}
+
+		if (this.cost != null) {
+			this.cost.treeSetsRebuilt++;
+			this.cost.allocations += 1 + category.getDirectChildProducts().size();
+		}
+		updateMaxDiscountedProduct(category);
+
+		// Apply discount on category
+		for (Integer childCategoryId : childCategoryIds) {
+			applyDiscountOnCategory(childCategoryId, discountType, discount, false);
+		}
+
+		if (recomputeAggregates) {
+			this.subtreeAggregatesDeferred = false;
+			recomputeSubtreeAggregates(category);
+		}
+		return ResultCode.DISCOUNT_APPLIED;
+	}
+
+	/**
+	 * Gets the maximum discounted product. If a valid product is not found returns
+	 * null
+	 *
+	 * @param nodeId the node id
+	 * @return the maximum discounted product
+	 */
+	public Product getMaximumDiscountedProduct(final int nodeId) {
+		long startNanos = beginOperation();
+		Product product = findMaximumDiscountedProduct(nodeId);
+		endOperation(OperationType.GET_MAXIMUM_DISCOUNTED_PRODUCT, nodeId, startNanos,
+				product != null ? ResultCode.PRODUCT_FOUND : ResultCode.INVALID_ID);
+		return product;
+	}
+
+	/**
+	 * Find the maximum discounted product. See getMaximumDiscountedProduct.
+	 *
+	 * @param nodeId the node id
+	 * @return the maximum discounted product
+	 */
+	private Product findMaximumDiscountedProduct(final int nodeId) {
+		LOGGER.debug("Getting maximum discounted product for [{}]", nodeId);
+		if (isTombstoned(nodeId)) {
+			return null;
+		} else if (this.products.containsKey(nodeId)) {
+			return this.products.get(nodeId);
+		} else if (this.categories.containsKey(nodeId)) {
+			Category category = this.categories.get(nodeId);
+			// Only in lazy aggregates mode, recompute dirty part of subtree
+			if (category.isDirty()) {
+				recomputeDirtyCategories(category);
+			}
+			int maxDiscountedProductId = category.getMaxDiscountedProductId();
+			return this.products.get(maxDiscountedProductId);
+		}
+
+		return null;
+	}
+
+	/**
+	 * Gets the maximum discounted product into given reusable holder. The holder
+	 * is cleared in case a valid product is not found.
+	 *
+	 * @param nodeId the node id
+	 * @param result the holder to populate
+	 * @return the result code PRODUCT_FOUND or INVALID_ID
+	 */
+	public ResultCode getMaximumDiscountedProduct(final int nodeId, final ProductResult result) {
+		long startNanos = beginOperation();
+		Product product = findMaximumDiscountedProduct(nodeId);
+		if (product == null) {
+			result.clear();
+			return endOperation(OperationType.GET_MAXIMUM_DISCOUNTED_PRODUCT, nodeId, startNanos, ResultCode.INVALID_ID);
+		}
+		result.set(product);
+		return endOperation(OperationType.GET_MAXIMUM_DISCOUNTED_PRODUCT, nodeId, startNanos, ResultCode.PRODUCT_FOUND);
+	}
+
+	/**
+	 * Gets the maximum percent discounted product into given reusable holder: the
+	 * product having maximum ratio of discount to original price under category,
+	 * or the product itself. In case two products have same ratio, the product
+	 * with smaller id is selected. The holder is cleared in case a valid product
+	 * is not found. Like getMaximumDiscountedProduct this takes O(1), the max
+	 * percent discounted product of every category is maintained along with the
+	 * max discounted product.
+	 *
+	 * @param nodeId the node id
+	 * @param result the holder to populate
+	 * @return the result code PRODUCT_FOUND or INVALID_ID
+	 */
+	public ResultCode getMaximumPercentDiscountedProduct(final int nodeId, final ProductResult result) {
+		long startNanos = beginOperation();
+		Product product = this.products.get(nodeId);
+		Category category = this.categories.get(nodeId);
+		if (isTombstoned(nodeId)) {
+			product = null;
+		} else if (category != null) {
+			// Only in lazy aggregates mode, recompute dirty part of subtree
+			if (category.isDirty()) {
+				recomputeDirtyCategories(category);
+			}
+			product = this.products.get(category.getMaxPercentDiscountedProductId());
+		}
+		if (product == null) {
+			result.clear();
+			return endOperation(OperationType.GET_MAXIMUM_PERCENT_DISCOUNTED_PRODUCT, nodeId, startNanos,
+					ResultCode.INVALID_ID);
+		}
+		result.set(product);
+		return endOperation(OperationType.GET_MAXIMUM_PERCENT_DISCOUNTED_PRODUCT, nodeId, startNanos,
+				ResultCode.PRODUCT_FOUND);
+	}
+
+	/**
+	 * Gets the discount histogram of category: the number of products in its
+	 * subtree per bucket of % discount, bucket i holding discounts from 10 * i %
+	 * to 10 * (i + 1) %. The histogram is maintained on every change, so this
+	 * takes O(buckets).
+	 *
+	 * @param categoryId the category id
+	 * @return a copy of the histogram, null if category is not known
+	 */
+	public int[] getDiscountHistogram(final int categoryId) {
+		Category category = this.categories.get(categoryId);
+		if (category == null || isTombstoned(categoryId)) {
+			return null;
+		}
+		int[] histogram = category.getDiscountHistogram();
+		return histogram == null ? new int[Category.DISCOUNT_HISTOGRAM_BUCKETS] : histogram.clone();
+	}
+
+	/**
+	 * Gets the subtree aggregates of node into given reusable holder: the number
+	 * of products under a category and the sums of their original and selling
+	 * prices, or the prices of a single product. The aggregates are maintained on
+	 * every change, so this takes O(1).
+	 *
+	 * @param nodeId the node id
+	 * @param result the holder to populate
+	 * @return the result code AGGREGATES_FOUND or INVALID_ID
+	 */
+	public ResultCode getSubtreeAggregates(final int nodeId, final SubtreeAggregates result) {
+		if (isTombstoned(nodeId)) {
+			result.clear();
+			return ResultCode.INVALID_ID;
+		}
+		Category category = this.categories.get(nodeId);
+		if (category != null) {
+			result.set(category.getSubtreeProductCount(), category.getSubtreeOriginalPriceSum(),
+					category.getSubtreeSellingPriceSum());
+			return ResultCode.AGGREGATES_FOUND;
+		}
+		Product product = this.products.get(nodeId);
+		if (product != null) {
+			result.set(1, product.getOriginalPrice(), product.getSellingPrice());
+			return ResultCode.AGGREGATES_FOUND;
+		}
+		result.clear();
+		return ResultCode.INVALID_ID;
+	}
+
+	/**
+	 * Gets the discount histogram bucket of product from its % discount on
+	 * original price.
+	 *
+	 * @param product the product
+	 * @return the bucket
+	 */
+	private static int getDiscountBucket(final Product product) {
+		if (product.getOriginalPrice() <= 0) {
+			return 0;
+		}
+		int bucket = (int) (product.getDiscount() * Category.DISCOUNT_HISTOGRAM_BUCKETS / product.getOriginalPrice());
+		return Math.max(0, Math.min(bucket, Category.DISCOUNT_HISTOGRAM_BUCKETS - 1));
+	}
+
+	/**
+	 * Update the aggregates of the category of product and all its ancestors
+	 * after a change of its selling price: the product moves from old bucket to
+	 * its current bucket of discount histograms and the selling price sums
+	 * change by the price difference. Nothing is done while a category discount
+	 * defers the aggregates of its subtree, or if product is in no category.
+	 *
+	 * @param product         the product
+	 * @param oldBucket       the old bucket
+	 * @param oldSellingPrice the old selling price
+	 */
+	private void updateProductInAggregates(final Product product, final int oldBucket, final float oldSellingPrice) {
+		Category category = this.categories.get(product.getCategoryId());
+		if (this.subtreeAggregatesDeferred || category == null) {
+			return;
+		}
+		int newBucket = getDiscountBucket(product);
+		double sellingPriceDelta = (double) product.getSellingPrice() - oldSellingPrice;
+		while (category != null) {
+			category.addToDiscountHistogram(oldBucket, -1);
+			category.addToDiscountHistogram(newBucket, 1);
+			category.addSubtreeAggregates(0, 0, sellingPriceDelta);
+			category = getParentCategory(category);
+		}
+	}
+
+	/**
+	 * Add or subtract a product to the aggregates of category and all its
+	 * ancestors.
+	 *
+	 * @param category the category
+	 * @param product  the product
+	 * @param sign     1 to add, -1 to subtract
+	 */
+	private void addProductToAggregates(final Category category, final Product product, final int sign) {
+		int bucket = getDiscountBucket(product);
+		double originalPrice = sign * (double) product.getOriginalPrice();
+		double sellingPrice = sign * (double) product.getSellingPrice();
+		Category tempCategory = category;
+		while (tempCategory != null) {
+			tempCategory.addToDiscountHistogram(bucket, sign);
+			tempCategory.addSubtreeAggregates(sign, originalPrice, sellingPrice);
+			tempCategory = getParentCategory(tempCategory);
+		}
+	}
+
+	/**
+	 * Add or subtract the aggregates of a subtree to the aggregates of category
+	 * and all its ancestors.
+	 *
+	 * @param category the category
+	 * @param subtree  the root category of subtree
+	 * @param sign     1 to add, -1 to subtract
+	 */
+	private void addSubtreeToAggregates(final Category category, final Category subtree, final int sign) {
+		addSubtreeToAggregates(category, subtree.getDiscountHistogram(), sign * subtree.getSubtreeProductCount(),
+				sign * subtree.getSubtreeOriginalPriceSum(), sign * subtree.getSubtreeSellingPriceSum(), sign);
+	}
+
+	/**
+	 * Add the deltas to the aggregates of category and all its ancestors.
+	 *
+	 * @param category         the category
+	 * @param histogram        the histogram delta, multiplied by sign, null if
+	 *                         every bucket is 0
+	 * @param productCount     the product count delta
+	 * @param originalPriceSum the original price sum delta
+	 * @param sellingPriceSum  the selling price sum delta
+	 * @param sign             the sign of histogram
+	 */
+	private void addSubtreeToAggregates(final Category category, final int[] histogram, final int productCount,
+			final double originalPriceSum, final double sellingPriceSum, final int sign) {
+		Category tempCategory = category;
+		while (tempCategory != null) {
+			tempCategory.addToDiscountHistogram(histogram, sign);
+			tempCategory.addSubtreeAggregates(productCount, originalPriceSum, sellingPriceSum);
+			tempCategory = getParentCategory(tempCategory);
+		}
+	}
+
+	/**
+	 * Recompute the aggregates of every category in subtree of category from its
+	 * products, bottom-up, then apply the change of category aggregates to its
+	 * ancestors. Used after a category discount, which changes every product of
+	 * the subtree: this takes O(subtree + height) instead of walking to root once
+	 * per product.
+	 *
+	 * @param category the category
+	 */
+	private void recomputeSubtreeAggregates(final Category category) {
+		int[] histogram = category.getDiscountHistogram();
+		int[] oldHistogram = histogram == null ? new int[Category.DISCOUNT_HISTOGRAM_BUCKETS] : histogram.clone();
+		int oldProductCount = category.getSubtreeProductCount();
+		double oldOriginalPriceSum = category.getSubtreeOriginalPriceSum();
+		double oldSellingPriceSum = category.getSubtreeSellingPriceSum();
+
+		// Collect subtree in pre order, then recompute children before parent
+		List<Category> subtree = new ArrayList<>();
+		Deque<Category> stack = new ArrayDeque<>();
+		stack.push(category);
+		while (!stack.isEmpty()) {
+			Category tempCategory = stack.pop();
+			subtree.add(tempCategory);
+			for (Integer childCategoryId : tempCategory.getDirectChildCategoryIds()) {
+				stack.push(this.categories.get(childCategoryId));
+			}
+		}
+		for (int i = subtree.size() - 1; i >= 0; i--) {
+			Category tempCategory = subtree.get(i);
+			tempCategory.clearSubtreeAggregates();
+			for (Integer childProductId : tempCategory.getDirectChildProductIds()) {
+				Product product = this.products.get(childProductId);
+				tempCategory.addToDiscountHistogram(getDiscountBucket(product), 1);
+				tempCategory.addSubtreeAggregates(1, product.getOriginalPrice(), product.getSellingPrice());
+			}
+			for (Integer childCategoryId : tempCategory.getDirectChildCategoryIds()) {
+				Category childCategory = this.categories.get(childCategoryId);
+				tempCategory.addToDiscountHistogram(childCategory.getDiscountHistogram(), 1);
+				tempCategory.addSubtreeAggregates(childCategory.getSubtreeProductCount(),
+						childCategory.getSubtreeOriginalPriceSum(), childCategory.getSubtreeSellingPriceSum());
 			}
-			parentCategoryId = tempParent.getParentCategoryId();
 		}
 
-		// Remove category. Note: Removing this category removes all the
-		// subcategory and sub products under this category.
-		// categories.remove(categoryId);
-		removeCategoryTreeReference(categoryId);
-
-		// Update the max discounted product for that category
-		if (parentCategory != null) {
-			updateMaxDiscountedProduct(parentCategory);
+		int[] newHistogram = category.getDiscountHistogram();
+		int[] histogramDelta = new int[Category.DISCOUNT_HISTOGRAM_BUCKETS];
+		for (int i = 0; i < histogramDelta.length; i++) {
+			histogramDelta[i] = (newHistogram == null ? 0 : newHistogram[i]) - oldHistogram[i];
 		}
+		addSubtreeToAggregates(getParentCategory(category), histogramDelta,
+				category.getSubtreeProductCount() - oldProductCount,
+				category.getSubtreeOriginalPriceSum() - oldOriginalPriceSum,
+				category.getSubtreeSellingPriceSum() - oldSellingPriceSum, 1);
+	}
 
-		return CATEGORY_DELETED;
+	/**
+	 * Find the nodes (categories and products) having a name starting with
+	 * prefix, ignoring case. Ids are returned in the order of their names.
+	 * Requires a name index, see setNameIndex.
+	 *
+	 * @param prefix the prefix
+	 * @param result the array to populate with node ids, its length is the max
+	 *               number of matches
+	 * @return the number of ids written to result
+	 */
+	public int findNodesByNamePrefix(final String prefix, final int[] result) {
+		// Names of tombstoned nodes are indexed until reclaimed
+		return requireNameIndex().findByPrefix(prefix,
+				this.tombstonedCategories.isEmpty() ? null : nodeId -> !isTombstoned(nodeId), result);
 	}
 
 	/**
-	 * Adds the category info.
+	 * Find the nodes (categories and products) in subtree of category having a
+	 * name starting with prefix, ignoring case. A category is in its own
+	 * subtree. Requires a name index, see setNameIndex.
+	 * <p>
+	 * The name index counts the matches of prefix in O(prefix length). If they
+	 * are not more than the products of subtree, every match is checked with
+	 * isNodeInSubtree in O(log h) and ids are returned in the order of their
+	 * names. Otherwise the subtree is walked and the names of its nodes are
+	 * compared with prefix, and ids are returned in the order of the walk. So a
+	 * lookup visits the smaller of the two sets.
+	 * </p>
 	 *
-	 * @param id   the id
-	 * @param name the name
-	 * @return the string
+	 * @param prefix     the prefix
+	 * @param categoryId the category id
+	 * @param result     the array to populate with node ids, its length is the
+	 *                   max number of matches
+	 * @return the number of ids written to result, 0 if category is not known
 	 */
-	private String addCategoryInfo(final int id, final String name) {
-		if (this.categories.containsKey(id)) {
-			return "Category already exist";
+	public int findNodesByNamePrefix(final String prefix, final int categoryId, final int[] result) {
+		NameIndex index = requireNameIndex();
+		Category category = this.categories.get(categoryId);
+		if (category == null || isTombstoned(categoryId)) {
+			return 0;
 		}
-		if (this.products.containsKey(id)) {
-			return "Invalid category id. A product with same id already exist";
+		if (index.countByPrefix(prefix) <= category.getSubtreeProductCount()) {
+			return index.findByPrefix(prefix, nodeId -> isNodeInSubtree(nodeId, categoryId), result);
 		}
-		Category category = new Category(id, name);
-		this.categories.put(id, category);
-		LOGGER.debug("category info added id [{}], name [{}]", id, name);
-		return "New Category information created";
+		int found = 0;
+		Deque<Category> stack = new ArrayDeque<>();
+		stack.push(category);
+		while (!stack.isEmpty() && found < result.length) {
+			Category tempCategory = stack.pop();
+			if (NameIndex.hasPrefix(tempCategory.getName(), prefix)) {
+				result[found++] = tempCategory.getId();
+			}
+			for (Integer childProductId : tempCategory.getDirectChildProductIds()) {
+				if (found == result.length) {
+					break;
+				}
+				Product product = this.products.get(childProductId);
+				if (NameIndex.hasPrefix(product.getName(), prefix)) {
+					result[found++] = childProductId;
+				}
+			}
+			for (Integer childCategoryId : tempCategory.getDirectChildCategoryIds()) {
+				stack.push(this.categories.get(childCategoryId));
+			}
+		}
+		return found;
 	}
 
 	/**
-	 * Adds the product info.
+	 * Gets the name index, failing if it is not set.
 	 *
-	 * @param id    the id
-	 * @param name  the name
-	 * @param price the price
-	 * @return the string
+	 * @return the name index
 	 */
-	private String addProductInfo(final int id, final String name, final float price) {
-		if (this.products.containsKey(id)) {
-			return "Product already exist";
-		}
-		if (this.categories.containsKey(id)) {
-			return "Invalid product id. A category with same id already exist";
+	private NameIndex requireNameIndex() {
+		if (this.nameIndex == null) {
+			throw new IllegalStateException("Name index is not set");
 		}
-		Product product = new Product(id, name, price);
-		this.products.put(id, product);
-		LOGGER.debug("product info added id [{}], name [{}]", id, name);
-		return "New Product information created";
+		return this.nameIndex;
 	}
 
 	/**
-	 * Adds the existing category. Adds category node represented by categoryId
-	 * under parent category represented by parentId.
+	 * Checks if node (category or product) is in subtree of category. A category
+	 * is in its own subtree. Takes O(log h) using the ancestor jump pointers,
+	 * where h is the height of hierarchy.
 	 *
-	 * @param parentId   the parent id
+	 * @param nodeId     the node id
 	 * @param categoryId the category id
-	 * @return the string
+	 * @return true, if node is in subtree of category
 	 */
-	private String addExistingCategory(final int parentId, final int categoryId) {
-
-		// Update the parent id for category
-		Category parentCategory = this.categories.get(parentId);
-		Category category = this.categories.get(categoryId);
-		category.setParentCategoryId(parentId);
-
-		// Add this category as child of parent category
-		ChildCategory childCategory = new ChildCategory();
-		childCategory.setCategoryId(category.getId());
-		childCategory.setMaxDiscountedProductId(category.getMaxDiscountedProductId());
-		childCategory.setMaxDiscountedProductDiscount(category.getMaxDiscountedProductDiscount());
-		parentCategory.getDirectChildCategories().add(childCategory);
-		parentCategory.getDirectChildCategoryIds().add(categoryId);
-		LOGGER.debug("added category [{}] to parent category [{}]", categoryId, parentId);
-
-		// Update maximum discounted product in the hierarchy of parent
-		// categories of this category due to addition of this category
-		updateMaxDiscountedProduct(parentCategory);
-		return CATEGORY_ADDED;
+	public boolean isNodeInSubtree(final int nodeId, final int categoryId) {
+		int nodeCategoryId = getNodeCategoryId(nodeId);
+		if (nodeCategoryId == 0 || !this.categories.containsKey(categoryId)) {
+			return false;
+		}
+		return isInSubtree(nodeCategoryId, categoryId);
 	}
 
 	/**
-	 * Adds the existing product.
+	 * Gets the lowest common ancestor category of two nodes. For a product, the
+	 * search starts from the category holding it. Takes O(log h) using the
+	 * ancestor jump pointers.
 	 *
-	 * @param categoryId the category id
-	 * @param productId  the product id
-	 * @return the string
+	 * @param node1Id the node 1 id
+	 * @param node2Id the node 2 id
+	 * @return the lowest common ancestor category id, 0 if a node is not known or
+	 *         nodes are not in same tree
 	 */
-	private String addExistingProduct(final int categoryId, final int productId) {
-
-		// Update the parent id for product
-		Category category = this.categories.get(categoryId);
-		Product product = this.products.get(productId);
-		product.setCategoryId(categoryId);
-
-		// Add this product as child of parent category
-		ChildProduct childProduct = new ChildProduct();
-		childProduct.setProductId(product.getId());
-		childProduct.setAbsoluteDiscount(product.getOriginalPrice() - product.getSellingPrice());
-		category.getDirectChildProducts().add(childProduct);
-		category.getDirectChildProductIds().add(productId);
-
-		LOGGER.debug("added product [{}] to parent category [{}]", productId, categoryId);
-
-		// Update maximum discounted product in the hierarchy of parent
-		// categories of this product due to addition of this product
-		updateMaxDiscountedProduct(category);
-
-		return PRODUCT_ADDED;
+	public int getLowestCommonAncestorId(final int node1Id, final int node2Id) {
+		int category1Id = getNodeCategoryId(node1Id);
+		int category2Id = getNodeCategoryId(node2Id);
+		if (category1Id == 0 || category2Id == 0) {
+			return 0;
+		}
+		Category category1 = indexAncestors(this.categories.get(category1Id));
+		Category category2 = indexAncestors(this.categories.get(category2Id));
+		if (category1.getDepth() > category2.getDepth()) {
+			category1 = ancestorAtDepth(category1, category2.getDepth());
+		} else {
+			category2 = ancestorAtDepth(category2, category1.getDepth());
+		}
+		if (category1 == category2) {
+			return category1.getId();
+		}
+		// Lift both categories to just below the lowest common ancestor
+		for (int k = category1.getAncestors().length - 1; k >= 0; k--) {
+			if (this.cost != null) {
+				this.cost.nodesVisited++;
+			}
+			Category[] ancestors1 = category1.getAncestors();
+			Category[] ancestors2 = category2.getAncestors();
+			if (k < ancestors1.length && ancestors1[k] != ancestors2[k]) {
+				category1 = ancestors1[k];
+				category2 = ancestors2[k];
+			}
+		}
+		Category parentCategory = getParentCategory(category1);
+		return parentCategory == getParentCategory(category2) && parentCategory != null ? parentCategory.getId() : 0;
 	}
 
 	/**
-	 * Repopulate child categories. Helper method to repopulate the child category
-	 * treeset which maintain order as defined by comparator
-	 * MaxDiscountChildCategoryComparator This method is only required as contains,
-	 * insertion and deletion for child treeset is not working properly. Adding
-	 * elements to new treeset works,however this increases the complexity to
-	 * nlog(n) instead of log(n)
+	 * Gets the category of node, category itself or the category holding product.
 	 *
-	 * @param category the category
+	 * @param nodeId the node id
+	 * @return the category id, 0 if node is not known
 	 */
-	private void repopulateChildCategories(final Category category) {
-		TreeSet<ChildCategory> newChildCategories = new TreeSet<>(
-				new MaxDiscountChildCategoryComparator());
-		for (int directChildCategoryId : category.getDirectChildCategoryIds()) {
-			ChildCategory childCategory = new ChildCategory();
-			Category tempCategory = this.categories.get(directChildCategoryId);
-			childCategory.setCategoryId(tempCategory.getId());
-			childCategory.setMaxDiscountedProductId(tempCategory.getMaxDiscountedProductId());
-			childCategory.setMaxDiscountedProductDiscount(tempCategory.getMaxDiscountedProductDiscount());
-			newChildCategories.add(childCategory);
+	private int getNodeCategoryId(final int nodeId) {
+		if (isTombstoned(nodeId)) {
+			return 0;
+		}
+		if (this.categories.containsKey(nodeId)) {
+			return nodeId;
 		}
-		category.setDirectChildCategories(newChildCategories);
+		Product product = this.products.get(nodeId);
+		return product == null ? 0 : product.getCategoryId();
 	}
 
 	/**
-	 * Apply discount on category.
+	 * Index depth and ancestor jump pointers of category if they are stale. The
+	 * stale categories on ancestor path are collected till the first indexed
+	 * ancestor and indexed top-down, so each category is built from its already
+	 * indexed parent in O(log h).
 	 *
-	 * @param categoryId                    the category id
-	 * @param discountType                  the discount type 1: % discount, 2: flat
-	 *                                      discount
-	 * @param discount                      the discount
-	 * @param checkForDiscountApplicability the check for discount applicability
-	 * @return the string
+	 * @param category the category
+	 * @return the category
 	 */
-	private String applyDiscountOnCategory(final int categoryId, final int discountType, final float discount,
-			final boolean checkForDiscountApplicability) {
-		Category category = this.categories.get(categoryId);
-		if (category == null) {
-			return INVALID_ID;
+	private Category indexAncestors(final Category category) {
+		if (category.getAncestorIndexEpoch() == this.structureEpoch) {
+			return category;
 		}
-
-		// Check if discount can be applied or not on this category
-		if (checkForDiscountApplicability) {
-			if (!discountApplicableOnCategory(categoryId, discountType, discount)) {
-				return DISCOUNT_CANNOT_BE_APPLIED;
-			}
+		Category tempCategory = category;
+		while (tempCategory != null && tempCategory.getAncestorIndexEpoch() != this.structureEpoch) {
+			this.staleCategories.add(tempCategory);
+			tempCategory = this.categories.get(tempCategory.getParentCategoryId());
 		}
-
-		Set<Integer> childProductIds = category.getDirectChildProductIds();
-
-		Set<Integer> childCategoryIds = category.getDirectChildCategoryIds();
-
-		TreeSet<ChildProduct> newChildProducts = new TreeSet<>(new MaxDiscountChildProductComparator());
-		// Now discount, first on immediate child products
-		for (Integer childProductId : childProductIds) {
-			// applyDiscountOnProduct(childProduct.getProductId(), discountType,
-			// discount);
-			Product product = this.products.get(childProductId);
-			applyDiscountOnlyOnProduct(product.getId(), discountType, discount);
-
-			ChildProduct newChildProduct = new ChildProduct();
-			newChildProduct.setProductId(product.getId());
-			newChildProduct.setAbsoluteDiscount(product.getDiscount());
-			newChildProducts.add(newChildProduct);
+		Category parentCategory = tempCategory;
+		for (int i = this.staleCategories.size() - 1; i >= 0; i--) {
+			Category staleCategory = this.staleCategories.get(i);
+			if (parentCategory == null) {
+				staleCategory.setAncestorIndex(0, NO_ANCESTORS, this.structureEpoch);
+			} else {
+				int depth = parentCategory.getDepth() + 1;
+				Category[] ancestors = staleCategory.getAncestors();
+				int levels = 32 - Integer.numberOfLeadingZeros(depth);
+				if (ancestors == null || ancestors.length != levels) {
+					ancestors = new Category[levels];
+					if (this.cost != null) {
+						this.cost.allocations++;
+					}
+				}
+				ancestors[0] = parentCategory;
+				for (int k = 1; k < levels; k++) {
+					ancestors[k] = ancestors[k - 1].getAncestors()[k - 1];
+				}
+				staleCategory.setAncestorIndex(depth, ancestors, this.structureEpoch);
+			}
+			parentCategory = staleCategory;
 		}
+		this.staleCategories.clear();
+		return category;
+	}
 
-		category.setDirectChildProducts(newChildProducts);
-		updateMaxDiscountedProduct(category);
+	/**
+	 * Gets the parent category from ancestor jump pointers, without lookup in
+	 * categories map.
+	 *
+	 * @param category the category
+	 * @return the parent category, null for a category without parent
+	 */
+	private Category getParentCategory(final Category category) {
+		Category[] ancestors = indexAncestors(category).getAncestors();
+		return ancestors.length == 0 ? null : ancestors[0];
+	}
 
-		// Apply discount on category
-		for (Integer childCategoryId : childCategoryIds) {
-			applyDiscountOnCategory(childCategoryId, discountType, discount, false);
+	/**
+	 * Gets the ancestor of indexed category at given depth, by jumping powers of
+	 * two of the depth difference.
+	 *
+	 * @param category the indexed category
+	 * @param depth    the depth, not greater than depth of category
+	 * @return the ancestor at depth
+	 */
+	private Category ancestorAtDepth(final Category category, final int depth) {
+		Category tempCategory = category;
+		int distance = category.getDepth() - depth;
+		for (int k = 0; distance != 0; k++, distance >>>= 1) {
+			if ((distance & 1) != 0) {
+				if (this.cost != null) {
+					this.cost.nodesVisited++;
+				}
+				tempCategory = tempCategory.getAncestors()[k];
+			}
 		}
-
-		return DISCOUNT_APPLIED;
+		return tempCategory;
 	}
 
 	/**
-	 * Gets the maximum discounted product. If a valid product is not found returns
-	 * null
+	 * Sets the parent category id of category. The ancestor index of every
+	 * category is invalidated if category may be an indexed ancestor, otherwise
+	 * only the index of category itself.
 	 *
-	 * @param nodeId the node id
-	 * @return the maximum discounted product
+	 * @param category         the category
+	 * @param parentCategoryId the parent category id
 	 */
-	public Product getMaximumDiscountedProduct(final int nodeId) {
-		LOGGER.debug("Getting maximum discounted product for [{}]", nodeId);
-		if (this.products.containsKey(nodeId)) {
-			return this.products.get(nodeId);
-		} else if (this.categories.containsKey(nodeId)) {
-			int maxDiscountedProductId = this.categories.get(nodeId).getMaxDiscountedProductId();
-			return this.products.get(maxDiscountedProductId);
+	private void setParentCategoryId(final Category category, final int parentCategoryId) {
+		category.setParentCategoryId(parentCategoryId);
+		if (category.getDirectChildCategoryIds().isEmpty()) {
+			category.setAncestorIndex(0, null, -1);
+		} else {
+			this.structureEpoch++;
 		}
-
-		return null;
 	}
 
 	/**
@@ -708,48 +2683,230 @@ public class HierarchyUsingChildCategoryAndProduct {
 	 * MaxDiscountChildProductComparator This method is only required as contains,
 	 * insertion and deletion for child treeset is not working properly. Adding
 	 * elements to new treeset works,however this increases the complexity to
-	 * nlog(n) instead of log(n)
+	 * nlog(n) instead of log(n). The max percent discounted direct child product
+	 * is selected in the same pass.
 	 *
 	 * @param category the category
 	 */
 	private void repopulateChildProducts(final Category category) {
-		TreeSet<ChildProduct> newChildProducts = new TreeSet<>(new MaxDiscountChildProductComparator());
+		category.clearDirectChildProducts();
+		category.setMaxPercentDiscountedChildProduct(0, 0);
 		for (Integer childProductId : category.getDirectChildProductIds()) {
 			Product tempProduct = this.products.get(childProductId);
 			ChildProduct newChildProduct = new ChildProduct();
 			newChildProduct.setProductId(tempProduct.getId());
 			newChildProduct.setAbsoluteDiscount(tempProduct.getDiscount());
-			newChildProducts.add(newChildProduct);
+			category.addDirectChildProduct(newChildProduct);
+			updateMaxPercentDiscountedChildProduct(category, tempProduct);
+		}
+		if (this.cost != null) {
+			this.cost.treeSetsRebuilt++;
+			this.cost.allocations += 1 + category.getDirectChildProducts().size();
 		}
-		category.setDirectChildProducts(newChildProducts);
 	}
 
 	/**
-	 * Removes the category tree reference from global reference by removing this
-	 * category, its sub categories and products under it. This takes O(n) time
-	 * where n denoted number of nodes in tree represented by this category.
+	 * Tombstone the detached category. The category and its subtree are treated
+	 * as absent from now on and are removed from categories and products by
+	 * reclaimTombstones. This takes O(1).
 	 *
-	 * @param categoryId the category id
+	 * @param category the category
 	 */
-	private void removeCategoryTreeReference(final int categoryId) {
-		Category category = this.categories.get(categoryId);
-		// Remove reference of this category
-		this.categories.remove(categoryId);
-		if (category != null) {
-			Set<Integer> directChildCategoryIds = category.getDirectChildCategoryIds();
-			Set<Integer> directChildProductsIds = category.getDirectChildProductIds();
-			if (directChildProductsIds != null && directChildProductsIds.size() > 0) {
-				for (Integer childProductId : directChildProductsIds) {
-					this.products.remove(childProductId);
+	private void tombstoneCategory(final Category category) {
+		category.setTombstoned(true);
+		this.tombstonedCategories.addLast(category);
+	}
+
+	/**
+	 * Checks if node is in a tombstoned subtree. Takes O(h) while tombstones are
+	 * pending, else O(1). Parents are looked up in categories rather than in the
+	 * ancestor jump pointers, so this does not change the hierarchy and can run
+	 * along other reads.
+	 *
+	 * @param nodeId the node id
+	 * @return true, if node is tombstoned; false if node is live or not known
+	 */
+	boolean isTombstoned(final int nodeId) {
+		return getTombstonedAncestor(nodeId) != null;
+	}
+
+	/**
+	 * Gets the tombstoned category of the subtree holding node, the node itself
+	 * if it is a tombstoned category. Takes O(h) like isTombstoned.
+	 *
+	 * @param nodeId the node id
+	 * @return the tombstoned category, null if node is live or not known
+	 */
+	private Category getTombstonedAncestor(final int nodeId) {
+		if (this.tombstonedCategories.isEmpty()) {
+			return null;
+		}
+		Category category = this.categories.get(nodeId);
+		if (category == null) {
+			Product product = this.products.get(nodeId);
+			if (product == null) {
+				return null;
+			}
+			category = this.categories.get(product.getCategoryId());
+		}
+		while (category != null) {
+			if (category.isTombstoned()) {
+				return category;
+			}
+			category = this.categories.get(category.getParentCategoryId());
+		}
+		return null;
+	}
+
+	/**
+	 * Free node if it is tombstoned, so that an add may reuse its id. Only the
+	 * node itself is freed, with the direct child products of a category; its
+	 * child categories are tombstoned on their own and left to
+	 * reclaimTombstones. This takes O(h) plus the direct children of node,
+	 * whatever the size of pending subtrees.
+	 *
+	 * @param nodeId the node id
+	 */
+	private void reclaimTombstonedNode(final int nodeId) {
+		Category tombstonedCategory = getTombstonedAncestor(nodeId);
+		if (tombstonedCategory == null) {
+			return;
+		}
+		LOGGER.debug("Node [{}] is tombstoned, reclaiming it", nodeId);
+		Category category = this.categories.get(nodeId);
+		if (category == null) {
+			Product product = this.products.remove(nodeId);
+			// Parent is in the tombstoned subtree, it no longer lists the product
+			this.categories.get(product.getCategoryId()).removeDirectChildProductId(nodeId);
+			if (this.nameIndex != null) {
+				this.nameIndex.remove(product.getName(), nodeId);
+			}
+			if (this.priceHistory != null) {
+				this.priceHistory.recordSubtreeProductRemoval(nodeId, tombstonedCategory.getId());
+			}
+			if (this.reclaimListener != null) {
+				this.reclaimListener.accept(nodeId);
+			}
+			return;
+		}
+		Iterator<Integer> childProductIds = category.getDirectChildProductIds().iterator();
+		while (childProductIds.hasNext()) {
+			int productId = childProductIds.next();
+			childProductIds.remove();
+			Product product = this.products.remove(productId);
+			if (this.nameIndex != null && product != null) {
+				this.nameIndex.remove(product.getName(), productId);
+			}
+			if (this.priceHistory != null) {
+				this.priceHistory.recordSubtreeProductRemoval(productId, tombstonedCategory.getId());
+			}
+			if (this.reclaimListener != null && product != null) {
+				this.reclaimListener.accept(productId);
+			}
+		}
+		Iterator<Integer> childCategoryIds = category.getDirectChildCategoryIds().iterator();
+		while (childCategoryIds.hasNext()) {
+			Category childCategory = this.categories.get(childCategoryIds.next());
+			childCategoryIds.remove();
+			tombstoneCategory(childCategory);
+			if (this.priceHistory != null) {
+				this.priceHistory.inheritSubtreeRemoval(childCategory.getId(), tombstonedCategory.getId());
+			}
+		}
+		// A tombstoned root stays queued, emptied; otherwise its parent is in the
+		// tombstoned subtree and must no longer list it
+		if (!category.isTombstoned()) {
+			this.categories.get(category.getParentCategoryId()).removeDirectChildCategoryId(nodeId);
+		} else if (this.priceHistory != null) {
+			this.priceHistory.forgetSubtreeRemoval(nodeId);
+		}
+		this.categories.remove(nodeId);
+		if (this.nameIndex != null) {
+			this.nameIndex.remove(category.getName(), nodeId);
+		}
+		if (this.reclaimListener != null) {
+			this.reclaimListener.accept(nodeId);
+		}
+	}
+
+	/**
+	 * Checks if tombstoned subtrees are waiting to be reclaimed.
+	 *
+	 * @return true, if tombstones are pending
+	 */
+	public boolean hasTombstones() {
+		return !this.tombstonedCategories.isEmpty();
+	}
+
+	/**
+	 * Reclaim tombstoned subtrees for at most maxNanos: their categories and
+	 * products are removed from categories, products and name index. Reclaiming
+	 * stops within a few nodes once the time is up, also in the middle of a
+	 * category with many children, and goes on from there on next call. The
+	 * clock is read every RECLAIM_CLOCK_INTERVAL nodes.
+	 *
+	 * @param maxNanos the max nanos to spend, Long.MAX_VALUE to reclaim all
+	 * @return the number of nodes reclaimed
+	 */
+	public int reclaimTombstones(final long maxNanos) {
+		long startNanos = System.nanoTime();
+		int reclaimed = 0;
+		int work = 0;
+		while (!this.tombstonedCategories.isEmpty()) {
+			Category category = this.tombstonedCategories.peekFirst();
+			// Tombstoned categories are detached, so their children sets can be
+			// emptied while going through them
+			Iterator<Integer> childProductIds = category.getDirectChildProductIds().iterator();
+			while (childProductIds.hasNext()) {
+				if (++work % RECLAIM_CLOCK_INTERVAL == 0 && System.nanoTime() - startNanos >= maxNanos) {
+					return reclaimed;
+				}
+				int productId = childProductIds.next();
+				childProductIds.remove();
+				Product product = this.products.remove(productId);
+				if (this.nameIndex != null && product != null) {
+					this.nameIndex.remove(product.getName(), productId);
+				}
+				if (this.priceHistory != null) {
+					this.priceHistory.recordSubtreeProductRemoval(productId, category.getId());
+				}
+				if (this.reclaimListener != null && product != null) {
+					this.reclaimListener.accept(productId);
+				}
+				reclaimed++;
+			}
+			Iterator<Integer> childCategoryIds = category.getDirectChildCategoryIds().iterator();
+			while (childCategoryIds.hasNext()) {
+				if (++work % RECLAIM_CLOCK_INTERVAL == 0 && System.nanoTime() - startNanos >= maxNanos) {
+					return reclaimed;
+				}
+				Category childCategory = this.categories.get(childCategoryIds.next());
+				childCategoryIds.remove();
+				tombstoneCategory(childCategory);
+				if (this.priceHistory != null) {
+					this.priceHistory.inheritSubtreeRemoval(childCategory.getId(), category.getId());
 				}
 			}
-			if (directChildCategoryIds != null && directChildCategoryIds.size() > 0) {
-				for (Integer childCategoryId : directChildCategoryIds) {
-					removeCategoryTreeReference(childCategoryId);
+			if (++work % RECLAIM_CLOCK_INTERVAL == 0 && System.nanoTime() - startNanos >= maxNanos) {
+				return reclaimed;
+			}
+			this.tombstonedCategories.pollFirst();
+			// Unless freed already by reclaimTombstonedNode, its id may be reused
+			if (this.categories.get(category.getId()) == category) {
+				this.categories.remove(category.getId());
+				if (this.nameIndex != null) {
+					this.nameIndex.remove(category.getName(), category.getId());
+				}
+				if (this.priceHistory != null) {
+					this.priceHistory.forgetSubtreeRemoval(category.getId());
 				}
+				if (this.reclaimListener != null) {
+					this.reclaimListener.accept(category.getId());
+				}
+				reclaimed++;
 			}
-
 		}
+		return reclaimed;
 	}
 
 	/**
@@ -761,6 +2918,9 @@ public class HierarchyUsingChildCategoryAndProduct {
 	 * @return true, if successful
 	 */
 	private boolean discountApplicableOnProduct(final int productId, final int discountType, final float discount) {
+		if (this.cost != null) {
+			this.cost.nodesVisited++;
+		}
 		Product product = this.products.get(productId);
 		if (product == null) {
 			return false;
@@ -794,38 +2954,46 @@ public class HierarchyUsingChildCategoryAndProduct {
 	 * @param discount     the discount
 	 * @return the string
 	 */
-	private String applyDiscountOnProduct(final int productId, final int discountType, final float discount) {
-		String response = applyDiscountOnlyOnProduct(productId, discountType, discount);
-		if (!"product discount applied.".equals(response)) {
+	private ResultCode applyDiscountOnProduct(final int productId, final int discountType, final float discount) {
+		Product product = this.products.get(productId);
+		// Discount before this operation. The tree set is ordered on it, so it is
+		// required to locate the existing child product for removal
+		float oldDiscount = product != null ? product.getDiscount() : 0;
+		ResultCode response = applyDiscountOnlyOnProduct(productId, discountType, discount);
+		if (response != ResultCode.PRODUCT_DISCOUNT_APPLIED) {
 			return response;
 		}
 
-		Product product = this.products.get(productId);
-
 		LOGGER.debug(
 				"discount of type [{}] with value [{}] applied on product [{}]. Original price [{}], selling price [{}]",
 				discountType, discount, productId, product.getOriginalPrice(), product.getSellingPrice());
 		// Update the maxDiscounted product for the category of this product
 		// In order to trigger sorting on child tree set first remove the
-		// product and then add the product
+		// product with old discount and then add the product with new discount
 		// TODO: Write better code/strategy to update tree set. Currnet way
 		// is
 		// not efficient it takes 2*log(n) time instead of log(n)
 		ChildProduct childProduct = new ChildProduct();
+		if (this.cost != null) {
+			this.cost.allocations++;
+		}
 		childProduct.setProductId(productId);
-		childProduct.setAbsoluteDiscount(product.getDiscount());
+		childProduct.setAbsoluteDiscount(oldDiscount);
 		Category category = this.categories.get(product.getCategoryId());
 		LOGGER.debug(
 				"Removing and adding this child product [{}] to category [{}] product tree set so that discount applied can take affect on actual order",
 				productId, category.getId());
-		category.getDirectChildProducts().remove(childProduct);
-		category.getDirectChildProducts().add(childProduct);
+		category.removeDirectChildProduct(childProduct);
+		childProduct.setAbsoluteDiscount(product.getDiscount());
+		category.addDirectChildProduct(childProduct);
+		// A discount never lowers the discount ratio of product
+		updateMaxPercentDiscountedChildProduct(category, product);
 
 		// Update max discounted product on parent and higher hierarchy
 		// category
 		updateMaxDiscountedProduct(category);
 
-		return DISCOUNT_APPLIED;
+		return ResultCode.DISCOUNT_APPLIED;
 	}
 
 	/**
@@ -838,30 +3006,42 @@ public class HierarchyUsingChildCategoryAndProduct {
 	 * @param discount     the discount
 	 * @return the string
 	 */
-	private String applyDiscountOnlyOnProduct(final int productId, final int discountType, final float discount) {
+	private ResultCode applyDiscountOnlyOnProduct(final int productId, final int discountType, final float discount) {
 		Product product = this.products.get(productId);
 		if (product == null) {
-			return INVALID_ID;
+			return ResultCode.INVALID_ID;
 		}
+		int oldBucket = getDiscountBucket(product);
+		float oldSellingPrice = product.getSellingPrice();
 		// Flat discount
 		if (discountType == 2) {
 			if (discountApplicableOnProduct(productId, discountType, discount)) {
+				if (this.journal != null) {
+					this.journal.recordProduct(product);
+				}
 				product.setSellingPrice(product.getSellingPrice() - discount);
 				product.setDiscount(product.getOriginalPrice() - product.getSellingPrice());
 			} else {
-				return DISCOUNT_CANNOT_BE_APPLIED;
+				return ResultCode.DISCOUNT_CANNOT_BE_APPLIED;
 			}
 
 		} else if (discountType == 1) {
 			// % discount
 			if (discountApplicableOnProduct(productId, discountType, discount)) {
+				if (this.journal != null) {
+					this.journal.recordProduct(product);
+				}
 				product.setSellingPrice(product.getSellingPrice() * ((100 - discount) / 100));
 				product.setDiscount(product.getOriginalPrice() - product.getSellingPrice());
 			} else {
-				return DISCOUNT_CANNOT_BE_APPLIED;
+				return ResultCode.DISCOUNT_CANNOT_BE_APPLIED;
 			}
 
 		}
-		return "product discount applied.";
+		if (this.priceHistory != null) {
+			this.priceHistory.record(productId, product.getSellingPrice());
+		}
+		updateProductInAggregates(product, oldBucket, oldSellingPrice);
+		return ResultCode.PRODUCT_DISCOUNT_APPLIED;
 	}
 }
\ No newline at end of file
@@ -0,0 +1,177 @@
+package com.hierarchy;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * The Class LatencyHistogram.
+ * <p>
+ * Log-linear histogram in the style of HdrHistogram. Values are grouped in
+ * buckets of power of two magnitude, each bucket is split in 64 linear sub
+ * buckets. This keeps the relative error of any reported value under 1.6% with
+ * a fixed array of counts.
+ * </p>
+ * <p>
+ * Recording does not allocate and can be done from the hierarchy thread while
+ * other threads (e.g. JMX) read percentiles. Percentiles are computed over a
+ * non atomic view of the counts which is good enough for monitoring.
+ * </p>
+ */
+public class LatencyHistogram {
+
+    /** Number of bits for sub bucket. 128 sub buckets, lower half shared. */
+    private static final int SUB_BUCKET_BITS = 7;
+
+    /** The sub bucket half count magnitude. */
+    private static final int SUB_BUCKET_HALF_COUNT_MAGNITUDE = SUB_BUCKET_BITS - 1;
+
+    /** The sub bucket half count. */
+    private static final int SUB_BUCKET_HALF_COUNT = 1 << SUB_BUCKET_HALF_COUNT_MAGNITUDE;
+
+    /** The sub bucket mask. */
+    private static final long SUB_BUCKET_MASK = (1L << SUB_BUCKET_BITS) - 1;
+
+    /** The leading zero count base. */
+    private static final int LEADING_ZERO_COUNT_BASE = 64 - SUB_BUCKET_HALF_COUNT_MAGNITUDE - 1;
+
+    /** The highest trackable value. Larger values are recorded as this value. */
+    private final long highestTrackableValue;
+
+    /** The counts. */
+    private final AtomicLongArray counts;
+
+    /** The total count. */
+    private final AtomicLong totalCount = new AtomicLong();
+
+    /** The total sum of recorded values. */
+    private final AtomicLong totalSum = new AtomicLong();
+
+    /** The max recorded value. */
+    private final AtomicLong maxValue = new AtomicLong();
+
+    /**
+     * Instantiates a new latency histogram.
+     *
+     * @param highestTrackableValue the highest trackable value
+     */
+    public LatencyHistogram(long highestTrackableValue) {
+	if (highestTrackableValue < SUB_BUCKET_MASK) {
+	    highestTrackableValue = SUB_BUCKET_MASK;
+	}
+	this.highestTrackableValue = highestTrackableValue;
+	this.counts = new AtomicLongArray(countsIndex(highestTrackableValue) + 1);
+    }
+
+    /**
+     * Record a value.
+     *
+     * @param value the value
+     */
+    public void record(long value) {
+	if (value < 0) {
+	    value = 0;
+	} else if (value > highestTrackableValue) {
+	    value = highestTrackableValue;
+	}
+	counts.incrementAndGet(countsIndex(value));
+	totalCount.incrementAndGet();
+	totalSum.addAndGet(value);
+	long currentMax = maxValue.get();
+	while (value > currentMax && !maxValue.compareAndSet(currentMax, value)) {
+	    currentMax = maxValue.get();
+	}
+    }
+
+    /**
+     * Gets the value at percentile. Returned value is the highest value
+     * equivalent to the bucket holding the percentile.
+     *
+     * @param percentile the percentile between 0 and 100
+     * @return the value at percentile
+     */
+    public long getValueAtPercentile(double percentile) {
+	long count = totalCount.get();
+	if (count == 0) {
+	    return 0;
+	}
+	double requestedPercentile = Math.min(Math.max(percentile, 0), 100);
+	long countAtPercentile = Math.max(1, (long) Math.ceil((requestedPercentile / 100) * count));
+	long runningCount = 0;
+	for (int i = 0; i < counts.length(); i++) {
+	    runningCount += counts.get(i);
+	    if (runningCount >= countAtPercentile) {
+		return Math.min(highestEquivalentValue(i), maxValue.get());
+	    }
+	}
+	return maxValue.get();
+    }
+
+    /**
+     * Gets the total count.
+     *
+     * @return the total count
+     */
+    public long getTotalCount() {
+	return totalCount.get();
+    }
+
+    /**
+     * Gets the mean.
+     *
+     * @return the mean
+     */
+    public double getMean() {
+	long count = totalCount.get();
+	return count == 0 ? 0 : (double) totalSum.get() / count;
+    }
+
+    /**
+     * Gets the max value.
+     *
+     * @return the max value
+     */
+    public long getMaxValue() {
+	return maxValue.get();
+    }
+
+    /**
+     * Reset all the counts.
+     */
+    public void reset() {
+	for (int i = 0; i < counts.length(); i++) {
+	    counts.set(i, 0);
+	}
+	totalCount.set(0);
+	totalSum.set(0);
+	maxValue.set(0);
+    }
+
+    /**
+     * Gets the index in counts for given value.
+     *
+     * @param value the value
+     * @return the index
+     */
+    private static int countsIndex(long value) {
+	int bucketIndex = LEADING_ZERO_COUNT_BASE - Long.numberOfLeadingZeros(value | SUB_BUCKET_MASK);
+	int subBucketIndex = (int) (value >>> bucketIndex);
+	return ((bucketIndex + 1) << SUB_BUCKET_HALF_COUNT_MAGNITUDE) + (subBucketIndex - SUB_BUCKET_HALF_COUNT);
+    }
+
+    /**
+     * Gets the highest value which is recorded in the same index.
+     *
+     * @param index the index
+     * @return the highest equivalent value
+     */
+    private static long highestEquivalentValue(int index) {
+	int bucketIndex = (index >> SUB_BUCKET_HALF_COUNT_MAGNITUDE) - 1;
+	long subBucketIndex = (index & (SUB_BUCKET_HALF_COUNT - 1)) + SUB_BUCKET_HALF_COUNT;
+	if (bucketIndex < 0) {
+	    subBucketIndex -= SUB_BUCKET_HALF_COUNT;
+	    bucketIndex = 0;
+	}
+	return (subBucketIndex << bucketIndex) + (1L << bucketIndex) - 1;
+    }
+
+}
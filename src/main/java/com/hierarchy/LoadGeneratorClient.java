@@ -0,0 +1,240 @@
+package com.hierarchy;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The Class LoadGeneratorClient.
+ * <p>
+ * Load generator for HierarchyServer. A catalog is first built through one
+ * connection: root category 1, categories under root and products under every
+ * category. Then every connection runs in its own thread, sending a window of
+ * pipelined requests and reading their responses before sending the next
+ * window. Requests are a mix of reads of random categories (60%), flat
+ * discounts (30%) and % discounts (10%) on random products.
+ * </p>
+ * <p>
+ * Throughput and latency of windows are logged at the end.
+ * </p>
+ * <p>
+ * Usage: LoadGeneratorClient [host] [port] [connections] [pipelineDepth]
+ * [seconds] [categories] [productsPerCategory]. Defaults are localhost 9090 4
+ * 128 10 50 100.
+ * </p>
+ */
+public class LoadGeneratorClient {
+
+    /** The LOGGER. */
+    private static final Logger LOGGER = LoggerFactory.getLogger(LoadGeneratorClient.class);
+
+    /** The root category id. */
+    private static final int ROOT_CATEGORY_ID = 1;
+
+    /** The buffer size, enough for a window of requests or responses. */
+    private static final int BUFFER_SIZE = 1024 * 1024;
+
+    /** The highest trackable window latency, 10 seconds in nanos. */
+    private static final long HIGHEST_TRACKABLE_LATENCY = TimeUnit.SECONDS.toNanos(10);
+
+    /**
+     * The main method.
+     *
+     * @param args the arguments
+     * @throws Exception the exception
+     */
+    public static void main(String[] args) throws Exception {
+	String host = args.length > 0 ? args[0] : "localhost";
+	int port = args.length > 1 ? Integer.parseInt(args[1]) : HierarchyServer.DEFAULT_PORT;
+	int connections = args.length > 2 ? Integer.parseInt(args[2]) : 4;
+	int pipelineDepth = args.length > 3 ? Integer.parseInt(args[3]) : 128;
+	int seconds = args.length > 4 ? Integer.parseInt(args[4]) : 10;
+	int categories = args.length > 5 ? Integer.parseInt(args[5]) : 50;
+	int productsPerCategory = args.length > 6 ? Integer.parseInt(args[6]) : 100;
+	InetSocketAddress address = new InetSocketAddress(host, port);
+
+	long startNanos = System.nanoTime();
+	try (SocketChannel channel = connect(address)) {
+	    buildCatalog(channel, categories, productsPerCategory);
+	}
+	LOGGER.info("catalog of {} categories and {} products built in {} ms", categories,
+		categories * productsPerCategory, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos));
+
+	LatencyHistogram windowLatency = new LatencyHistogram(HIGHEST_TRACKABLE_LATENCY);
+	AtomicLong operations = new AtomicLong();
+	AtomicLong failures = new AtomicLong();
+	long deadlineNanos = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+	Thread[] threads = new Thread[connections];
+	for (int i = 0; i < connections; i++) {
+	    long seed = i;
+	    threads[i] = new Thread(() -> {
+		try (SocketChannel channel = connect(address)) {
+		    generateLoad(channel, new Random(seed), pipelineDepth, deadlineNanos, categories,
+			    productsPerCategory, windowLatency, operations);
+		} catch (IOException e) {
+		    failures.incrementAndGet();
+		    LOGGER.error("connection failed", e);
+		}
+	    }, "load-" + i);
+	    threads[i].start();
+	}
+	startNanos = System.nanoTime();
+	for (Thread thread : threads) {
+	    thread.join();
+	}
+	long elapsedNanos = System.nanoTime() - startNanos;
+	LOGGER.info(
+		"{} connections, pipeline depth {}: {} ops, {} ops/sec, window latency p50 {} us, p99 {} us, max {} us, "
+			+ "{} failed connections",
+		connections, pipelineDepth, operations.get(), operations.get() * 1000000000L / elapsedNanos,
+		windowLatency.getValueAtPercentile(50) / 1000, windowLatency.getValueAtPercentile(99) / 1000,
+		windowLatency.getMaxValue() / 1000, failures.get());
+    }
+
+    /**
+     * Open a blocking connection.
+     *
+     * @param address the address
+     * @return the socket channel
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    private static SocketChannel connect(InetSocketAddress address) throws IOException {
+	SocketChannel channel = SocketChannel.open(address);
+	channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+	return channel;
+    }
+
+    /**
+     * Build the catalog. Node ids are root 1, categories 2..categories+1, then
+     * products of each category in order.
+     *
+     * @param channel             the channel
+     * @param categories          the categories
+     * @param productsPerCategory the products per category
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    private static void buildCatalog(SocketChannel channel, int categories, int productsPerCategory)
+	    throws IOException {
+	ByteBuffer requests = ByteBuffer.allocate(BUFFER_SIZE);
+	ByteBuffer responses = ByteBuffer.allocate(BUFFER_SIZE);
+	Random random = new Random(categories);
+	BinaryProtocol.putAddNodeInfo(requests, ROOT_CATEGORY_ID, -1, "root".getBytes(StandardCharsets.UTF_8));
+	int pendingRequests = 1;
+	for (int i = 0; i < categories; i++) {
+	    int categoryId = ROOT_CATEGORY_ID + 1 + i;
+	    BinaryProtocol.putAddNewNode(requests, ROOT_CATEGORY_ID, categoryId, -1,
+		    ("c" + categoryId).getBytes(StandardCharsets.UTF_8));
+	    pendingRequests++;
+	    for (int j = 0; j < productsPerCategory; j++) {
+		int productId = productId(categories, productsPerCategory, i, j);
+		BinaryProtocol.putAddNewNode(requests, categoryId, productId, 100 + random.nextInt(1000),
+			("p" + productId).getBytes(StandardCharsets.UTF_8));
+		pendingRequests++;
+	    }
+	    if (requests.position() > BUFFER_SIZE / 2) {
+		exchange(channel, requests, responses, pendingRequests, null);
+		pendingRequests = 0;
+	    }
+	}
+	exchange(channel, requests, responses, pendingRequests, null);
+    }
+
+    /**
+     * Gets the product id of j-th product of i-th category.
+     *
+     * @param categories          the categories
+     * @param productsPerCategory the products per category
+     * @param i                   the category index
+     * @param j                   the product index
+     * @return the product id
+     */
+    private static int productId(int categories, int productsPerCategory, int i, int j) {
+	return ROOT_CATEGORY_ID + 1 + categories + i * productsPerCategory + j;
+    }
+
+    /**
+     * Send windows of pipelined requests till deadline.
+     *
+     * @param channel             the channel
+     * @param random              the random
+     * @param pipelineDepth       the pipeline depth
+     * @param deadlineNanos       the deadline nanos
+     * @param categories          the categories
+     * @param productsPerCategory the products per category
+     * @param windowLatency       the window latency
+     * @param operations          the operations
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    private static void generateLoad(SocketChannel channel, Random random, int pipelineDepth, long deadlineNanos,
+	    int categories, int productsPerCategory, LatencyHistogram windowLatency, AtomicLong operations)
+	    throws IOException {
+	ByteBuffer requests = ByteBuffer.allocate(BUFFER_SIZE);
+	ByteBuffer responses = ByteBuffer.allocate(BUFFER_SIZE);
+	ProductResult productResult = new ProductResult();
+	while (System.nanoTime() < deadlineNanos) {
+	    for (int i = 0; i < pipelineDepth; i++) {
+		int operation = random.nextInt(10);
+		if (operation < 6) {
+		    BinaryProtocol.putGetMaximumDiscountedProduct(requests,
+			    ROOT_CATEGORY_ID + 1 + random.nextInt(categories));
+		} else {
+		    int productId = productId(categories, productsPerCategory, random.nextInt(categories),
+			    random.nextInt(productsPerCategory));
+		    if (operation < 9) {
+			BinaryProtocol.putDiscount(requests, BinaryProtocol.FLAT_DISCOUNT, productId,
+				random.nextInt(3));
+		    } else {
+			BinaryProtocol.putDiscount(requests, BinaryProtocol.PERCENT_DISCOUNT, productId, 1);
+		    }
+		}
+	    }
+	    long startNanos = System.nanoTime();
+	    exchange(channel, requests, responses, pipelineDepth, productResult);
+	    windowLatency.record(System.nanoTime() - startNanos);
+	    operations.addAndGet(pipelineDepth);
+	}
+    }
+
+    /**
+     * Write every buffered request, then read the given number of responses.
+     * Requests buffer is cleared.
+     *
+     * @param channel         the channel
+     * @param requests        the requests in write mode
+     * @param responses       the responses buffer
+     * @param pendingRequests the number of requests
+     * @param productResult   the product result, may be null
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    private static void exchange(SocketChannel channel, ByteBuffer requests, ByteBuffer responses,
+	    int pendingRequests, ProductResult productResult) throws IOException {
+	requests.flip();
+	while (requests.hasRemaining()) {
+	    channel.write(requests);
+	}
+	requests.clear();
+	ProductResult result = productResult != null ? productResult : new ProductResult();
+	int remainingResponses = pendingRequests;
+	responses.clear();
+	while (remainingResponses > 0) {
+	    if (channel.read(responses) < 0) {
+		throw new IOException("Connection closed by server");
+	    }
+	    responses.flip();
+	    while (remainingResponses > 0 && BinaryProtocol.completeFrameLength(responses) >= 0) {
+		BinaryProtocol.getResponse(responses, result);
+		remainingResponses--;
+	    }
+	    responses.compact();
+	}
+    }
+}
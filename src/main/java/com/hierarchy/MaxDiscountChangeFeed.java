@@ -0,0 +1,316 @@
+package com.hierarchy;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The Class MaxDiscountChangeFeed.
+ * <p>
+ * Feed of the changes of max discounted product of categories, for caches kept
+ * outside the hierarchy. The hierarchy notes the product a category had before
+ * its first change within an operation, and at the end of the operation
+ * publishes one event (categoryId, old product id, new product id) per category
+ * whose product differs; a category changed back and forth, or whose product
+ * only changed discount, gives no event. A discount on a top level category
+ * thus gives at most one event per category of its subtree, and a batch or a
+ * transaction one per category it changed overall. Product id 0 means no
+ * product. Removed categories give no event.
+ * </p>
+ * <p>
+ * Events are delivered to every subscription through its own bounded single
+ * producer single consumer ring, so neither publishing nor polling takes a
+ * lock or allocates. When a ring is full the event is dropped and counted; a
+ * subscriber seeing drops must read again the categories it caches. In lazy
+ * aggregates mode a category changes when it is recomputed, so its event comes
+ * with the read which recomputed it.
+ * </p>
+ * <p>
+ * Changes are noted and published by the thread owning the hierarchy, or under
+ * the write lock of a ConcurrentHierarchy; subscriptions may be added, polled
+ * and closed from any thread.
+ * </p>
+ */
+public class MaxDiscountChangeFeed {
+
+    /** The initial capacity of changes noted within an operation. */
+    private static final int INITIAL_CAPACITY = 16;
+
+    /**
+     * The listener interface of max discounted product changes.
+     */
+    public interface Listener {
+
+	/**
+	 * Called for a change of max discounted product of category.
+	 *
+	 * @param categoryId   the category id
+	 * @param oldProductId the old product id, 0 if none
+	 * @param newProductId the new product id, 0 if none
+	 */
+	void onChange(int categoryId, int oldProductId, int newProductId);
+    }
+
+    /**
+     * The Class Subscription.
+     * <p>
+     * Bounded ring of the events published since subscribe, read by a single
+     * consumer. Producer and consumer only share the tail and head sequences,
+     * written with lazySet and read as volatile.
+     * </p>
+     */
+    public static class Subscription {
+
+	/** The feed. */
+	private final MaxDiscountChangeFeed feed;
+
+	/** The events: category id, old and new product id, per slot. */
+	private final int[] events;
+
+	/** The mask of slot index. */
+	private final int mask;
+
+	/** The sequence of next event to read, written by consumer. */
+	private final AtomicLong head = new AtomicLong();
+
+	/** The sequence of next event to write, written by producer. */
+	private final AtomicLong tail = new AtomicLong();
+
+	/** The number of events dropped as ring was full. */
+	private final AtomicLong droppedCount = new AtomicLong();
+
+	/**
+	 * Instantiates a new subscription.
+	 *
+	 * @param feed     the feed
+	 * @param capacity the capacity, a power of two
+	 */
+	Subscription(MaxDiscountChangeFeed feed, int capacity) {
+	    this.feed = feed;
+	    this.events = new int[capacity * 3];
+	    this.mask = capacity - 1;
+	}
+
+	/**
+	 * Offer an event, called by the producer only.
+	 *
+	 * @param categoryId   the category id
+	 * @param oldProductId the old product id
+	 * @param newProductId the new product id
+	 */
+	void offer(int categoryId, int oldProductId, int newProductId) {
+	    long sequence = tail.get();
+	    if (sequence - head.get() > mask) {
+		droppedCount.incrementAndGet();
+		return;
+	    }
+	    int index = (int) (sequence & mask) * 3;
+	    events[index] = categoryId;
+	    events[index + 1] = oldProductId;
+	    events[index + 2] = newProductId;
+	    // Ordered store: the event is visible before the new tail
+	    tail.lazySet(sequence + 1);
+	}
+
+	/**
+	 * Poll the pending events, in order of publication.
+	 *
+	 * @param listener  the listener called for every event
+	 * @param maxEvents the max number of events to poll
+	 * @return the number of events polled
+	 */
+	public int poll(Listener listener, int maxEvents) {
+	    long sequence = head.get();
+	    long available = Math.min(tail.get() - sequence, maxEvents);
+	    for (int i = 0; i < available; i++) {
+		int index = (int) ((sequence + i) & mask) * 3;
+		listener.onChange(events[index], events[index + 1], events[index + 2]);
+	    }
+	    // Slots are free for the producer once read
+	    head.lazySet(sequence + available);
+	    return (int) available;
+	}
+
+	/**
+	 * Gets the number of pending events.
+	 *
+	 * @return the pending count
+	 */
+	public int getPendingCount() {
+	    return (int) (tail.get() - head.get());
+	}
+
+	/**
+	 * Gets the number of events dropped as this subscription was full.
+	 *
+	 * @return the dropped count
+	 */
+	public long getDroppedCount() {
+	    return droppedCount.get();
+	}
+
+	/**
+	 * Close the subscription; no more events are delivered to it.
+	 */
+	public void close() {
+	    feed.unsubscribe(this);
+	}
+    }
+
+    /** The subscriptions, replaced on change so publish reads them lock free. */
+    private volatile Subscription[] subscriptions = new Subscription[0];
+
+    /** The ids of categories changed in current operation. */
+    private int[] categoryIds = new int[INITIAL_CAPACITY];
+
+    /** The product ids the changed categories had before. */
+    private int[] oldProductIds = new int[INITIAL_CAPACITY];
+
+    /** The hash table slots of changed categories. */
+    private int[] tableSlots = new int[INITIAL_CAPACITY];
+
+    /** The number of categories changed in current operation. */
+    private int changedCount;
+
+    /**
+     * The hash table of changed categories: index in categoryIds plus one, 0
+     * for a free slot. Kept at most half full.
+     */
+    private int[] table = new int[INITIAL_CAPACITY * 2];
+
+    /** The number of published events. */
+    private long publishedCount;
+
+    /**
+     * Subscribe to the events published from now on.
+     *
+     * @param capacity the max number of pending events, rounded up to a power
+     *                 of two
+     * @return the subscription
+     */
+    public synchronized Subscription subscribe(int capacity) {
+	if (capacity <= 0 || capacity > 1 << 28) {
+	    throw new IllegalArgumentException("Invalid capacity " + capacity);
+	}
+	int ringCapacity = Integer.highestOneBit(capacity);
+	if (ringCapacity < capacity) {
+	    ringCapacity <<= 1;
+	}
+	Subscription subscription = new Subscription(this, ringCapacity);
+	Subscription[] newSubscriptions = Arrays.copyOf(subscriptions, subscriptions.length + 1);
+	newSubscriptions[subscriptions.length] = subscription;
+	subscriptions = newSubscriptions;
+	return subscription;
+    }
+
+    /**
+     * Unsubscribe.
+     *
+     * @param subscription the subscription
+     */
+    synchronized void unsubscribe(Subscription subscription) {
+	Subscription[] newSubscriptions = new Subscription[subscriptions.length];
+	int count = 0;
+	for (Subscription other : subscriptions) {
+	    if (other != subscription) {
+		newSubscriptions[count++] = other;
+	    }
+	}
+	subscriptions = Arrays.copyOf(newSubscriptions, count);
+    }
+
+    /**
+     * Note the product category had before a change, if it is the first change
+     * of category in current operation. Nothing is noted without subscription.
+     *
+     * @param categoryId   the category id
+     * @param oldProductId the product id before the change
+     */
+    void noteChange(int categoryId, int oldProductId) {
+	if (subscriptions.length == 0) {
+	    return;
+	}
+	int slot = findSlot(categoryId);
+	if (table[slot] != 0) {
+	    return;
+	}
+	if (changedCount == categoryIds.length) {
+	    categoryIds = Arrays.copyOf(categoryIds, changedCount * 2);
+	    oldProductIds = Arrays.copyOf(oldProductIds, changedCount * 2);
+	    tableSlots = Arrays.copyOf(tableSlots, changedCount * 2);
+	}
+	categoryIds[changedCount] = categoryId;
+	oldProductIds[changedCount] = oldProductId;
+	tableSlots[changedCount] = slot;
+	changedCount++;
+	table[slot] = changedCount;
+	if (changedCount * 2 > table.length) {
+	    resize();
+	}
+    }
+
+    /**
+     * Publish an event for every category changed in current operation whose
+     * max discounted product differs from before, and forget the changes.
+     *
+     * @param hierarchy the hierarchy
+     */
+    void publish(HierarchyUsingChildCategoryAndProduct hierarchy) {
+	if (changedCount == 0) {
+	    return;
+	}
+	Subscription[] current = subscriptions;
+	for (int i = 0; i < changedCount; i++) {
+	    table[tableSlots[i]] = 0;
+	    Category category = hierarchy.categories.get(categoryIds[i]);
+	    if (category == null || hierarchy.isTombstoned(categoryIds[i])) {
+		continue;
+	    }
+	    int newProductId = category.getMaxDiscountedProductId();
+	    if (newProductId != oldProductIds[i]) {
+		for (Subscription subscription : current) {
+		    subscription.offer(categoryIds[i], oldProductIds[i], newProductId);
+		}
+		publishedCount++;
+	    }
+	}
+	changedCount = 0;
+    }
+
+    /**
+     * Find the slot of category in table, or the free slot where it belongs.
+     *
+     * @param categoryId the category id
+     * @return the slot
+     */
+    private int findSlot(int categoryId) {
+	int mask = table.length - 1;
+	int hash = categoryId * 0x9E3779B9;
+	int slot = (hash ^ (hash >>> 16)) & mask;
+	while (table[slot] != 0 && categoryIds[table[slot] - 1] != categoryId) {
+	    slot = (slot + 1) & mask;
+	}
+	return slot;
+    }
+
+    /**
+     * Double the table and insert the changed categories again.
+     */
+    private void resize() {
+	table = new int[table.length * 2];
+	for (int i = 0; i < changedCount; i++) {
+	    int slot = findSlot(categoryIds[i]);
+	    table[slot] = i + 1;
+	    tableSlots[i] = slot;
+	}
+    }
+
+    /**
+     * Gets the number of events published, each delivered to every
+     * subscription.
+     *
+     * @return the published count
+     */
+    public long getPublishedCount() {
+	return publishedCount;
+    }
+}
@@ -0,0 +1,138 @@
+package com.hierarchy;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The Class MaxDiscountChangeFeedBenchmark.
+ * <p>
+ * Cost of the change feed and effect of coalescing. Discounts on random nodes
+ * of a complete tree of categories, one in rootEvery on the top level
+ * category, are applied once without feed and once with a feed whose
+ * subscription is polled by another thread. The events per discount on top
+ * level category stay at most the number of categories, however many times a
+ * category is updated within the operation.
+ * </p>
+ * <p>
+ * Usage: MaxDiscountChangeFeedBenchmark [categories] [productsPerCategory]
+ * [discounts] [rootEvery] [rounds]. Defaults are 2000 10 100000 100 5.
+ * </p>
+ */
+public class MaxDiscountChangeFeedBenchmark {
+
+    /** The LOGGER. */
+    private static final Logger LOGGER = LoggerFactory.getLogger(MaxDiscountChangeFeedBenchmark.class);
+
+    /** The branching factor of category tree. */
+    private static final int BRANCHING = 8;
+
+    /** The warm up rounds, results of these are not reported. */
+    private static final int WARM_UP_ROUNDS = 2;
+
+    /** The id of top level category. */
+    private static final int ROOT_ID = 1;
+
+    /** The capacity of subscription. */
+    private static final int SUBSCRIPTION_CAPACITY = 1 << 16;
+
+    /**
+     * The main method.
+     *
+     * @param args the arguments
+     * @throws InterruptedException if interrupted while waiting for the poller
+     */
+    public static void main(String[] args) throws InterruptedException {
+	int categoryCount = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+	int productsPerCategory = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+	int discountCount = args.length > 2 ? Integer.parseInt(args[2]) : 100000;
+	int rootEvery = args.length > 3 ? Integer.parseInt(args[3]) : 100;
+	int rounds = args.length > 4 ? Integer.parseInt(args[4]) : 5;
+
+	for (int round = 0; round < WARM_UP_ROUNDS + rounds; round++) {
+	    HierarchyUsingChildCategoryAndProduct hierarchy = createHierarchy(categoryCount, productsPerCategory);
+	    long plainNanos = applyDiscounts(hierarchy, categoryCount, productsPerCategory, discountCount, rootEvery,
+		    round);
+
+	    hierarchy = createHierarchy(categoryCount, productsPerCategory);
+	    MaxDiscountChangeFeed feed = new MaxDiscountChangeFeed();
+	    hierarchy.setChangeFeed(feed);
+	    MaxDiscountChangeFeed.Subscription subscription = feed.subscribe(SUBSCRIPTION_CAPACITY);
+	    long[] polled = new long[1];
+	    MaxDiscountChangeFeed.Listener listener = (categoryId, oldProductId, newProductId) -> polled[0]++;
+	    Thread poller = new Thread(() -> {
+		while (!Thread.currentThread().isInterrupted()) {
+		    if (subscription.poll(listener, Integer.MAX_VALUE) == 0) {
+			Thread.yield();
+		    }
+		}
+		subscription.poll(listener, Integer.MAX_VALUE);
+	    }, "feed-poller");
+	    poller.start();
+	    long feedNanos = applyDiscounts(hierarchy, categoryCount, productsPerCategory, discountCount, rootEvery,
+		    round);
+	    poller.interrupt();
+	    poller.join();
+	    subscription.close();
+
+	    if (round >= WARM_UP_ROUNDS) {
+		LOGGER.info("{} discounts: without feed {} ms, with feed {} ms", discountCount,
+			TimeUnit.NANOSECONDS.toMillis(plainNanos), TimeUnit.NANOSECONDS.toMillis(feedNanos));
+		LOGGER.info("{} events published, {} polled, {} dropped, {} per discount", feed.getPublishedCount(),
+			polled[0], subscription.getDroppedCount(),
+			String.format("%.2f", feed.getPublishedCount() / (double) discountCount));
+	    }
+	}
+    }
+
+    /**
+     * Apply the discounts, the same for a given round.
+     *
+     * @param hierarchy           the hierarchy
+     * @param categoryCount       the category count
+     * @param productsPerCategory the products per category
+     * @param discountCount       the discount count
+     * @param rootEvery           the interval of discounts on top level
+     *                            category
+     * @param round               the round
+     * @return the elapsed nanos
+     */
+    private static long applyDiscounts(HierarchyUsingChildCategoryAndProduct hierarchy, int categoryCount,
+	    int productsPerCategory, int discountCount, int rootEvery, int round) {
+	Random random = new Random(round);
+	int nodeCount = categoryCount * (1 + productsPerCategory);
+	long startNanos = System.nanoTime();
+	for (int i = 0; i < discountCount; i++) {
+	    int nodeId = i % rootEvery == 0 ? ROOT_ID : ROOT_ID + 1 + random.nextInt(nodeCount);
+	    hierarchy.applyDiscountOnNodeResult(nodeId, 1, 1 + random.nextInt(5));
+	}
+	return System.nanoTime() - startNanos;
+    }
+
+    /**
+     * Creates the hierarchy: a complete tree of categories under the top level
+     * category, each with products.
+     *
+     * @param categoryCount       the category count
+     * @param productsPerCategory the products per category
+     * @return the hierarchy
+     */
+    private static HierarchyUsingChildCategoryAndProduct createHierarchy(int categoryCount,
+	    int productsPerCategory) {
+	HierarchyUsingChildCategoryAndProduct hierarchy = new HierarchyUsingChildCategoryAndProduct();
+	hierarchy.addNodeInfoResult(ROOT_ID, "root", -1);
+	int firstCategoryId = ROOT_ID + 1;
+	int nodeId = firstCategoryId + categoryCount;
+	for (int i = 0; i < categoryCount; i++) {
+	    int categoryId = firstCategoryId + i;
+	    int parentId = i == 0 ? ROOT_ID : firstCategoryId + (i - 1) / BRANCHING;
+	    hierarchy.addNewNodeResult(parentId, categoryId, -1, "c");
+	    for (int j = 0; j < productsPerCategory; j++) {
+		hierarchy.addNewNodeResult(categoryId, nodeId++, 100 + j, "p");
+	    }
+	}
+	return hierarchy;
+    }
+}
@@ -12,6 +12,9 @@ import java.util.Comparator;
  */
 public class MaxDiscountChildCategoryComparator implements Comparator<ChildCategory> {
 
+    /** The shared instance, the comparator has no state. */
+    public static final MaxDiscountChildCategoryComparator INSTANCE = new MaxDiscountChildCategoryComparator();
+
     /*
      * (non-Javadoc)
      * @see java.util.Comparator#compare(java.lang.Object, java.lang.Object)
@@ -12,6 +12,9 @@ import java.util.Comparator;
  */
 public class MaxDiscountChildProductComparator implements Comparator<ChildProduct> {
 
+    /** The shared instance, the comparator has no state. */
+    public static final MaxDiscountChildProductComparator INSTANCE = new MaxDiscountChildProductComparator();
+
     /*
      * (non-Javadoc)
      * @see java.util.Comparator#compare(java.lang.Object, java.lang.Object)
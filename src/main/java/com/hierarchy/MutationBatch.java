@@ -0,0 +1,177 @@
+package com.hierarchy;
+
+import java.util.Arrays;
+
+/**
+ * The Class MutationBatch.
+ * <p>
+ * A batch of mutations applied on hierarchy with
+ * HierarchyUsingChildCategoryAndProduct.applyBatch. Mutations are identified
+ * by the same query types as the input file: 1 for % discount, 2 for flat
+ * discount, 4 for add, 5 for delete and 6 for move. Change of original price
+ * and revert of a discount, which have no query in the input file nor in
+ * BinaryProtocol, are CHANGE_ORIGINAL_PRICE and REVERT_DISCOUNT, numbered
+ * after every query type. Mutations are applied in order; the result of each
+ * is available through getResult once the batch is applied.
+ * </p>
+ */
+public class MutationBatch {
+
+    /** The query type of an original price change, batch only. */
+    static final int CHANGE_ORIGINAL_PRICE = 101;
+
+    /** The query type of a discount revert, batch only. */
+    static final int REVERT_DISCOUNT = 102;
+
+    /** The initial capacity. */
+    private static final int INITIAL_CAPACITY = 16;
+
+    /** The query types. */
+    int[] queryTypes = new int[INITIAL_CAPACITY];
+
+    /** The node ids. */
+    int[] nodeIds = new int[INITIAL_CAPACITY];
+
+    /** The parent ids, for add and move. */
+    int[] parentIds = new int[INITIAL_CAPACITY];
+
+    /** The values, discount for discount and price for add and price change. */
+    float[] values = new float[INITIAL_CAPACITY];
+
+    /** The node names, for add. */
+    String[] nodeNames = new String[INITIAL_CAPACITY];
+
+    /** The results. */
+    ResultCode[] results = new ResultCode[INITIAL_CAPACITY];
+
+    /** The number of mutations. */
+    int size;
+
+    /**
+     * Adds a % (discount type 1) or flat (discount type 2) discount.
+     *
+     * @param nodeId the node id
+     * @param discountType the discount type
+     * @param discount the discount
+     * @return this batch
+     */
+    public MutationBatch addDiscount(int nodeId, int discountType, float discount) {
+	return add(discountType, nodeId, 0, discount, null);
+    }
+
+    /**
+     * Adds a new category (price -1) or product.
+     *
+     * @param parentCategoryId the parent category id
+     * @param nodeId the node id
+     * @param price the price
+     * @param nodeName the node name
+     * @return this batch
+     */
+    public MutationBatch addNewNode(int parentCategoryId, int nodeId, float price, String nodeName) {
+	return add(4, nodeId, parentCategoryId, price, nodeName);
+    }
+
+    /**
+     * Adds removal of a category or product.
+     *
+     * @param nodeId the node id
+     * @return this batch
+     */
+    public MutationBatch removeNode(int nodeId) {
+	return add(5, nodeId, 0, 0, null);
+    }
+
+    /**
+     * Adds move of a category or product under new parent category.
+     *
+     * @param nodeId the node id
+     * @param newParentCategoryId the new parent category id
+     * @return this batch
+     */
+    public MutationBatch moveNode(int nodeId, int newParentCategoryId) {
+	return add(6, nodeId, newParentCategoryId, 0, null);
+    }
+
+    /**
+     * Adds change of the original price of a product. Selling price is scaled
+     * by the same factor, so the product keeps its discount ratio.
+     *
+     * @param productId the product id
+     * @param originalPrice the new original price
+     * @return this batch
+     */
+    public MutationBatch changeOriginalPrice(int productId, float originalPrice) {
+	return add(CHANGE_ORIGINAL_PRICE, productId, 0, originalPrice, null);
+    }
+
+    /**
+     * Adds revert of a discount: amount, taken off the selling price of product
+     * by a discount, is added back, up to its original price.
+     *
+     * @param productId the product id
+     * @param amount    the amount
+     * @return this batch
+     */
+    public MutationBatch revertDiscount(int productId, float amount) {
+	return add(REVERT_DISCOUNT, productId, 0, amount, null);
+    }
+
+    /**
+     * Adds a mutation.
+     *
+     * @param queryType the query type
+     * @param nodeId the node id
+     * @param parentId the parent id
+     * @param value the value
+     * @param nodeName the node name
+     * @return this batch
+     */
+    private MutationBatch add(int queryType, int nodeId, int parentId, float value, String nodeName) {
+	if (size == queryTypes.length) {
+	    int capacity = size * 2;
+	    queryTypes = Arrays.copyOf(queryTypes, capacity);
+	    nodeIds = Arrays.copyOf(nodeIds, capacity);
+	    parentIds = Arrays.copyOf(parentIds, capacity);
+	    values = Arrays.copyOf(values, capacity);
+	    nodeNames = Arrays.copyOf(nodeNames, capacity);
+	    results = Arrays.copyOf(results, capacity);
+	}
+	queryTypes[size] = queryType;
+	nodeIds[size] = nodeId;
+	parentIds[size] = parentId;
+	values[size] = value;
+	nodeNames[size] = nodeName;
+	results[size] = null;
+	size++;
+	return this;
+    }
+
+    /**
+     * Gets the number of mutations.
+     *
+     * @return the size
+     */
+    public int size() {
+	return size;
+    }
+
+    /**
+     * Gets the result of mutation at index.
+     *
+     * @param index the index
+     * @return the result, null if batch is not applied yet
+     */
+    public ResultCode getResult(int index) {
+	return results[index];
+    }
+
+    /**
+     * Clear this batch so that it can be reused.
+     */
+    public void clear() {
+	Arrays.fill(nodeNames, 0, size, null);
+	size = 0;
+    }
+
+}
@@ -0,0 +1,389 @@
+package com.hierarchy;
+
+import java.util.Arrays;
+import java.util.function.IntPredicate;
+
+/**
+ * The Class NameIndex.
+ * <p>
+ * Optional index of node (category and product) names for prefix lookups. Set
+ * on HierarchyUsingChildCategoryAndProduct, it is maintained on every node
+ * creation and removal. Names are not unique, so every name maps to the ids of
+ * all nodes having it. Lookups ignore case.
+ * </p>
+ * <p>
+ * Names are kept in a trie of characters stored in parallel primitive arrays:
+ * every node has a character label, its first child, its next sibling and the
+ * head of its list of ids, and counts the names at or below it. Siblings are
+ * kept ordered by label, so a prefix lookup returns ids in the order of their
+ * names. A prefix lookup takes O(prefix length * alphabet) to reach the prefix
+ * node, plus the walk of the trie below it till enough matches are found. Nodes
+ * and id entries freed by removals are kept in free lists and reused.
+ * </p>
+ * <p>
+ * Like the hierarchy, this class is not thread safe.
+ * </p>
+ */
+public class NameIndex {
+
+    /** The initial capacity of nodes and id entries. */
+    private static final int INITIAL_CAPACITY = 64;
+
+    /** The root node, standing for the empty prefix. */
+    private static final int ROOT = 0;
+
+    /** No node or no id entry. */
+    private static final int NONE = -1;
+
+    /** The node labels. */
+    private char[] labels = new char[INITIAL_CAPACITY];
+
+    /** The first child of every node. */
+    private int[] firstChildren = new int[INITIAL_CAPACITY];
+
+    /** The next sibling of every node, also the next free node. */
+    private int[] nextSiblings = new int[INITIAL_CAPACITY];
+
+    /** The first id entry of every node. */
+    private int[] firstIdEntries = new int[INITIAL_CAPACITY];
+
+    /** The number of names at or below every node. */
+    private int[] nameCounts = new int[INITIAL_CAPACITY];
+
+    /** The number of nodes ever allocated, free nodes included. */
+    private int nodeCount;
+
+    /** The first free node. */
+    private int freeNode = NONE;
+
+    /** The ids of id entries. */
+    private int[] ids = new int[INITIAL_CAPACITY];
+
+    /** The next id entry of every id entry, also the next free entry. */
+    private int[] nextIdEntries = new int[INITIAL_CAPACITY];
+
+    /** The number of id entries ever allocated, free entries included. */
+    private int idEntryCount;
+
+    /** The first free id entry. */
+    private int freeIdEntry = NONE;
+
+    /** The number of indexed names. */
+    private int nameCount;
+
+    /** The node path of last removal, reused. */
+    private int[] path = new int[INITIAL_CAPACITY];
+
+    /** The stack of prefix lookup, reused. */
+    private int[] stack = new int[INITIAL_CAPACITY];
+
+    /**
+     * Instantiates a new name index.
+     */
+    public NameIndex() {
+	allocateNode((char) 0);
+    }
+
+    /**
+     * Adds the name of a node. A null name is not indexed.
+     *
+     * @param name the name
+     * @param id   the node id
+     */
+    public void add(String name, int id) {
+	if (name == null) {
+	    return;
+	}
+	int node = ROOT;
+	nameCounts[ROOT]++;
+	for (int i = 0; i < name.length(); i++) {
+	    node = findOrAddChild(node, Character.toLowerCase(name.charAt(i)));
+	    nameCounts[node]++;
+	}
+	int entry = allocateIdEntry(id);
+	nextIdEntries[entry] = firstIdEntries[node];
+	firstIdEntries[node] = entry;
+	nameCount++;
+    }
+
+    /**
+     * Removes the name of a node. Trie nodes left without id and child are freed.
+     *
+     * @param name the name
+     * @param id   the node id
+     * @return true, if name of node was indexed
+     */
+    public boolean remove(String name, int id) {
+	if (name == null) {
+	    return false;
+	}
+	if (path.length <= name.length()) {
+	    path = new int[name.length() + 1];
+	}
+	int node = ROOT;
+	path[0] = ROOT;
+	for (int i = 0; i < name.length(); i++) {
+	    node = findChild(node, Character.toLowerCase(name.charAt(i)));
+	    if (node == NONE) {
+		return false;
+	    }
+	    path[i + 1] = node;
+	}
+
+	// Unlink id entry from the ids of node
+	int previousEntry = NONE;
+	int entry = firstIdEntries[node];
+	while (entry != NONE && ids[entry] != id) {
+	    previousEntry = entry;
+	    entry = nextIdEntries[entry];
+	}
+	if (entry == NONE) {
+	    return false;
+	}
+	if (previousEntry == NONE) {
+	    firstIdEntries[node] = nextIdEntries[entry];
+	} else {
+	    nextIdEntries[previousEntry] = nextIdEntries[entry];
+	}
+	nextIdEntries[entry] = freeIdEntry;
+	freeIdEntry = entry;
+	nameCount--;
+	for (int i = 0; i <= name.length(); i++) {
+	    nameCounts[path[i]]--;
+	}
+
+	// Free the nodes of name which are not prefix of another name
+	for (int i = name.length(); i > 0; i--) {
+	    node = path[i];
+	    if (nameCounts[node] > 0) {
+		break;
+	    }
+	    unlinkChild(path[i - 1], node);
+	    nextSiblings[node] = freeNode;
+	    freeNode = node;
+	}
+	return true;
+    }
+
+    /**
+     * Count the names starting with prefix, ignoring case. Takes the same time
+     * as reaching the prefix node, the count is kept on every node.
+     *
+     * @param prefix the prefix
+     * @return the name count
+     */
+    public int countByPrefix(String prefix) {
+	int node = findNode(prefix);
+	return node == NONE ? 0 : nameCounts[node];
+    }
+
+    /**
+     * Checks if name starts with prefix, ignoring case the same way as the
+     * index.
+     *
+     * @param name   the name, may be null
+     * @param prefix the prefix
+     * @return true, if name starts with prefix
+     */
+    static boolean hasPrefix(String name, String prefix) {
+	if (name == null || name.length() < prefix.length()) {
+	    return false;
+	}
+	for (int i = 0; i < prefix.length(); i++) {
+	    if (Character.toLowerCase(name.charAt(i)) != Character.toLowerCase(prefix.charAt(i))) {
+		return false;
+	    }
+	}
+	return true;
+    }
+
+    /**
+     * Find the nodes having a name starting with prefix, ignoring case. Ids are
+     * returned in the order of their names.
+     *
+     * @param prefix the prefix, empty for all names
+     * @param filter the filter of ids, null to accept every id
+     * @param result the array to populate with ids, its length is the max number
+     *               of matches
+     * @return the number of ids written to result
+     */
+    public int findByPrefix(String prefix, IntPredicate filter, int[] result) {
+	int node = findNode(prefix);
+	if (node == NONE || result.length == 0) {
+	    return 0;
+	}
+
+	// Pre order walk below prefix node: ids of a node before its children,
+	// children in order of label
+	int found = 0;
+	int stackSize = 0;
+	stack[stackSize++] = node;
+	int prefixNode = node;
+	while (stackSize > 0) {
+	    node = stack[--stackSize];
+	    for (int entry = firstIdEntries[node]; entry != NONE; entry = nextIdEntries[entry]) {
+		if (filter == null || filter.test(ids[entry])) {
+		    result[found++] = ids[entry];
+		    if (found == result.length) {
+			return found;
+		    }
+		}
+	    }
+	    if (stackSize + 2 > stack.length) {
+		stack = Arrays.copyOf(stack, stack.length * 2);
+	    }
+	    if (node != prefixNode && nextSiblings[node] != NONE) {
+		stack[stackSize++] = nextSiblings[node];
+	    }
+	    if (firstChildren[node] != NONE) {
+		stack[stackSize++] = firstChildren[node];
+	    }
+	}
+	return found;
+    }
+
+    /**
+     * Gets the number of indexed names.
+     *
+     * @return the name count
+     */
+    public int getNameCount() {
+	return nameCount;
+    }
+
+    /**
+     * Gets the approximate memory used by the trie and id arrays, in bytes.
+     * Array headers are not counted.
+     *
+     * @return the memory bytes
+     */
+    public long getMemoryBytes() {
+	return labels.length * (2L + 4 + 4 + 4 + 4) + ids.length * (4L + 4) + path.length * 4L + stack.length * 4L;
+    }
+
+    /**
+     * Find the node of prefix.
+     *
+     * @param prefix the prefix
+     * @return the node, NONE if no name starts with prefix
+     */
+    private int findNode(String prefix) {
+	int node = ROOT;
+	for (int i = 0; i < prefix.length() && node != NONE; i++) {
+	    node = findChild(node, Character.toLowerCase(prefix.charAt(i)));
+	}
+	return node;
+    }
+
+    /**
+     * Find the child of node having label.
+     *
+     * @param node  the node
+     * @param label the label
+     * @return the child, NONE if not found
+     */
+    private int findChild(int node, char label) {
+	int child = firstChildren[node];
+	while (child != NONE && labels[child] < label) {
+	    child = nextSiblings[child];
+	}
+	return child != NONE && labels[child] == label ? child : NONE;
+    }
+
+    /**
+     * Find the child of node having label, or add it in order of label.
+     *
+     * @param node  the node
+     * @param label the label
+     * @return the child
+     */
+    private int findOrAddChild(int node, char label) {
+	int previousChild = NONE;
+	int child = firstChildren[node];
+	while (child != NONE && labels[child] < label) {
+	    previousChild = child;
+	    child = nextSiblings[child];
+	}
+	if (child != NONE && labels[child] == label) {
+	    return child;
+	}
+	int newChild = allocateNode(label);
+	nextSiblings[newChild] = child;
+	if (previousChild == NONE) {
+	    firstChildren[node] = newChild;
+	} else {
+	    nextSiblings[previousChild] = newChild;
+	}
+	return newChild;
+    }
+
+    /**
+     * Unlink child from the children of node.
+     *
+     * @param node  the node
+     * @param child the child
+     */
+    private void unlinkChild(int node, int child) {
+	if (firstChildren[node] == child) {
+	    firstChildren[node] = nextSiblings[child];
+	    return;
+	}
+	int previousChild = firstChildren[node];
+	while (nextSiblings[previousChild] != child) {
+	    previousChild = nextSiblings[previousChild];
+	}
+	nextSiblings[previousChild] = nextSiblings[child];
+    }
+
+    /**
+     * Allocate a node without child and id, from free list if possible.
+     *
+     * @param label the label
+     * @return the node
+     */
+    private int allocateNode(char label) {
+	int node;
+	if (freeNode != NONE) {
+	    node = freeNode;
+	    freeNode = nextSiblings[node];
+	} else {
+	    if (nodeCount == labels.length) {
+		int capacity = nodeCount * 2;
+		labels = Arrays.copyOf(labels, capacity);
+		firstChildren = Arrays.copyOf(firstChildren, capacity);
+		nextSiblings = Arrays.copyOf(nextSiblings, capacity);
+		firstIdEntries = Arrays.copyOf(firstIdEntries, capacity);
+		nameCounts = Arrays.copyOf(nameCounts, capacity);
+	    }
+	    node = nodeCount++;
+	}
+	labels[node] = label;
+	firstChildren[node] = NONE;
+	nextSiblings[node] = NONE;
+	firstIdEntries[node] = NONE;
+	nameCounts[node] = 0;
+	return node;
+    }
+
+    /**
+     * Allocate an id entry, from free list if possible.
+     *
+     * @param id the id
+     * @return the id entry
+     */
+    private int allocateIdEntry(int id) {
+	int entry;
+	if (freeIdEntry != NONE) {
+	    entry = freeIdEntry;
+	    freeIdEntry = nextIdEntries[entry];
+	} else {
+	    if (idEntryCount == ids.length) {
+		ids = Arrays.copyOf(ids, idEntryCount * 2);
+		nextIdEntries = Arrays.copyOf(nextIdEntries, idEntryCount * 2);
+	    }
+	    entry = idEntryCount++;
+	}
+	ids[entry] = id;
+	return entry;
+    }
+}
@@ -0,0 +1,126 @@
+package com.hierarchy;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The Class NameIndexBenchmark.
+ * <p>
+ * Memory and lookup latency of NameIndex. A hierarchy is built with a name
+ * index, categories forming a complete tree and products named like catalog
+ * items ("Android Phones 42"), so many names share long prefixes. Memory per
+ * name is the index memory divided by the number of names. Lookups use random
+ * prefixes of existing names, first on the whole hierarchy, then within the
+ * subtree of a random category, and their latency percentiles are logged.
+ * </p>
+ * <p>
+ * Usage: NameIndexBenchmark [categories] [productsPerCategory] [lookups]
+ * [maxMatches]. Defaults are 2000 100 200000 10.
+ * </p>
+ */
+public class NameIndexBenchmark {
+
+    /** The LOGGER. */
+    private static final Logger LOGGER = LoggerFactory.getLogger(NameIndexBenchmark.class);
+
+    /** The branching factor of category tree. */
+    private static final int BRANCHING = 8;
+
+    /** The words of product names. */
+    private static final String[] WORDS = { "Android", "Apple", "Novels", "Phones", "Tablets", "Laptops", "Cameras",
+	    "Books", "Comics", "Chargers", "Cables", "Covers", "Headphones", "Speakers", "Watches", "Shoes" };
+
+    /** The highest trackable lookup latency, 1 second in nanos. */
+    private static final long HIGHEST_TRACKABLE_LATENCY = TimeUnit.SECONDS.toNanos(1);
+
+    /** The warm up rounds, results of these are not reported. */
+    private static final int WARM_UP_ROUNDS = 2;
+
+    /**
+     * The main method.
+     *
+     * @param args the arguments
+     */
+    public static void main(String[] args) {
+	int categoryCount = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+	int productsPerCategory = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+	int lookupCount = args.length > 2 ? Integer.parseInt(args[2]) : 200000;
+	int maxMatches = args.length > 3 ? Integer.parseInt(args[3]) : 10;
+	for (int round = 0; round <= WARM_UP_ROUNDS; round++) {
+	    run(categoryCount, productsPerCategory, lookupCount, maxMatches, round == WARM_UP_ROUNDS);
+	}
+    }
+
+    /**
+     * Build the hierarchy with name index and time the lookups.
+     *
+     * @param categoryCount       the category count
+     * @param productsPerCategory the products per category
+     * @param lookupCount         the lookup count
+     * @param maxMatches          the max matches of a lookup
+     * @param report              log the result if true
+     */
+    private static void run(int categoryCount, int productsPerCategory, int lookupCount, int maxMatches,
+	    boolean report) {
+	Random random = new Random(categoryCount);
+	String[] names = new String[categoryCount * (productsPerCategory + 1) + 1];
+	long nameChars = 0;
+	HierarchyUsingChildCategoryAndProduct hierarchy = new HierarchyUsingChildCategoryAndProduct();
+	NameIndex nameIndex = new NameIndex();
+	hierarchy.setNameIndex(nameIndex);
+
+	long startNanos = System.nanoTime();
+	int productId = categoryCount + 1;
+	for (int categoryId = 1; categoryId <= categoryCount; categoryId++) {
+	    names[categoryId] = WORDS[random.nextInt(WORDS.length)] + " " + categoryId;
+	    if (categoryId == 1) {
+		hierarchy.addNodeInfoResult(categoryId, names[categoryId], -1);
+	    } else {
+		// Parent of category i in a complete tree of given branching
+		hierarchy.addNewNodeResult((categoryId - 2) / BRANCHING + 1, categoryId, -1, names[categoryId]);
+	    }
+	    nameChars += names[categoryId].length();
+	    for (int i = 0; i < productsPerCategory; i++) {
+		names[productId] = WORDS[random.nextInt(WORDS.length)] + " " + WORDS[random.nextInt(WORDS.length)]
+			+ " " + random.nextInt(1000);
+		hierarchy.addNewNodeResult(categoryId, productId, 100 + random.nextInt(1000), names[productId]);
+		nameChars += names[productId].length();
+		productId++;
+	    }
+	}
+	long buildNanos = System.nanoTime() - startNanos;
+	int nameCount = nameIndex.getNameCount();
+
+	int[] result = new int[maxMatches];
+	LatencyHistogram globalLatency = new LatencyHistogram(HIGHEST_TRACKABLE_LATENCY);
+	LatencyHistogram subtreeLatency = new LatencyHistogram(HIGHEST_TRACKABLE_LATENCY);
+	long matches = 0;
+	long subtreeMatches = 0;
+	for (int i = 0; i < lookupCount; i++) {
+	    String name = names[1 + random.nextInt(productId - 1)];
+	    String prefix = name.substring(0, Math.min(name.length(), 1 + random.nextInt(6)));
+	    long lookupStartNanos = System.nanoTime();
+	    matches += hierarchy.findNodesByNamePrefix(prefix, result);
+	    globalLatency.record(System.nanoTime() - lookupStartNanos);
+
+	    int categoryId = 1 + random.nextInt(categoryCount);
+	    lookupStartNanos = System.nanoTime();
+	    subtreeMatches += hierarchy.findNodesByNamePrefix(prefix, categoryId, result);
+	    subtreeLatency.record(System.nanoTime() - lookupStartNanos);
+	}
+
+	if (report) {
+	    LOGGER.info("{} names, {} chars per name: build with index {} ns per node, index {} bytes per name",
+		    nameCount, nameChars / nameCount, buildNanos / nameCount, nameIndex.getMemoryBytes() / nameCount);
+	    LOGGER.info("prefix lookup: {} matches per lookup, latency p50 {} ns, p99 {} ns, max {} ns",
+		    matches / lookupCount, globalLatency.getValueAtPercentile(50),
+		    globalLatency.getValueAtPercentile(99), globalLatency.getMaxValue());
+	    LOGGER.info("prefix within subtree lookup: {} matches per lookup, latency p50 {} ns, p99 {} ns, max {} ns",
+		    subtreeMatches / lookupCount, subtreeLatency.getValueAtPercentile(50),
+		    subtreeLatency.getValueAtPercentile(99), subtreeLatency.getMaxValue());
+	}
+    }
+}
@@ -0,0 +1,116 @@
+package com.hierarchy;
+
+/**
+ * The Class OperationCost.
+ * <p>
+ * Counters of the hidden work done by a single operation on hierarchy. Filled
+ * by hierarchy only when cost accounting is enabled, see CostAccounting.
+ * </p>
+ */
+public class OperationCost {
+
+    /** Nodes visited while checking discount applicability or walking ancestors. */
+    int nodesVisited;
+
+    /** Child tree sets rebuilt. */
+    int treeSetsRebuilt;
+
+    /** Calls to update max discounted product of a category. */
+    int ancestorUpdates;
+
+    /** Deepest recursion of max discounted product update. */
+    int maxAncestorUpdateDepth;
+
+    /** Current recursion depth of max discounted product update. */
+    int ancestorUpdateDepth;
+
+    /** Child product, child category and tree set objects allocated. */
+    int allocations;
+
+    /**
+     * Reset all the counters.
+     */
+    void reset() {
+	this.nodesVisited = 0;
+	this.treeSetsRebuilt = 0;
+	this.ancestorUpdates = 0;
+	this.maxAncestorUpdateDepth = 0;
+	this.ancestorUpdateDepth = 0;
+	this.allocations = 0;
+    }
+
+    /**
+     * Mark entry in max discounted product update of a category.
+     */
+    void enterAncestorUpdate() {
+	this.ancestorUpdates++;
+	this.ancestorUpdateDepth++;
+	if (this.ancestorUpdateDepth > this.maxAncestorUpdateDepth) {
+	    this.maxAncestorUpdateDepth = this.ancestorUpdateDepth;
+	}
+    }
+
+    /**
+     * Mark exit from max discounted product update of a category.
+     */
+    void exitAncestorUpdate() {
+	this.ancestorUpdateDepth--;
+    }
+
+    /**
+     * Gets the nodes visited.
+     *
+     * @return the nodes visited
+     */
+    public int getNodesVisited() {
+	return nodesVisited;
+    }
+
+    /**
+     * Gets the tree sets rebuilt.
+     *
+     * @return the tree sets rebuilt
+     */
+    public int getTreeSetsRebuilt() {
+	return treeSetsRebuilt;
+    }
+
+    /**
+     * Gets the ancestor updates.
+     *
+     * @return the ancestor updates
+     */
+    public int getAncestorUpdates() {
+	return ancestorUpdates;
+    }
+
+    /**
+     * Gets the max ancestor update depth.
+     *
+     * @return the max ancestor update depth
+     */
+    public int getMaxAncestorUpdateDepth() {
+	return maxAncestorUpdateDepth;
+    }
+
+    /**
+     * Gets the allocations.
+     *
+     * @return the allocations
+     */
+    public int getAllocations() {
+	return allocations;
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+	return "OperationCost [nodesVisited=" + nodesVisited + ", treeSetsRebuilt=" + treeSetsRebuilt
+		+ ", ancestorUpdates=" + ancestorUpdates + ", maxAncestorUpdateDepth=" + maxAncestorUpdateDepth
+		+ ", allocations=" + allocations + "]";
+    }
+
+}
@@ -0,0 +1,125 @@
+package com.hierarchy;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * The Class OperationLog.
+ * <p>
+ * Append-only log of the write operations applied by a primary
+ * HierarchyServer, shipped to replicas by ReplicationPrimary. Every entry is a
+ * long sequence number, starting at 1, followed by the BinaryProtocol request
+ * frame of the operation. Only operations which changed the hierarchy are
+ * appended, so a replica replaying the log in order reaches the same state.
+ * </p>
+ * <p>
+ * The whole log is retained in memory so a replica can start from any sequence
+ * number. Appending is done by the server thread, shipping threads wait for new
+ * entries.
+ * </p>
+ */
+public class OperationLog {
+
+    /** The entry header length, the sequence number. */
+    static final int ENTRY_HEADER_LENGTH = 8;
+
+    /** The entries. */
+    private byte[] entries = new byte[64 * 1024];
+
+    /** The length of entries. */
+    private int length;
+
+    /** The last sequence number. */
+    private volatile long lastSequence;
+
+    /** The closed flag. Waiting shipping threads return once closed. */
+    private boolean closed;
+
+    /**
+     * Append the frame in buffer as next entry.
+     *
+     * @param buffer      the buffer
+     * @param frameOffset the offset of frame in buffer
+     * @param frameLength the frame length, length prefix included
+     * @return the sequence number of entry
+     */
+    public synchronized long append(ByteBuffer buffer, int frameOffset, int frameLength) {
+	int entryLength = ENTRY_HEADER_LENGTH + frameLength;
+	if (this.length + entryLength > this.entries.length) {
+	    this.entries = Arrays.copyOf(this.entries, Math.max(this.entries.length * 2, this.length + entryLength));
+	}
+	long sequence = this.lastSequence + 1;
+	ByteBuffer entry = ByteBuffer.wrap(this.entries, this.length, entryLength);
+	entry.putLong(sequence);
+	for (int i = 0; i < frameLength; i++) {
+	    entry.put(buffer.get(frameOffset + i));
+	}
+	this.length += entryLength;
+	this.lastSequence = sequence;
+	notifyAll();
+	return sequence;
+    }
+
+    /**
+     * Gets the last sequence number, 0 if log is empty.
+     *
+     * @return the last sequence
+     */
+    public long getLastSequence() {
+	return this.lastSequence;
+    }
+
+    /**
+     * Gets the offset of first entry with sequence number after given one.
+     *
+     * @param sequence the sequence
+     * @return the offset, log length if there is no such entry yet
+     */
+    synchronized int offsetAfter(long sequence) {
+	ByteBuffer log = ByteBuffer.wrap(this.entries, 0, this.length);
+	int offset = 0;
+	while (offset < this.length && log.getLong(offset) <= sequence) {
+	    offset += ENTRY_HEADER_LENGTH + 4 + log.getInt(offset + ENTRY_HEADER_LENGTH);
+	}
+	return offset;
+    }
+
+    /**
+     * Wait till log grows beyond offset, then write the entries from offset to
+     * output.
+     *
+     * @param offset the offset
+     * @param output the output
+     * @return the new offset, -1 if log is closed
+     * @throws IOException          Signals that an I/O exception has occurred.
+     * @throws InterruptedException the interrupted exception
+     */
+    int ship(int offset, OutputStream output) throws IOException, InterruptedException {
+	byte[] shippedEntries;
+	int end;
+	synchronized (this) {
+	    while (this.length <= offset && !this.closed) {
+		wait();
+	    }
+	    if (this.closed) {
+		return -1;
+	    }
+	    // Entries before length are never modified, only the array may be replaced
+	    shippedEntries = this.entries;
+	    end = this.length;
+	}
+	output.write(shippedEntries, offset, end - offset);
+	output.flush();
+	return end;
+    }
+
+    /**
+     * Close the log, waking up the shipping threads.
+     */
+    synchronized void close() {
+	this.closed = true;
+	notifyAll();
+    }
+}
@@ -0,0 +1,189 @@
+package com.hierarchy;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * The Class OperationMetrics.
+ * <p>
+ * Latency histogram and result counters of a single operation type. Recording
+ * does not allocate.
+ * </p>
+ */
+public class OperationMetrics implements OperationMetricsMBean {
+
+    /** Highest trackable latency, one minute in nanoseconds. */
+    private static final long HIGHEST_TRACKABLE_LATENCY = 60_000_000_000L;
+
+    /** The operation type. */
+    private final OperationType operationType;
+
+    /** The latency histogram. */
+    private final LatencyHistogram latencyHistogram = new LatencyHistogram(HIGHEST_TRACKABLE_LATENCY);
+
+    /** The count of each result code, indexed by ordinal. */
+    private final AtomicLongArray resultCounts = new AtomicLongArray(ResultCode.values().length);
+
+    /** The success count. */
+    private final AtomicLong successCount = new AtomicLong();
+
+    /** The rejection count. */
+    private final AtomicLong rejectionCount = new AtomicLong();
+
+    /** The start time of measurement, reset with metrics. */
+    private volatile long startNanos = System.nanoTime();
+
+    /**
+     * Instantiates a new operation metrics.
+     *
+     * @param operationType the operation type
+     */
+    public OperationMetrics(OperationType operationType) {
+	this.operationType = operationType;
+    }
+
+    /**
+     * Record an operation.
+     *
+     * @param latencyNanos the latency in nanoseconds
+     * @param resultCode the result code
+     */
+    public void record(long latencyNanos, ResultCode resultCode) {
+	latencyHistogram.record(latencyNanos);
+	resultCounts.incrementAndGet(resultCode.ordinal());
+	if (resultCode.isSuccess()) {
+	    successCount.incrementAndGet();
+	} else {
+	    rejectionCount.incrementAndGet();
+	}
+    }
+
+    /**
+     * Gets the operation type.
+     *
+     * @return the operation type
+     */
+    public OperationType getOperationType() {
+	return operationType;
+    }
+
+    /**
+     * Gets the latency histogram.
+     *
+     * @return the latency histogram
+     */
+    public LatencyHistogram getLatencyHistogram() {
+	return latencyHistogram;
+    }
+
+    /**
+     * Gets the number of operations finished with given result code.
+     *
+     * @param resultCode the result code
+     * @return the result count
+     */
+    public long getResultCount(ResultCode resultCode) {
+	return resultCounts.get(resultCode.ordinal());
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see com.hierarchy.OperationMetricsMBean#getCount()
+     */
+    @Override
+    public long getCount() {
+	return latencyHistogram.getTotalCount();
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see com.hierarchy.OperationMetricsMBean#getSuccessCount()
+     */
+    @Override
+    public long getSuccessCount() {
+	return successCount.get();
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see com.hierarchy.OperationMetricsMBean#getRejectionCount()
+     */
+    @Override
+    public long getRejectionCount() {
+	return rejectionCount.get();
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see com.hierarchy.OperationMetricsMBean#getMeanLatency()
+     */
+    @Override
+    public double getMeanLatency() {
+	return latencyHistogram.getMean();
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see com.hierarchy.OperationMetricsMBean#getP50Latency()
+     */
+    @Override
+    public long getP50Latency() {
+	return latencyHistogram.getValueAtPercentile(50);
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see com.hierarchy.OperationMetricsMBean#getP99Latency()
+     */
+    @Override
+    public long getP99Latency() {
+	return latencyHistogram.getValueAtPercentile(99);
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see com.hierarchy.OperationMetricsMBean#getP999Latency()
+     */
+    @Override
+    public long getP999Latency() {
+	return latencyHistogram.getValueAtPercentile(99.9);
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see com.hierarchy.OperationMetricsMBean#getMaxLatency()
+     */
+    @Override
+    public long getMaxLatency() {
+	return latencyHistogram.getMaxValue();
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see com.hierarchy.OperationMetricsMBean#getThroughput()
+     */
+    @Override
+    public double getThroughput() {
+	long elapsedNanos = System.nanoTime() - startNanos;
+	if (elapsedNanos <= 0) {
+	    return 0;
+	}
+	return getCount() * 1_000_000_000.0 / elapsedNanos;
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see com.hierarchy.OperationMetricsMBean#reset()
+     */
+    @Override
+    public void reset() {
+	latencyHistogram.reset();
+	for (int i = 0; i < resultCounts.length(); i++) {
+	    resultCounts.set(i, 0);
+	}
+	successCount.set(0);
+	rejectionCount.set(0);
+	startNanos = System.nanoTime();
+    }
+
+}
@@ -0,0 +1,81 @@
+package com.hierarchy;
+
+/**
+ * The Interface OperationMetricsMBean.
+ * <p>
+ * JMX view of metrics of a single operation type. Latencies are in
+ * nanoseconds.
+ * </p>
+ */
+public interface OperationMetricsMBean {
+
+    /**
+     * Gets the number of operations.
+     *
+     * @return the count
+     */
+    long getCount();
+
+    /**
+     * Gets the number of successful operations.
+     *
+     * @return the success count
+     */
+    long getSuccessCount();
+
+    /**
+     * Gets the number of rejected operations, e.g. 'Discount cannot be
+     * applied.' or 'Invalid ID.'
+     *
+     * @return the rejection count
+     */
+    long getRejectionCount();
+
+    /**
+     * Gets the mean latency.
+     *
+     * @return the mean latency
+     */
+    double getMeanLatency();
+
+    /**
+     * Gets the median latency.
+     *
+     * @return the p50 latency
+     */
+    long getP50Latency();
+
+    /**
+     * Gets the 99th percentile latency.
+     *
+     * @return the p99 latency
+     */
+    long getP99Latency();
+
+    /**
+     * Gets the 99.9th percentile latency.
+     *
+     * @return the p999 latency
+     */
+    long getP999Latency();
+
+    /**
+     * Gets the max latency.
+     *
+     * @return the max latency
+     */
+    long getMaxLatency();
+
+    /**
+     * Gets the throughput as operations per second since last reset.
+     *
+     * @return the throughput
+     */
+    double getThroughput();
+
+    /**
+     * Reset the metrics.
+     */
+    void reset();
+
+}
@@ -0,0 +1,58 @@
+package com.hierarchy;
+
+/**
+ * The Enum OperationType.
+ * <p>
+ * Operation types on hierarchy which are tracked individually by
+ * HierarchyMetrics.
+ * </p>
+ */
+public enum OperationType {
+
+    /** Apply % or flat discount on a category or a product. */
+    APPLY_DISCOUNT("applyDiscountOnNode"),
+
+    /** Apply all discounts of a transaction or none. */
+    DISCOUNT_TRANSACTION("applyDiscountTransaction"),
+
+    /** Add a new category or product. */
+    ADD_NODE("addNewNode"),
+
+    /** Remove a category or product. */
+    REMOVE_NODE("removeNode"),
+
+    /** Move a category or product under new parent. */
+    MOVE_NODE("moveNode"),
+
+    /** Apply a batch of mutations. */
+    BATCH("applyBatch"),
+
+    /** Get the maximum discounted product. */
+    GET_MAXIMUM_DISCOUNTED_PRODUCT("getMaximumDiscountedProduct"),
+
+    /** Get the maximum discounted product by discount ratio. */
+    GET_MAXIMUM_PERCENT_DISCOUNTED_PRODUCT("getMaximumPercentDiscountedProduct");
+
+    /** The operation name. */
+    private final String operationName;
+
+    /**
+     * Instantiates a new operation type.
+     *
+     * @param operationName the operation name
+     */
+    OperationType(String operationName) {
+	this.operationName = operationName;
+    }
+
+    /**
+     * Gets the operation name. This is the name of the hierarchy method
+     * represented by this type.
+     *
+     * @return the operation name
+     */
+    public String getOperationName() {
+	return operationName;
+    }
+
+}
@@ -0,0 +1,564 @@
+package com.hierarchy;
+
+import java.time.Clock;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.IntUnaryOperator;
+
+/**
+ * The Class PriceHistory.
+ * <p>
+ * Optional store of the selling price changes of every product, for audit of
+ * the price at a past moment. Set on HierarchyUsingChildCategoryAndProduct, it
+ * records the price of a product when it is created, on every discount (direct
+ * or through a category, batch or transaction) and when a failed transaction
+ * restores it. Removing a product records an end marker, so the price after
+ * removal is NaN; a product created again with the same id starts a new
+ * history. Products of a removed subtree get their end marker when the
+ * hierarchy reclaims them, at the sequence and time of the removal; till then
+ * a lookup asks the hierarchy whether the product is in a removed subtree.
+ * </p>
+ * <p>
+ * Every entry is keyed by an operation sequence and a time. The sequence is
+ * incremented once per hierarchy operation changing at least one price, so all
+ * the prices changed by a category discount share a sequence. Time is read from
+ * the clock once per such operation and never goes backwards.
+ * </p>
+ * <p>
+ * Entries of a product are kept in chunks of at most chunkSize bytes. The first
+ * entry of a chunk is kept uncompressed in arrays searched by binary search;
+ * the next entries are varint encoded deltas of sequence, time and the bits of
+ * price. A lookup takes O(log n) for the chunk plus the decoding of one chunk.
+ * Once a product has maxChunksPerProduct chunks, its oldest chunk is dropped,
+ * which bounds the memory of every product. The histories of the last
+ * maxRemovedProducts removed products are kept, older ones are dropped.
+ * </p>
+ * <p>
+ * Like the hierarchy, this class is not thread safe.
+ * </p>
+ */
+public class PriceHistory {
+
+    /** The default chunk size in bytes. */
+    public static final int DEFAULT_CHUNK_SIZE = 256;
+
+    /** The default max chunks per product. */
+    public static final int DEFAULT_MAX_CHUNKS_PER_PRODUCT = 64;
+
+    /** The default max number of removed products whose history is kept. */
+    public static final int DEFAULT_MAX_REMOVED_PRODUCTS = 10000;
+
+    /** The price bits of the end marker of a removed product. */
+    private static final int REMOVED_PRICE_BITS = Float.floatToIntBits(Float.NaN);
+
+    /** The max length of an encoded entry: two varint longs and a varint int. */
+    private static final int MAX_ENTRY_LENGTH = 10 + 10 + 5;
+
+    /** The initial capacity of a chunk, grown by doubling up to chunk size. */
+    private static final int INITIAL_CHUNK_CAPACITY = 16;
+
+    /** The initial chunk count of a product. */
+    private static final int INITIAL_CHUNK_COUNT = 2;
+
+    /**
+     * The Class ProductHistory.
+     * <p>
+     * Chunks of entries of one product, oldest first.
+     * </p>
+     */
+    private static class ProductHistory {
+
+	/** The product id. */
+	final int productId;
+
+	/** The sequence of first entry of each chunk. */
+	long[] firstSequences = new long[INITIAL_CHUNK_COUNT];
+
+	/** The time of first entry of each chunk. */
+	long[] firstTimes = new long[INITIAL_CHUNK_COUNT];
+
+	/** The price bits of first entry of each chunk. */
+	int[] firstPriceBits = new int[INITIAL_CHUNK_COUNT];
+
+	/** The encoded next entries of each chunk. */
+	byte[][] chunks = new byte[INITIAL_CHUNK_COUNT][];
+
+	/** The used length of each chunk. */
+	int[] chunkLengths = new int[INITIAL_CHUNK_COUNT];
+
+	/** The chunk count. */
+	int chunkCount;
+
+	/** The sequence of last entry. */
+	long lastSequence;
+
+	/** The time of last entry. */
+	long lastTime;
+
+	/** The price bits of last entry. */
+	int lastPriceBits;
+
+	/**
+	 * Instantiates a new product history.
+	 *
+	 * @param productId the product id
+	 */
+	ProductHistory(int productId) {
+	    this.productId = productId;
+	}
+    }
+
+    /** The clock. */
+    private final Clock clock;
+
+    /** The chunk size. */
+    private final int chunkSize;
+
+    /** The max chunks per product. */
+    private final int maxChunksPerProduct;
+
+    /** The max number of removed products whose history is kept. */
+    private final int maxRemovedProducts;
+
+    /** The history of every product. */
+    private final Map<Integer, ProductHistory> productHistories = new HashMap<>();
+
+    /**
+     * The histories of removed products, oldest removal first. A history
+     * replaced since by a product of same id is left in till dropped.
+     */
+    private final Deque<ProductHistory> removedHistories = new ArrayDeque<>();
+
+    /**
+     * The sequence and time of removal of tombstoned categories whose products
+     * are not reclaimed yet.
+     */
+    private final Map<Integer, long[]> subtreeRemovals = new HashMap<>();
+
+    /** The lookup of the tombstoned category holding a product, 0 if none. */
+    private IntUnaryOperator tombstoneLookup;
+
+    /** The sequence of last operation which changed a price. */
+    private long sequence;
+
+    /** The time of last operation which changed a price. */
+    private long time = Long.MIN_VALUE;
+
+    /** The operation started flag, next record starts a new sequence. */
+    private boolean operationStarted = true;
+
+    /** The decode position in chunk, used by lookups. */
+    private int readPosition;
+
+    /**
+     * Instantiates a new price history with system clock and default sizes.
+     */
+    public PriceHistory() {
+	this(Clock.systemUTC(), DEFAULT_CHUNK_SIZE, DEFAULT_MAX_CHUNKS_PER_PRODUCT);
+    }
+
+    /**
+     * Instantiates a new price history keeping the default number of removed
+     * products.
+     *
+     * @param clock               the clock
+     * @param chunkSize           the chunk size in bytes, at least 32
+     * @param maxChunksPerProduct the max chunks per product
+     */
+    public PriceHistory(Clock clock, int chunkSize, int maxChunksPerProduct) {
+	this(clock, chunkSize, maxChunksPerProduct, DEFAULT_MAX_REMOVED_PRODUCTS);
+    }
+
+    /**
+     * Instantiates a new price history.
+     *
+     * @param clock               the clock
+     * @param chunkSize           the chunk size in bytes, at least 32
+     * @param maxChunksPerProduct the max chunks per product
+     * @param maxRemovedProducts  the max number of removed products whose
+     *                            history is kept, 0 to drop it on removal
+     */
+    public PriceHistory(Clock clock, int chunkSize, int maxChunksPerProduct, int maxRemovedProducts) {
+	if (chunkSize < 32 || maxChunksPerProduct < 1 || maxRemovedProducts < 0) {
+	    throw new IllegalArgumentException("Invalid chunk size, max chunks per product or max removed products");
+	}
+	this.clock = clock;
+	this.chunkSize = chunkSize;
+	this.maxChunksPerProduct = maxChunksPerProduct;
+	this.maxRemovedProducts = maxRemovedProducts;
+    }
+
+    /**
+     * Gets the sequence of last operation which changed a price, 0 if none.
+     *
+     * @return the sequence
+     */
+    public long getSequence() {
+	return this.sequence;
+    }
+
+    /**
+     * Start a hierarchy operation. The first price recorded by the operation gets
+     * next sequence.
+     */
+    void beginOperation() {
+	this.operationStarted = true;
+    }
+
+    /**
+     * Record the selling price of product after current operation.
+     *
+     * @param productId    the product id
+     * @param sellingPrice the selling price
+     */
+    void record(int productId, float sellingPrice) {
+	startSequence();
+	ProductHistory history = this.productHistories.get(productId);
+	if (history == null) {
+	    history = new ProductHistory(productId);
+	    this.productHistories.put(productId, history);
+	}
+	append(history, this.sequence, this.time, Float.floatToIntBits(sellingPrice));
+    }
+
+    /**
+     * Record the price of a product created by current operation, starting a
+     * new history if the id had one.
+     *
+     * @param productId    the product id
+     * @param sellingPrice the selling price
+     */
+    void recordCreation(int productId, float sellingPrice) {
+	this.productHistories.remove(productId);
+	record(productId, sellingPrice);
+    }
+
+    /**
+     * Record the removal of product by current operation.
+     *
+     * @param productId the product id
+     */
+    void recordRemoval(int productId) {
+	startSequence();
+	recordRemoval(productId, this.sequence, this.time);
+    }
+
+    /**
+     * Record the removal of a category by current operation. Its products are
+     * given the end marker of this removal once reclaimed, see
+     * recordSubtreeProductRemoval.
+     *
+     * @param categoryId the category id
+     */
+    void recordSubtreeRemoval(int categoryId) {
+	startSequence();
+	this.subtreeRemovals.put(categoryId, new long[] { this.sequence, this.time });
+    }
+
+    /**
+     * Note that child category, tombstoned on its own while its parent is
+     * reclaimed, was removed with its parent.
+     *
+     * @param childCategoryId the child category id
+     * @param categoryId      the category id
+     */
+    void inheritSubtreeRemoval(int childCategoryId, int categoryId) {
+	long[] removal = this.subtreeRemovals.get(categoryId);
+	if (removal != null) {
+	    this.subtreeRemovals.put(childCategoryId, removal);
+	}
+    }
+
+    /**
+     * Record the removal of a product reclaimed from the removed subtree of
+     * category, at the sequence and time of the removal of category.
+     *
+     * @param productId  the product id
+     * @param categoryId the tombstoned category id
+     */
+    void recordSubtreeProductRemoval(int productId, int categoryId) {
+	long[] removal = this.subtreeRemovals.get(categoryId);
+	if (removal == null) {
+	    // Removed before this price history was set
+	    recordRemoval(productId);
+	} else {
+	    recordRemoval(productId, removal[0], removal[1]);
+	}
+    }
+
+    /**
+     * Forget the removal of category, once its direct products are reclaimed
+     * and its child categories inherited it.
+     *
+     * @param categoryId the category id
+     */
+    void forgetSubtreeRemoval(int categoryId) {
+	this.subtreeRemovals.remove(categoryId);
+    }
+
+    /**
+     * Sets the lookup of the tombstoned category holding a product, 0 if none,
+     * set by the hierarchy recording in this history.
+     *
+     * @param tombstoneLookup the tombstone lookup, null if none
+     */
+    void setTombstoneLookup(IntUnaryOperator tombstoneLookup) {
+	this.tombstoneLookup = tombstoneLookup;
+    }
+
+    /**
+     * Start the sequence of current operation, if not done already.
+     */
+    private void startSequence() {
+	if (this.operationStarted) {
+	    this.operationStarted = false;
+	    this.sequence++;
+	    this.time = Math.max(this.time, this.clock.millis());
+	}
+    }
+
+    /**
+     * Record the end marker of product at given sequence and time, and drop the
+     * oldest removed history beyond max removed products.
+     *
+     * @param productId the product id
+     * @param sequence  the sequence of removal
+     * @param time      the time of removal
+     */
+    private void recordRemoval(int productId, long sequence, long time) {
+	ProductHistory history = this.productHistories.get(productId);
+	if (history == null) {
+	    return;
+	}
+	// A history never goes backwards
+	append(history, Math.max(sequence, history.lastSequence), Math.max(time, history.lastTime),
+		REMOVED_PRICE_BITS);
+	this.removedHistories.addLast(history);
+	while (this.removedHistories.size() > this.maxRemovedProducts) {
+	    ProductHistory removed = this.removedHistories.pollFirst();
+	    // Unless replaced since by a product of same id
+	    if (this.productHistories.get(removed.productId) == removed) {
+		this.productHistories.remove(removed.productId);
+	    }
+	}
+    }
+
+    /**
+     * Append an entry to history.
+     *
+     * @param history   the history
+     * @param sequence  the sequence, not before last entry
+     * @param time      the time, not before last entry
+     * @param priceBits the price bits
+     */
+    private void append(ProductHistory history, long sequence, long time, int priceBits) {
+	int last = history.chunkCount - 1;
+	if (last < 0 || history.chunkLengths[last] + MAX_ENTRY_LENGTH > this.chunkSize) {
+	    addChunk(history, sequence, time, priceBits);
+	} else {
+	    byte[] chunk = ensureCapacity(history, last);
+	    int position = history.chunkLengths[last];
+	    position = writeVarLong(chunk, position, sequence - history.lastSequence);
+	    position = writeVarLong(chunk, position, time - history.lastTime);
+	    int priceDelta = priceBits - history.lastPriceBits;
+	    // Zigzag, so small negative deltas are short as well
+	    position = writeVarLong(chunk, position, ((priceDelta << 1) ^ (priceDelta >> 31)) & 0xffffffffL);
+	    history.chunkLengths[last] = position;
+	}
+	history.lastSequence = sequence;
+	history.lastTime = time;
+	history.lastPriceBits = priceBits;
+    }
+
+    /**
+     * Gets the selling price of product after given operation sequence.
+     *
+     * @param productId the product id
+     * @param sequence  the sequence
+     * @return the price, NaN if product has no retained entry at or before
+     *         sequence or was removed by then
+     */
+    public float getPriceAtSequence(int productId, long sequence) {
+	return find(productId, sequence, true);
+    }
+
+    /**
+     * Gets the selling price of product at given time.
+     *
+     * @param productId   the product id
+     * @param epochMillis the time in millis since epoch
+     * @return the price, NaN if product has no retained entry at or before time
+     *         or was removed by then
+     */
+    public float getPriceAtTime(int productId, long epochMillis) {
+	return find(productId, epochMillis, false);
+    }
+
+    /**
+     * Gets the approximate memory used by the entries of all products, in bytes.
+     * Map overhead is not counted.
+     *
+     * @return the memory bytes
+     */
+    public long getMemoryBytes() {
+	long bytes = 0;
+	for (ProductHistory history : this.productHistories.values()) {
+	    bytes += history.firstSequences.length * (8 + 8 + 4 + 4 + 8L);
+	    for (int i = 0; i < history.chunkCount; i++) {
+		bytes += history.chunks[i].length;
+	    }
+	}
+	return bytes;
+    }
+
+    /**
+     * Find the last entry of product with sequence or time at or before key.
+     *
+     * @param productId  the product id
+     * @param key        the sequence or time
+     * @param bySequence true if key is a sequence, false if a time
+     * @return the price, NaN if not found
+     */
+    private float find(int productId, long key, boolean bySequence) {
+	ProductHistory history = this.productHistories.get(productId);
+	if (history == null) {
+	    return Float.NaN;
+	}
+	if (this.tombstoneLookup != null && !this.subtreeRemovals.isEmpty()) {
+	    // Removed with a subtree, end marker not recorded yet
+	    long[] removal = this.subtreeRemovals.get(this.tombstoneLookup.applyAsInt(productId));
+	    if (removal != null && (bySequence ? removal[0] : removal[1]) <= key) {
+		return Float.NaN;
+	    }
+	}
+	long[] firstKeys = bySequence ? history.firstSequences : history.firstTimes;
+	// Last chunk with first key at or before key
+	int low = 0;
+	int high = history.chunkCount - 1;
+	int chunkIndex = -1;
+	while (low <= high) {
+	    int middle = (low + high) >>> 1;
+	    if (firstKeys[middle] <= key) {
+		chunkIndex = middle;
+		low = middle + 1;
+	    } else {
+		high = middle - 1;
+	    }
+	}
+	if (chunkIndex < 0) {
+	    return Float.NaN;
+	}
+	long entrySequence = history.firstSequences[chunkIndex];
+	long entryTime = history.firstTimes[chunkIndex];
+	int priceBits = history.firstPriceBits[chunkIndex];
+	byte[] chunk = history.chunks[chunkIndex];
+	int length = history.chunkLengths[chunkIndex];
+	this.readPosition = 0;
+	while (this.readPosition < length) {
+	    long nextSequence = entrySequence + readVarLong(chunk);
+	    long nextTime = entryTime + readVarLong(chunk);
+	    int zigzag = (int) readVarLong(chunk);
+	    if ((bySequence ? nextSequence : nextTime) > key) {
+		break;
+	    }
+	    entrySequence = nextSequence;
+	    entryTime = nextTime;
+	    priceBits += (zigzag >>> 1) ^ -(zigzag & 1);
+	}
+	return Float.intBitsToFloat(priceBits);
+    }
+
+    /**
+     * Start a new chunk with given entry, dropping the oldest chunk if product
+     * has max chunks.
+     *
+     * @param history   the history
+     * @param sequence  the sequence
+     * @param time      the time
+     * @param priceBits the price bits
+     */
+    private void addChunk(ProductHistory history, long sequence, long time, int priceBits) {
+	if (history.chunkCount == this.maxChunksPerProduct) {
+	    int count = history.chunkCount - 1;
+	    System.arraycopy(history.firstSequences, 1, history.firstSequences, 0, count);
+	    System.arraycopy(history.firstTimes, 1, history.firstTimes, 0, count);
+	    System.arraycopy(history.firstPriceBits, 1, history.firstPriceBits, 0, count);
+	    System.arraycopy(history.chunks, 1, history.chunks, 0, count);
+	    System.arraycopy(history.chunkLengths, 1, history.chunkLengths, 0, count);
+	    history.chunkCount = count;
+	} else if (history.chunkCount == history.chunks.length) {
+	    int capacity = Math.min(history.chunkCount * 2, this.maxChunksPerProduct);
+	    history.firstSequences = Arrays.copyOf(history.firstSequences, capacity);
+	    history.firstTimes = Arrays.copyOf(history.firstTimes, capacity);
+	    history.firstPriceBits = Arrays.copyOf(history.firstPriceBits, capacity);
+	    history.chunks = Arrays.copyOf(history.chunks, capacity);
+	    history.chunkLengths = Arrays.copyOf(history.chunkLengths, capacity);
+	}
+	int index = history.chunkCount++;
+	history.firstSequences[index] = sequence;
+	history.firstTimes[index] = time;
+	history.firstPriceBits[index] = priceBits;
+	history.chunks[index] = new byte[INITIAL_CHUNK_CAPACITY];
+	history.chunkLengths[index] = 0;
+    }
+
+    /**
+     * Ensure chunk can hold one more entry, doubling its capacity up to chunk
+     * size if required.
+     *
+     * @param history    the history
+     * @param chunkIndex the chunk index
+     * @return the chunk
+     */
+    private byte[] ensureCapacity(ProductHistory history, int chunkIndex) {
+	byte[] chunk = history.chunks[chunkIndex];
+	if (history.chunkLengths[chunkIndex] + MAX_ENTRY_LENGTH > chunk.length) {
+	    int capacity = chunk.length * 2;
+	    while (history.chunkLengths[chunkIndex] + MAX_ENTRY_LENGTH > capacity) {
+		capacity *= 2;
+	    }
+	    chunk = Arrays.copyOf(chunk, Math.min(capacity, this.chunkSize));
+	    history.chunks[chunkIndex] = chunk;
+	}
+	return chunk;
+    }
+
+    /**
+     * Write an unsigned varint, 7 bits per byte with high bit set on all but the
+     * last byte.
+     *
+     * @param chunk    the chunk
+     * @param position the position
+     * @param value    the value, not negative
+     * @return the position after value
+     */
+    private static int writeVarLong(byte[] chunk, int position, long value) {
+	while ((value & ~0x7fL) != 0) {
+	    chunk[position++] = (byte) ((value & 0x7f) | 0x80);
+	    value >>>= 7;
+	}
+	chunk[position++] = (byte) value;
+	return position;
+    }
+
+    /**
+     * Read an unsigned varint at read position, advancing it.
+     *
+     * @param chunk the chunk
+     * @return the value
+     */
+    private long readVarLong(byte[] chunk) {
+	long value = 0;
+	int shift = 0;
+	byte b;
+	do {
+	    b = chunk[this.readPosition++];
+	    value |= (long) (b & 0x7f) << shift;
+	    shift += 7;
+	} while (b < 0);
+	return value;
+    }
+}
@@ -113,6 +113,15 @@ public class Product {
 	return discount;
     }
 
+    /**
+     * Gets the discount ratio, the discount as a fraction of original price.
+     *
+     * @return the discount ratio, 0 if original price is 0
+     */
+    public float getDiscountRatio() {
+	return originalPrice > 0 ? discount / originalPrice : 0;
+    }
+
     /**
      * Sets the discount.
      *
@@ -0,0 +1,84 @@
+package com.hierarchy;
+
+/**
+ * The Class ProductResult.
+ * <p>
+ * Reusable holder for the product returned by type 3 (get maximum discounted
+ * product) query. The hierarchy copies the product attributes into the holder
+ * so the caller can reuse a single instance across queries instead of
+ * receiving a new reference every time.
+ * </p>
+ */
+public class ProductResult {
+
+    /** The product id. */
+    int productId;
+
+    /** The name. */
+    String name;
+
+    /** The original price. */
+    float originalPrice;
+
+    /** The selling price. */
+    float sellingPrice;
+
+    /**
+     * Copies the attributes of given product into this holder.
+     *
+     * @param product the product
+     */
+    void set(Product product) {
+	this.productId = product.getId();
+	this.name = product.getName();
+	this.originalPrice = product.getOriginalPrice();
+	this.sellingPrice = product.getSellingPrice();
+    }
+
+    /**
+     * Clears this holder.
+     */
+    void clear() {
+	this.productId = 0;
+	this.name = null;
+	this.originalPrice = 0;
+	this.sellingPrice = 0;
+    }
+
+    /**
+     * Gets the product id.
+     *
+     * @return the product id
+     */
+    public int getProductId() {
+	return productId;
+    }
+
+    /**
+     * Gets the name.
+     *
+     * @return the name
+     */
+    public String getName() {
+	return name;
+    }
+
+    /**
+     * Gets the original price.
+     *
+     * @return the original price
+     */
+    public float getOriginalPrice() {
+	return originalPrice;
+    }
+
+    /**
+     * Gets the selling price.
+     *
+     * @return the selling price
+     */
+    public float getSellingPrice() {
+	return sellingPrice;
+    }
+
+}
@@ -0,0 +1,342 @@
+package com.hierarchy;
+
+import java.time.Clock;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The Class PromotionScheduler.
+ * <p>
+ * Promotions are discounts on a node applied from a start time till an end
+ * time, after which the amount they took off every product is added back.
+ * Start and end are timers of a TimingWheel, so scheduling a promotion takes
+ * O(1) whatever the number of pending promotions, and advance only visits the
+ * elapsed ticks and the promotions due in them.
+ * </p>
+ * <p>
+ * A promotion starting is applied on its own, recording the selling price of
+ * every product it changes, so that it reverts exactly the amount it took off,
+ * even if other discounts were applied in between; a product is never raised
+ * above its original price. A product removed in between is not reverted, nor
+ * is a new product added since with the same id. The promotions ending on an
+ * advance are reverted together in one MutationBatch, so the max discounted
+ * products of categories are recomputed once for all of them.
+ * </p>
+ * <p>
+ * Time is read from the clock given, so a simulated clock lets promotions be
+ * run faster than real time. Like the hierarchy, this class is not thread
+ * safe; advance is meant to be called periodically by the thread owning the
+ * hierarchy.
+ * </p>
+ */
+public class PromotionScheduler {
+
+    /** The default tick. */
+    public static final long DEFAULT_TICK_MILLIS = 1000;
+
+    /**
+     * The Class Promotion.
+     * <p>
+     * A scheduled promotion, the timer of its start and then of its end.
+     * </p>
+     */
+    private static class Promotion extends TimingWheel.Timer {
+
+	/** The id. */
+	private final long id;
+
+	/** The node id. */
+	private final int nodeId;
+
+	/** The discount type 1: % discount, 2: flat discount. */
+	private final int discountType;
+
+	/** The discount. */
+	private final float discount;
+
+	/** The end millis. */
+	private final long endMillis;
+
+	/** The active flag, set once started till ended. */
+	private boolean active;
+
+	/** The ids of products discounted on start. */
+	private int[] productIds;
+
+	/** The products discounted on start. */
+	private Product[] products;
+
+	/** The amounts taken off the products on start. */
+	private float[] amounts;
+
+	/**
+	 * Instantiates a new promotion.
+	 *
+	 * @param id           the id
+	 * @param nodeId       the node id
+	 * @param discountType the discount type
+	 * @param discount     the discount
+	 * @param endMillis    the end millis
+	 */
+	Promotion(long id, int nodeId, int discountType, float discount, long endMillis) {
+	    this.id = id;
+	    this.nodeId = nodeId;
+	    this.discountType = discountType;
+	    this.discount = discount;
+	    this.endMillis = endMillis;
+	}
+    }
+
+    /** The hierarchy. */
+    private final HierarchyUsingChildCategoryAndProduct hierarchy;
+
+    /** The clock. */
+    private final Clock clock;
+
+    /** The timing wheel of starts and ends. */
+    private final TimingWheel<Promotion> wheel;
+
+    /** The scheduled promotions by id, till ended or cancelled. */
+    private final Map<Long, Promotion> promotions = new HashMap<>();
+
+    /** The promotions due on advance, reused. */
+    private final List<Promotion> due = new ArrayList<>();
+
+    /** The batch reverting ending promotions, reused. */
+    private final MutationBatch revertBatch = new MutationBatch();
+
+    /** The journal of products changed by a starting promotion, reused. */
+    private final UndoJournal changes = new UndoJournal();
+
+    /** The last promotion id. */
+    private long lastId;
+
+    /** The number of active promotions. */
+    private int activeCount;
+
+    /** The number of started promotions. */
+    private long startedCount;
+
+    /** The number of ended promotions. */
+    private long endedCount;
+
+    /** The number of promotions skipped as they could not be applied. */
+    private long skippedCount;
+
+    /**
+     * Instantiates a new promotion scheduler with the system clock and default
+     * tick.
+     *
+     * @param hierarchy the hierarchy
+     */
+    public PromotionScheduler(HierarchyUsingChildCategoryAndProduct hierarchy) {
+	this(hierarchy, Clock.systemUTC(), DEFAULT_TICK_MILLIS);
+    }
+
+    /**
+     * Instantiates a new promotion scheduler.
+     *
+     * @param hierarchy  the hierarchy
+     * @param clock      the clock
+     * @param tickMillis the resolution of start and end times; promotions start
+     *                   and end on the first advance after their time, rounded
+     *                   up to a tick
+     */
+    public PromotionScheduler(HierarchyUsingChildCategoryAndProduct hierarchy, Clock clock, long tickMillis) {
+	this.hierarchy = hierarchy;
+	this.clock = clock;
+	this.wheel = new TimingWheel<>(tickMillis, clock.millis());
+    }
+
+    /**
+     * Schedule a discount on node from start to end.
+     *
+     * @param nodeId       the node id
+     * @param discountType the discount type 1: % discount, 2: flat discount
+     * @param discount     the discount
+     * @param startMillis  the start millis, a start not after now of clock is
+     *                     applied right away
+     * @param endMillis    the end millis
+     * @return the promotion id, 0 if end is not after start or discount type is
+     *         unknown
+     */
+    public long schedule(int nodeId, int discountType, float discount, long startMillis, long endMillis) {
+	if (endMillis <= startMillis || (discountType != 1 && discountType != 2)) {
+	    return 0;
+	}
+	Promotion promotion = new Promotion(++lastId, nodeId, discountType, discount, endMillis);
+	promotions.put(promotion.id, promotion);
+	long nowMillis = clock.millis();
+	if (startMillis <= nowMillis) {
+	    // Not left to the wheel, whose next tick may be a tick away
+	    start(promotion, nowMillis);
+	} else {
+	    wheel.schedule(promotion, startMillis);
+	}
+	return promotion.id;
+    }
+
+    /**
+     * Cancel promotion. A promotion already started is reverted right away.
+     *
+     * @param id the promotion id
+     * @return true, if promotion was scheduled or active
+     */
+    public boolean cancel(long id) {
+	Promotion promotion = promotions.remove(id);
+	if (promotion == null) {
+	    return false;
+	}
+	wheel.cancel(promotion);
+	if (promotion.active) {
+	    revertBatch.clear();
+	    addRevert(promotion);
+	    hierarchy.applyBatch(revertBatch);
+	}
+	return true;
+    }
+
+    /**
+     * Start and end the promotions due by now of clock. Ending promotions are
+     * reverted first, in one batch, then starting ones are applied in order of
+     * their start tick.
+     *
+     * @return the number of promotions started or ended
+     */
+    public int advance() {
+	long nowMillis = clock.millis();
+	due.clear();
+	int fired = wheel.advance(nowMillis, due);
+	if (fired == 0) {
+	    return 0;
+	}
+
+	revertBatch.clear();
+	for (Promotion promotion : due) {
+	    if (promotion.active) {
+		promotions.remove(promotion.id);
+		addRevert(promotion);
+	    }
+	}
+	if (revertBatch.size() > 0) {
+	    hierarchy.applyBatch(revertBatch);
+	}
+
+	for (Promotion promotion : due) {
+	    // Ended ones were removed from promotions above
+	    if (!promotion.active && promotions.containsKey(promotion.id)) {
+		start(promotion, nowMillis);
+	    }
+	}
+	due.clear();
+	return fired;
+    }
+
+    /**
+     * Apply the discount of promotion, recording the amount taken off every
+     * product, and schedule its end. A promotion whose end passed already or
+     * whose discount can not be applied is dropped.
+     *
+     * @param promotion the promotion
+     * @param nowMillis the now millis
+     */
+    private void start(Promotion promotion, long nowMillis) {
+	if (promotion.endMillis <= nowMillis) {
+	    promotions.remove(promotion.id);
+	    skippedCount++;
+	    return;
+	}
+	ResultCode result = hierarchy.applyDiscountOnNodeResult(promotion.nodeId, promotion.discountType,
+		promotion.discount, changes);
+	// Products changed before a failure are reverted on end all the same
+	if (!result.isSuccess() && changes.productCount == 0) {
+	    promotions.remove(promotion.id);
+	    skippedCount++;
+	    return;
+	}
+	int productCount = changes.productCount;
+	promotion.productIds = new int[productCount];
+	promotion.products = new Product[productCount];
+	promotion.amounts = new float[productCount];
+	for (int i = 0; i < productCount; i++) {
+	    Product product = hierarchy.products.get(changes.productIds[i]);
+	    promotion.productIds[i] = changes.productIds[i];
+	    promotion.products[i] = product;
+	    promotion.amounts[i] = changes.sellingPrices[i] - product.getSellingPrice();
+	}
+	changes.clear();
+	promotion.active = true;
+	activeCount++;
+	startedCount++;
+	wheel.schedule(promotion, promotion.endMillis);
+    }
+
+    /**
+     * Add the revert of every product of promotion still in hierarchy to revert
+     * batch.
+     *
+     * @param promotion the active promotion
+     */
+    private void addRevert(Promotion promotion) {
+	for (int i = 0; i < promotion.productIds.length; i++) {
+	    // The id may have been removed and added again for another product
+	    if (hierarchy.products.get(promotion.productIds[i]) == promotion.products[i]) {
+		revertBatch.revertDiscount(promotion.productIds[i], promotion.amounts[i]);
+	    }
+	}
+	promotion.active = false;
+	promotion.productIds = null;
+	promotion.products = null;
+	promotion.amounts = null;
+	activeCount--;
+	endedCount++;
+    }
+
+    /**
+     * Gets the number of promotions scheduled or active.
+     *
+     * @return the scheduled count
+     */
+    public int getScheduledCount() {
+	return promotions.size();
+    }
+
+    /**
+     * Gets the number of active promotions.
+     *
+     * @return the active count
+     */
+    public int getActiveCount() {
+	return activeCount;
+    }
+
+    /**
+     * Gets the number of promotions started so far.
+     *
+     * @return the started count
+     */
+    public long getStartedCount() {
+	return startedCount;
+    }
+
+    /**
+     * Gets the number of promotions ended or cancelled after start so far.
+     *
+     * @return the ended count
+     */
+    public long getEndedCount() {
+	return endedCount;
+    }
+
+    /**
+     * Gets the number of promotions dropped as their end passed before start or
+     * their discount could not be applied.
+     *
+     * @return the skipped count
+     */
+    public long getSkippedCount() {
+	return skippedCount;
+    }
+}
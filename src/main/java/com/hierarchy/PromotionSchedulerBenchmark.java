@@ -0,0 +1,150 @@
+package com.hierarchy;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The Class PromotionSchedulerBenchmark.
+ * <p>
+ * Cost of scheduling promotions and of running them over simulated hours. The
+ * promotions, percent discounts on random categories or products, start at a
+ * random time within hours and last from a minute to two hours. A simulated
+ * clock then moves a second at a time, each followed by an advance of the
+ * scheduler, till every promotion ended; the longest advance is the longest a
+ * request waits behind promotions starting and ending. At the end every
+ * product must be back to its original price.
+ * </p>
+ * <p>
+ * Usage: PromotionSchedulerBenchmark [categories] [productsPerCategory]
+ * [promotions] [hours] [rounds]. Defaults are 1000 20 20000 24 5.
+ * </p>
+ */
+public class PromotionSchedulerBenchmark {
+
+    /** The LOGGER. */
+    private static final Logger LOGGER = LoggerFactory.getLogger(PromotionSchedulerBenchmark.class);
+
+    /** The warm up rounds, results of these are not reported. */
+    private static final int WARM_UP_ROUNDS = 2;
+
+    /** The id of top level category. */
+    private static final int ROOT_ID = 1;
+
+    /** The step of simulated clock. */
+    private static final long STEP_MILLIS = TimeUnit.SECONDS.toMillis(1);
+
+    /** The shortest promotion. */
+    private static final long MIN_DURATION_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+    /** The longest promotion. */
+    private static final long MAX_DURATION_MILLIS = TimeUnit.HOURS.toMillis(2);
+
+    /** The tolerated relative difference of a reverted price with original. */
+    private static final float PRICE_TOLERANCE = 1e-3f;
+
+    /**
+     * The main method.
+     *
+     * @param args the arguments
+     */
+    public static void main(String[] args) {
+	int categoryCount = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+	int productsPerCategory = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+	int promotionCount = args.length > 2 ? Integer.parseInt(args[2]) : 20000;
+	long periodMillis = TimeUnit.HOURS.toMillis(args.length > 3 ? Long.parseLong(args[3]) : 24);
+	int rounds = args.length > 4 ? Integer.parseInt(args[4]) : 5;
+
+	for (int round = 0; round < WARM_UP_ROUNDS + rounds; round++) {
+	    HierarchyUsingChildCategoryAndProduct hierarchy = createHierarchy(categoryCount, productsPerCategory);
+	    SimulatedClock clock = new SimulatedClock(0);
+	    PromotionScheduler scheduler = new PromotionScheduler(hierarchy, clock,
+		    PromotionScheduler.DEFAULT_TICK_MILLIS);
+	    int nodeCount = categoryCount * (1 + productsPerCategory);
+	    Random random = new Random(round);
+
+	    long startNanos = System.nanoTime();
+	    for (int i = 0; i < promotionCount; i++) {
+		long startMillis = (long) (random.nextDouble() * periodMillis);
+		long durationMillis = MIN_DURATION_MILLIS
+			+ (long) (random.nextDouble() * (MAX_DURATION_MILLIS - MIN_DURATION_MILLIS));
+		scheduler.schedule(ROOT_ID + 1 + random.nextInt(nodeCount), 1, 1 + random.nextInt(30), startMillis,
+			startMillis + durationMillis);
+	    }
+	    long scheduleNanos = System.nanoTime() - startNanos;
+
+	    long maxAdvanceNanos = 0;
+	    long advanceNanos = 0;
+	    int maxActive = 0;
+	    while (scheduler.getScheduledCount() > 0) {
+		clock.advance(STEP_MILLIS);
+		long advanceStartNanos = System.nanoTime();
+		scheduler.advance();
+		long elapsedNanos = System.nanoTime() - advanceStartNanos;
+		advanceNanos += elapsedNanos;
+		maxAdvanceNanos = Math.max(maxAdvanceNanos, elapsedNanos);
+		maxActive = Math.max(maxActive, scheduler.getActiveCount());
+	    }
+	    checkPrices(hierarchy);
+
+	    if (round >= WARM_UP_ROUNDS) {
+		LOGGER.info("{} promotions scheduled in {} us, {} ns/op", promotionCount, toMicros(scheduleNanos),
+			scheduleNanos / Math.max(1, promotionCount));
+		LOGGER.info("{} started, {} ended, {} skipped, at most {} active", scheduler.getStartedCount(),
+			scheduler.getEndedCount(), scheduler.getSkippedCount(), maxActive);
+		LOGGER.info("{} s simulated: advance total {} ms, longest {} us", clock.millis() / STEP_MILLIS,
+			TimeUnit.NANOSECONDS.toMillis(advanceNanos), toMicros(maxAdvanceNanos));
+	    }
+	}
+    }
+
+    /**
+     * Creates the hierarchy: a top level category holding categories, each with
+     * products.
+     *
+     * @param categoryCount       the category count
+     * @param productsPerCategory the products per category
+     * @return the hierarchy
+     */
+    private static HierarchyUsingChildCategoryAndProduct createHierarchy(int categoryCount,
+	    int productsPerCategory) {
+	HierarchyUsingChildCategoryAndProduct hierarchy = new HierarchyUsingChildCategoryAndProduct();
+	hierarchy.addNodeInfoResult(ROOT_ID, "root", -1);
+	int nodeId = ROOT_ID + 1;
+	for (int i = 0; i < categoryCount; i++) {
+	    int categoryId = nodeId++;
+	    hierarchy.addNewNodeResult(ROOT_ID, categoryId, -1, "c");
+	    for (int j = 0; j < productsPerCategory; j++) {
+		hierarchy.addNewNodeResult(categoryId, nodeId++, 100 + j, "p");
+	    }
+	}
+	return hierarchy;
+    }
+
+    /**
+     * Check every product is back to its original price.
+     *
+     * @param hierarchy the hierarchy
+     */
+    private static void checkPrices(HierarchyUsingChildCategoryAndProduct hierarchy) {
+	for (Product product : hierarchy.products.values()) {
+	    float difference = product.getOriginalPrice() - product.getSellingPrice();
+	    if (Math.abs(difference) > PRICE_TOLERANCE * product.getOriginalPrice()) {
+		throw new IllegalStateException("Product " + product.getId() + " not reverted, selling price "
+			+ product.getSellingPrice() + " original price " + product.getOriginalPrice());
+	    }
+	}
+    }
+
+    /**
+     * Nanos to micros.
+     *
+     * @param nanos the nanos
+     * @return the micros
+     */
+    private static long toMicros(long nanos) {
+	return TimeUnit.NANOSECONDS.toMicros(nanos);
+    }
+}
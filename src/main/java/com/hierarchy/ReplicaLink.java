@@ -0,0 +1,132 @@
+package com.hierarchy;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+/**
+ * The Class ReplicaLink.
+ * <p>
+ * Connection of a replica HierarchyServer to the ReplicationPrimary. The server
+ * thread reads the shipped OperationLog entries and applies them in order on
+ * the replica hierarchy. All the complete entries of a read are applied as one
+ * MutationBatch, so the max discounted products are recomputed once per read
+ * instead of once per operation. Add node info entries, which are not part of
+ * a batch, are applied between batches.
+ * </p>
+ */
+class ReplicaLink {
+
+    /** The read buffer size. */
+    private static final int READ_BUFFER_SIZE = 256 * 1024;
+
+    /** The channel. */
+    final SocketChannel channel;
+
+    /** The read buffer. */
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+
+    /** The batch reused for every read. */
+    private final MutationBatch batch = new MutationBatch();
+
+    /** The sequence number of last applied entry. */
+    private long appliedSequence;
+
+    /**
+     * Connect to primary and request the entries after applied sequence. The
+     * channel is left non blocking for the selector of server.
+     *
+     * @param primaryAddress  the primary address
+     * @param appliedSequence the applied sequence, 0 for an empty hierarchy
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    ReplicaLink(InetSocketAddress primaryAddress, long appliedSequence) throws IOException {
+	this.appliedSequence = appliedSequence;
+	this.channel = SocketChannel.open(primaryAddress);
+	this.channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+	ByteBuffer request = ByteBuffer.allocate(8).putLong(appliedSequence);
+	request.flip();
+	while (request.hasRemaining()) {
+	    this.channel.write(request);
+	}
+	this.channel.configureBlocking(false);
+    }
+
+    /**
+     * Gets the sequence number of last applied entry.
+     *
+     * @return the applied sequence
+     */
+    long getAppliedSequence() {
+	return this.appliedSequence;
+    }
+
+    /**
+     * Read the available entries and apply them on hierarchy.
+     *
+     * @param hierarchy the hierarchy
+     * @return false, if primary closed the connection
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    boolean read(HierarchyUsingChildCategoryAndProduct hierarchy) throws IOException {
+	int read = this.channel.read(this.readBuffer);
+	this.readBuffer.flip();
+	while (this.readBuffer.remaining() >= OperationLog.ENTRY_HEADER_LENGTH + 4) {
+	    int position = this.readBuffer.position();
+	    int frameLength = this.readBuffer.getInt(position + OperationLog.ENTRY_HEADER_LENGTH);
+	    if (this.readBuffer.remaining() < OperationLog.ENTRY_HEADER_LENGTH + 4 + frameLength) {
+		break;
+	    }
+	    long sequence = this.readBuffer.getLong();
+	    this.readBuffer.getInt();
+	    byte queryType = this.readBuffer.get();
+	    switch (queryType) {
+	    case BinaryProtocol.ADD_NODE_INFO: {
+		applyBatch(hierarchy);
+		int nodeId = this.readBuffer.getInt();
+		float price = this.readBuffer.getFloat();
+		hierarchy.addNodeInfoResult(nodeId, BinaryProtocol.getName(this.readBuffer), price);
+		break;
+	    }
+	    case BinaryProtocol.PERCENT_DISCOUNT:
+	    case BinaryProtocol.FLAT_DISCOUNT:
+		this.batch.addDiscount(this.readBuffer.getInt(), queryType, this.readBuffer.getFloat());
+		break;
+	    case BinaryProtocol.ADD_NEW_NODE: {
+		int parentCategoryId = this.readBuffer.getInt();
+		int nodeId = this.readBuffer.getInt();
+		float price = this.readBuffer.getFloat();
+		this.batch.addNewNode(parentCategoryId, nodeId, price, BinaryProtocol.getName(this.readBuffer));
+		break;
+	    }
+	    case BinaryProtocol.REMOVE_NODE:
+		this.batch.removeNode(this.readBuffer.getInt());
+		break;
+	    case BinaryProtocol.MOVE_NODE:
+		this.batch.moveNode(this.readBuffer.getInt(), this.readBuffer.getInt());
+		break;
+	    default:
+		throw new IOException("Invalid operation log entry of type " + queryType);
+	    }
+	    this.readBuffer.position(position + OperationLog.ENTRY_HEADER_LENGTH + 4 + frameLength);
+	    this.appliedSequence = sequence;
+	}
+	this.readBuffer.compact();
+	applyBatch(hierarchy);
+	return read >= 0;
+    }
+
+    /**
+     * Apply the batched entries, if any.
+     *
+     * @param hierarchy the hierarchy
+     */
+    private void applyBatch(HierarchyUsingChildCategoryAndProduct hierarchy) {
+	if (this.batch.size() > 0) {
+	    hierarchy.applyBatch(this.batch);
+	    this.batch.clear();
+	}
+    }
+}
@@ -0,0 +1,112 @@
+package com.hierarchy;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The Class ReplicationPrimary.
+ * <p>
+ * Ships the OperationLog of a primary HierarchyServer to replicas. A replica
+ * connects, sends the long sequence number it has already applied (0 for an
+ * empty replica) and then only receives log entries, every entry appended after
+ * that sequence number in order. Each replica is served by its own thread which
+ * writes all the entries appended since its last write at once, so a replica
+ * falling behind receives larger batches.
+ * </p>
+ */
+public class ReplicationPrimary implements Runnable, Closeable {
+
+    /** The LOGGER. */
+    private static final Logger LOGGER = LoggerFactory.getLogger(ReplicationPrimary.class);
+
+    /** The operation log. */
+    private final OperationLog operationLog;
+
+    /** The server socket. */
+    private final ServerSocket serverSocket;
+
+    /**
+     * Instantiates a new replication primary bound to given address.
+     *
+     * @param operationLog the operation log
+     * @param address      the address, port 0 for any free port
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    public ReplicationPrimary(OperationLog operationLog, InetSocketAddress address) throws IOException {
+	this.operationLog = operationLog;
+	this.serverSocket = new ServerSocket();
+	this.serverSocket.bind(address);
+    }
+
+    /**
+     * Gets the port replicas connect to.
+     *
+     * @return the port
+     */
+    public int getPort() {
+	return this.serverSocket.getLocalPort();
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see java.lang.Runnable#run()
+     */
+    @Override
+    public void run() {
+	while (!this.serverSocket.isClosed()) {
+	    try {
+		Socket socket = this.serverSocket.accept();
+		socket.setTcpNoDelay(true);
+		Thread shipper = new Thread(() -> ship(socket), "replication-" + socket.getRemoteSocketAddress());
+		shipper.setDaemon(true);
+		shipper.start();
+	    } catch (IOException e) {
+		if (!this.serverSocket.isClosed()) {
+		    LOGGER.error("replica accept failed", e);
+		}
+	    }
+	}
+    }
+
+    /**
+     * Ship the log to one replica till it disconnects or the log is closed.
+     *
+     * @param socket the socket of replica
+     */
+    private void ship(Socket socket) {
+	try (Socket replica = socket) {
+	    long appliedSequence = new DataInputStream(replica.getInputStream()).readLong();
+	    int offset = this.operationLog.offsetAfter(appliedSequence);
+	    LOGGER.debug("shipping operation log after sequence [{}] to replica [{}]", appliedSequence,
+		    replica.getRemoteSocketAddress());
+	    OutputStream output = new BufferedOutputStream(replica.getOutputStream(), 64 * 1024);
+	    while (offset >= 0) {
+		offset = this.operationLog.ship(offset, output);
+	    }
+	} catch (IOException e) {
+	    LOGGER.debug("replica [{}] disconnected: {}", socket.getRemoteSocketAddress(), e.getMessage());
+	} catch (InterruptedException e) {
+	    Thread.currentThread().interrupt();
+	}
+    }
+
+    /**
+     * Stop accepting replicas and stop shipping.
+     *
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    @Override
+    public void close() throws IOException {
+	this.operationLog.close();
+	this.serverSocket.close();
+    }
+}
@@ -0,0 +1,144 @@
+package com.hierarchy;
+
+/**
+ * The Enum ResultCode.
+ * <p>
+ * Typed outcome of every operation on the hierarchy. Callers on the hot path
+ * should branch on the code itself (or on {@link #isSuccess()}) instead of
+ * comparing response strings. The human readable message is only required at
+ * the output boundary, see DriverClass.
+ * </p>
+ */
+public enum ResultCode {
+
+    /** Discount applied on a category or a product. */
+    DISCOUNT_APPLIED("Discount applied.", true),
+
+    /** Discount rejected, hierarchy left unchanged. */
+    DISCOUNT_CANNOT_BE_APPLIED("Discount cannot be applied.", false),
+
+    /**
+     * Discount applied on the product only, parent hierarchy is not updated yet.
+     */
+    PRODUCT_DISCOUNT_APPLIED("product discount applied.", true),
+
+    /** Product added. */
+    PRODUCT_ADDED("Product added.", true),
+
+    /** Category added. */
+    CATEGORY_ADDED("Category added.", true),
+
+    /** Category deleted. */
+    CATEGORY_DELETED("Category deleted.", true),
+
+    /** Product deleted. */
+    PRODUCT_DELETED("Product deleted.", true),
+
+    /** Category moved under new parent. */
+    CATEGORY_MOVED("Category moved.", true),
+
+    /** Product moved under new category. */
+    PRODUCT_MOVED("Product moved.", true),
+
+    /** Category can not be moved under itself or its own subtree. */
+    INVALID_MOVE("Invalid move.", false),
+
+    /** Batch of mutations applied. */
+    BATCH_APPLIED("Batch applied.", true),
+
+    /** Query type is not known. */
+    INVALID_QUERY_TYPE("Invalid query type", false),
+
+    /** Maximum discounted product found. */
+    PRODUCT_FOUND("Product found.", true),
+
+    /** Node id is not known to hierarchy or no product found under it. */
+    INVALID_ID("Invalid ID.", false),
+
+    /** Both nodes of a relationship are products. */
+    INVALID_NODES("Invalid nodes. Both are products", false),
+
+    /** Parent category does not exist. */
+    INVALID_PARENT_CATEGORY_ID("Invalid parent category id.", false),
+
+    /** Category with same id already exists. */
+    CATEGORY_NOT_ADDED("Category not added.", false),
+
+    /** Product with same id already exists. */
+    PRODUCT_NOT_ADDED("Product not added.", false),
+
+    /** Category information created. */
+    CATEGORY_INFO_CREATED("New Category information created", true),
+
+    /** Category information already exists. */
+    CATEGORY_ALREADY_EXIST("Category already exist", false),
+
+    /** Category id is already used by a product. */
+    INVALID_CATEGORY_ID("Invalid category id. A product with same id already exist", false),
+
+    /** Product information created. */
+    PRODUCT_INFO_CREATED("New Product information created", true),
+
+    /** Product information already exists. */
+    PRODUCT_ALREADY_EXIST("Product already exist", false),
+
+    /** Product id is already used by a category. */
+    INVALID_PRODUCT_ID("Invalid product id. A category with same id already exist", false),
+
+    /** Sequence number of last applied operation found. */
+    SEQUENCE_FOUND("Sequence found.", true),
+
+    /** Replica did not apply the requested sequence number in time. */
+    REPLICA_STALE("Replica is stale.", false),
+
+    /** Write operation sent to a replica. */
+    READ_ONLY_REPLICA("Replica is read only.", false),
+
+    /** Subtree aggregates found. */
+    AGGREGATES_FOUND("Aggregates found.", true),
+
+    /** Original price of product changed. */
+    PRICE_CHANGED("Price changed.", true),
+
+    /** Price is negative. */
+    INVALID_PRICE("Invalid price.", false),
+
+    /** Amount taken off by a discount added back to selling price. */
+    DISCOUNT_REVERTED("Discount reverted.", true);
+
+    /** The message. */
+    private final String message;
+
+    /** The success. */
+    private final boolean success;
+
+    /**
+     * Instantiates a new result code.
+     *
+     * @param message the message
+     * @param success the success
+     */
+    ResultCode(String message, boolean success) {
+	this.message = message;
+	this.success = success;
+    }
+
+    /**
+     * Gets the message printed at output boundary.
+     *
+     * @return the message
+     */
+    public String getMessage() {
+	return message;
+    }
+
+    /**
+     * Checks if operation was successful.
+     *
+     * @return true, if successful
+     */
+    public boolean isSuccess() {
+	return success;
+    }
+
+}
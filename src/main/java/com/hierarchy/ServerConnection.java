@@ -0,0 +1,64 @@
+package com.hierarchy;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+/**
+ * The Class ServerConnection.
+ * <p>
+ * State of one client connection of HierarchyServer: the channel, the buffer of
+ * received bytes which may end with a partial request frame, and the buffer of
+ * responses not yet written to the channel. Both buffers are kept in write mode
+ * (filled up to position) between events.
+ * </p>
+ */
+class ServerConnection {
+
+    /** The channel. */
+    final SocketChannel channel;
+
+    /** The read buffer. */
+    final ByteBuffer readBuffer;
+
+    /** The write buffer, grown while client does not read responses. */
+    ByteBuffer writeBuffer;
+
+    /**
+     * The waiting flag, set while next request waits for a replica to apply its
+     * min sequence.
+     */
+    boolean waiting;
+
+    /** The nano time after which a waiting request is answered stale. */
+    long waitDeadline;
+
+    /**
+     * Instantiates a new server connection.
+     *
+     * @param channel         the channel
+     * @param readBufferSize  the read buffer size
+     * @param writeBufferSize the initial write buffer size
+     */
+    ServerConnection(SocketChannel channel, int readBufferSize, int writeBufferSize) {
+	this.channel = channel;
+	this.readBuffer = ByteBuffer.allocate(readBufferSize);
+	this.writeBuffer = ByteBuffer.allocate(writeBufferSize);
+    }
+
+    /**
+     * Ensure write buffer has at least given number of bytes remaining, doubling
+     * its capacity if required.
+     *
+     * @param length the length
+     */
+    void ensureWritable(int length) {
+	if (this.writeBuffer.remaining() >= length) {
+	    return;
+	}
+	ByteBuffer newWriteBuffer = ByteBuffer
+		.allocate(Math.max(this.writeBuffer.capacity() * 2, this.writeBuffer.position() + length));
+	this.writeBuffer.flip();
+	newWriteBuffer.put(this.writeBuffer);
+	this.writeBuffer = newWriteBuffer;
+    }
+}
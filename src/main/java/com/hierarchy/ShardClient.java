@@ -0,0 +1,118 @@
+package com.hierarchy;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The Class ShardClient.
+ * <p>
+ * Connection to one shard process running ShardServer. Requests can be
+ * pipelined: several send calls followed by a flush and then as many receive
+ * calls, responses come back in order of requests.
+ * </p>
+ */
+class ShardClient {
+
+    /** The process. */
+    private final Process process;
+
+    /** The writer to process standard input. */
+    private final BufferedWriter writer;
+
+    /** The reader of process standard output. */
+    private final BufferedReader reader;
+
+    /** The number of nodes owned by shard, maintained by the router. */
+    int nodeCount;
+
+    /** The reclaim pending flag, set while the shard may report reclaimed nodes. */
+    boolean reclaimPending;
+
+    /**
+     * Start a shard process with the class path of current JVM.
+     *
+     * @param jvmArgs the jvm args of shard process, e.g. -Xmx
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    ShardClient(List<String> jvmArgs) throws IOException {
+	List<String> command = new ArrayList<>();
+	command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+	command.addAll(jvmArgs);
+	command.add("-cp");
+	command.add(System.getProperty("java.class.path"));
+	command.add(ShardServer.class.getName());
+	this.process = new ProcessBuilder(command).redirectError(ProcessBuilder.Redirect.INHERIT).start();
+	this.writer = new BufferedWriter(new OutputStreamWriter(this.process.getOutputStream(), "UTF-8"));
+	this.reader = new BufferedReader(new InputStreamReader(this.process.getInputStream(), "UTF-8"));
+    }
+
+    /**
+     * Send a request without waiting for response.
+     *
+     * @param request the request
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    void send(String request) throws IOException {
+	this.writer.write(request);
+	this.writer.newLine();
+    }
+
+    /**
+     * Flush the sent requests to shard.
+     *
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    void flush() throws IOException {
+	this.writer.flush();
+    }
+
+    /**
+     * Receive the response line of the oldest pending request.
+     *
+     * @return the response
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    String receive() throws IOException {
+	String response = this.reader.readLine();
+	if (response == null) {
+	    throw new IOException("Shard process terminated");
+	}
+	return response;
+    }
+
+    /**
+     * Send one request and wait for its response.
+     *
+     * @param request the request
+     * @return the response
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    String request(String request) throws IOException {
+	send(request);
+	flush();
+	return receive();
+    }
+
+    /**
+     * Close standard input of shard, which terminates it, and wait for the
+     * process to exit.
+     *
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    void close() throws IOException {
+	this.writer.close();
+	try {
+	    this.process.waitFor();
+	} catch (InterruptedException e) {
+	    Thread.currentThread().interrupt();
+	    this.process.destroy();
+	}
+	this.reader.close();
+    }
+}
@@ -0,0 +1,134 @@
+package com.hierarchy;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The Class ShardScalingHarness.
+ * <p>
+ * Local multi-process harness for ShardedHierarchy, no external service is
+ * required. The same catalog (top level categories, each with sub categories
+ * holding products) is loaded on 1, 2 and 4 shard processes, then a mix of
+ * product discounts, top level category reads, root reads and root discounts is
+ * run. For every shard count the harness logs the heap used by the catalog on
+ * the largest shard, which bounds the catalog size a fixed shard heap can hold,
+ * and the root maximum discounted product which must be the same for every
+ * shard count.
+ * </p>
+ * <p>
+ * Usage: ShardScalingHarness [topLevelCategories] [operations] [shardCounts
+ * e.g. 1,2,4]. Shards are started with -Xmx256m.
+ * </p>
+ */
+public class ShardScalingHarness {
+
+    /** The LOGGER. */
+    private static final Logger LOGGER = LoggerFactory.getLogger(ShardScalingHarness.class);
+
+    /** The root category id. */
+    private static final int ROOT_CATEGORY_ID = 1;
+
+    /** The sub categories per top level category. */
+    private static final int SUB_CATEGORIES = 16;
+
+    /** The products per sub category. */
+    private static final int PRODUCTS_PER_CATEGORY = 32;
+
+    /** The jvm args of shard processes. */
+    private static final List<String> SHARD_JVM_ARGS = Collections.singletonList("-Xmx256m");
+
+    /**
+     * The main method.
+     *
+     * @param args the arguments
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    public static void main(String[] args) throws IOException {
+	int topLevelCategories = args.length > 0 ? Integer.parseInt(args[0]) : 64;
+	int operationCount = args.length > 1 ? Integer.parseInt(args[1]) : 20000;
+	String[] shardCounts = (args.length > 2 ? args[2] : "1,2,4").split(",");
+	for (String shardCount : shardCounts) {
+	    run(Integer.parseInt(shardCount), topLevelCategories, operationCount);
+	}
+    }
+
+    /**
+     * Load the catalog on given number of shards and run the operations.
+     *
+     * @param shardCount         the shard count
+     * @param topLevelCategories the top level categories
+     * @param operationCount     the operation count
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    private static void run(int shardCount, int topLevelCategories, int operationCount) throws IOException {
+	try (ShardedHierarchy hierarchy = new ShardedHierarchy(shardCount, ROOT_CATEGORY_ID, "root",
+		SHARD_JVM_ARGS)) {
+	    long[] emptyHeapUsed = hierarchy.getShardHeapUsed();
+	    Random random = new Random(topLevelCategories);
+	    int nodeId = ROOT_CATEGORY_ID + 1;
+	    int firstProductId = 0;
+	    long startNanos = System.nanoTime();
+	    for (int i = 0; i < topLevelCategories; i++) {
+		int topLevelCategoryId = nodeId++;
+		hierarchy.addNewNodeResult(ROOT_CATEGORY_ID, topLevelCategoryId, -1, "c" + topLevelCategoryId);
+		for (int j = 0; j < SUB_CATEGORIES; j++) {
+		    int categoryId = nodeId++;
+		    hierarchy.addNewNodeResult(topLevelCategoryId, categoryId, -1, "c" + categoryId);
+		    for (int k = 0; k < PRODUCTS_PER_CATEGORY; k++) {
+			int productId = nodeId++;
+			if (firstProductId == 0) {
+			    firstProductId = productId;
+			}
+			hierarchy.addNewNodeResult(categoryId, productId, 100 + random.nextInt(1000), "p" + productId);
+		    }
+		}
+	    }
+	    long loadNanos = System.nanoTime() - startNanos;
+
+	    // Top level category i has id 2 + i * (1 + SUB_CATEGORIES * (1 + PRODUCTS_PER_CATEGORY))
+	    int topLevelStride = 1 + SUB_CATEGORIES * (1 + PRODUCTS_PER_CATEGORY);
+	    ProductResult result = new ProductResult();
+	    startNanos = System.nanoTime();
+	    for (int i = 0; i < operationCount; i++) {
+		int operation = random.nextInt(100);
+		if (operation < 50) {
+		    int topLevelCategoryId = ROOT_CATEGORY_ID + 1 + random.nextInt(topLevelCategories) * topLevelStride;
+		    int categoryId = topLevelCategoryId + 1 + random.nextInt(SUB_CATEGORIES) * (1 + PRODUCTS_PER_CATEGORY);
+		    hierarchy.applyDiscountOnNodeResult(categoryId + 1 + random.nextInt(PRODUCTS_PER_CATEGORY), 2,
+			    random.nextInt(5));
+		} else if (operation < 80) {
+		    hierarchy.getMaximumDiscountedProduct(
+			    ROOT_CATEGORY_ID + 1 + random.nextInt(topLevelCategories) * topLevelStride, result);
+		} else if (operation < 99) {
+		    hierarchy.getMaximumDiscountedProduct(ROOT_CATEGORY_ID, result);
+		} else {
+		    hierarchy.applyDiscountOnNodeResult(ROOT_CATEGORY_ID, 1, 1);
+		}
+	    }
+	    long operationNanos = System.nanoTime() - startNanos;
+
+	    long[] heapUsed = hierarchy.getShardHeapUsed();
+	    long maxCatalogHeap = 0;
+	    long totalCatalogHeap = 0;
+	    int[] nodeCounts = new int[shardCount];
+	    for (int i = 0; i < shardCount; i++) {
+		long catalogHeap = Math.max(0, heapUsed[i] - emptyHeapUsed[i]);
+		maxCatalogHeap = Math.max(maxCatalogHeap, catalogHeap);
+		totalCatalogHeap += catalogHeap;
+		nodeCounts[i] = hierarchy.getShardNodeCount(i);
+	    }
+	    hierarchy.getMaximumDiscountedProduct(ROOT_CATEGORY_ID, result);
+	    LOGGER.info("{} shard(s): nodes per shard {}, catalog heap on largest shard {} KB (total {} KB), load {} ms, "
+		    + "{} ops/sec, root max discounted product {} {} {}", shardCount, Arrays.toString(nodeCounts),
+		    maxCatalogHeap / 1024, totalCatalogHeap / 1024, loadNanos / 1000000,
+		    operationCount * 1000000000L / Math.max(1, operationNanos), result.getProductId(),
+		    result.getOriginalPrice(), result.getSellingPrice());
+	}
+    }
+}
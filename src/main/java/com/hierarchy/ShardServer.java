@@ -0,0 +1,212 @@
+package com.hierarchy;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The Class ShardServer.
+ * <p>
+ * Main class of a shard process started by ShardedHierarchy. It holds one
+ * HierarchyUsingChildCategoryAndProduct and reads one request per line from
+ * standard input, writing one response line per request to standard output in
+ * the same order. Requests use the query format of DriverClass, fields separated
+ * by a single space, so node names can not contain spaces:
+ * </p>
+ * <ul>
+ * <li>0 &lt;NodeId&gt; &lt;Price&gt; &lt;NodeName&gt; : add node info, -1 price
+ * for category</li>
+ * <li>1 &lt;NodeId&gt; &lt;Discount Percent&gt; : % discount</li>
+ * <li>2 &lt;NodeId&gt; &lt;Flat Amount&gt; : flat discount</li>
+ * <li>3 &lt;NodeId&gt; : get maximum discounted product, answered as
+ * PRODUCT_FOUND &lt;ProductId&gt; &lt;OriginalPrice&gt; &lt;SellingPrice&gt;
+ * &lt;Name&gt;</li>
+ * <li>4 &lt;ParentCategoryId&gt; &lt;NodeId&gt; &lt;Price&gt; &lt;NodeName&gt; :
+ * add category / product</li>
+ * <li>5 &lt;NodeId&gt; : delete</li>
+ * <li>6 &lt;NodeId&gt; &lt;NewParentCategoryId&gt; : move</li>
+ * <li>P &lt;DiscountType&gt; &lt;NodeId&gt; &lt;Discount&gt; : prepare, true if
+ * discount can be applied</li>
+ * <li>E &lt;NodeId&gt; : export the subtree, answered with the number of lines
+ * followed by type 4 and type 2 queries rebuilding it</li>
+ * <li>L &lt;NodeId&gt; : true if node exists and is not in a removed
+ * subtree</li>
+ * <li>R : reclaimed nodes, answered with true if removed subtrees are still
+ * pending followed by the ids of the nodes reclaimed since last R and not
+ * live again</li>
+ * <li>M : heap used after garbage collection, in bytes</li>
+ * </ul>
+ * <p>
+ * Other responses are the name of the ResultCode. Output is flushed only when
+ * no more request is buffered, so a client can pipeline many requests. Logging
+ * is redirected to standard error to keep standard output for responses.
+ * </p>
+ * <p>
+ * Subtrees of removed categories are reclaimed a slice of RECLAIM_SLICE_NANOS
+ * after every request, and slice after slice while no request is buffered. A
+ * delete thus takes O(h) and the router learns the ids of the removed nodes
+ * from R once they are reclaimed.
+ * </p>
+ */
+public class ShardServer {
+
+    /** The max time spent reclaiming tombstones between two requests. */
+    private static final long RECLAIM_SLICE_NANOS = TimeUnit.MICROSECONDS.toNanos(200);
+
+    /**
+     * The main method.
+     *
+     * @param args the arguments
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    public static void main(String[] args) throws IOException {
+	PrintStream responseStream = System.out;
+	System.setOut(System.err);
+
+	HierarchyUsingChildCategoryAndProduct hierarchy = new HierarchyUsingChildCategoryAndProduct();
+	List<Integer> reclaimedNodeIds = new ArrayList<>();
+	hierarchy.setReclaimListener(reclaimedNodeIds::add);
+	BufferedReader reader = new BufferedReader(new InputStreamReader(System.in, "UTF-8"));
+	BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(responseStream, "UTF-8"));
+	String request;
+	while ((request = reader.readLine()) != null) {
+	    if (request.isEmpty()) {
+		continue;
+	    }
+	    writer.write(handle(hierarchy, request.split(" "), reclaimedNodeIds));
+	    writer.newLine();
+	    if (hierarchy.hasTombstones()) {
+		hierarchy.reclaimTombstones(RECLAIM_SLICE_NANOS);
+	    }
+	    if (!reader.ready()) {
+		writer.flush();
+		while (hierarchy.hasTombstones() && !reader.ready()) {
+		    hierarchy.reclaimTombstones(RECLAIM_SLICE_NANOS);
+		}
+	    }
+	}
+	writer.flush();
+    }
+
+    /**
+     * Handle one request.
+     *
+     * @param hierarchy        the hierarchy
+     * @param attributes       the request attributes
+     * @param reclaimedNodeIds the ids of nodes reclaimed since last R request
+     * @return the response, may span several lines
+     */
+    static String handle(HierarchyUsingChildCategoryAndProduct hierarchy, String[] attributes,
+	    List<Integer> reclaimedNodeIds) {
+	switch (attributes[0]) {
+	case "0":
+	    return hierarchy.addNodeInfoResult(Integer.parseInt(attributes[1]), attributes[3],
+		    Float.parseFloat(attributes[2])).name();
+	case "1":
+	case "2":
+	    return hierarchy.applyDiscountOnNodeResult(Integer.parseInt(attributes[1]),
+		    Integer.parseInt(attributes[0]), Float.parseFloat(attributes[2])).name();
+	case "3": {
+	    Product product = hierarchy.getMaximumDiscountedProduct(Integer.parseInt(attributes[1]));
+	    if (product == null) {
+		return ResultCode.INVALID_ID.name();
+	    }
+	    return ResultCode.PRODUCT_FOUND.name() + " " + product.getId() + " " + product.getOriginalPrice() + " "
+		    + product.getSellingPrice() + " " + product.getName();
+	}
+	case "4":
+	    return hierarchy.addNewNodeResult(Integer.parseInt(attributes[1]), Integer.parseInt(attributes[2]),
+		    Float.parseFloat(attributes[3]), attributes[4]).name();
+	case "5":
+	    return hierarchy.removeNodeResult(Integer.parseInt(attributes[1])).name();
+	case "6":
+	    return hierarchy.moveNodeResult(Integer.parseInt(attributes[1]), Integer.parseInt(attributes[2]))
+		    .name();
+	case "P":
+	    return String.valueOf(hierarchy.isDiscountApplicable(Integer.parseInt(attributes[2]),
+		    Integer.parseInt(attributes[1]), Float.parseFloat(attributes[3])));
+	case "E": {
+	    List<String> queries = new ArrayList<>();
+	    exportSubtree(hierarchy, Integer.parseInt(attributes[1]), queries);
+	    StringBuilder response = new StringBuilder().append(queries.size());
+	    for (String query : queries) {
+		response.append(System.lineSeparator()).append(query);
+	    }
+	    return response.toString();
+	}
+	case "L":
+	    return String.valueOf(isLive(hierarchy, Integer.parseInt(attributes[1])));
+	case "R": {
+	    StringBuilder response = new StringBuilder().append(hierarchy.hasTombstones());
+	    for (int reclaimedNodeId : reclaimedNodeIds) {
+		// An id added again since is live for the router
+		if (!isLive(hierarchy, reclaimedNodeId)) {
+		    response.append(' ').append(reclaimedNodeId);
+		}
+	    }
+	    reclaimedNodeIds.clear();
+	    return response.toString();
+	}
+	case "M": {
+	    Runtime runtime = Runtime.getRuntime();
+	    System.gc();
+	    return String.valueOf(runtime.totalMemory() - runtime.freeMemory());
+	}
+	default:
+	    return ResultCode.INVALID_QUERY_TYPE.name();
+	}
+    }
+
+    /**
+     * Checks if node exists and is not in a removed subtree.
+     *
+     * @param hierarchy the hierarchy
+     * @param nodeId    the node id
+     * @return true, if node is live
+     */
+    private static boolean isLive(HierarchyUsingChildCategoryAndProduct hierarchy, int nodeId) {
+	return (hierarchy.categories.containsKey(nodeId) || hierarchy.products.containsKey(nodeId))
+		&& !hierarchy.isTombstoned(nodeId);
+    }
+
+    /**
+     * Export the subtree of category as the type 4 and type 2 queries rebuilding
+     * it with current selling prices, parents before their children.
+     *
+     * @param hierarchy  the hierarchy
+     * @param categoryId the category id
+     * @param queries    the queries, none if category does not exist or is
+     *                   removed
+     */
+    private static void exportSubtree(HierarchyUsingChildCategoryAndProduct hierarchy, int categoryId,
+	    List<String> queries) {
+	Deque<Category> pendingCategories = new ArrayDeque<>();
+	Category topCategory = hierarchy.categories.get(categoryId);
+	if (topCategory != null && !hierarchy.isTombstoned(categoryId)) {
+	    pendingCategories.push(topCategory);
+	}
+	while (!pendingCategories.isEmpty()) {
+	    Category category = pendingCategories.pop();
+	    queries.add("4 " + category.getParentCategoryId() + " " + category.getId() + " -1 " + category.getName());
+	    for (int productId : category.getDirectChildProductIds()) {
+		Product product = hierarchy.products.get(productId);
+		queries.add("4 " + category.getId() + " " + productId + " " + product.getOriginalPrice() + " "
+			+ product.getName());
+		if (product.getSellingPrice() != product.getOriginalPrice()) {
+		    queries.add("2 " + productId + " " + (product.getOriginalPrice() - product.getSellingPrice()));
+		}
+	    }
+	    for (int childCategoryId : category.getDirectChildCategoryIds()) {
+		pendingCategories.push(hierarchy.categories.get(childCategoryId));
+	    }
+	}
+    }
+}
@@ -0,0 +1,620 @@
+package com.hierarchy;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The Class ShardedHierarchy.
+ * <p>
+ * Router over several shard processes (see ShardServer), each holding a
+ * HierarchyUsingChildCategoryAndProduct. Every shard has its own copy of the
+ * root category. A top level category (direct child of root) and its whole
+ * subtree are owned by a single shard, the shard owning the fewest nodes when
+ * the category is added. A product directly under root is owned by the shard of
+ * its id modulo number of shards.
+ * </p>
+ * <p>
+ * Operations on a node are routed to its owning shard through the node id to
+ * shard maps. Operations on root are sent to every shard: get maximum discounted
+ * product gathers the best product of every shard, and a discount on root is
+ * first prepared on every shard and applied only if all of them accept it.
+ * Requests to several shards are pipelined, so shards work in parallel. Moving a
+ * node to a category owned by another shard exports its subtree, rebuilds it on
+ * the new shard and deletes it from the old one.
+ * </p>
+ * <p>
+ * Removing a category takes O(h) on its shard, which tombstones the subtree and
+ * reclaims it in slices. The nodes of the subtree stay in the maps, routed to
+ * the shard which answers them as absent, till the shard reports them
+ * reclaimed; reports are fetched along the next removal on the shard, before a
+ * top level category is placed and when an added or parent id may be stale.
+ * </p>
+ * <p>
+ * The router is not thread safe. Shard processes are started with the class path
+ * of current JVM and given JVM arguments. They terminate on close.
+ * </p>
+ */
+public class ShardedHierarchy implements Closeable {
+
+	/** The LOGGER. */
+	private static final Logger LOGGER = LoggerFactory.getLogger(ShardedHierarchy.class);
+
+	/** The shards. */
+	private final ShardClient[] shards;
+
+	/** The root category id. */
+	private final int rootCategoryId;
+
+	/** The owning shard of every category except root. */
+	private final Map<Integer, Integer> categoryShards = new HashMap<>();
+
+	/** The owning shard of every product. */
+	private final Map<Integer, Integer> productShards = new HashMap<>();
+
+	/**
+	 * Instantiates a new sharded hierarchy, starting the shard processes and
+	 * adding the root category on each of them.
+	 *
+	 * @param shardCount       the shard count
+	 * @param rootCategoryId   the root category id
+	 * @param rootCategoryName the root category name
+	 * @param jvmArgs          the jvm args of shard processes
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public ShardedHierarchy(final int shardCount, final int rootCategoryId, final String rootCategoryName,
+			final List<String> jvmArgs) throws IOException {
+		this.shards = new ShardClient[shardCount];
+		this.rootCategoryId = rootCategoryId;
+		try {
+			for (int i = 0; i < shardCount; i++) {
+				this.shards[i] = new ShardClient(jvmArgs);
+			}
+			broadcast("0 " + rootCategoryId + " -1 " + rootCategoryName, null);
+		} catch (IOException e) {
+			close();
+			throw e;
+		}
+		LOGGER.debug("started [{}] shards for root category [{}]", shardCount, rootCategoryId);
+	}
+
+	/**
+	 * Gets the shard count.
+	 *
+	 * @return the shard count
+	 */
+	public int getShardCount() {
+		return this.shards.length;
+	}
+
+	/**
+	 * Gets the number of nodes owned by shard, root excluded. Nodes of a removed
+	 * subtree count till the shard reports them reclaimed.
+	 *
+	 * @param shardIndex the shard index
+	 * @return the node count
+	 */
+	public int getShardNodeCount(final int shardIndex) {
+		return this.shards[shardIndex].nodeCount;
+	}
+
+	/**
+	 * Gets the heap used by every shard process after garbage collection.
+	 *
+	 * @return the heap used in bytes, by shard index
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public long[] getShardHeapUsed() throws IOException {
+		String[] responses = new String[this.shards.length];
+		broadcast("M", responses);
+		long[] heapUsed = new long[this.shards.length];
+		for (int i = 0; i < this.shards.length; i++) {
+			heapUsed[i] = Long.parseLong(responses[i]);
+		}
+		return heapUsed;
+	}
+
+	/**
+	 * Adds the new node under parent category. Price -1 adds a category.
+	 *
+	 * @param parentCategoryId the parent category id
+	 * @param nodeId           the node id
+	 * @param price            the price
+	 * @param nodeName         the node name, without space
+	 * @return the result code
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public ResultCode addNewNodeResult(final int parentCategoryId, final int nodeId, final float price,
+			final String nodeName) throws IOException {
+		boolean category = price == -1;
+		Integer parentShardIndex = null;
+		if (parentCategoryId != this.rootCategoryId) {
+			parentShardIndex = this.categoryShards.get(parentCategoryId);
+			if (parentShardIndex == null) {
+				return ResultCode.INVALID_PARENT_CATEGORY_ID;
+			}
+		}
+		Integer knownShardIndex = getShardIndex(nodeId);
+		if (knownShardIndex != null && !isLive(nodeId, knownShardIndex)) {
+			forgetNode(nodeId, knownShardIndex);
+		}
+		if (nodeId == this.rootCategoryId || getShardIndex(nodeId) != null) {
+			// Parent is checked first, as a shard does
+			if (parentShardIndex != null && !isLive(parentCategoryId, parentShardIndex)) {
+				return ResultCode.INVALID_PARENT_CATEGORY_ID;
+			}
+			return category ? ResultCode.CATEGORY_NOT_ADDED : ResultCode.PRODUCT_NOT_ADDED;
+		}
+		int shardIndex;
+		if (parentShardIndex == null) {
+			if (category) {
+				fetchReclaimedNodes();
+			}
+			shardIndex = category ? leastLoadedShard() : Math.floorMod(nodeId, this.shards.length);
+		} else {
+			shardIndex = parentShardIndex;
+		}
+		ResultCode resultCode = ResultCode.valueOf(this.shards[shardIndex]
+				.request("4 " + parentCategoryId + " " + nodeId + " " + price + " " + nodeName));
+		if (resultCode.isSuccess()) {
+			(category ? this.categoryShards : this.productShards).put(nodeId, shardIndex);
+			this.shards[shardIndex].nodeCount++;
+		}
+		return resultCode;
+	}
+
+	/**
+	 * Removes the node. Removing root removes every node of every shard. The
+	 * nodes of a removed category are forgotten once its shard reports them
+	 * reclaimed.
+	 *
+	 * @param nodeId the node id
+	 * @return the result code
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public ResultCode removeNodeResult(final int nodeId) throws IOException {
+		if (nodeId == this.rootCategoryId) {
+			broadcast("5 " + nodeId, null);
+			this.categoryShards.clear();
+			this.productShards.clear();
+			for (ShardClient shard : this.shards) {
+				shard.nodeCount = 0;
+				shard.reclaimPending = true;
+			}
+			return ResultCode.CATEGORY_DELETED;
+		}
+		Integer shardIndex = this.productShards.get(nodeId);
+		if (shardIndex != null) {
+			ResultCode resultCode = ResultCode.valueOf(this.shards[shardIndex].request("5 " + nodeId));
+			if (resultCode.isSuccess()) {
+				this.productShards.remove(nodeId);
+				this.shards[shardIndex].nodeCount--;
+			}
+			return resultCode;
+		}
+		shardIndex = this.categoryShards.get(nodeId);
+		if (shardIndex == null) {
+			return ResultCode.INVALID_ID;
+		}
+		ShardClient shard = this.shards[shardIndex];
+		boolean reclaimPending = shard.reclaimPending;
+		if (reclaimPending) {
+			// Reports of earlier removals are fetched along, so they do not pile up
+			shard.send("R");
+		}
+		shard.send("5 " + nodeId);
+		shard.flush();
+		if (reclaimPending) {
+			forgetReclaimedNodes(shardIndex, shard.receive());
+		}
+		ResultCode resultCode = ResultCode.valueOf(shard.receive());
+		if (resultCode.isSuccess()) {
+			// The category and its subtree are forgotten once reclaimed
+			shard.reclaimPending = true;
+		}
+		return resultCode;
+	}
+
+	/**
+	 * Move the node under new parent category. A node moved under root stays on
+	 * its shard. A node moved under a category of another shard is transferred
+	 * with its subtree.
+	 *
+	 * @param nodeId              the node id
+	 * @param newParentCategoryId the new parent category id
+	 * @return the result code
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public ResultCode moveNodeResult(final int nodeId, final int newParentCategoryId) throws IOException {
+		Integer newParentShardIndex = newParentCategoryId == this.rootCategoryId ? null
+				: this.categoryShards.get(newParentCategoryId);
+		if (newParentShardIndex == null && newParentCategoryId != this.rootCategoryId) {
+			return ResultCode.INVALID_PARENT_CATEGORY_ID;
+		}
+		if (newParentShardIndex != null && !isLive(newParentCategoryId, newParentShardIndex)) {
+			// In a removed subtree not reclaimed yet
+			forgetNode(newParentCategoryId, newParentShardIndex);
+			return ResultCode.INVALID_PARENT_CATEGORY_ID;
+		}
+		if (nodeId == this.rootCategoryId) {
+			return ResultCode.INVALID_MOVE;
+		}
+		boolean product = this.productShards.containsKey(nodeId);
+		Integer shardIndex = product ? this.productShards.get(nodeId) : this.categoryShards.get(nodeId);
+		if (shardIndex == null) {
+			return ResultCode.INVALID_ID;
+		}
+		if (newParentShardIndex == null || newParentShardIndex.equals(shardIndex)) {
+			return ResultCode.valueOf(this.shards[shardIndex].request("6 " + nodeId + " " + newParentCategoryId));
+		}
+		return product ? transferProduct(nodeId, shardIndex, newParentShardIndex, newParentCategoryId)
+				: transferCategory(nodeId, shardIndex, newParentShardIndex, newParentCategoryId);
+	}
+
+	/**
+	 * Apply % or flat discount on a node. A discount on root is applied on every
+	 * shard, or on none if a shard can not apply it.
+	 *
+	 * @param nodeId       the node id
+	 * @param discountType the discount type 1: % discount, 2: flat discount
+	 * @param discount     the discount
+	 * @return the result code
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public ResultCode applyDiscountOnNodeResult(final int nodeId, final int discountType, final float discount)
+			throws IOException {
+		if (nodeId == this.rootCategoryId) {
+			String[] responses = new String[this.shards.length];
+			broadcast("P " + discountType + " " + nodeId + " " + discount, responses);
+			for (String response : responses) {
+				if (!Boolean.parseBoolean(response)) {
+					return ResultCode.DISCOUNT_CANNOT_BE_APPLIED;
+				}
+			}
+			broadcast(discountType + " " + nodeId + " " + discount, responses);
+			for (String response : responses) {
+				if (ResultCode.valueOf(response) != ResultCode.DISCOUNT_APPLIED) {
+					// Prepared, so a shard failing is out of line
+					LOGGER.error("discount on root failed on a shard: [{}]", response);
+					return ResultCode.valueOf(response);
+				}
+			}
+			return ResultCode.DISCOUNT_APPLIED;
+		}
+		Integer shardIndex = getShardIndex(nodeId);
+		if (shardIndex == null) {
+			return ResultCode.INVALID_ID;
+		}
+		return ResultCode.valueOf(this.shards[shardIndex].request(discountType + " " + nodeId + " " + discount));
+	}
+
+	/**
+	 * Gets the maximum discounted product into given reusable holder. For root,
+	 * the best product of every shard is gathered and the one with maximum
+	 * discount, or smaller id for same discount, is selected.
+	 *
+	 * @param nodeId the node id
+	 * @param result the holder to populate
+	 * @return the result code PRODUCT_FOUND or INVALID_ID
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public ResultCode getMaximumDiscountedProduct(final int nodeId, final ProductResult result)
+			throws IOException {
+		result.clear();
+		if (nodeId == this.rootCategoryId) {
+			String[] responses = new String[this.shards.length];
+			broadcast("3 " + nodeId, responses);
+			boolean found = false;
+			for (String response : responses) {
+				found |= selectProduct(response, result);
+			}
+			return found ? ResultCode.PRODUCT_FOUND : ResultCode.INVALID_ID;
+		}
+		Integer shardIndex = getShardIndex(nodeId);
+		if (shardIndex == null || !selectProduct(this.shards[shardIndex].request("3 " + nodeId), result)) {
+			return ResultCode.INVALID_ID;
+		}
+		return ResultCode.PRODUCT_FOUND;
+	}
+
+	/**
+	 * Terminate the shard processes.
+	 *
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	@Override
+	public void close() throws IOException {
+		IOException exception = null;
+		for (ShardClient shard : this.shards) {
+			if (shard == null) {
+				continue;
+			}
+			try {
+				shard.close();
+			} catch (IOException e) {
+				exception = e;
+			}
+		}
+		if (exception != null) {
+			throw exception;
+		}
+	}
+
+	/**
+	 * Send same request to every shard, then read every response. Requests are
+	 * flushed to all shards before the first response is read, so shards process
+	 * it in parallel.
+	 *
+	 * @param request   the request
+	 * @param responses the responses by shard index, may be null
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	private void broadcast(final String request, final String[] responses) throws IOException {
+		for (ShardClient shard : this.shards) {
+			shard.send(request);
+			shard.flush();
+		}
+		for (int i = 0; i < this.shards.length; i++) {
+			String response = this.shards[i].receive();
+			if (responses != null) {
+				responses[i] = response;
+			}
+		}
+	}
+
+	/**
+	 * Checks if a node known by the router is live on its shard, fetching the
+	 * nodes its shard reclaimed first. Only asked while the shard reclaims
+	 * removed subtrees.
+	 *
+	 * @param nodeId     the node id
+	 * @param shardIndex the shard index
+	 * @return true, if node is live or shard has no removed subtree
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	private boolean isLive(final int nodeId, final int shardIndex) throws IOException {
+		ShardClient shard = this.shards[shardIndex];
+		if (!shard.reclaimPending) {
+			return true;
+		}
+		shard.send("R");
+		shard.send("L " + nodeId);
+		shard.flush();
+		forgetReclaimedNodes(shardIndex, shard.receive());
+		return Boolean.parseBoolean(shard.receive());
+	}
+
+	/**
+	 * Fetch the nodes reclaimed by every shard reclaiming removed subtrees, and
+	 * forget them.
+	 *
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	private void fetchReclaimedNodes() throws IOException {
+		for (ShardClient shard : this.shards) {
+			if (shard.reclaimPending) {
+				shard.send("R");
+				shard.flush();
+			}
+		}
+		for (int i = 0; i < this.shards.length; i++) {
+			if (this.shards[i].reclaimPending) {
+				forgetReclaimedNodes(i, this.shards[i].receive());
+			}
+		}
+	}
+
+	/**
+	 * Forget the nodes listed in a reclaimed nodes response of shard. A node is
+	 * forgotten only if the router still routes its id to that shard, as the id
+	 * may have been added again elsewhere.
+	 *
+	 * @param shardIndex the shard index
+	 * @param response   the response: reclaim pending flag, then node ids
+	 */
+	private void forgetReclaimedNodes(final int shardIndex, final String response) {
+		String[] attributes = response.split(" ");
+		this.shards[shardIndex].reclaimPending = Boolean.parseBoolean(attributes[0]);
+		for (int i = 1; i < attributes.length; i++) {
+			int nodeId = Integer.parseInt(attributes[i]);
+			Integer knownShardIndex = getShardIndex(nodeId);
+			if (knownShardIndex != null && knownShardIndex == shardIndex) {
+				forgetNode(nodeId, shardIndex);
+			}
+		}
+	}
+
+	/**
+	 * Forget node owned by shard.
+	 *
+	 * @param nodeId     the node id
+	 * @param shardIndex the shard index
+	 */
+	private void forgetNode(final int nodeId, final int shardIndex) {
+		if (this.categoryShards.remove(nodeId) == null) {
+			this.productShards.remove(nodeId);
+		}
+		this.shards[shardIndex].nodeCount--;
+	}
+
+	/**
+	 * Gets the owning shard of a category or product.
+	 *
+	 * @param nodeId the node id
+	 * @return the shard index, null if node is not known
+	 */
+	private Integer getShardIndex(final int nodeId) {
+		Integer shardIndex = this.categoryShards.get(nodeId);
+		return shardIndex != null ? shardIndex : this.productShards.get(nodeId);
+	}
+
+	/**
+	 * Gets the shard owning the fewest nodes.
+	 *
+	 * @return the shard index
+	 */
+	private int leastLoadedShard() {
+		int shardIndex = 0;
+		for (int i = 1; i < this.shards.length; i++) {
+			if (this.shards[i].nodeCount < this.shards[shardIndex].nodeCount) {
+				shardIndex = i;
+			}
+		}
+		return shardIndex;
+	}
+
+	/**
+	 * Copy the product of a get maximum discounted product response into result,
+	 * if it is better than the product already held.
+	 *
+	 * @param response the response
+	 * @param result   the result
+	 * @return true, if response holds a product
+	 */
+	private static boolean selectProduct(final String response, final ProductResult result) {
+		String[] attributes = response.split(" ", 5);
+		if (!ResultCode.PRODUCT_FOUND.name().equals(attributes[0])) {
+			return false;
+		}
+		int productId = Integer.parseInt(attributes[1]);
+		float originalPrice = Float.parseFloat(attributes[2]);
+		float sellingPrice = Float.parseFloat(attributes[3]);
+		float discount = originalPrice - sellingPrice;
+		float resultDiscount = result.originalPrice - result.sellingPrice;
+		if (result.productId == 0 || discount > resultDiscount
+				|| (discount == resultDiscount && productId < result.productId)) {
+			result.productId = productId;
+			result.originalPrice = originalPrice;
+			result.sellingPrice = sellingPrice;
+			result.name = attributes[4];
+		}
+		return true;
+	}
+
+	/**
+	 * Transfer product to new parent category on another shard, keeping its
+	 * selling price. It is removed from its shard only once added and discounted
+	 * on the new shard; otherwise it is removed from the new shard and stays.
+	 *
+	 * @param productId           the product id
+	 * @param shardIndex          the shard index
+	 * @param newShardIndex       the new shard index
+	 * @param newParentCategoryId the new parent category id
+	 * @return the result code PRODUCT_MOVED, INVALID_ID if product is in a
+	 *         removed subtree, else the failure of new shard
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	private ResultCode transferProduct(final int productId, final int shardIndex, final int newShardIndex,
+			final int newParentCategoryId) throws IOException {
+		String[] attributes = this.shards[shardIndex].request("3 " + productId).split(" ", 5);
+		if (!ResultCode.PRODUCT_FOUND.name().equals(attributes[0])) {
+			return ResultCode.INVALID_ID;
+		}
+		float originalPrice = Float.parseFloat(attributes[2]);
+		float sellingPrice = Float.parseFloat(attributes[3]);
+		ShardClient newShard = this.shards[newShardIndex];
+		newShard.send("4 " + newParentCategoryId + " " + productId + " " + originalPrice + " " + attributes[4]);
+		boolean discounted = sellingPrice != originalPrice;
+		if (discounted) {
+			newShard.send("2 " + productId + " " + (originalPrice - sellingPrice));
+		}
+		newShard.flush();
+		ResultCode resultCode = ResultCode.valueOf(newShard.receive());
+		ResultCode discountResultCode = discounted ? ResultCode.valueOf(newShard.receive()) : resultCode;
+		if (!resultCode.isSuccess() || !discountResultCode.isSuccess()) {
+			// The product stays on its shard
+			if (resultCode.isSuccess()) {
+				newShard.request("5 " + productId);
+			}
+			LOGGER.warn("transfer of product [{}] to shard [{}] failed: [{}] [{}]", productId, newShardIndex,
+					resultCode, discountResultCode);
+			return resultCode.isSuccess() ? discountResultCode : resultCode;
+		}
+		this.shards[shardIndex].request("5 " + productId);
+		this.productShards.put(productId, newShardIndex);
+		this.shards[shardIndex].nodeCount--;
+		newShard.nodeCount++;
+		LOGGER.debug("transferred product [{}] from shard [{}] to shard [{}]", productId, shardIndex,
+				newShardIndex);
+		return ResultCode.PRODUCT_MOVED;
+	}
+
+	/**
+	 * Transfer category subtree to new parent category on another shard. The
+	 * subtree is exported as add and flat discount queries, replayed on new shard
+	 * and then deleted from the old shard. If new shard fails a query, the part
+	 * replayed is deleted from it and the subtree stays on the old shard.
+	 *
+	 * @param categoryId          the category id
+	 * @param shardIndex          the shard index
+	 * @param newShardIndex       the new shard index
+	 * @param newParentCategoryId the new parent category id
+	 * @return the result code CATEGORY_MOVED, INVALID_ID if category is in a
+	 *         removed subtree, else the first failure of new shard
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	private ResultCode transferCategory(final int categoryId, final int shardIndex, final int newShardIndex,
+			final int newParentCategoryId) throws IOException {
+		ShardClient shard = this.shards[shardIndex];
+		ShardClient newShard = this.shards[newShardIndex];
+		int queryCount = Integer.parseInt(shard.request("E " + categoryId));
+		if (queryCount == 0) {
+			return ResultCode.INVALID_ID;
+		}
+		List<String> queries = new ArrayList<>(queryCount);
+		for (int i = 0; i < queryCount; i++) {
+			queries.add(shard.receive());
+		}
+		for (int i = 0; i < queryCount; i++) {
+			String[] attributes = queries.get(i).split(" ", 5);
+			if (i == 0) {
+				// First query adds the category itself, under its new parent
+				attributes[1] = String.valueOf(newParentCategoryId);
+			}
+			newShard.send(String.join(" ", attributes));
+		}
+		newShard.flush();
+		ResultCode failedResultCode = null;
+		boolean added = false;
+		for (int i = 0; i < queryCount; i++) {
+			ResultCode resultCode = ResultCode.valueOf(newShard.receive());
+			if (i == 0) {
+				added = resultCode.isSuccess();
+			}
+			if (!resultCode.isSuccess() && failedResultCode == null) {
+				failedResultCode = resultCode;
+				LOGGER.warn("transfer of category [{}] to shard [{}] failed on [{}]: [{}]", categoryId,
+						newShardIndex, queries.get(i), resultCode);
+			}
+		}
+		if (failedResultCode != null) {
+			// The subtree stays on its shard, the part replayed is removed again
+			if (added && ResultCode.valueOf(newShard.request("5 " + categoryId)).isSuccess()) {
+				newShard.reclaimPending = true;
+			}
+			return failedResultCode;
+		}
+		for (String query : queries) {
+			String[] attributes = query.split(" ", 5);
+			if ("4".equals(attributes[0])) {
+				int nodeId = Integer.parseInt(attributes[2]);
+				(Float.parseFloat(attributes[3]) == -1 ? this.categoryShards : this.productShards).put(nodeId,
+						newShardIndex);
+				shard.nodeCount--;
+				newShard.nodeCount++;
+			}
+		}
+		shard.request("5 " + categoryId);
+		// Reported reclaimed nodes are routed to new shard and left alone
+		shard.reclaimPending = true;
+		LOGGER.debug("transferred category [{}] with [{}] queries from shard [{}] to shard [{}]", categoryId,
+				queryCount, shardIndex, newShardIndex);
+		return ResultCode.CATEGORY_MOVED;
+	}
+}
@@ -0,0 +1,133 @@
+package com.hierarchy;
+
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+
+/**
+ * The Class SimulatedClock.
+ * <p>
+ * Clock whose time only moves when set or advanced, so that time driven
+ * components such as PromotionScheduler and PriceHistory can be run faster
+ * than real time, in benchmarks or checks. The clock is in UTC; withZone gives
+ * a view in another zone, moving with this clock. Not thread safe.
+ * </p>
+ */
+public class SimulatedClock extends Clock {
+
+    /**
+     * The Class ZoneView.
+     * <p>
+     * The simulated clock seen in another zone.
+     * </p>
+     */
+    private static class ZoneView extends Clock {
+
+	/** The simulated clock. */
+	private final SimulatedClock source;
+
+	/** The zone. */
+	private final ZoneId zone;
+
+	/**
+	 * Instantiates a new zone view.
+	 *
+	 * @param source the simulated clock
+	 * @param zone   the zone
+	 */
+	ZoneView(SimulatedClock source, ZoneId zone) {
+	    this.source = source;
+	    this.zone = zone;
+	}
+
+	@Override
+	public long millis() {
+	    return source.millis;
+	}
+
+	@Override
+	public Instant instant() {
+	    return Instant.ofEpochMilli(source.millis);
+	}
+
+	@Override
+	public ZoneId getZone() {
+	    return zone;
+	}
+
+	@Override
+	public Clock withZone(ZoneId zone) {
+	    return source.withZone(zone);
+	}
+    }
+
+    /** The millis. */
+    private long millis;
+
+    /**
+     * Instantiates a new simulated clock.
+     *
+     * @param startMillis the start millis
+     */
+    public SimulatedClock(long startMillis) {
+	this.millis = startMillis;
+    }
+
+    /**
+     * Advance the time.
+     *
+     * @param deltaMillis the delta millis
+     */
+    public void advance(long deltaMillis) {
+	this.millis += deltaMillis;
+    }
+
+    /**
+     * Sets the time.
+     *
+     * @param millis the new millis
+     */
+    public void setMillis(long millis) {
+	this.millis = millis;
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see java.time.Clock#millis()
+     */
+    @Override
+    public long millis() {
+	return millis;
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see java.time.Clock#instant()
+     */
+    @Override
+    public Instant instant() {
+	return Instant.ofEpochMilli(millis);
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see java.time.Clock#getZone()
+     */
+    @Override
+    public ZoneId getZone() {
+	return ZoneOffset.UTC;
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see java.time.Clock#withZone(java.time.ZoneId)
+     */
+    @Override
+    public Clock withZone(ZoneId zone) {
+	if (zone.equals(ZoneOffset.UTC)) {
+	    return this;
+	}
+	return new ZoneView(this, zone);
+    }
+}
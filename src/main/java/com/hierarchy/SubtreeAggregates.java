@@ -0,0 +1,78 @@
+package com.hierarchy;
+
+/**
+ * The Class SubtreeAggregates.
+ * <p>
+ * Reusable holder for the aggregates returned by get subtree aggregates query
+ * (type 9 of input and of BinaryProtocol): the number of products under a
+ * category and the sums of their original and selling prices. The hierarchy
+ * maintains these per category, so the query does not walk the subtree.
+ * </p>
+ */
+public class SubtreeAggregates {
+
+    /** The product count. */
+    int productCount;
+
+    /** The original price sum. */
+    double originalPriceSum;
+
+    /** The selling price sum. */
+    double sellingPriceSum;
+
+    /**
+     * Sets the aggregates.
+     *
+     * @param productCount     the product count
+     * @param originalPriceSum the original price sum
+     * @param sellingPriceSum  the selling price sum
+     */
+    void set(int productCount, double originalPriceSum, double sellingPriceSum) {
+	this.productCount = productCount;
+	this.originalPriceSum = originalPriceSum;
+	this.sellingPriceSum = sellingPriceSum;
+    }
+
+    /**
+     * Clears this holder.
+     */
+    void clear() {
+	set(0, 0, 0);
+    }
+
+    /**
+     * Gets the product count.
+     *
+     * @return the product count
+     */
+    public int getProductCount() {
+	return productCount;
+    }
+
+    /**
+     * Gets the original price sum.
+     *
+     * @return the original price sum
+     */
+    public double getOriginalPriceSum() {
+	return originalPriceSum;
+    }
+
+    /**
+     * Gets the selling price sum.
+     *
+     * @return the selling price sum
+     */
+    public double getSellingPriceSum() {
+	return sellingPriceSum;
+    }
+
+    /**
+     * Gets the average selling price.
+     *
+     * @return the average selling price, 0 if there is no product
+     */
+    public double getAverageSellingPrice() {
+	return productCount == 0 ? 0 : sellingPriceSum / productCount;
+    }
+}
@@ -0,0 +1,136 @@
+package com.hierarchy;
+
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The Class SubtreeDeleteBenchmark.
+ * <p>
+ * Latency of removing a large branch. A branch of categories forming a
+ * complete tree, each with products, is removed next to a small live branch.
+ * The removal is timed once with every tombstone reclaimed right away, as a
+ * removal freeing the subtree in the caller's thread would, and once alone,
+ * after which the subtree is reclaimed in slices of sliceMicros with reads of
+ * the live branch in between. The longest slice is the longest a request waits
+ * on reclamation.
+ * </p>
+ * <p>
+ * Usage: SubtreeDeleteBenchmark [categories] [productsPerCategory]
+ * [sliceMicros] [rounds]. Defaults are 2000 100 200 5.
+ * </p>
+ */
+public class SubtreeDeleteBenchmark {
+
+    /** The LOGGER. */
+    private static final Logger LOGGER = LoggerFactory.getLogger(SubtreeDeleteBenchmark.class);
+
+    /** The branching factor of category tree. */
+    private static final int BRANCHING = 8;
+
+    /** The warm up rounds, results of these are not reported. */
+    private static final int WARM_UP_ROUNDS = 2;
+
+    /** The id of top level category. */
+    private static final int ROOT_ID = 1;
+
+    /** The id of removed branch. */
+    private static final int REMOVED_BRANCH_ID = 2;
+
+    /** The id of live branch. */
+    private static final int LIVE_BRANCH_ID = 3;
+
+    /** The first id of the nodes under the branches. */
+    private static final int FIRST_NODE_ID = 10;
+
+    /**
+     * The main method.
+     *
+     * @param args the arguments
+     */
+    public static void main(String[] args) {
+	int categoryCount = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+	int productsPerCategory = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+	long sliceNanos = TimeUnit.MICROSECONDS.toNanos(args.length > 2 ? Long.parseLong(args[2]) : 200);
+	int rounds = args.length > 3 ? Integer.parseInt(args[3]) : 5;
+
+	ProductResult result = new ProductResult();
+	for (int round = 0; round < WARM_UP_ROUNDS + rounds; round++) {
+	    HierarchyUsingChildCategoryAndProduct hierarchy = createHierarchy(categoryCount, productsPerCategory);
+	    long startNanos = System.nanoTime();
+	    hierarchy.removeNodeResult(REMOVED_BRANCH_ID);
+	    int reclaimed = hierarchy.reclaimTombstones(Long.MAX_VALUE);
+	    long eagerNanos = System.nanoTime() - startNanos;
+
+	    hierarchy = createHierarchy(categoryCount, productsPerCategory);
+	    startNanos = System.nanoTime();
+	    hierarchy.removeNodeResult(REMOVED_BRANCH_ID);
+	    long tombstoneNanos = System.nanoTime() - startNanos;
+	    long maxSliceNanos = 0;
+	    int slices = 0;
+	    while (hierarchy.hasTombstones()) {
+		long sliceStartNanos = System.nanoTime();
+		hierarchy.reclaimTombstones(sliceNanos);
+		maxSliceNanos = Math.max(maxSliceNanos, System.nanoTime() - sliceStartNanos);
+		slices++;
+		if (hierarchy.getMaximumDiscountedProduct(LIVE_BRANCH_ID, result) != ResultCode.PRODUCT_FOUND) {
+		    throw new IllegalStateException("Live branch lost");
+		}
+	    }
+	    long reclaimNanos = System.nanoTime() - startNanos - tombstoneNanos;
+
+	    if (round >= WARM_UP_ROUNDS) {
+		LOGGER.info("{} nodes removed: reclaimed at once {} us, tombstoned {} us", reclaimed,
+			toMicros(eagerNanos), toMicros(tombstoneNanos));
+		LOGGER.info("reclaimed in {} slices, {} us, longest slice {} us", slices, toMicros(reclaimNanos),
+			toMicros(maxSliceNanos));
+	    }
+	}
+    }
+
+    /**
+     * Creates the hierarchy: a top level category holding the branch to remove,
+     * a complete tree of categories with products, and a live branch with a
+     * few products.
+     *
+     * @param categoryCount       the category count of removed branch
+     * @param productsPerCategory the products per category
+     * @return the hierarchy
+     */
+    private static HierarchyUsingChildCategoryAndProduct createHierarchy(int categoryCount,
+	    int productsPerCategory) {
+	HierarchyUsingChildCategoryAndProduct hierarchy = new HierarchyUsingChildCategoryAndProduct();
+	hierarchy.addNodeInfoResult(ROOT_ID, "root", -1);
+	hierarchy.addNewNodeResult(ROOT_ID, REMOVED_BRANCH_ID, -1, "removed");
+	hierarchy.addNewNodeResult(ROOT_ID, LIVE_BRANCH_ID, -1, "live");
+	int nodeId = FIRST_NODE_ID;
+	for (int i = 0; i < productsPerCategory; i++) {
+	    hierarchy.addNewNodeResult(LIVE_BRANCH_ID, nodeId++, 100 + i, "p");
+	}
+	hierarchy.applyDiscountOnNodeResult(LIVE_BRANCH_ID, 1, 10);
+
+	int firstCategoryId = nodeId;
+	nodeId += categoryCount;
+	for (int i = 0; i < categoryCount; i++) {
+	    int categoryId = firstCategoryId + i;
+	    int parentId = i == 0 ? REMOVED_BRANCH_ID : firstCategoryId + (i - 1) / BRANCHING;
+	    hierarchy.addNewNodeResult(parentId, categoryId, -1, "c");
+	    for (int j = 0; j < productsPerCategory; j++) {
+		hierarchy.addNewNodeResult(categoryId, nodeId++, 100 + j, "p");
+	    }
+	}
+	hierarchy.applyDiscountOnNodeResult(REMOVED_BRANCH_ID, 1, 20);
+	return hierarchy;
+    }
+
+    /**
+     * Nanos to micros.
+     *
+     * @param nanos the nanos
+     * @return the micros
+     */
+    private static long toMicros(long nanos) {
+	return TimeUnit.NANOSECONDS.toMicros(nanos);
+    }
+}
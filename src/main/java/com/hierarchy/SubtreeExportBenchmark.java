@@ -0,0 +1,134 @@
+package com.hierarchy;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The Class SubtreeExportBenchmark.
+ * <p>
+ * Throughput of SubtreeExporter. The whole catalog, categories forming a
+ * complete tree, is exported from the root in CSV and in binary format, to a
+ * channel which only counts the bytes, so the encoding itself is measured, or
+ * to a file when a path is given. Rows per second and MB per second of every
+ * format are logged.
+ * </p>
+ * <p>
+ * Usage: SubtreeExportBenchmark [categories] [productsPerCategory] [rounds]
+ * [file]. Defaults are 2000 500 5 and no file.
+ * </p>
+ */
+public class SubtreeExportBenchmark {
+
+    /** The LOGGER. */
+    private static final Logger LOGGER = LoggerFactory.getLogger(SubtreeExportBenchmark.class);
+
+    /** The branching factor of category tree. */
+    private static final int BRANCHING = 8;
+
+    /** The warm up rounds, results of these are not reported. */
+    private static final int WARM_UP_ROUNDS = 2;
+
+    /**
+     * The Class CountingChannel.
+     * <p>
+     * Channel discarding the bytes written to it, only counting them.
+     * </p>
+     */
+    private static class CountingChannel implements WritableByteChannel {
+
+	/** The written bytes. */
+	long bytes;
+
+	/*
+	 * (non-Javadoc)
+	 * @see java.nio.channels.WritableByteChannel#write(java.nio.ByteBuffer)
+	 */
+	@Override
+	public int write(ByteBuffer source) {
+	    int remaining = source.remaining();
+	    source.position(source.limit());
+	    bytes += remaining;
+	    return remaining;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see java.nio.channels.Channel#isOpen()
+	 */
+	@Override
+	public boolean isOpen() {
+	    return true;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see java.nio.channels.Channel#close()
+	 */
+	@Override
+	public void close() {
+	}
+    }
+
+    /**
+     * The main method.
+     *
+     * @param args the arguments
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    public static void main(String[] args) throws IOException {
+	int categoryCount = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+	int productsPerCategory = args.length > 1 ? Integer.parseInt(args[1]) : 500;
+	int rounds = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+	String file = args.length > 3 ? args[3] : null;
+
+	HierarchyUsingChildCategoryAndProduct hierarchy = new HierarchyUsingChildCategoryAndProduct();
+	Random random = new Random(categoryCount);
+	hierarchy.addNodeInfoResult(1, "c1", -1);
+	int productId = categoryCount + 1;
+	for (int categoryId = 1; categoryId <= categoryCount; categoryId++) {
+	    if (categoryId > 1) {
+		// Parent of category i in a complete tree of given branching
+		hierarchy.addNewNodeResult((categoryId - 2) / BRANCHING + 1, categoryId, -1, "c" + categoryId);
+	    }
+	    for (int i = 0; i < productsPerCategory; i++) {
+		hierarchy.addNewNodeResult(categoryId, productId, 100 + random.nextInt(100000) / 100f,
+			"Product " + productId);
+		productId++;
+	    }
+	}
+	hierarchy.applyDiscountOnNodeResult(1, 1, 15);
+
+	SubtreeExporter exporter = new SubtreeExporter();
+	for (SubtreeExporter.Format format : SubtreeExporter.Format.values()) {
+	    for (int round = 0; round < WARM_UP_ROUNDS + rounds; round++) {
+		long bytes;
+		long rows;
+		long startNanos = System.nanoTime();
+		if (file != null) {
+		    try (FileChannel channel = FileChannel.open(Paths.get(file), StandardOpenOption.CREATE,
+			    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			rows = exporter.export(hierarchy, 1, format, channel);
+			bytes = channel.size();
+		    }
+		} else {
+		    CountingChannel channel = new CountingChannel();
+		    rows = exporter.export(hierarchy, 1, format, channel);
+		    bytes = channel.bytes;
+		}
+		long elapsedNanos = System.nanoTime() - startNanos;
+		if (round >= WARM_UP_ROUNDS) {
+		    LOGGER.info("{}: {} rows, {} bytes, {} rows/s, {} MB/s", format, rows, bytes,
+			    rows * 1000000000L / elapsedNanos, bytes * 1000 / elapsedNanos);
+		}
+	    }
+	}
+    }
+}
@@ -0,0 +1,347 @@
+package com.hierarchy;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+
+/**
+ * The Class SubtreeExporter.
+ * <p>
+ * Streams the products of a category subtree (id, name, original price and
+ * selling price) to a channel, in CSV or in a compact binary format. The
+ * subtree is walked iteratively, a category with its direct child products
+ * before its child categories, and rows are encoded straight into a reusable
+ * buffer which is written to the channel whenever it is full. No list of the
+ * subtree is built, so memory does not grow with the subtree, only with its
+ * height.
+ * </p>
+ * <p>
+ * CSV starts with the header line id,name,originalPrice,sellingPrice. Prices
+ * are written rounded to 2 decimals and names are quoted when they contain a
+ * comma, a quote or a line break. Lines end with \n.
+ * </p>
+ * <p>
+ * A binary row is int productId, float originalPrice, float sellingPrice,
+ * unsigned short name length and the UTF-8 name, big endian like
+ * BinaryProtocol. Names are cut at 65535 bytes. Rows follow each other till
+ * the end of stream.
+ * </p>
+ * <p>
+ * The hierarchy must not change during an export. An exporter is not thread
+ * safe, use one per thread.
+ * </p>
+ */
+public class SubtreeExporter {
+
+    /**
+     * The Enum Format.
+     */
+    public enum Format {
+
+	/** Comma separated values with header line. */
+	CSV,
+
+	/** Binary rows. */
+	BINARY
+    }
+
+    /** The default buffer size. */
+    public static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+    /** The max length of a row without name: id, prices and separators. */
+    private static final int MAX_ROW_LENGTH_WITHOUT_NAME = 64;
+
+    /** The max length of name in binary row. */
+    private static final int MAX_BINARY_NAME_LENGTH = 0xFFFF;
+
+    /** The CSV header. */
+    private static final byte[] CSV_HEADER = "id,name,originalPrice,sellingPrice\n"
+	    .getBytes(StandardCharsets.US_ASCII);
+
+    /** The bytes. */
+    private byte[] bytes;
+
+    /** The buffer wrapping bytes. */
+    private ByteBuffer buffer;
+
+    /** The number of bytes encoded in bytes, not yet written. */
+    private int length;
+
+    /** The digits of last number, reused. */
+    private final byte[] digits = new byte[20];
+
+    /**
+     * Instantiates a new subtree exporter with default buffer size.
+     */
+    public SubtreeExporter() {
+	this(DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * Instantiates a new subtree exporter.
+     *
+     * @param bufferSize the buffer size, at least 1024
+     */
+    public SubtreeExporter(int bufferSize) {
+	if (bufferSize < 1024) {
+	    throw new IllegalArgumentException("Buffer size must be at least 1024");
+	}
+	this.bytes = new byte[bufferSize];
+	this.buffer = ByteBuffer.wrap(bytes);
+    }
+
+    /**
+     * Export the products of subtree of category.
+     *
+     * @param hierarchy  the hierarchy
+     * @param categoryId the category id
+     * @param format     the format
+     * @param channel    the channel, not closed
+     * @return the number of exported products, -1 if category is not known
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    public long export(HierarchyUsingChildCategoryAndProduct hierarchy, int categoryId, Format format,
+	    WritableByteChannel channel) throws IOException {
+	Category category = hierarchy.categories.get(categoryId);
+	if (category == null || hierarchy.isTombstoned(categoryId)) {
+	    return -1;
+	}
+	length = 0;
+	if (format == Format.CSV) {
+	    System.arraycopy(CSV_HEADER, 0, bytes, 0, CSV_HEADER.length);
+	    length = CSV_HEADER.length;
+	}
+
+	long rows = 0;
+	Deque<Iterator<Integer>> stack = new ArrayDeque<>();
+	while (category != null) {
+	    for (Integer childProductId : category.getDirectChildProductIds()) {
+		Product product = hierarchy.products.get(childProductId);
+		if (format == Format.CSV) {
+		    putCsvRow(product, channel);
+		} else {
+		    putBinaryRow(product, channel);
+		}
+		rows++;
+	    }
+	    stack.push(category.getDirectChildCategoryIds().iterator());
+
+	    // Next category: first child category not yet visited, climbing up
+	    // from the last visited category
+	    category = null;
+	    while (category == null && !stack.isEmpty()) {
+		Iterator<Integer> childCategoryIds = stack.peek();
+		if (childCategoryIds.hasNext()) {
+		    category = hierarchy.categories.get(childCategoryIds.next());
+		} else {
+		    stack.pop();
+		}
+	    }
+	}
+	flush(channel);
+	return rows;
+    }
+
+    /**
+     * Put a CSV row.
+     *
+     * @param product the product
+     * @param channel the channel
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    private void putCsvRow(Product product, WritableByteChannel channel) throws IOException {
+	String name = product.getName() != null ? product.getName() : "";
+	// A char takes at most 3 bytes, 6 if it is a doubled quote
+	reserve(MAX_ROW_LENGTH_WITHOUT_NAME + name.length() * 6, channel);
+	putLong(product.getId());
+	bytes[length++] = ',';
+	if (needsQuotes(name)) {
+	    bytes[length++] = '"';
+	    putUtf8(name, true, Integer.MAX_VALUE);
+	    bytes[length++] = '"';
+	} else {
+	    putUtf8(name, false, Integer.MAX_VALUE);
+	}
+	bytes[length++] = ',';
+	putPrice(product.getOriginalPrice());
+	bytes[length++] = ',';
+	putPrice(product.getSellingPrice());
+	bytes[length++] = '\n';
+    }
+
+    /**
+     * Put a binary row.
+     *
+     * @param product the product
+     * @param channel the channel
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    private void putBinaryRow(Product product, WritableByteChannel channel) throws IOException {
+	String name = product.getName() != null ? product.getName() : "";
+	reserve(MAX_ROW_LENGTH_WITHOUT_NAME + Math.min(name.length() * 3, MAX_BINARY_NAME_LENGTH), channel);
+	putInt(product.getId());
+	putInt(Float.floatToIntBits(product.getOriginalPrice()));
+	putInt(Float.floatToIntBits(product.getSellingPrice()));
+	int nameLengthPosition = length;
+	length += 2;
+	putUtf8(name, false, MAX_BINARY_NAME_LENGTH);
+	int nameLength = length - nameLengthPosition - 2;
+	bytes[nameLengthPosition] = (byte) (nameLength >>> 8);
+	bytes[nameLengthPosition + 1] = (byte) nameLength;
+    }
+
+    /**
+     * Make room for given number of bytes, writing the encoded bytes to channel
+     * or growing the buffer for a very long row.
+     *
+     * @param needed  the needed bytes
+     * @param channel the channel
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    private void reserve(int needed, WritableByteChannel channel) throws IOException {
+	if (bytes.length - length >= needed) {
+	    return;
+	}
+	flush(channel);
+	if (bytes.length < needed) {
+	    bytes = new byte[needed];
+	    buffer = ByteBuffer.wrap(bytes);
+	}
+    }
+
+    /**
+     * Write the encoded bytes to channel.
+     *
+     * @param channel the channel
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    private void flush(WritableByteChannel channel) throws IOException {
+	buffer.clear().limit(length);
+	while (buffer.hasRemaining()) {
+	    channel.write(buffer);
+	}
+	length = 0;
+    }
+
+    /**
+     * Put an int, big endian.
+     *
+     * @param value the value
+     */
+    private void putInt(int value) {
+	bytes[length++] = (byte) (value >>> 24);
+	bytes[length++] = (byte) (value >>> 16);
+	bytes[length++] = (byte) (value >>> 8);
+	bytes[length++] = (byte) value;
+    }
+
+    /**
+     * Put the decimal digits of a long.
+     *
+     * @param value the value
+     */
+    private void putLong(long value) {
+	if (value < 0) {
+	    bytes[length++] = '-';
+	    value = -value;
+	}
+	int count = 0;
+	do {
+	    digits[count++] = (byte) ('0' + value % 10);
+	    value /= 10;
+	} while (value != 0);
+	while (count > 0) {
+	    bytes[length++] = digits[--count];
+	}
+    }
+
+    /**
+     * Put a price rounded to 2 decimals.
+     *
+     * @param price the price
+     */
+    private void putPrice(float price) {
+	long cents = Math.round(price * 100d);
+	if (cents < 0) {
+	    bytes[length++] = '-';
+	    cents = -cents;
+	}
+	putLong(cents / 100);
+	int fraction = (int) (cents % 100);
+	bytes[length++] = '.';
+	bytes[length++] = (byte) ('0' + fraction / 10);
+	bytes[length++] = (byte) ('0' + fraction % 10);
+    }
+
+    /**
+     * Put the UTF-8 bytes of name, stopping before the char which would exceed
+     * max length.
+     *
+     * @param name         the name
+     * @param doubleQuotes double every quote, for a quoted CSV field
+     * @param maxLength    the max length in bytes
+     */
+    private void putUtf8(String name, boolean doubleQuotes, int maxLength) {
+	int end = length + Math.min(maxLength, bytes.length - length);
+	for (int i = 0; i < name.length(); i++) {
+	    char c = name.charAt(i);
+	    if (c < 0x80) {
+		if (length + (doubleQuotes && c == '"' ? 2 : 1) > end) {
+		    return;
+		}
+		if (doubleQuotes && c == '"') {
+		    bytes[length++] = '"';
+		}
+		bytes[length++] = (byte) c;
+	    } else if (c < 0x800) {
+		if (length + 2 > end) {
+		    return;
+		}
+		bytes[length++] = (byte) (0xC0 | (c >> 6));
+		bytes[length++] = (byte) (0x80 | (c & 0x3F));
+	    } else if (Character.isHighSurrogate(c) && i + 1 < name.length()
+		    && Character.isLowSurrogate(name.charAt(i + 1))) {
+		if (length + 4 > end) {
+		    return;
+		}
+		int codePoint = Character.toCodePoint(c, name.charAt(++i));
+		bytes[length++] = (byte) (0xF0 | (codePoint >> 18));
+		bytes[length++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+		bytes[length++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+		bytes[length++] = (byte) (0x80 | (codePoint & 0x3F));
+	    } else {
+		if (length + 3 > end) {
+		    return;
+		}
+		// A lone surrogate is replaced by ? as String.getBytes does
+		if (Character.isSurrogate(c)) {
+		    bytes[length++] = '?';
+		    continue;
+		}
+		bytes[length++] = (byte) (0xE0 | (c >> 12));
+		bytes[length++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+		bytes[length++] = (byte) (0x80 | (c & 0x3F));
+	    }
+	}
+    }
+
+    /**
+     * Checks if CSV field needs quotes.
+     *
+     * @param name the name
+     * @return true, if name has a comma, a quote or a line break
+     */
+    private static boolean needsQuotes(String name) {
+	for (int i = 0; i < name.length(); i++) {
+	    char c = name.charAt(i);
+	    if (c == ',' || c == '"' || c == '\n' || c == '\r') {
+		return true;
+	    }
+	}
+	return false;
+    }
+}
@@ -0,0 +1,334 @@
+package com.hierarchy;
+
+import java.util.List;
+
+/**
+ * The Class TimingWheel.
+ * <p>
+ * Hierarchical timing wheel of timers with a deadline in millis, rounded up to
+ * ticks of tickMillis. LEVELS wheels of SLOTS slots each cover SLOTS ticks,
+ * SLOTS^2 ticks and so on; a timer is linked in the slot of the lowest wheel
+ * covering its deadline, and timers further away than the top wheel wait in an
+ * overflow list. Scheduling and cancelling take O(1). On advance every elapsed
+ * tick fires the timers of its slot in the lowest wheel; once that wheel turns
+ * around, the timers of the next slot of the wheel above are spread in the
+ * wheel below, so a timer moves down at most LEVELS times. Ticks of a turn
+ * of wheels holding no timer are skipped at once, so a long idle gap costs at
+ * most a few steps per wheel. A timer scheduled with a deadline the last
+ * advance reached already waits in a due list, fired first on next advance.
+ * </p>
+ * <p>
+ * Timers are intrusive: elements extend Timer, so a scheduled element takes no
+ * other object. A timer is scheduled at most once at a time. Like the
+ * hierarchy, this class is not thread safe.
+ * </p>
+ *
+ * @param <T> the timer type
+ */
+public class TimingWheel<T extends TimingWheel.Timer> {
+
+    /** The number of bits of the slot index in a wheel. */
+    private static final int SLOT_BITS = 6;
+
+    /** The number of slots of a wheel. */
+    public static final int SLOTS = 1 << SLOT_BITS;
+
+    /** The mask of the slot index. */
+    private static final int SLOT_MASK = SLOTS - 1;
+
+    /** The number of wheels. */
+    public static final int LEVELS = 4;
+
+    /** The slot of a timer in the overflow list. */
+    private static final int OVERFLOW_SLOT = LEVELS * SLOTS;
+
+    /** The slot of a timer in the due list. */
+    private static final int DUE_SLOT = OVERFLOW_SLOT + 1;
+
+    /** The slot of a timer not scheduled. */
+    private static final int NO_SLOT = -1;
+
+    /**
+     * The Class Timer.
+     * <p>
+     * Base of the elements of a timing wheel, linked in the slot holding them.
+     * </p>
+     */
+    public static class Timer {
+
+	/** The deadline tick. */
+	long deadlineTick;
+
+	/** The slot, wheel level * SLOTS + index, NO_SLOT if not scheduled. */
+	int slot = NO_SLOT;
+
+	/** The previous timer of slot. */
+	Timer previous;
+
+	/** The next timer of slot. */
+	Timer next;
+
+	/**
+	 * Checks if timer is scheduled.
+	 *
+	 * @return true, if scheduled
+	 */
+	public boolean isScheduled() {
+	    return slot != NO_SLOT;
+	}
+    }
+
+    /** The tick millis. */
+    private final long tickMillis;
+
+    /** The first timer of every slot, then of the overflow and due lists. */
+    private final Timer[] heads = new Timer[LEVELS * SLOTS + 2];
+
+    /** The number of timers of every wheel, then of the overflow and due lists. */
+    private final int[] levelSizes = new int[LEVELS + 2];
+
+    /** The next tick to process; all ticks before have fired. */
+    private long currentTick;
+
+    /** The latest now of advance, or the start. */
+    private long advancedMillis;
+
+    /** The number of scheduled timers. */
+    private int size;
+
+    /**
+     * Instantiates a new timing wheel.
+     *
+     * @param tickMillis  the tick millis
+     * @param startMillis the time of start, timers due before fire on first
+     *                    advance
+     */
+    public TimingWheel(long tickMillis, long startMillis) {
+	if (tickMillis <= 0) {
+	    throw new IllegalArgumentException("Invalid tick " + tickMillis);
+	}
+	this.tickMillis = tickMillis;
+	this.currentTick = Math.floorDiv(startMillis, tickMillis);
+	this.advancedMillis = startMillis;
+    }
+
+    /**
+     * Schedule timer to fire once deadline is reached. A deadline the last
+     * advance reached already fires on next advance, whatever its now.
+     *
+     * @param timer          the timer, not scheduled
+     * @param deadlineMillis the deadline millis
+     */
+    public void schedule(T timer, long deadlineMillis) {
+	if (timer.isScheduled()) {
+	    throw new IllegalStateException("Timer is already scheduled");
+	}
+	if (deadlineMillis <= advancedMillis) {
+	    // Due at a processed tick, so linked in the due list
+	    timer.deadlineTick = currentTick - 1;
+	} else {
+	    // Rounded up, so a timer never fires before its deadline
+	    timer.deadlineTick = Math.floorDiv(deadlineMillis, tickMillis)
+		    + (Math.floorMod(deadlineMillis, tickMillis) == 0 ? 0 : 1);
+	}
+	link(timer);
+	size++;
+    }
+
+    /**
+     * Cancel timer.
+     *
+     * @param timer the timer
+     * @return true, if timer was scheduled
+     */
+    public boolean cancel(T timer) {
+	if (!timer.isScheduled()) {
+	    return false;
+	}
+	unlink(timer);
+	size--;
+	return true;
+    }
+
+    /**
+     * Fire the timers due up to now, in order of their deadline tick; timers
+     * scheduled with a deadline reached already fire first, in order of
+     * schedule. Fired timers are no longer scheduled and may be scheduled
+     * again.
+     *
+     * @param nowMillis the now millis
+     * @param expired   the list to which fired timers are added
+     * @return the number of fired timers
+     */
+    @SuppressWarnings("unchecked")
+    public int advance(long nowMillis, List<T> expired) {
+	long nowTick = Math.floorDiv(nowMillis, tickMillis);
+	advancedMillis = Math.max(advancedMillis, nowMillis);
+	int fired = fireDue(expired);
+	while (currentTick <= nowTick) {
+	    if (size == 0) {
+		// Nothing can fire, skip the ticks
+		currentTick = nowTick + 1;
+		break;
+	    }
+	    int level = 0;
+	    while (levelSizes[level] == 0) {
+		level++;
+	    }
+	    long turnMask = (1L << (SLOT_BITS * level)) - 1;
+	    if ((currentTick & turnMask) != 0) {
+		// Wheels below level are empty till they turn around
+		currentTick = Math.min((currentTick | turnMask) + 1, nowTick + 1);
+		continue;
+	    }
+	    if ((currentTick & SLOT_MASK) == 0) {
+		cascade();
+	    }
+	    int slot = (int) (currentTick & SLOT_MASK);
+	    Timer timer = heads[slot];
+	    heads[slot] = null;
+	    while (timer != null) {
+		levelSizes[0]--;
+		Timer next = timer.next;
+		timer.slot = NO_SLOT;
+		timer.previous = null;
+		timer.next = null;
+		expired.add((T) timer);
+		fired++;
+		size--;
+		timer = next;
+	    }
+	    currentTick++;
+	}
+	return fired;
+    }
+
+    /**
+     * Fire the timers of the due list, in order of schedule.
+     *
+     * @param expired the list to which fired timers are added
+     * @return the number of fired timers
+     */
+    @SuppressWarnings("unchecked")
+    private int fireDue(List<T> expired) {
+	Timer timer = heads[DUE_SLOT];
+	if (timer == null) {
+	    return 0;
+	}
+	// Linked at head, so the first scheduled is last
+	while (timer.next != null) {
+	    timer = timer.next;
+	}
+	heads[DUE_SLOT] = null;
+	int fired = levelSizes[LEVELS + 1];
+	levelSizes[LEVELS + 1] = 0;
+	size -= fired;
+	while (timer != null) {
+	    Timer previous = timer.previous;
+	    timer.slot = NO_SLOT;
+	    timer.previous = null;
+	    timer.next = null;
+	    expired.add((T) timer);
+	    timer = previous;
+	}
+	return fired;
+    }
+
+    /**
+     * Spread the timers of the wheels above into the wheels below, at the tick
+     * the lowest wheel turns around. A wheel is spread only when the one below
+     * turned around as well.
+     */
+    private void cascade() {
+	for (int level = 1; level < LEVELS; level++) {
+	    int index = (int) (currentTick >>> (SLOT_BITS * level)) & SLOT_MASK;
+	    relink(level * SLOTS + index);
+	    if (index != 0) {
+		return;
+	    }
+	}
+	relink(OVERFLOW_SLOT);
+    }
+
+    /**
+     * Link again every timer of slot, in the slot matching its deadline from
+     * current tick.
+     *
+     * @param slot the slot
+     */
+    private void relink(int slot) {
+	Timer timer = heads[slot];
+	heads[slot] = null;
+	while (timer != null) {
+	    Timer next = timer.next;
+	    levelSizes[levelOf(slot)]--;
+	    link(timer);
+	    timer = next;
+	}
+    }
+
+    /**
+     * Link timer in the slot of the lowest wheel covering its deadline, or in
+     * the due list if its deadline tick was processed already.
+     *
+     * @param timer the timer
+     */
+    private void link(Timer timer) {
+	long deadlineTick = timer.deadlineTick;
+	long delta = deadlineTick - currentTick;
+	int slot = delta < 0 ? DUE_SLOT : OVERFLOW_SLOT;
+	for (int level = 0; level < LEVELS && delta >= 0; level++) {
+	    if (delta < 1L << (SLOT_BITS * (level + 1))) {
+		slot = level * SLOTS + ((int) (deadlineTick >>> (SLOT_BITS * level)) & SLOT_MASK);
+		break;
+	    }
+	}
+	timer.slot = slot;
+	levelSizes[levelOf(slot)]++;
+	timer.previous = null;
+	timer.next = heads[slot];
+	if (timer.next != null) {
+	    timer.next.previous = timer;
+	}
+	heads[slot] = timer;
+    }
+
+    /**
+     * Unlink timer from its slot.
+     *
+     * @param timer the timer
+     */
+    private void unlink(Timer timer) {
+	if (timer.previous != null) {
+	    timer.previous.next = timer.next;
+	} else {
+	    heads[timer.slot] = timer.next;
+	}
+	if (timer.next != null) {
+	    timer.next.previous = timer.previous;
+	}
+	levelSizes[levelOf(timer.slot)]--;
+	timer.slot = NO_SLOT;
+	timer.previous = null;
+	timer.next = null;
+    }
+
+    /**
+     * Gets the index in levelSizes of the wheel or list holding slot.
+     *
+     * @param slot the slot
+     * @return the level
+     */
+    private static int levelOf(int slot) {
+	return slot == DUE_SLOT ? LEVELS + 1 : slot / SLOTS;
+    }
+
+    /**
+     * Gets the number of scheduled timers.
+     *
+     * @return the size
+     */
+    public int size() {
+	return size;
+    }
+}
@@ -0,0 +1,83 @@
+package com.hierarchy;
+
+import java.io.Closeable;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The Class TombstoneReclaimer.
+ * <p>
+ * Background reclaimer of the subtrees of categories removed from a
+ * ConcurrentHierarchy. Removing a category only detaches and tombstones it;
+ * this thread frees the tombstoned nodes in slices of sliceNanos, each under
+ * the write lock, and yields between slices so that other callers wait at most
+ * a slice. While nothing is pending it checks again every idleMillis.
+ * </p>
+ */
+public class TombstoneReclaimer implements Runnable, Closeable {
+
+    /** The LOGGER. */
+    private static final Logger LOGGER = LoggerFactory.getLogger(TombstoneReclaimer.class);
+
+    /** The default slice. */
+    public static final long DEFAULT_SLICE_NANOS = TimeUnit.MICROSECONDS.toNanos(200);
+
+    /** The default idle wait. */
+    public static final long DEFAULT_IDLE_MILLIS = 10;
+
+    /** The hierarchy. */
+    private final ConcurrentHierarchy hierarchy;
+
+    /** The slice nanos. */
+    private final long sliceNanos;
+
+    /** The idle millis. */
+    private final long idleMillis;
+
+    /** The running flag. */
+    private volatile boolean running = true;
+
+    /**
+     * Instantiates a new tombstone reclaimer.
+     *
+     * @param hierarchy  the hierarchy
+     * @param sliceNanos the max time the write lock is held at once
+     * @param idleMillis the wait before checking again once nothing is pending
+     */
+    public TombstoneReclaimer(ConcurrentHierarchy hierarchy, long sliceNanos, long idleMillis) {
+	this.hierarchy = hierarchy;
+	this.sliceNanos = sliceNanos;
+	this.idleMillis = idleMillis;
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see java.lang.Runnable#run()
+     */
+    @Override
+    public void run() {
+	try {
+	    while (this.running) {
+		if (this.hierarchy.reclaimTombstones(this.sliceNanos)) {
+		    Thread.yield();
+		} else {
+		    Thread.sleep(this.idleMillis);
+		}
+	    }
+	} catch (InterruptedException e) {
+	    LOGGER.debug("tombstone reclaimer interrupted", e);
+	    Thread.currentThread().interrupt();
+	}
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see java.io.Closeable#close()
+     */
+    @Override
+    public void close() {
+	this.running = false;
+    }
+}
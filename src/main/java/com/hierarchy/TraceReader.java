@@ -0,0 +1,132 @@
+package com.hierarchy;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * The Class TraceReader.
+ * <p>
+ * Reads the records of a trace written by TraceRecorder, held in memory so
+ * that reading does not weigh on a replay. Request and response are views of
+ * the trace positioned on their frame, valid till next record.
+ * </p>
+ */
+public class TraceReader {
+
+    /** The header length: magic, version and flags. */
+    private static final int HEADER_LENGTH = 4 + 1 + 1;
+
+    /** The trace. */
+    private final ByteBuffer trace;
+
+    /** The flags. */
+    private final byte flags;
+
+    /** The request of current record. */
+    private ByteBuffer request;
+
+    /** The response of current record. */
+    private ByteBuffer response;
+
+    /** The offset of current record from trace start, in nanos. */
+    private long offsetNanos;
+
+    /**
+     * Instantiates a new trace reader.
+     *
+     * @param trace the trace bytes
+     * @throws IOException if bytes are not a trace of known version
+     */
+    public TraceReader(byte[] trace) throws IOException {
+	this.trace = ByteBuffer.wrap(trace);
+	if (trace.length < HEADER_LENGTH || this.trace.getInt() != TraceRecorder.MAGIC) {
+	    throw new IOException("Not a trace");
+	}
+	byte version = this.trace.get();
+	if (version != TraceRecorder.VERSION) {
+	    throw new IOException("Unknown trace version " + version);
+	}
+	this.flags = this.trace.get();
+    }
+
+    /**
+     * Checks if trace was recorded on a server counting sequence numbers.
+     *
+     * @return true, if sequenced
+     */
+    public boolean isSequenced() {
+	return (this.flags & TraceRecorder.FLAG_SEQUENCED) != 0;
+    }
+
+    /**
+     * Move to first record.
+     */
+    public void rewind() {
+	this.trace.position(HEADER_LENGTH);
+	this.offsetNanos = 0;
+    }
+
+    /**
+     * Move to next record.
+     *
+     * @return true, if there is a record; false at end of trace
+     * @throws IOException if the trace ends within a record
+     */
+    public boolean next() throws IOException {
+	if (!this.trace.hasRemaining()) {
+	    return false;
+	}
+	if (this.trace.remaining() < 4) {
+	    throw new IOException("Truncated trace");
+	}
+	this.offsetNanos += (this.trace.getInt() & 0xFFFFFFFFL) * 1000;
+	this.request = nextFrame();
+	this.response = nextFrame();
+	return true;
+    }
+
+    /**
+     * Gets the view of frame at position of trace and moves after it.
+     *
+     * @return the frame
+     * @throws IOException if the trace ends within the frame
+     */
+    private ByteBuffer nextFrame() throws IOException {
+	int position = this.trace.position();
+	if (this.trace.remaining() < 4 || this.trace.remaining() < 4 + this.trace.getInt(position)) {
+	    throw new IOException("Truncated trace");
+	}
+	int frameLength = 4 + this.trace.getInt(position);
+	ByteBuffer frame = this.trace.duplicate();
+	frame.limit(position + frameLength);
+	this.trace.position(position + frameLength);
+	return frame;
+    }
+
+    /**
+     * Gets the request frame of current record.
+     *
+     * @return the request, positioned on its frame
+     */
+    public ByteBuffer getRequest() {
+	return this.request;
+    }
+
+    /**
+     * Gets the recorded response frame of current record.
+     *
+     * @return the response, positioned on its frame
+     */
+    public ByteBuffer getResponse() {
+	return this.response;
+    }
+
+    /**
+     * Gets the offset of current record from the start of trace.
+     *
+     * @return the offset in nanos
+     */
+    public long getOffsetNanos() {
+	return this.offsetNanos;
+    }
+}
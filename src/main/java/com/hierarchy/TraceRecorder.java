@@ -0,0 +1,113 @@
+package com.hierarchy;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * The Class TraceRecorder.
+ * <p>
+ * Records the operations executed by a HierarchyServer into a compact binary
+ * trace, replayed by TraceReplayBenchmark. A trace starts with int MAGIC, byte
+ * VERSION and byte flags (FLAG_SEQUENCED when the server counts sequence
+ * numbers as a primary). Then every record is the int number of microseconds
+ * since the previous record, the BinaryProtocol request frame and the response
+ * frame produced by the server, both with their length prefix. Numbers are big
+ * endian.
+ * </p>
+ * <p>
+ * A trace is replayed on an empty hierarchy, so recording must start with the
+ * server, on a standalone or primary server. Records are buffered; the trace
+ * is complete once closed. Only the server thread records.
+ * </p>
+ */
+public class TraceRecorder implements Closeable {
+
+    /** The magic number of a trace, "HTRC". */
+    public static final int MAGIC = 0x48545243;
+
+    /** The version of trace format. */
+    public static final byte VERSION = 1;
+
+    /** The flag of a trace recorded on a primary, counting sequence numbers. */
+    public static final byte FLAG_SEQUENCED = 1;
+
+    /** The buffer size. */
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /** The output. */
+    private final DataOutputStream output;
+
+    /** The nano time of previous record, of trace start before first record. */
+    private long previousNanos;
+
+    /** The nanos of elapsed time not yet written, below a microsecond. */
+    private long remainderNanos;
+
+    /**
+     * Instantiates a new trace recorder and writes the trace header.
+     *
+     * @param output    the output, closed with this recorder
+     * @param sequenced true if the server counts sequence numbers
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    public TraceRecorder(OutputStream output, boolean sequenced) throws IOException {
+	this.output = new DataOutputStream(new BufferedOutputStream(output, BUFFER_SIZE));
+	this.output.writeInt(MAGIC);
+	this.output.writeByte(VERSION);
+	this.output.writeByte(sequenced ? FLAG_SEQUENCED : 0);
+	this.previousNanos = System.nanoTime();
+    }
+
+    /**
+     * Record an executed operation.
+     *
+     * @param nanos          the nano time the request was executed
+     * @param request        the buffer holding the request frame
+     * @param requestOffset  the offset of request frame
+     * @param response       the buffer holding the response frame
+     * @param responseOffset the offset of response frame
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    public void record(long nanos, ByteBuffer request, int requestOffset, ByteBuffer response, int responseOffset)
+	    throws IOException {
+	// Sub microsecond remainders are carried over, so pacing does not drift
+	long elapsedNanos = nanos - this.previousNanos + this.remainderNanos;
+	long elapsedMicros = Math.max(0, Math.min(elapsedNanos / 1000, Integer.MAX_VALUE));
+	this.remainderNanos = elapsedNanos - elapsedMicros * 1000;
+	this.previousNanos = nanos;
+	this.output.writeInt((int) elapsedMicros);
+	writeFrame(request, requestOffset);
+	writeFrame(response, responseOffset);
+    }
+
+    /**
+     * Write the frame at offset of buffer, length prefix included.
+     *
+     * @param buffer the buffer
+     * @param offset the offset
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    private void writeFrame(ByteBuffer buffer, int offset) throws IOException {
+	int frameLength = 4 + buffer.getInt(offset);
+	if (buffer.hasArray()) {
+	    this.output.write(buffer.array(), buffer.arrayOffset() + offset, frameLength);
+	} else {
+	    for (int i = 0; i < frameLength; i++) {
+		this.output.write(buffer.get(offset + i));
+	    }
+	}
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see java.io.Closeable#close()
+     */
+    @Override
+    public void close() throws IOException {
+	this.output.close();
+    }
+}
@@ -0,0 +1,154 @@
+package com.hierarchy;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The Class TraceReplayBenchmark.
+ * <p>
+ * Replays a trace recorded by HierarchyServer with a TraceRecorder on a new
+ * hierarchy of this build, and reports the throughput, the latency
+ * percentiles, and the responses differing from the recorded ones. Every round
+ * replays the whole trace from an empty hierarchy, read in memory beforehand.
+ * </p>
+ * <p>
+ * At speed 0 requests are executed back to back. At speed N they are paced as
+ * recorded, N times faster, and latency is measured from the time a request
+ * was due, not from the time it was executed, so a slow request also counts in
+ * the latency of those waiting behind it.
+ * </p>
+ * <p>
+ * Usage: TraceReplayBenchmark trace [speed] [rounds]. Defaults are 0 5.
+ * </p>
+ */
+public class TraceReplayBenchmark {
+
+    /** The LOGGER. */
+    private static final Logger LOGGER = LoggerFactory.getLogger(TraceReplayBenchmark.class);
+
+    /** The warm up rounds, results of these are not reported. */
+    private static final int WARM_UP_ROUNDS = 2;
+
+    /** The highest trackable latency. */
+    private static final long HIGHEST_TRACKABLE_LATENCY = TimeUnit.SECONDS.toNanos(10);
+
+    /** The max number of differing responses logged per round. */
+    private static final int MAX_LOGGED_DIFFS = 10;
+
+    /**
+     * The main method.
+     *
+     * @param args the arguments
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    public static void main(String[] args) throws IOException {
+	if (args.length == 0) {
+	    LOGGER.error("Usage: TraceReplayBenchmark trace [speed] [rounds]");
+	    return;
+	}
+	TraceReader trace = new TraceReader(Files.readAllBytes(Paths.get(args[0])));
+	double speed = args.length > 1 ? Double.parseDouble(args[1]) : 0;
+	int rounds = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+
+	LatencyHistogram latency = new LatencyHistogram(HIGHEST_TRACKABLE_LATENCY);
+	for (int round = 0; round < WARM_UP_ROUNDS + rounds; round++) {
+	    latency.reset();
+	    long startNanos = System.nanoTime();
+	    int diffCount = replay(trace, speed, latency);
+	    long elapsedNanos = System.nanoTime() - startNanos;
+	    if (round >= WARM_UP_ROUNDS) {
+		long count = latency.getTotalCount();
+		LOGGER.info("{} operations in {} ms, {} ops/s, {} differing responses", count,
+			elapsedNanos / 1000000, count * 1000000000L / Math.max(1, elapsedNanos), diffCount);
+		LOGGER.info("latency us: p50 {} p99 {} p99.9 {} max {}", toMicros(latency.getValueAtPercentile(50)),
+			toMicros(latency.getValueAtPercentile(99)), toMicros(latency.getValueAtPercentile(99.9)),
+			toMicros(latency.getMaxValue()));
+	    }
+	}
+    }
+
+    /**
+     * Replay the trace on a new hierarchy.
+     *
+     * @param trace   the trace
+     * @param speed   the speed relative to recording, 0 for full speed
+     * @param latency the latency histogram
+     * @return the number of responses differing from the recorded ones
+     * @throws IOException if the trace is truncated
+     */
+    private static int replay(TraceReader trace, double speed, LatencyHistogram latency) throws IOException {
+	HierarchyUsingChildCategoryAndProduct hierarchy = new HierarchyUsingChildCategoryAndProduct();
+	ProductResult productResult = new ProductResult();
+	SubtreeAggregates aggregates = new SubtreeAggregates();
+	ByteBuffer response = ByteBuffer.allocate(BinaryProtocol.MAX_RESPONSE_LENGTH);
+	long sequence = 0;
+	int diffCount = 0;
+	int operation = 0;
+
+	trace.rewind();
+	long startNanos = System.nanoTime();
+	while (trace.next()) {
+	    ByteBuffer request = trace.getRequest();
+	    long dueNanos = startNanos;
+	    if (speed > 0) {
+		dueNanos += (long) (trace.getOffsetNanos() / speed);
+		long waitNanos;
+		while ((waitNanos = dueNanos - System.nanoTime()) > 0) {
+		    LockSupport.parkNanos(waitNanos);
+		}
+	    } else {
+		dueNanos = System.nanoTime();
+	    }
+	    byte queryType = BinaryProtocol.getQueryType(request);
+	    response.clear();
+	    ResultCode resultCode = BinaryProtocol.execute(hierarchy, request, response, productResult, aggregates,
+		    sequence, false);
+	    latency.record(System.nanoTime() - dueNanos);
+	    if (trace.isSequenced() && resultCode.isSuccess() && BinaryProtocol.isWrite(queryType)) {
+		sequence++;
+	    }
+
+	    response.flip();
+	    if (!response.equals(trace.getResponse())) {
+		if (diffCount < MAX_LOGGED_DIFFS) {
+		    LOGGER.warn("operation {} (query type {}): response {} differs from recorded {}", operation,
+			    queryType, toHex(response), toHex(trace.getResponse()));
+		}
+		diffCount++;
+	    }
+	    operation++;
+	}
+	return diffCount;
+    }
+
+    /**
+     * Hex of remaining bytes of buffer.
+     *
+     * @param buffer the buffer
+     * @return the hex string
+     */
+    private static String toHex(ByteBuffer buffer) {
+	StringBuilder hex = new StringBuilder();
+	for (int i = buffer.position(); i < buffer.limit(); i++) {
+	    hex.append(String.format("%02x", buffer.get(i)));
+	}
+	return hex.toString();
+    }
+
+    /**
+     * Nanos to micros.
+     *
+     * @param nanos the nanos
+     * @return the micros
+     */
+    private static long toMicros(long nanos) {
+	return TimeUnit.NANOSECONDS.toMicros(nanos);
+    }
+}
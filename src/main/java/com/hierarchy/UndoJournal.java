@@ -0,0 +1,97 @@
+package com.hierarchy;
+
+import java.util.Arrays;
+
+/**
+ * The Class UndoJournal.
+ * <p>
+ * Journal of the values overwritten by discount operations on hierarchy: the
+ * selling price and discount of every touched product and the max discounted
+ * products, by discount and by discount ratio, of every touched category.
+ * Entries are kept in primitive arrays in the order of change, so rollback
+ * restores them in reverse order and only the touched nodes are visited.
+ * </p>
+ */
+public class UndoJournal {
+
+    /** The initial capacity. */
+    private static final int INITIAL_CAPACITY = 16;
+
+    /** The product ids. */
+    int[] productIds = new int[INITIAL_CAPACITY];
+
+    /** The product selling prices. */
+    float[] sellingPrices = new float[INITIAL_CAPACITY];
+
+    /** The product discounts. */
+    float[] productDiscounts = new float[INITIAL_CAPACITY];
+
+    /** The number of product entries. */
+    int productCount;
+
+    /** The category ids. */
+    int[] categoryIds = new int[INITIAL_CAPACITY];
+
+    /** The max discounted product ids of categories. */
+    int[] maxDiscountedProductIds = new int[INITIAL_CAPACITY];
+
+    /** The max discounted product discounts of categories. */
+    float[] maxDiscountedProductDiscounts = new float[INITIAL_CAPACITY];
+
+    /** The max percent discounted product ids of categories. */
+    int[] maxPercentDiscountedProductIds = new int[INITIAL_CAPACITY];
+
+    /** The max percent discounted product ratios of categories. */
+    float[] maxPercentDiscountedProductRatios = new float[INITIAL_CAPACITY];
+
+    /** The number of category entries. */
+    int categoryCount;
+
+    /**
+     * Record the current price of product before it is changed.
+     *
+     * @param product the product
+     */
+    void recordProduct(Product product) {
+	if (productCount == productIds.length) {
+	    productIds = Arrays.copyOf(productIds, productCount * 2);
+	    sellingPrices = Arrays.copyOf(sellingPrices, productCount * 2);
+	    productDiscounts = Arrays.copyOf(productDiscounts, productCount * 2);
+	}
+	productIds[productCount] = product.getId();
+	sellingPrices[productCount] = product.getSellingPrice();
+	productDiscounts[productCount] = product.getDiscount();
+	productCount++;
+    }
+
+    /**
+     * Record the current max discounted product of category before it is
+     * changed.
+     *
+     * @param category the category
+     */
+    void recordCategory(Category category) {
+	if (categoryCount == categoryIds.length) {
+	    categoryIds = Arrays.copyOf(categoryIds, categoryCount * 2);
+	    maxDiscountedProductIds = Arrays.copyOf(maxDiscountedProductIds, categoryCount * 2);
+	    maxDiscountedProductDiscounts = Arrays.copyOf(maxDiscountedProductDiscounts, categoryCount * 2);
+	    maxPercentDiscountedProductIds = Arrays.copyOf(maxPercentDiscountedProductIds, categoryCount * 2);
+	    maxPercentDiscountedProductRatios = Arrays.copyOf(maxPercentDiscountedProductRatios, categoryCount * 2);
+	}
+	categoryIds[categoryCount] = category.getId();
+	maxDiscountedProductIds[categoryCount] = category.getMaxDiscountedProductId();
+	maxDiscountedProductDiscounts[categoryCount] = category.getMaxDiscountedProductDiscount();
+	maxPercentDiscountedProductIds[categoryCount] = category.getMaxPercentDiscountedProductId();
+	maxPercentDiscountedProductRatios[categoryCount] = category.getMaxPercentDiscountedProductRatio();
+	categoryCount++;
+    }
+
+    /**
+     * Clear the journal so that it can be reused.
+     */
+    void clear() {
+	productCount = 0;
+	categoryCount = 0;
+    }
+
+}